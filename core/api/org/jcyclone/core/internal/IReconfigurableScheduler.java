@@ -0,0 +1,14 @@
+package org.jcyclone.core.internal;
+
+/**
+ * A scheduler whose threads can be resized while the stages run.
+ */
+public interface IReconfigurableScheduler extends IScheduler {
+
+	/**
+	 * Resize the threads of the given registered stage to the thread pool
+	 * settings currently configured for it.
+	 */
+	void reconfigure(IStageWrapper stage);
+
+}
@@ -24,6 +24,10 @@
 
 package org.jcyclone.core.internal;
 
+import org.jcyclone.core.queue.IElement;
+
+import java.util.List;
+
 /**
  * This interface allows various components of the system to record and
  * gather statistics about the stage during execution.
@@ -42,6 +46,12 @@ public interface IStageStats {
 	 */
 	void recordServiceRate(int numEvents, long time);
 
+	/**
+	 * Record a service rate sample, with the service time measured in
+	 * nanoseconds as well as in msec, for the utilization.
+	 */
+	void recordServiceRate(int numEvents, long time, long nanos);
+
 	/**
 	 * Get a moving average of the stage's service rate.
 	 */
@@ -52,6 +62,45 @@ public interface IStageStats {
 	 */
 	long getTotalEvents();
 
+	/**
+	 * Get a running total of the time spent processing events, in msec,
+	 * summed over all of the stage's threads.
+	 */
+	long getTotalServiceTime();
+
+	/**
+	 * Get a running total of the time spent processing events, in
+	 * nanoseconds, summed over all of the stage's threads. Unlike
+	 * getTotalServiceTime(), batches shorter than a msec are counted.
+	 */
+	long getTotalServiceNanos();
+
+	/**
+	 * Get a moving average of the fraction of time the stage's threads
+	 * spend processing events, between 0 and 1.
+	 */
+	double getUtilization();
+
+	/**
+	 * Record that the given batch of events took 'nanos' nsec to be
+	 * processed, to estimate the cost of each type of event. Events are
+	 * typed by their request class if they are IClassEvents with a class,
+	 * and by their Java class otherwise.
+	 */
+	void recordEventCosts(List events, long nanos);
+
+	/**
+	 * Get a moving average of the service time, in msec, of events of
+	 * the same type as the given one, or -1 if none has been processed.
+	 */
+	double getEventCost(IElement element);
+
+	/**
+	 * Get a moving average of the service time per event, in msec, or
+	 * -1 if no event has been processed.
+	 */
+	double getMeanEventCost();
+
 	/**
 	 * Record a 90th percentile response time sample in msec.
 	 */
@@ -0,0 +1,27 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * An ITraceable is an event which can carry a trace identifier as it
+ * flows through the stage graph. Trace identifiers are assigned to a
+ * sampled fraction of the events entering the system, and are copied
+ * onto the events derived from them when a stage enqueues new work.
+ * A trace identifier of 0 means that the event is not being traced.
+ *
+ * @see org.jcyclone.core.profiler.EventTracer
+ */
+public interface ITraceable extends IElement {
+
+	/**
+	 * Return the trace identifier of this event, or 0 if the event is
+	 * not traced.
+	 */
+	long getTraceId();
+
+	/**
+	 * Set the trace identifier of this event.
+	 */
+	void setTraceId(long traceId);
+
+}
@@ -0,0 +1,19 @@
+package org.jcyclone.core.queue;
+
+/**
+ * A listener which is told when room has been made in a sink.
+ *
+ * @see IDrainNotifyingSink
+ */
+public interface IDrainListener {
+
+	/**
+	 * Called once elements have been removed from the sink on which the
+	 * listener was registered. This is called by the thread which
+	 * dequeued the elements, and so must return quickly without
+	 * blocking; typically it posts an event to the stage which wants to
+	 * retry its enqueue.
+	 */
+	void sinkDrained();
+
+}
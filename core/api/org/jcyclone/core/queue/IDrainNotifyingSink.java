@@ -0,0 +1,23 @@
+package org.jcyclone.core.queue;
+
+/**
+ * A sink which can tell a producer when elements have been removed from
+ * it. A producer whose enqueue failed with a SinkFullException can then
+ * wait for room in the sink, rather than retry the enqueue repeatedly or
+ * drop the element.
+ */
+public interface IDrainNotifyingSink extends ISink {
+
+	/**
+	 * Call the given listener once, the next time elements are removed
+	 * from this sink, or right away if the sink is empty. When a few
+	 * elements are removed, as many listeners are called, in the order
+	 * in which they were registered; when the sink becomes empty, all
+	 * listeners are called.
+	 *
+	 * @return false if this sink cannot tell when elements are removed,
+	 *         in which case the listener is not registered.
+	 */
+	boolean notifyOnDrain(IDrainListener listener);
+
+}
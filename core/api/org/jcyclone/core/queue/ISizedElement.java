@@ -0,0 +1,17 @@
+package org.jcyclone.core.queue;
+
+/**
+ * An ISizedElement is an event which can report the number of bytes
+ * of payload it carries. This is only used as a hint, for example by
+ * the stage graph profiler to measure bytes/sec flowing between stages.
+ *
+ * @see org.jcyclone.core.internal.StageGraph
+ */
+public interface ISizedElement extends IElement {
+
+	/**
+	 * Return the size of the payload carried by this element, in bytes.
+	 */
+	int getSize();
+
+}
@@ -28,7 +28,8 @@ import org.jcyclone.core.queue.IElement;
 
 /**
  * A IClassEvent represents an event with an associated 'class'
- * used for class-based admission control.
+ * used for class-based admission control, and optionally a latency
+ * budget used for end-to-end admission control.
  *
  * @author Matt Welsh
  */
@@ -36,5 +37,20 @@ public interface IClassEvent extends IElement {
 	int getRequestClass();
 
 	void setRequestClass(int theclass);
+
+	/**
+	 * Return the end-to-end latency budget of this event, in msec, or -1
+	 * to use the budget configured for its class. The default returns -1.
+	 */
+	default long getLatencyBudget() {
+		return -1;
+	}
+
+	/**
+	 * Set the end-to-end latency budget of this event, in msec. The
+	 * default ignores it.
+	 */
+	default void setLatencyBudget(long budget) {
+	}
 }
 
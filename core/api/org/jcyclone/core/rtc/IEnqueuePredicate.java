@@ -53,4 +53,21 @@ public interface IEnqueuePredicate {
 	void blockingAccept(IElement element);
 
 	boolean acceptMany(List elements);
+
+	/**
+	 * Invoked when an element which this predicate accepted, through
+	 * accept() or blockingAccept(), is not enqueued after all: a later
+	 * predicate or the queue itself rejected it. Predicates which hold a
+	 * resource for each accepted element release it here. The default
+	 * does nothing.
+	 */
+	default void rejected(IElement element) {
+	}
+
+	/**
+	 * As {@link #rejected}, for elements accepted together through
+	 * acceptMany(); also invoked when their transaction is aborted.
+	 */
+	default void rejectedMany(List elements) {
+	}
 }
@@ -51,6 +51,15 @@ public interface IResponseTimeController {
 	 */
 	void adjustThreshold(List fetched, long serviceTime);
 
+	/**
+	 * Invoked by the stage's thread manager instead of adjustThreshold()
+	 * when the event handler threw an exception on the given events.
+	 * Controllers which hold a resource for each admitted event release
+	 * it here. The default does nothing.
+	 */
+	default void batchFailed(List fetched) {
+	}
+
 	/**
 	 * Enable the response time controller.
 	 */
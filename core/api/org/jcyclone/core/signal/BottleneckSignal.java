@@ -0,0 +1,67 @@
+package org.jcyclone.core.signal;
+
+import org.jcyclone.core.internal.IStageWrapper;
+
+/**
+ * This signal is fired by the bottleneck analyzer whenever it finds one
+ * or more saturated stages. Register for it with an empty instance.
+ *
+ * @see org.jcyclone.core.internal.BottleneckAnalyzer
+ */
+public class BottleneckSignal implements ISignal {
+
+	private IStageWrapper saturated[];
+	private double expectedGain[];
+	private IStageWrapper criticalPath[];
+	private String report;
+
+	/**
+	 * Create an empty signal, to be used for registration.
+	 */
+	public BottleneckSignal() {
+		this(new IStageWrapper[0], new double[0], new IStageWrapper[0], "");
+	}
+
+	public BottleneckSignal(IStageWrapper saturated[], double expectedGain[],
+	                        IStageWrapper criticalPath[], String report) {
+		this.saturated = saturated;
+		this.expectedGain = expectedGain;
+		this.criticalPath = criticalPath;
+		this.report = report;
+	}
+
+	/**
+	 * Return the saturated stages, the most utilized first.
+	 */
+	public IStageWrapper[] getSaturatedStages() {
+		return saturated;
+	}
+
+	/**
+	 * Return the expected increase in throughput, in events per second,
+	 * from adding one thread to each of the saturated stages.
+	 */
+	public double[] getExpectedGain() {
+		return expectedGain;
+	}
+
+	/**
+	 * Return the stages on the critical path from the entry stage, in
+	 * order.
+	 */
+	public IStageWrapper[] getCriticalPath() {
+		return criticalPath;
+	}
+
+	/**
+	 * Return a human-readable report of the analysis.
+	 */
+	public String getReport() {
+		return report;
+	}
+
+	public String toString() {
+		return "BottleneckSignal:\n" + report;
+	}
+
+}
@@ -98,6 +98,20 @@ public interface IStageManager {
 	 */
 	ISystemConfig getConfig();
 
+	/**
+	 * Apply the global and per-stage settings of the given configuration
+	 * to the running system, without restarting it. The changed settings
+	 * are all written to the configuration of this manager before any
+	 * stage applies them, and each stage applies its changes at once:
+	 * queue implementation, admission control, thread pool sizes, batch
+	 * controller limits and response time targets. Other settings take
+	 * effect when the stages concerned are next programmed.
+	 *
+	 * @param config The new configuration.
+	 * @throws Exception If the new settings cannot be applied.
+	 */
+	void reconfigure(ISystemConfig config) throws Exception;
+
 	void loadStage(String stagename) throws Exception;
 
 	void programStage(String stagename) throws Exception;
@@ -27,6 +27,7 @@ package org.jcyclone.core.boot;
 
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.cfg.ConfigFileWatcher;
 import org.jcyclone.core.cfg.FileConfig;
 import org.jcyclone.core.internal.ISystemManager;
 import org.jcyclone.core.stage.IStageManager;
@@ -51,6 +52,7 @@ import org.jcyclone.core.stage.JCycloneMgr;
 public class JCyclone {
 
 	private JCycloneMgr mgr;
+	private ConfigFileWatcher watcher;
 	private static JCyclone instance = null;
     private boolean fHasBeenStopped = false;
 
@@ -68,6 +70,7 @@ public class JCyclone {
 	 */
 	public JCyclone(String fname) throws Exception {
 		this(new FileConfig(fname));
+		if (mgr.getConfig().getBoolean("global.reconfigure.watch")) watchConfigFile(fname, null);
 	}
 
 	/**
@@ -85,6 +88,16 @@ public class JCyclone {
         fHasBeenStopped = false;
     }
 
+	/**
+	 * Apply the given configuration file, read with the given default
+	 * initialization arguments, to the running system whenever it changes.
+	 */
+	public synchronized void watchConfigFile(String fname, String defaultArgs[]) {
+		if (watcher != null) watcher.shutdown();
+		watcher = new ConfigFileWatcher(mgr, fname, defaultArgs);
+		watcher.start();
+	}
+
 	/**
 	 * Return a handler to the stage manager for the JCyclone instance.
 	 * This interface allows one to create and obtain handles to stages.
@@ -112,6 +125,7 @@ public class JCyclone {
     /** Stops the JCyclone instance, forcing shutdown of all stages and plugins */
     public void stop() throws Exception
     {
+        if (watcher != null) watcher.shutdown();
         mgr.stop();
         fHasBeenStopped = true;
     }
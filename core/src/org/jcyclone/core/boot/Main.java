@@ -96,6 +96,7 @@ public class Main {
 			}
 			if (PROFILE) cfg.putBoolean("global.profile.enable", true);
 			JCyclone ss = new JCyclone(cfg);
+			if (cfg.getBoolean("global.reconfigure.watch")) ss.watchConfigFile(args[n], initargs);
 
 		} catch (Exception e) {
 			System.err.println("JCyclone main(): Got exception: " + e);
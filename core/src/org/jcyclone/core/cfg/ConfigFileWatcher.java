@@ -0,0 +1,76 @@
+package org.jcyclone.core.cfg;
+
+import org.jcyclone.core.stage.IStageManager;
+
+import java.io.File;
+
+/**
+ * A thread which watches a configuration file, and applies it to the
+ * running system with {@link IStageManager#reconfigure} whenever the file
+ * changes. A file which cannot be read or applied is reported, and the
+ * current configuration is kept.
+ * <p/>
+ * The file is checked every <tt>global.reconfigure.interval</tt> msec.
+ * JCyclone starts a watcher for the file it was configured from if
+ * <tt>global.reconfigure.watch</tt> is true.
+ */
+public class ConfigFileWatcher extends Thread {
+
+	private static final boolean DEBUG = false;
+
+	private IStageManager mgr;
+	private File file;
+	private String defaultArgs[];
+	private long interval;
+	private long lastModified;
+	private volatile boolean running = true;
+
+	/**
+	 * Create a watcher of the given file, with the given default
+	 * initialization arguments, as passed to FileConfig.
+	 */
+	public ConfigFileWatcher(IStageManager mgr, String fname, String defaultArgs[]) {
+		super("JCyclone ConfigFileWatcher");
+		setDaemon(true);
+		this.mgr = mgr;
+		this.file = new File(fname);
+		this.defaultArgs = defaultArgs;
+		this.interval = mgr.getConfig().getInt("global.reconfigure.interval");
+		this.lastModified = file.lastModified();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException ie) {
+				if (!running) return;
+			}
+			check();
+		}
+	}
+
+	/**
+	 * Apply the file if it has changed since it was last read.
+	 */
+	public void check() {
+		long modified = file.lastModified();
+		if (modified == lastModified) return;
+		lastModified = modified;
+		if (DEBUG) System.err.println("ConfigFileWatcher: " + file + " changed");
+		try {
+			mgr.reconfigure(new FileConfig(file.getPath(), defaultArgs));
+		} catch (Exception e) {
+			System.err.println("ConfigFileWatcher: Cannot apply " + file + ", keeping the current configuration: " + e);
+		}
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+}
@@ -98,16 +98,62 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 		"global.threadPool.sizeController.threshold", "1000",
 		"global.threadPool.sizeController.idleTimeThreshold", "1000",
 
+		"global.init.threads", "1",
+		"global.shutdown.timeout", "5000",
+
+		"global.queue.type", "array",
+		"global.reconfigure.watch", CONFIG_FALSE,
+		"global.reconfigure.interval", "2000",
+
 		"global.batchController.enable", CONFIG_FALSE,
 		"global.batchController.minBatch", "1",
 		"global.batchController.maxBatch", "-1",
 
+		"global.rtController.percentile", "0.9",
+		"global.rtController.accuracy", "0.01",
+		"global.rtController.halfLife", "0",
+		"global.rtController.multiclass.globalRate", "-1",
+		"global.rtController.multiclass.globalDepth", "10",
+		"global.rtController.codel.target", "5",
+		"global.rtController.codel.interval", "100",
+		"global.rtController.limiter.initialLimit", "20",
+		"global.rtController.limiter.minLimit", "1",
+		"global.rtController.limiter.maxLimit", "1000",
+		"global.rtController.limiter.window", "100",
+		"global.rtController.limiter.smoothing", "0.2",
+		"global.rtController.limiter.probeInterval", "600",
+
 		"global.profile.enable", CONFIG_FALSE,
 		"global.profile.delay", "1000",
 		"global.profile.filename", "jcyclone-profile.txt",
 		"global.profile.sockets", CONFIG_FALSE,
 		"global.profile.graph", CONFIG_FALSE,
 		"global.profile.graphfilename", "jcyclone-graph.txt",
+		"global.profile.graphformat", "dot",
+		"global.profile.graphinterval", "0",
+		"global.profile.binary.filename", "jcyclone-profile.bin",
+		"global.profile.binary.segmentSize", "4194304",
+		"global.profile.binary.segments", "4",
+		"global.profile.bottleneck.enable", CONFIG_FALSE,
+		"global.profile.bottleneck.interval", "5000",
+		"global.profile.bottleneck.threshold", "0.9",
+		"global.profile.cpu.enable", CONFIG_FALSE,
+		"global.profile.cpu.interval", "1000",
+		"global.profile.trace.enable", CONFIG_FALSE,
+		"global.profile.trace.sampleRate", "0.01",
+		"global.profile.trace.bufferSize", "65536",
+		"global.profile.trace.filename", "jcyclone-trace.json",
+		"global.admission.budget.enable", CONFIG_FALSE,
+		"global.admission.budget.interval", "1000",
+		"global.admission.budget.smoothing", "0.5",
+		"global.admission.budget.default", "-1",
+		"global.admission.shedding.enable", CONFIG_FALSE,
+		"global.admission.shedding.threshold", "0.9",
+		"global.admission.shedding.interval", "100",
+		"global.admission.shedding.maxShed", "0.95",
+		"global.admission.threshold.size", "-1",
+		"global.admission.rate.rate", "-1",
+		"global.admission.rate.depth", "100",
 
 		/* Deprecated */
 		"global.AggTPSTM.governor.enable", CONFIG_FALSE,
@@ -121,6 +167,22 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 		"global.aSocket.enable", CONFIG_TRUE,
 		"global.aSocket.rateController.enable", CONFIG_FALSE,
 		"global.aSocket.rateController.rate", "100000.0",
+		"global.aSocket.selectors", "1",
+		"global.aSocket.shardAssignment", "hash",
+		"global.aSocket.writeFastPath", CONFIG_FALSE,
+		"global.aSocket.writeBuffer.lowWatermark", "-1",
+		"global.aSocket.writeBuffer.highWatermark", "-1",
+		"global.aSocket.timeout.idleRead", "-1",
+		"global.aSocket.timeout.idleWrite", "-1",
+		"global.aSocket.timeout.lifetime", "-1",
+		"global.aSocket.timeout.tick", "1000",
+		"global.aSocket.readBuffer.minSize", "512",
+		"global.aSocket.readBuffer.initialSize", "16384",
+		"global.aSocket.readBuffer.maxSize", "65536",
+		"global.aSocket.readBufferPool.enable", CONFIG_FALSE,
+		"global.aSocket.readBufferPool.slabSize", "1048576",
+		"global.aSocket.readBufferPool.maxSlabs", "64",
+		"global.aSocket.readBufferPool.leakDetection", CONFIG_FALSE,
 
 		"global.aDisk.enable", CONFIG_FALSE,
 		"global.aDisk.threadPool.initialThreads", "1",
@@ -24,15 +24,16 @@
 
 package org.jcyclone.core.event;
 
-import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.profiler.ITraceable;
 import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.ISizedElement;
 
 /**
  * A BufferElement is a IEvent which represents a memory buffer.
  *
  * @author Matt Welsh
  */
-public class BufferElement implements IElement {
+public class BufferElement implements ITraceable, ISizedElement {
 
 	/**
 	 * The data associated with this BufferElement.
@@ -63,6 +64,8 @@ public class BufferElement implements IElement {
 	 */
 	public int offset;
 
+	private long traceId;
+
 	/**
 	 * Create a BufferElement with the given data, an offset of 0, and a
 	 * size of data.length.
@@ -135,5 +138,13 @@ public class BufferElement implements IElement {
 		return compQ;
 	}
 
+	public long getTraceId() {
+		return traceId;
+	}
+
+	public void setTraceId(long traceId) {
+		this.traceId = traceId;
+	}
+
 }
 
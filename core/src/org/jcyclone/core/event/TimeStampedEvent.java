@@ -24,7 +24,7 @@
 
 package org.jcyclone.core.event;
 
-import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.profiler.ITraceable;
 
 
 /**
@@ -33,12 +33,21 @@ import org.jcyclone.core.queue.IElement;
  *
  * @author Matt Welsh
  */
-public abstract class TimeStampedEvent implements IElement {
+public abstract class TimeStampedEvent implements ITraceable {
 	public long timestamp;
+	private long traceId;
 
 	// Can only be instantiated by subclasses
 	protected TimeStampedEvent() {
 	}
 
+	public long getTraceId() {
+		return traceId;
+	}
+
+	public void setTraceId(long traceId) {
+		this.traceId = traceId;
+	}
+
 }
 
@@ -125,6 +125,19 @@ class AggThrottle {
 		return "AggThrottle <" + name + ">";
 	}
 
+	/**
+	 * Change the limits of the batch size. The controller starts again
+	 * from the largest batch.
+	 */
+	synchronized void setBatchLimits(int minBatch, int maxBatch) {
+		this.minAggregation = minBatch;
+		this.maxAggregation = maxBatch;
+		System.err.println("AggThrottle <" + name + ">: minBatch " + minAggregation + ", maxBatch " + maxAggregation);
+		this.aggregationTarget = this.maxAggregation;
+		bestThroughput = 0.0;
+		bestTarget = aggregationTarget;
+	}
+
 	synchronized int getAggTarget() {
 
 		long cur_time = System.currentTimeMillis();
@@ -61,6 +61,14 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 		this.name = stage.getStage().getName();
 	}
 
+	/**
+	 * Change the limits of the batch size, as with
+	 * global.batchController.minBatch and maxBatch.
+	 */
+	public void setBatchLimits(int minBatch, int maxBatch) {
+		if (aggThrottle != null) aggThrottle.setBatchLimits(minBatch, maxBatch);
+	}
+
 	/**
 	 * Returns a single batch for processing by the stage's event handler.
 	 * Blocks until a batch can be returned.
@@ -0,0 +1,484 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.profiler.IProfilerHandler;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.profiler.StageResourceSampler;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.signal.BottleneckSignal;
+import org.jcyclone.core.signal.ISignalMgr;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BottleneckAnalyzer periodically determines which stages limit the
+ * throughput of the application. Over each interval of
+ * <tt>global.profile.bottleneck.interval</tt> milliseconds it combines,
+ * for every stage of the StageGraph:
+ * <ul>
+ * <li> its throughput and busy time, from its IStageStats;
+ * <li> its utilization, the busy time divided by the elapsed time and
+ * the number of threads of the stage;
+ * <li> the length and growth of its event queue;
+ * <li> its arrival and reject rates, from the incoming StageGraph edges.
+ * </ul>
+ * A stage is saturated if its utilization is at least
+ * <tt>global.profile.bottleneck.threshold</tt>, if it rejects events, or
+ * if its queue has grown over two consecutive intervals. For each
+ * saturated stage, the analyzer estimates the throughput gained by adding
+ * one thread: the extra capacity of one more thread, bounded by the
+ * unserved arrivals and, if the StageResourceSampler is enabled, by the
+ * idle CPUs.
+ * <p/>
+ * The analyzer also reports the critical path from the entry stage
+ * (<tt>global.profile.bottleneck.entry</tt>, or by default the busiest
+ * stage without incoming traffic): the path along the active edges of
+ * the graph with the highest estimated latency, counting for each stage
+ * its service time and its queueing delay by Little's law.
+ * <p/>
+ * The analyzer is a profiler handler, and runs on the profiler thread;
+ * it is enabled with <tt>global.profile.bottleneck.enable</tt>, which
+ * requires <tt>global.profile.enable</tt>, and also makes stages record
+ * the edges of the stage graph, as <tt>global.profile.graph</tt> does.
+ * Whenever saturated stages are found, a BottleneckSignal is fired, and
+ * the report is printed if the set of saturated stages has changed.
+ *
+ * @see BottleneckSignal
+ */
+public class BottleneckAnalyzer implements IProfilerHandler {
+
+	private static final boolean DEBUG = false;
+
+	private IStageManager mgr;
+	private ISystemConfig config;
+	private StageGraph graph;
+	private StageResourceSampler sampler;
+	private long interval;
+	private double threshold;
+	private String entryName;
+
+	private long lastTime = 0;
+	// IStageWrapper --> stageState
+	private Map states = new HashMap();
+	// StageGraphEdge --> {events, rejects} as of the last analysis
+	private Map lastEdgeCounts = new IdentityHashMap();
+
+	private stageState saturated[] = new stageState[0];
+	private IStageWrapper criticalPath[] = new IStageWrapper[0];
+	private double criticalPathLatency;
+	private String report = "";
+
+	public BottleneckAnalyzer() {
+	}
+
+	public BottleneckAnalyzer(ISystemConfig config, StageGraph graph, StageResourceSampler sampler) {
+		this.config = config;
+		this.graph = graph;
+		this.sampler = sampler;
+	}
+
+	public void init(IStageManager mgr) {
+		this.mgr = mgr;
+		if (config == null) config = mgr.getConfig();
+		this.interval = config.getInt("global.profile.bottleneck.interval", 5000);
+		this.threshold = config.getDouble("global.profile.bottleneck.threshold", 0.9);
+		this.entryName = config.getString("global.profile.bottleneck.entry");
+	}
+
+	public void profilableAdded(String name) {
+	}
+
+	public void profilableRemoved(String name) {
+	}
+
+	public void sampleDelayChanged(int newDelay) {
+	}
+
+	public void profilablesSnapshot(int[] snapshot) {
+		if (System.currentTimeMillis() - lastTime >= interval) analyze();
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * Analyze the stage graph over the interval since the previous call.
+	 * The first call only records the initial counters.
+	 */
+	public synchronized void analyze() {
+		if (graph == null) {
+			// Created through global.profile.handler.class
+			JCycloneProfiler profiler = (JCycloneProfiler) mgr.getProfiler();
+			if (profiler == null) return;
+			graph = profiler.getGraphProfiler();
+			sampler = profiler.getResourceSampler();
+		}
+
+		long now = System.currentTimeMillis();
+		double elapsed = (now - lastTime) / 1000.0;
+		boolean first = (lastTime == 0);
+		lastTime = now;
+		if (!first && elapsed <= 0) return;
+
+		IStageWrapper stages[] = graph.getStages();
+		StageGraphEdge edges[] = graph.getEdges();
+
+		// Per-edge event counts, and the arrivals and rejects of each stage
+		Map edgeDeltas = new IdentityHashMap();
+		Map incoming = new HashMap();
+		for (int i = 0; i < edges.length; i++) {
+			StageGraphEdge e = edges[i];
+			long ev = e.events.get(), rj = e.rejects.get();
+			long last[] = (long[]) lastEdgeCounts.get(e);
+			lastEdgeCounts.put(e, new long[]{ev, rj});
+			if (last == null || e.toStage == null) continue;
+			edgeDeltas.put(e, new long[]{ev - last[0]});
+			long in[] = (long[]) incoming.get(e.toStage);
+			if (in == null) {
+				in = new long[2];
+				incoming.put(e.toStage, in);
+			}
+			in[0] += ev - last[0];
+			in[1] += rj - last[1];
+		}
+
+		List current = new ArrayList();
+		double totalCpu = 0;
+		for (int i = 0; i < stages.length; i++) {
+			IStageWrapper stage = stages[i];
+			IStageStats stats = stage.getStats();
+			if (stats == null) continue;
+			stageState st = (stageState) states.get(stage);
+			boolean fresh = (st == null);
+			if (fresh) {
+				st = new stageState(stage);
+				states.put(stage, st);
+			}
+			long events = stats.getTotalEvents();
+			long busy = stats.getTotalServiceNanos();
+			int queue = queueLength(stage);
+			if (fresh || first) {
+				st.reset(events, busy, queue);
+				continue;
+			}
+			st.update(events, busy, queue, graph.getThreads(stage).length, (long[]) incoming.get(stage), elapsed);
+			if (sampler != null) {
+				st.cpuPercent = Math.max(0, sampler.getCpuPercent(stage));
+				totalCpu += st.cpuPercent;
+			}
+			current.add(st);
+		}
+		if (first) return;
+
+		List sat = new ArrayList();
+		double spareCpus = Runtime.getRuntime().availableProcessors() - totalCpu / 100.0;
+		for (int i = 0; i < current.size(); i++) {
+			stageState st = (stageState) current.get(i);
+			st.saturated = (st.utilization >= threshold) || (st.rejectRate > 0) || (st.growIntervals >= 2);
+			st.expectedGain = st.saturated ? estimateGain(st, spareCpus) : 0;
+			if (st.saturated) {
+				// Sort by decreasing utilization
+				int j = 0;
+				while (j < sat.size() && ((stageState) sat.get(j)).utilization >= st.utilization) j++;
+				sat.add(j, st);
+			}
+		}
+
+		IStageWrapper entry = findEntry(current, incoming);
+		List path = new ArrayList();
+		criticalPathLatency = (entry == null) ? 0 : longestPath(entry, buildAdjacency(edges, edgeDeltas),
+		    new HashSet(), path);
+		criticalPath = (IStageWrapper[]) path.toArray(new IStageWrapper[path.size()]);
+
+		boolean changed = !sameStages(saturated, sat);
+		saturated = (stageState[]) sat.toArray(new stageState[sat.size()]);
+		report = formatReport(current, entry, elapsed);
+		if (DEBUG || (changed && saturated.length > 0)) System.err.print(report);
+
+		if (saturated.length > 0) {
+			ISignalMgr signalMgr = (mgr == null) ? null : mgr.getSignalMgr();
+			if (signalMgr != null) {
+				IStageWrapper s[] = new IStageWrapper[saturated.length];
+				double gain[] = new double[saturated.length];
+				for (int i = 0; i < saturated.length; i++) {
+					s[i] = saturated[i].stage;
+					gain[i] = saturated[i].expectedGain;
+				}
+				signalMgr.fire(new BottleneckSignal(s, gain, criticalPath, report));
+			}
+		}
+	}
+
+	private static int queueLength(IStageWrapper stage) {
+		try {
+			ISource source = stage.getSource();
+			return (source == null) ? 0 : source.size();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Estimate the throughput gained by adding one thread to a saturated
+	 * stage, in events per second.
+	 */
+	private double estimateGain(stageState st, double spareCpus) {
+		if (st.threads == 0 || st.capacity <= 0) return 0;
+		double perThread = st.capacity / st.threads;
+		double gain = Math.min(st.arrivalRate, st.capacity + perThread) - st.throughput;
+		if (gain <= 0) return 0;
+		if (sampler != null && st.cpuPercent > 0) {
+			// CPUs needed by the extra thread to serve the additional events
+			double needed = (st.cpuPercent / 100.0) / st.throughput * gain;
+			if (st.throughput > 0 && needed > spareCpus) {
+				gain *= Math.max(0, spareCpus) / needed;
+			}
+		}
+		return gain;
+	}
+
+	private IStageWrapper findEntry(List current, Map incoming) {
+		IStageWrapper best = null;
+		double bestRate = -1;
+		for (int i = 0; i < current.size(); i++) {
+			stageState st = (stageState) current.get(i);
+			if (entryName != null) {
+				if (st.stage.getName().equals(entryName)) return st.stage;
+				continue;
+			}
+			long in[] = (long[]) incoming.get(st.stage);
+			if (in != null && in[0] + in[1] > 0) continue;
+			if (st.throughput > bestRate) {
+				best = st.stage;
+				bestRate = st.throughput;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Map each stage to the stages it sends events to, using only the
+	 * edges which carried events in the last interval if there are any.
+	 */
+	private Map buildAdjacency(StageGraphEdge edges[], Map edgeDeltas) {
+		boolean active = false;
+		for (int i = 0; i < edges.length; i++) {
+			long d[] = (long[]) edgeDeltas.get(edges[i]);
+			if (d != null && d[0] > 0) active = true;
+		}
+		Map adj = new HashMap();
+		for (int i = 0; i < edges.length; i++) {
+			StageGraphEdge e = edges[i];
+			if (e.fromStage == null || e.toStage == null) continue;
+			long d[] = (long[]) edgeDeltas.get(e);
+			if (active && (d == null || d[0] == 0)) continue;
+			List l = (List) adj.get(e.fromStage);
+			if (l == null) {
+				l = new ArrayList();
+				adj.put(e.fromStage, l);
+			}
+			if (!l.contains(e.toStage)) l.add(e.toStage);
+		}
+		return adj;
+	}
+
+	/**
+	 * Find the path from the given stage with the highest latency,
+	 * without revisiting a stage. Stores the path in best and returns
+	 * its latency.
+	 */
+	private double longestPath(IStageWrapper stage, Map adj, Set onPath, List best) {
+		onPath.add(stage);
+		double bestLatency = 0;
+		List next = (List) adj.get(stage);
+		if (next != null) {
+			for (int i = 0; i < next.size(); i++) {
+				IStageWrapper n = (IStageWrapper) next.get(i);
+				if (onPath.contains(n)) continue;
+				List sub = new ArrayList();
+				double l = longestPath(n, adj, onPath, sub);
+				if (best.isEmpty() || l > bestLatency) {
+					bestLatency = l;
+					best.clear();
+					best.addAll(sub);
+				}
+			}
+		}
+		onPath.remove(stage);
+		best.add(0, stage);
+		stageState st = (stageState) states.get(stage);
+		return bestLatency + ((st == null) ? 0 : st.residenceTime);
+	}
+
+	private static boolean sameStages(stageState a[], List b) {
+		if (a.length != b.size()) return false;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].stage != ((stageState) b.get(i)).stage) return false;
+		}
+		return true;
+	}
+
+	private String formatReport(List current, IStageWrapper entry, double elapsed) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("BottleneckAnalyzer: over the last " + fmt(elapsed) + " s\n");
+		sb.append("  stage                          threads  util%    events/s   arrivals/s   queue  growth/s  svc(ms)  gain/s\n");
+		for (int i = 0; i < current.size(); i++) {
+			stageState st = (stageState) current.get(i);
+			sb.append(st.saturated ? "* " : "  ");
+			sb.append(pad(st.stage.getName(), 30));
+			sb.append(lpad(Integer.toString(st.threads), 8));
+			sb.append(lpad(fmt(st.utilization * 100), 7));
+			sb.append(lpad(fmt(st.throughput), 12));
+			sb.append(lpad(fmt(st.arrivalRate), 13));
+			sb.append(lpad(Integer.toString(st.queueLength), 8));
+			sb.append(lpad(fmt(st.queueGrowth), 10));
+			sb.append(lpad(fmt(st.serviceTime), 9));
+			sb.append(lpad(fmt(st.expectedGain), 8));
+			sb.append('\n');
+		}
+		if (saturated.length == 0) {
+			sb.append("  No saturated stages\n");
+		} else {
+			sb.append("  Bottleneck: " + saturated[0].stage.getName() + ", adding a thread would gain about "
+			    + fmt(saturated[0].expectedGain) + " events/s\n");
+		}
+		if (entry != null) {
+			sb.append("  Critical path from " + entry.getName() + ": ");
+			for (int i = 0; i < criticalPath.length; i++) {
+				if (i > 0) sb.append(" -> ");
+				sb.append(criticalPath[i].getName());
+			}
+			sb.append(" (" + fmt(criticalPathLatency) + " ms)\n");
+		}
+		return sb.toString();
+	}
+
+	private static String fmt(double d) {
+		return Double.toString(Math.round(d * 10) / 10.0);
+	}
+
+	private static String pad(String s, int n) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < n) sb.append(' ');
+		return sb.toString();
+	}
+
+	private static String lpad(String s, int n) {
+		StringBuffer sb = new StringBuffer();
+		while (sb.length() + s.length() < n) sb.append(' ');
+		return sb.append(s).toString();
+	}
+
+	/**
+	 * Return the saturated stages found by the last analysis, the most
+	 * utilized first.
+	 */
+	public synchronized IStageWrapper[] getSaturatedStages() {
+		IStageWrapper s[] = new IStageWrapper[saturated.length];
+		for (int i = 0; i < saturated.length; i++) s[i] = saturated[i].stage;
+		return s;
+	}
+
+	/**
+	 * Return the critical path found by the last analysis.
+	 */
+	public synchronized IStageWrapper[] getCriticalPath() {
+		return criticalPath;
+	}
+
+	/**
+	 * Return the estimated latency of the critical path, in msec.
+	 */
+	public synchronized double getCriticalPathLatency() {
+		return criticalPathLatency;
+	}
+
+	/**
+	 * Return the utilization of the given stage over the last interval,
+	 * between 0 and 1, or -1 if unknown.
+	 */
+	public synchronized double getUtilization(IStageWrapper stage) {
+		stageState st = (stageState) states.get(stage);
+		return (st == null) ? -1 : st.utilization;
+	}
+
+	/**
+	 * Return the throughput of the given stage over the last interval,
+	 * in events per second, or -1 if unknown.
+	 */
+	public synchronized double getThroughput(IStageWrapper stage) {
+		stageState st = (stageState) states.get(stage);
+		return (st == null) ? -1 : st.throughput;
+	}
+
+	/**
+	 * Return the estimated throughput gain, in events per second, from
+	 * adding one thread to the given stage; 0 unless it is saturated.
+	 */
+	public synchronized double getExpectedGain(IStageWrapper stage) {
+		stageState st = (stageState) states.get(stage);
+		return (st == null) ? 0 : st.expectedGain;
+	}
+
+	/**
+	 * Return the report of the last analysis.
+	 */
+	public synchronized String getReport() {
+		return report;
+	}
+
+	static class stageState {
+		final IStageWrapper stage;
+		long lastEvents, lastBusy;
+		int lastQueue;
+		int growIntervals;
+
+		int threads, queueLength;
+		double throughput, utilization, queueGrowth, arrivalRate, rejectRate;
+		double serviceTime, capacity, residenceTime, cpuPercent;
+		boolean saturated;
+		double expectedGain;
+
+		stageState(IStageWrapper stage) {
+			this.stage = stage;
+		}
+
+		void reset(long events, long busy, int queue) {
+			lastEvents = events;
+			lastBusy = busy;
+			lastQueue = queue;
+		}
+
+		void update(long events, long busy, int queue, int threads, long in[], double elapsed) {
+			long dEvents = events - lastEvents;
+			// Busy time is counted in nanoseconds, so sub-msec batches are seen
+			double dBusy = (busy - lastBusy) / 1.0e6;
+			this.threads = threads;
+			this.queueLength = queue;
+			throughput = dEvents / elapsed;
+			utilization = (threads == 0) ? 0 : Math.min(1.0, dBusy / (elapsed * 1000.0 * threads));
+			queueGrowth = (queue - lastQueue) / elapsed;
+			growIntervals = (queue > lastQueue) ? growIntervals + 1 : 0;
+			rejectRate = (in == null) ? 0 : in[1] / elapsed;
+			double edgeArrivals = (in == null) ? 0 : (in[0] + in[1]) / elapsed;
+			arrivalRate = Math.max(edgeArrivals, Math.max(0, throughput + queueGrowth));
+			if (dEvents > 0) serviceTime = dBusy / dEvents;
+			capacity = (dBusy > 0) ? threads * dEvents * 1000.0 / dBusy : 0;
+			// Service time, plus the queueing delay by Little's law
+			if (throughput > 0) {
+				residenceTime = serviceTime + queue / throughput * 1000.0;
+			} else {
+				residenceTime = serviceTime + queue * serviceTime / Math.max(1, threads);
+			}
+			reset(events, busy, queue);
+		}
+	}
+
+}
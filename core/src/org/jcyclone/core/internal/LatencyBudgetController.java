@@ -0,0 +1,328 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.profiler.IProfilerHandler;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.rtc.IClassEvent;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LatencyBudgetController admits requests at the entry of the stage
+ * graph only if they are expected to complete within their latency
+ * budget. Response time controllers each keep one stage within its
+ * target, but a request admitted by the first stage may still miss its
+ * deadline several stages later; this controller looks at the whole
+ * path instead.
+ * <p/>
+ * Every <tt>global.admission.budget.interval</tt> milliseconds, the
+ * controller estimates for each stage of the StageGraph the latency of
+ * an event entering it: the service time of the stage, from its
+ * IStageStats, plus the delay of the events queued ahead of it, served
+ * by the threads of the stage. The estimates are smoothed with
+ * <tt>global.admission.budget.smoothing</tt>. The predicted latency of
+ * a request entering a stage is the sum of the latencies of the stages
+ * on its path: either the stages listed in
+ * <tt>global.admission.budget.class&lt;N&gt;.path</tt> for its class, or
+ * by default the path following, from each stage, the edge which
+ * carried the most events over the last interval.
+ * <p/>
+ * The budget of a request is given by
+ * {@link IClassEvent#getLatencyBudget}, or else by
+ * <tt>global.admission.budget.class&lt;N&gt;</tt> for its class, or
+ * else by <tt>global.admission.budget.default</tt> (in msec; -1 means
+ * no budget). If the request is a TimeStampedEvent, the time it has
+ * already spent since its timestamp is deducted from the budget.
+ * <p/>
+ * The controller is a profiler handler, and runs on the profiler
+ * thread; it is enabled with <tt>global.admission.budget.enable</tt>,
+ * which requires <tt>global.profile.enable</tt> and
+ * <tt>global.profile.graph</tt>. Stages call {@link #admit} before
+ * passing a request on, and reject it early if it returns false.
+ *
+ * @see JCycloneProfiler#getLatencyBudgetController
+ */
+public class LatencyBudgetController implements IProfilerHandler {
+
+	private static final boolean DEBUG = false;
+
+	private static final int MAX_CLASSES = 10;
+
+	private IStageManager mgr;
+	private ISystemConfig config;
+	private StageGraph graph;
+	private long interval;
+	private double smoothing;
+	private long defaultBudget;
+	private long classBudgets[];
+	private String classPaths[][];
+	private boolean registered;
+
+	private long lastTime = 0;
+	// IStageWrapper --> stageState
+	private Map states = new HashMap();
+	// StageGraphEdge --> events as of the last update
+	private Map lastEdgeCounts = new IdentityHashMap();
+
+	// Stage name --> Double, the latency of an event entering the stage
+	private volatile Map stageLatencies = Collections.EMPTY_MAP;
+	// Stage name --> Double, the latency of the default path from the stage
+	private volatile Map pathLatencies = Collections.EMPTY_MAP;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public LatencyBudgetController() {
+	}
+
+	public LatencyBudgetController(ISystemConfig config, StageGraph graph) {
+		this.config = config;
+		this.graph = graph;
+	}
+
+	public void init(IStageManager mgr) {
+		this.mgr = mgr;
+		if (config == null) config = mgr.getConfig();
+		this.interval = config.getInt("global.admission.budget.interval", 1000);
+		this.smoothing = config.getDouble("global.admission.budget.smoothing", 0.5);
+		this.defaultBudget = config.getInt("global.admission.budget.default", -1);
+		if (smoothing <= 0 || smoothing > 1) {
+			throw new IllegalArgumentException("LatencyBudgetController: Bad smoothing " + smoothing);
+		}
+		this.classBudgets = new long[MAX_CLASSES];
+		this.classPaths = new String[MAX_CLASSES][];
+		for (int c = 0; c < MAX_CLASSES; c++) {
+			classBudgets[c] = config.getInt("global.admission.budget.class" + c, -1);
+			classPaths[c] = config.getStringList("global.admission.budget.class" + c + ".path");
+		}
+	}
+
+	public void profilableAdded(String name) {
+	}
+
+	public void profilableRemoved(String name) {
+	}
+
+	public void sampleDelayChanged(int newDelay) {
+	}
+
+	public void profilablesSnapshot(int[] snapshot) {
+		if (System.currentTimeMillis() - lastTime >= interval) update();
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * Update the latency estimates over the interval since the previous
+	 * call. The first call only records the initial counters.
+	 */
+	public synchronized void update() {
+		if (graph == null) {
+			// Created through global.profile.handler.class
+			JCycloneProfiler profiler = (JCycloneProfiler) mgr.getProfiler();
+			if (profiler == null) return;
+			graph = profiler.getGraphProfiler();
+		}
+		if (!registered) register();
+
+		long now = System.currentTimeMillis();
+		boolean first = (lastTime == 0);
+		lastTime = now;
+
+		IStageWrapper stages[] = graph.getStages();
+		StageGraphEdge edges[] = graph.getEdges();
+
+		// The busiest outgoing edge of each stage over the interval
+		Map next = new HashMap();
+		Map nextEvents = new HashMap();
+		for (int i = 0; i < edges.length; i++) {
+			StageGraphEdge e = edges[i];
+			long ev = e.events.get();
+			Long last = (Long) lastEdgeCounts.put(e, Long.valueOf(ev));
+			if (last == null || e.fromStage == null || e.toStage == null) continue;
+			long delta = ev - last.longValue();
+			if (delta <= 0) continue;
+			Long best = (Long) nextEvents.get(e.fromStage);
+			if (best == null || delta > best.longValue()) {
+				next.put(e.fromStage, e.toStage);
+				nextEvents.put(e.fromStage, Long.valueOf(delta));
+			}
+		}
+
+		Map latencies = new HashMap();
+		for (int i = 0; i < stages.length; i++) {
+			IStageWrapper stage = stages[i];
+			IStageStats stats = stage.getStats();
+			if (stats == null) continue;
+			stageState st = (stageState) states.get(stage);
+			if (st == null) {
+				st = new stageState();
+				states.put(stage, st);
+			}
+			st.update(stats.getTotalEvents(), stats.getTotalServiceNanos(), queueLength(stage),
+			    graph.getThreads(stage).length, smoothing);
+			latencies.put(stage.getName(), Double.valueOf(st.latency));
+		}
+		if (first) return;
+
+		Map paths = new HashMap();
+		for (int i = 0; i < stages.length; i++) {
+			double total = 0;
+			Set visited = new HashSet();
+			IStageWrapper stage = stages[i];
+			while (stage != null && visited.add(stage)) {
+				stageState st = (stageState) states.get(stage);
+				if (st != null) total += st.latency;
+				stage = (IStageWrapper) next.get(stage);
+			}
+			paths.put(stages[i].getName(), Double.valueOf(total));
+		}
+
+		stageLatencies = latencies;
+		pathLatencies = paths;
+		if (DEBUG) System.err.println("LatencyBudgetController: stages " + latencies + ", paths " + paths);
+	}
+
+	private void register() {
+		registered = true;
+		IProfiler profiler = (mgr == null) ? null : mgr.getProfiler();
+		if (profiler == null) return;
+		profiler.add("LatencyBudget admitted", new IProfilable() {
+			public int profileSize() {
+				return (int) admitted.get();
+			}
+		});
+		profiler.add("LatencyBudget rejected", new IProfilable() {
+			public int profileSize() {
+				return (int) rejected.get();
+			}
+		});
+	}
+
+	private static int queueLength(IStageWrapper stage) {
+		try {
+			ISource source = stage.getSource();
+			return (source == null) ? 0 : source.size();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Return the predicted latency, in msec, of a request of the given
+	 * class from the time it is enqueued onto the given stage until it
+	 * leaves the last stage of its path; 0 if nothing is known yet.
+	 */
+	public double getPredictedLatency(String stageName, int theclass) {
+		String path[] = (theclass >= 0 && theclass < MAX_CLASSES) ? classPaths[theclass] : null;
+		if (path == null) {
+			Double l = (Double) pathLatencies.get(stageName);
+			return (l == null) ? 0 : l.doubleValue();
+		}
+		Map latencies = stageLatencies;
+		int start = 0;
+		for (int i = 0; i < path.length; i++) {
+			if (path[i].equals(stageName)) start = i;
+		}
+		double total = 0;
+		for (int i = start; i < path.length; i++) {
+			Double l = (Double) latencies.get(path[i]);
+			if (l != null) total += l.doubleValue();
+		}
+		return total;
+	}
+
+	/**
+	 * Return the latency budget of the given request, in msec, or -1 if
+	 * it has none.
+	 */
+	public long getBudget(IClassEvent event) {
+		long budget = event.getLatencyBudget();
+		if (budget >= 0) return budget;
+		int c = event.getRequestClass();
+		if (c >= 0 && c < MAX_CLASSES && classBudgets[c] >= 0) return classBudgets[c];
+		return defaultBudget;
+	}
+
+	/**
+	 * Decide whether the given request, about to be enqueued onto the
+	 * given stage, can complete within its latency budget. Returns false
+	 * if it should be rejected.
+	 */
+	public boolean admit(IClassEvent event, String stageName) {
+		long budget = getBudget(event);
+		if (budget >= 0) {
+			if (event instanceof TimeStampedEvent) {
+				long ts = ((TimeStampedEvent) event).timestamp;
+				if (ts != 0) budget -= System.currentTimeMillis() - ts;
+			}
+			double predicted = getPredictedLatency(stageName, event.getRequestClass());
+			if (predicted > budget) {
+				rejected.incrementAndGet();
+				if (DEBUG) System.err.println("LatencyBudgetController: Rejecting " + event + ", predicted " + predicted + " ms, budget " + budget + " ms");
+				return false;
+			}
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Return the estimated latency, in msec, of an event entering the
+	 * given stage, or -1 if unknown.
+	 */
+	public double getStageLatency(String stageName) {
+		Double l = (Double) stageLatencies.get(stageName);
+		return (l == null) ? -1 : l.doubleValue();
+	}
+
+	/**
+	 * Return the number of requests admitted.
+	 */
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * Return the number of requests rejected.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	static class stageState {
+		long lastEvents, lastBusy;
+		boolean started, seen;
+		double serviceTime, latency;
+
+		void update(long events, long busy, int queue, int threads, double smoothing) {
+			long dEvents = events - lastEvents;
+			// Busy time is counted in nanoseconds, so sub-msec batches are seen
+			double dBusy = (busy - lastBusy) / 1.0e6;
+			lastEvents = events;
+			lastBusy = busy;
+			if (dEvents > 0) {
+				double svc = dBusy / dEvents;
+				serviceTime = started ? serviceTime * (1 - smoothing) + svc * smoothing : svc;
+				started = true;
+			}
+			// Service time, plus the queued events served by all threads
+			double l = serviceTime + queue * serviceTime / Math.max(1, threads);
+			latency = seen ? latency * (1 - smoothing) + l * smoothing : l;
+			seen = true;
+		}
+	}
+
+}
@@ -24,15 +24,17 @@
 
 package org.jcyclone.core.internal;
 
+import org.jcyclone.core.profiler.EventTracer;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.IDrainListener;
+import org.jcyclone.core.queue.IDrainNotifyingSink;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
 import org.jcyclone.core.queue.ITransaction;
 import org.jcyclone.core.queue.SinkException;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.Hashtable;
 import java.util.List;
 
 /**
@@ -40,19 +42,22 @@ import java.util.List;
  * stages. By handing out a sink proxy, it is
  * possible to gather statistics on event communication between stages.
  * This is used by StageGraph to construct a graph of the communication
- * patterns between stages.
+ * patterns between stages, and to count the events, bytes and rejected
+ * enqueues along each of its edges. When event tracing is enabled, it is also
+ * where trace identifiers are assigned and propagated.
  *
  * @author Matt Welsh
  */
-public class MonitoredSink implements ISink, IProfilable {
+public class MonitoredSink implements IDrainNotifyingSink, IProfilable {
 
 	private static final boolean DEBUG = false;
 
 	private IStageWrapper toStage;
 	private StageGraph stageGraph;
+	private EventTracer tracer;
 	public ISink thesink;
-	private Thread client = null;
-	private Hashtable clientTbl = null;
+	// Edges into toStage, indexed by source stage; copy-on-write
+	private volatile StageGraphEdge edges[] = new StageGraphEdge[0];
 
 	/**
 	 * Maintains a running sum of the number of elements enqueued onto
@@ -81,6 +86,7 @@ public class MonitoredSink implements ISink, IProfilable {
 	public MonitoredSink(ISink sink, IStageManager mgr, IStageWrapper toStage) {
 		this.thesink = sink;
 		this.stageGraph = ((JCycloneProfiler) mgr.getProfiler()).getGraphProfiler();
+		this.tracer = ((JCycloneProfiler) mgr.getProfiler()).getEventTracer();
 		this.toStage = toStage;
 		this.enqueueCount = 0;
 		this.enqueueSuccessCount = 0;
@@ -102,28 +108,53 @@ public class MonitoredSink implements ISink, IProfilable {
 		return thesink.capacity();
 	}
 
+	public boolean notifyOnDrain(IDrainListener listener) {
+		if (!(thesink instanceof IDrainNotifyingSink)) return false;
+		return ((IDrainNotifyingSink) thesink).notifyOnDrain(listener);
+	}
+
 	public void enqueue(IElement enqueueMe) throws SinkException {
-		recordUse();
+		StageGraphEdge edge = recordUse();
+		if (tracer != null) tracer.enqueued(enqueueMe, toStage.getName());
 		enqueueCount++;
-		thesink.enqueue(enqueueMe);
+		try {
+			thesink.enqueue(enqueueMe);
+		} catch (SinkException se) {
+			if (edge != null) edge.recordReject(1);
+			throw se;
+		}
+		if (edge != null) edge.recordEnqueue(enqueueMe);
 		enqueueSuccessCount++;
 	}
 
 	public boolean enqueueLossy(IElement enqueueMe) {
-		recordUse();
+		StageGraphEdge edge = recordUse();
+		if (tracer != null) tracer.enqueued(enqueueMe, toStage.getName());
 		enqueueCount++;
 		boolean pass = thesink.enqueueLossy(enqueueMe);
-		if (pass) enqueueSuccessCount++;
+		if (pass) {
+			if (edge != null) edge.recordEnqueue(enqueueMe);
+			enqueueSuccessCount++;
+		} else {
+			if (edge != null) edge.recordReject(1);
+		}
 		return pass;
 	}
 
 	public void enqueueMany(List list) throws SinkException {
-		recordUse();
+		StageGraphEdge edge = recordUse();
+		traceMany(list);
 		if (list != null) {
 			enqueueCount += list.size();
 		}
-		thesink.enqueueMany(list);
+		try {
+			thesink.enqueueMany(list);
+		} catch (SinkException se) {
+			if (edge != null && list != null) edge.recordReject(list.size());
+			throw se;
+		}
 		if (list != null) {
+			if (edge != null) edge.recordEnqueue(list);
 			enqueueSuccessCount += list.size();
 		}
 	}
@@ -136,24 +167,39 @@ public class MonitoredSink implements ISink, IProfilable {
 	}
 
 	public ITransaction enqueuePrepare(List elements) throws SinkException {
-		recordUse();
+		StageGraphEdge edge = recordUse();
+		traceMany(elements);
 		if (elements != null) {
 			enqueueCount += elements.size();
 		}
-		ITransaction key = thesink.enqueuePrepare(elements);
+		ITransaction key;
+		try {
+			key = thesink.enqueuePrepare(elements);
+		} catch (SinkException se) {
+			if (edge != null && elements != null) edge.recordReject(elements.size());
+			throw se;
+		}
 		if (elements != null) {
+			if (edge != null) edge.recordEnqueue(elements);
 			enqueueSuccessCount += elements.size();
 		}
 		return key;
 	}
 
 	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
-		recordUse();
+		StageGraphEdge edge = recordUse();
+		traceMany(elements);
 		if (elements != null) {
 			enqueueCount += elements.size();
 		}
-		thesink.enqueuePrepare(elements, txn);
+		try {
+			thesink.enqueuePrepare(elements, txn);
+		} catch (SinkException se) {
+			if (edge != null && elements != null) edge.recordReject(elements.size());
+			throw se;
+		}
 		if (elements != null) {
+			if (edge != null) edge.recordEnqueue(elements);
 			enqueueSuccessCount += elements.size();
 		}
 	}
@@ -162,33 +208,48 @@ public class MonitoredSink implements ISink, IProfilable {
 		return "[SinkProxy for toStage=" + toStage + "]";
 	}
 
-	private void recordUse() {
-		if (DEBUG) System.err.println("SinkProxy: Recording use of " + this + " by thread " + Thread.currentThread());
-
-		if (client == null) {
-			client = Thread.currentThread();
+	private void traceMany(List elements) {
+		if (tracer == null || elements == null) return;
+		String name = toStage.getName();
+		for (int i = 0; i < elements.size(); i++) {
+			tracer.enqueued((IElement) elements.get(i), name);
+		}
+	}
 
-			StageGraphEdge edge = new StageGraphEdge();
-			edge.fromStage = stageGraph.getStageFromThread(client);
-			edge.toStage = toStage;
-			edge.sink = this;
-			stageGraph.addEdge(edge);
+	/**
+	 * Return the stage graph edge from the current thread's stage to
+	 * toStage, adding it to the graph the first time it is used. Returns
+	 * null if the current thread does not belong to a stage.
+	 */
+	private StageGraphEdge recordUse() {
+		IStageWrapper fromStage = stageGraph.getCurrentStage();
+		if (fromStage == null) return null;
+		StageGraphEdge arr[] = edges;
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i].fromStage == fromStage) return arr[i];
+		}
+		return addEdge(fromStage);
+	}
 
-		} else {
-			Thread t = Thread.currentThread();
-			if (client != t) {
-				if (clientTbl == null) clientTbl = new Hashtable();
-				if (clientTbl.get(t) == null) {
-					clientTbl.put(t, t);
-
-					StageGraphEdge edge = new StageGraphEdge();
-					edge.fromStage = stageGraph.getStageFromThread(t);
-					edge.toStage = toStage;
-					edge.sink = this;
-					stageGraph.addEdge(edge);
-				}
-			}
+	private synchronized StageGraphEdge addEdge(IStageWrapper fromStage) {
+		StageGraphEdge arr[] = edges;
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i].fromStage == fromStage) return arr[i];
 		}
+		if (DEBUG) System.err.println("SinkProxy: Recording use of " + this + " by stage " + fromStage);
+
+		StageGraphEdge edge = new StageGraphEdge();
+		edge.fromStage = fromStage;
+		edge.toStage = toStage;
+		edge.sink = this;
+		edge = stageGraph.addEdge(edge);
+		if (edge == null) return null;
+
+		StageGraphEdge newarr[] = new StageGraphEdge[arr.length + 1];
+		System.arraycopy(arr, 0, newarr, 0, arr.length);
+		newarr[arr.length] = edge;
+		edges = newarr;
+		return edge;
 	}
 
 }
@@ -39,6 +39,13 @@ import java.util.Vector;
  * on the graph of stages within the application. Used internally
  * (for example, by AggThrottle) to determine stage connectivity and
  * communication statistics. Gathers data from sources such as SinkProxy.
+ * <p/>
+ * Each edge carries event, byte and reject counters (see StageGraphEdge).
+ * If <tt>global.profile.graph</tt> is enabled, dumpGraph() appends the
+ * annotated graph to <tt>global.profile.graphfilename</tt>, either in
+ * graphviz DOT or in JSON format (<tt>global.profile.graphformat</tt>),
+ * and does so every <tt>global.profile.graphinterval</tt> milliseconds
+ * if that is greater than zero.
  *
  * @author Matt Welsh
  * @see org.jcyclone.core.internal.AggThrottle
@@ -52,9 +59,18 @@ public class StageGraph {
 	private Hashtable threads = new Hashtable(1);
 	private Hashtable edgesFrom = new Hashtable(1);
 	private PrintWriter graphpw = null;
+	private boolean jsonFormat = false;
+	private Thread dumper = null;
+
+	// Incremented whenever a thread is added, to invalidate threadStage
+	private volatile int threadsVersion = 0;
+	private final ThreadLocal threadStage = new ThreadLocal();
 
 	public StageGraph(IStageManager mgr) {
-		ISystemConfig config = mgr.getConfig();
+		this(mgr.getConfig());
+	}
+
+	StageGraph(ISystemConfig config) {
 		boolean dumpModuleGraph = config.getBoolean("global.profile.graph");
 		if (dumpModuleGraph) {
 			String gfilename = config.getString("global.profile.graphfilename");
@@ -63,6 +79,12 @@ public class StageGraph {
 			} catch (IOException e) {
 				System.err.println("StageGraph: Warning: Could not open file " + gfilename + " for writing, disabling graph dump.");
 			}
+			jsonFormat = "json".equalsIgnoreCase(config.getString("global.profile.graphformat"));
+			int interval = config.getInt("global.profile.graphinterval", 0);
+			if (graphpw != null && interval > 0) {
+				dumper = new graphDumper(interval);
+				dumper.start();
+			}
 		}
 	}
 
@@ -90,6 +112,46 @@ public class StageGraph {
 		return (IStageWrapper) threads.get(thread);
 	}
 
+	/**
+	 * Return the threads which have been added for the given stage.
+	 * Threads which have terminated are dropped from the graph.
+	 */
+	public synchronized Thread[] getThreads(IStageWrapper stage) {
+		Vector vec = new Vector(1);
+		Vector dead = null;
+		Enumeration e = threads.keys();
+		while (e.hasMoreElements()) {
+			Thread t = (Thread) e.nextElement();
+			if (t.getState() == Thread.State.TERMINATED) {
+				if (dead == null) dead = new Vector(1);
+				dead.addElement(t);
+			} else if (threads.get(t) == stage) {
+				vec.addElement(t);
+			}
+		}
+		if (dead != null) {
+			for (int i = 0; i < dead.size(); i++) threads.remove(dead.elementAt(i));
+		}
+		Thread arr[] = new Thread[vec.size()];
+		vec.copyInto(arr);
+		return arr;
+	}
+
+	/**
+	 * Return the stage which the current thread belongs to, or null if
+	 * none. Unlike getStageFromThread(), the result is cached in a
+	 * thread-local so that this can be called on every enqueue.
+	 */
+	public IStageWrapper getCurrentStage() {
+		cachedStage cs = (cachedStage) threadStage.get();
+		int version = threadsVersion;
+		if (cs == null || cs.version != version) {
+			cs = new cachedStage(getStageFromThread(Thread.currentThread()), version);
+			threadStage.set(cs);
+		}
+		return cs.stage;
+	}
+
 	public synchronized void addStage(IStageWrapper stage) {
 		if (DEBUG) System.err.println("StageGraph: Adding stage " + stage);
 		if (!stages.contains(stage)) {
@@ -101,60 +163,143 @@ public class StageGraph {
 		if (DEBUG) System.err.println("StageGraph: Adding thread " + thread + " -> stage " + stage);
 		addStage(stage);
 		threads.put(thread, stage);
+		threadsVersion++;
 	}
 
-	public synchronized void addEdge(StageGraphEdge edge) {
-		if (!edges.contains(edge)) {
-			if ((edge.fromStage == null) ||
-			    (edge.toStage == null) ||
-			    (edge.sink == null))
-				return;
+	/**
+	 * Add an edge to the graph.
+	 *
+	 * @return The edge held by the graph, which is the given one unless
+	 *         an equal edge had already been added, or null if the edge
+	 *         is incomplete.
+	 */
+	public synchronized StageGraphEdge addEdge(StageGraphEdge edge) {
+		if ((edge.fromStage == null) ||
+		    (edge.toStage == null) ||
+		    (edge.sink == null))
+			return null;
+
+		int idx = edges.indexOf(edge);
+		if (idx != -1) return (StageGraphEdge) edges.elementAt(idx);
 
-			addStage(edge.fromStage);
-			addStage(edge.toStage);
+		addStage(edge.fromStage);
+		addStage(edge.toStage);
 
-			if (DEBUG) System.err.println("StageGraph: Adding edge " + edge);
+		if (DEBUG) System.err.println("StageGraph: Adding edge " + edge);
 
-			edges.addElement(edge);
-			stageList list = (stageList) edgesFrom.get(edge.fromStage);
-			if (list == null) {
-				list = new stageList();
-				list.add(edge);
-				edgesFrom.put(edge.fromStage, list);
-			} else {
-				list.add(edge);
-			}
+		edges.addElement(edge);
+		stageList list = (stageList) edgesFrom.get(edge.fromStage);
+		if (list == null) {
+			list = new stageList();
+			list.add(edge);
+			edgesFrom.put(edge.fromStage, list);
+		} else {
+			list.add(edge);
+		}
+		return edge;
+	}
+
+	/**
+	 * Update the rates of all edges, over the interval since the
+	 * previous call (or the previous dump).
+	 */
+	public synchronized void sample() {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < edges.size(); i++) {
+			((StageGraphEdge) edges.elementAt(i)).sample(now);
 		}
 	}
 
 	/**
-	 * Output the graph in a format that can be used by the AT&amp;T
-	 * 'graphviz' program: http://www.graphviz.org/
+	 * Output the graph, annotated with the current edge rates, to
+	 * <tt>global.profile.graphfilename</tt>. The DOT format can be used
+	 * by the AT&amp;T 'graphviz' program: http://www.graphviz.org/
 	 * Makes it easy to draw pretty pictures of stage graphs.
 	 */
 	public synchronized void dumpGraph() {
 		if (graphpw == null) return;
-		graphpw.println("digraph jcyclone {");
-		graphpw.println("  rankdir=TB;");
-		Enumeration e = edges.elements();
-		if (e != null) {
-			while (e.hasMoreElements()) {
-				StageGraphEdge edge = (StageGraphEdge) e.nextElement();
-				String from = edge.fromStage.getStage().getName();
-				String to = edge.toStage.getStage().getName();
-				int count = 0;
-				try {
-					count = ((MonitoredSink) edge.sink).enqueueCount;
-				} catch (ClassCastException cce) {
-					// Ignore
-				}
-				graphpw.println("  \"" + from + "\" -> \"" + to + "\" [label=\"" + count + "\"];");
-			}
-			graphpw.println("}");
+		sample();
+		if (jsonFormat) {
+			writeJSON(graphpw);
+		} else {
+			writeDOT(graphpw);
 		}
 		graphpw.flush();
 	}
 
+	/**
+	 * Write the graph in DOT format. Each edge is labelled with its
+	 * events/sec, bytes/sec and rejects/sec as of the last sample();
+	 * hotter edges are drawn thicker and edges with rejects in red.
+	 */
+	public synchronized void writeDOT(PrintWriter pw) {
+		double maxRate = 0;
+		for (int i = 0; i < edges.size(); i++) {
+			maxRate = Math.max(maxRate, ((StageGraphEdge) edges.elementAt(i)).eventRate);
+		}
+		pw.println("digraph jcyclone {");
+		pw.println("  rankdir=TB;");
+		Enumeration e = edges.elements();
+		while (e.hasMoreElements()) {
+			StageGraphEdge edge = (StageGraphEdge) e.nextElement();
+			String from = edge.fromStage.getStage().getName();
+			String to = edge.toStage.getStage().getName();
+			String label = fmt(edge.eventRate) + " ev/s";
+			if (edge.byteRate > 0) label += "\\n" + fmt(edge.byteRate) + " B/s";
+			if (edge.rejectRate > 0) label += "\\n" + fmt(edge.rejectRate) + " rej/s";
+			double width = (maxRate > 0) ? 1 + 4 * (edge.eventRate / maxRate) : 1;
+			pw.println("  \"" + from + "\" -> \"" + to + "\" [label=\"" + label + "\", penwidth=" + fmt(width)
+			    + ((edge.rejectRate > 0) ? ", color=red" : "") + "];");
+		}
+		pw.println("}");
+	}
+
+	/**
+	 * Write the graph as a single line of JSON, containing the stages and,
+	 * for each edge, its counters and its rates as of the last sample().
+	 */
+	public synchronized void writeJSON(PrintWriter pw) {
+		pw.print("{\"time\":" + System.currentTimeMillis() + ",\"stages\":[");
+		for (int i = 0; i < stages.size(); i++) {
+			if (i > 0) pw.print(",");
+			pw.print("\"" + ((IStageWrapper) stages.elementAt(i)).getStage().getName() + "\"");
+		}
+		pw.print("],\"edges\":[");
+		for (int i = 0; i < edges.size(); i++) {
+			StageGraphEdge edge = (StageGraphEdge) edges.elementAt(i);
+			if (i > 0) pw.print(",");
+			pw.print("{\"from\":\"" + edge.fromStage.getStage().getName()
+			    + "\",\"to\":\"" + edge.toStage.getStage().getName()
+			    + "\",\"events\":" + edge.events.get()
+			    + ",\"bytes\":" + edge.bytes.get()
+			    + ",\"rejects\":" + edge.rejects.get()
+			    + ",\"eventsPerSec\":" + fmt(edge.eventRate)
+			    + ",\"bytesPerSec\":" + fmt(edge.byteRate)
+			    + ",\"rejectsPerSec\":" + fmt(edge.rejectRate) + "}");
+		}
+		pw.println("]}");
+	}
+
+	/**
+	 * Stop the periodic graph dump, if any, writing out the graph a
+	 * final time.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = dumper;
+			dumper = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			dumpGraph();
+		}
+	}
+
+	private static String fmt(double d) {
+		return Double.toString(Math.round(d * 100) / 100.0);
+	}
+
 	class stageList {
 		Vector vec = new Vector(1);
 
@@ -169,4 +314,35 @@ public class StageGraph {
 		}
 	}
 
+	static class cachedStage {
+		final IStageWrapper stage;
+		final int version;
+
+		cachedStage(IStageWrapper stage, int version) {
+			this.stage = stage;
+			this.version = version;
+		}
+	}
+
+	class graphDumper extends Thread {
+		int interval;
+
+		graphDumper(int interval) {
+			super("StageGraph dumper");
+			this.interval = interval;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				dumpGraph();
+			}
+		}
+	}
+
 }
@@ -24,11 +24,19 @@
 
 package org.jcyclone.core.internal;
 
+import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.ISizedElement;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents an edge in the stage-connectivity graph.
- * Used by StageGraph.
+ * Used by StageGraph. Each edge counts the events and bytes which have
+ * been enqueued along it, as well as the enqueues which were rejected
+ * by the destination sink. The counters are updated by MonitoredSink
+ * without locking; rates are computed from them by sample().
  *
  * @author Matt Welsh
  */
@@ -38,6 +46,63 @@ class StageGraphEdge {
 	IStageWrapper toStage;
 	ISink sink;
 
+	final AtomicLong events = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+	final AtomicLong rejects = new AtomicLong();
+
+	// Guarded by StageGraph
+	private long lastEvents, lastBytes, lastRejects;
+	private long lastSample = System.currentTimeMillis();
+	double eventRate, byteRate, rejectRate;
+
+	/**
+	 * Record an element having been enqueued along this edge.
+	 */
+	void recordEnqueue(IElement element) {
+		events.incrementAndGet();
+		if (element instanceof ISizedElement) {
+			bytes.addAndGet(((ISizedElement) element).getSize());
+		}
+	}
+
+	/**
+	 * Record a list of elements having been enqueued along this edge.
+	 */
+	void recordEnqueue(List elements) {
+		int n = elements.size();
+		long sz = 0;
+		for (int i = 0; i < n; i++) {
+			Object o = elements.get(i);
+			if (o instanceof ISizedElement) sz += ((ISizedElement) o).getSize();
+		}
+		events.addAndGet(n);
+		if (sz != 0) bytes.addAndGet(sz);
+	}
+
+	void recordReject(int count) {
+		rejects.addAndGet(count);
+	}
+
+	/**
+	 * Update the per-second rates from the counters, over the interval
+	 * since the previous call.
+	 */
+	void sample(long now) {
+		long ev = events.get();
+		long by = bytes.get();
+		long rj = rejects.get();
+		long elapsed = now - lastSample;
+		if (elapsed > 0) {
+			eventRate = (ev - lastEvents) * 1000.0 / elapsed;
+			byteRate = (by - lastBytes) * 1000.0 / elapsed;
+			rejectRate = (rj - lastRejects) * 1000.0 / elapsed;
+		}
+		lastEvents = ev;
+		lastBytes = by;
+		lastRejects = rj;
+		lastSample = now;
+	}
+
 	public boolean equals(Object o) {
 		if (!(o instanceof StageGraphEdge)) return false;
 		StageGraphEdge e = (StageGraphEdge) o;
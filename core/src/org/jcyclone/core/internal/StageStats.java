@@ -26,8 +26,16 @@ package org.jcyclone.core.internal;
 
 import org.jcyclone.core.boot.JCyclone;
 import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.rtc.IClassEvent;
 import org.jcyclone.core.stage.IStageManager;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * This class provides controllers with a view of statistics gathered
  * by the stage internally during execution.
@@ -41,6 +49,9 @@ public class StageStats implements IStageStats {
 	private static final double SMOOTH_ALPHA = 0.7;
 	private static final int ESTIMATION_SIZE = 100;
 	private static final long ESTIMATION_TIME = 1000;
+	private static final double COST_ALPHA = 0.2;
+	// Bound the number of event types exported to the profiler
+	private static final int MAX_PROFILED_COSTS = 64;
 
 	/* A handle to the stage. */
 	IStageWrapper stage;
@@ -54,7 +65,17 @@ public class StageStats implements IStageStats {
 	private boolean first = true;
 	private long lastTime;
 	private int count;
-	private long totalServiceTime, totalEvents, cumulativeEvents;
+	private long totalServiceTime, totalEvents, cumulativeEvents, cumulativeServiceTime;
+
+	/* Utilization of the threads which ran the stage recently. */
+	private double utilization;
+	private long lastRecordTime, lastNanoTime, totalServiceNanos, cumulativeServiceNanos;
+	private Set threads = new HashSet();
+
+	/* Mean service time of each type of event: type --> costEntry */
+	private final ConcurrentHashMap costs = new ConcurrentHashMap();
+	private double meanCost = -1;
+	private int profiledCosts;
 
 	public StageStats(IStageWrapper stage) {
 		this.stage = stage;
@@ -66,9 +87,13 @@ public class StageStats implements IStageStats {
 	 */
 	public void reset() {
 		serviceRate = 0.0;
+		utilization = 0.0;
 		count = 0;
 		lastTime = System.currentTimeMillis();
-		totalEvents = totalServiceTime = cumulativeEvents = 0;
+		lastNanoTime = System.nanoTime();
+		threads.clear();
+		totalEvents = totalServiceTime = cumulativeEvents = cumulativeServiceTime = 0;
+		totalServiceNanos = cumulativeServiceNanos = 0;
 	}
 
 	/**
@@ -85,11 +110,34 @@ public class StageStats implements IStageStats {
 		return this.cumulativeEvents;
 	}
 
+	/**
+	 * Get total time spent processing events, in msec.
+	 */
+	public synchronized long getTotalServiceTime() {
+		return this.cumulativeServiceTime;
+	}
+
+	/**
+	 * Get total time spent processing events, in nanoseconds.
+	 */
+	public synchronized long getTotalServiceNanos() {
+		return this.cumulativeServiceNanos;
+	}
+
 	/**
 	 * Record the service time for numEvents taking 'time' msec to
 	 * be processed.
 	 */
-	public synchronized void recordServiceRate(int numEvents, long time) {
+	public void recordServiceRate(int numEvents, long time) {
+		recordServiceRate(numEvents, time, time * 1000000L);
+	}
+
+	/**
+	 * Record the service time for numEvents taking 'time' msec, or
+	 * 'nanos' nanoseconds, to be processed. The utilization is computed
+	 * from the nanoseconds, since batches often take less than a msec.
+	 */
+	public synchronized void recordServiceRate(int numEvents, long time, long nanos) {
 
 		// Only possible to add ourselves to the profile after we start running
 		if (PROFILE && first) {
@@ -108,20 +156,122 @@ public class StageStats implements IStageStats {
 		totalEvents += numEvents;
 		cumulativeEvents += numEvents;
 		totalServiceTime += time;
+		cumulativeServiceTime += time;
+		totalServiceNanos += nanos;
+		cumulativeServiceNanos += nanos;
+		threads.add(Thread.currentThread());
 
 		count++;
 		long curTime = System.currentTimeMillis();
+		lastRecordTime = curTime;
 
 		if ((count == ESTIMATION_SIZE) ||
 		    (curTime - lastTime >= ESTIMATION_TIME)) {
+			// Threads which did not run during the period are not counted,
+			// as they cannot be told apart from threads which have exited
+			long curNanoTime = System.nanoTime();
+			double util = totalServiceNanos / (Math.max(1, curNanoTime - lastNanoTime) * (double) threads.size());
+			utilization = (Math.min(1.0, util) * SMOOTH_ALPHA) + (utilization * (1.0 - SMOOTH_ALPHA));
+			threads.clear();
 			if (totalServiceTime == 0) totalServiceTime = 1;
 			double rate = totalEvents / (totalServiceTime * 1.0e-3);
 			serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
 			if (DEBUG) System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + totalEvents + " time=" + totalServiceTime + ", rate=" + serviceRate);
 			count = 0;
 			lastTime = curTime;
-			totalEvents = totalServiceTime = 0;
+			lastNanoTime = curNanoTime;
+			totalEvents = totalServiceTime = totalServiceNanos = 0;
+		}
+	}
+
+	/**
+	 * Return a moving average of the utilization of the stage's threads.
+	 * A stage which has not run for two estimation periods is idle.
+	 */
+	public synchronized double getUtilization() {
+		if (System.currentTimeMillis() - lastRecordTime > 2 * ESTIMATION_TIME) return 0.0;
+		return utilization;
+	}
+
+	/**
+	 * Record the service time of a batch of events, dividing it evenly
+	 * among the events of the batch.
+	 */
+	public void recordEventCosts(List events, long nanos) {
+		int n = events.size();
+		if (n == 0) return;
+		double cost = nanos / 1.0e6 / n;
+		// Consecutive events of the same type are recorded together
+		Object lastType = null;
+		for (int i = 0; i < n; i++) {
+			Object type = typeOf(events.get(i));
+			if (type != null && !type.equals(lastType)) {
+				costEntry(type).record(cost);
+				lastType = type;
+			}
+		}
+		synchronized (this) {
+			meanCost = (meanCost < 0) ? cost : (cost * COST_ALPHA) + (meanCost * (1.0 - COST_ALPHA));
+		}
+	}
+
+	/**
+	 * Return a moving average of the service time of events of the same
+	 * type as the given one, in msec, or -1 if unknown.
+	 */
+	public double getEventCost(IElement element) {
+		Object type = typeOf(element);
+		costEntry entry = (type == null) ? null : (costEntry) costs.get(type);
+		return (entry == null) ? -1 : entry.cost;
+	}
+
+	/**
+	 * Return a moving average of the service time per event, in msec.
+	 */
+	public synchronized double getMeanEventCost() {
+		return meanCost;
+	}
+
+	/**
+	 * Return the type under which the cost of the given event is
+	 * recorded: its request class, or else its Java class.
+	 */
+	static Object typeOf(Object event) {
+		if (event == null) return null;
+		if (event instanceof IClassEvent) {
+			int c = ((IClassEvent) event).getRequestClass();
+			if (c >= 0) return Integer.valueOf(c);
+		}
+		return event.getClass();
+	}
+
+	private costEntry costEntry(Object type) {
+		costEntry entry = (costEntry) costs.get(type);
+		if (entry != null) return entry;
+		entry = new costEntry();
+		costEntry prev = (costEntry) costs.putIfAbsent(type, entry);
+		if (prev != null) return prev;
+		exportCost(type, entry);
+		return entry;
+	}
+
+	// Add the cost of a new type of event to the profile, in usec
+	private void exportCost(Object type, final costEntry entry) {
+		synchronized (this) {
+			if (profiledCosts == MAX_PROFILED_COSTS) return;
+			profiledCosts++;
 		}
+		JCyclone jc = JCyclone.getInstance();
+		IStageManager mgr = (jc == null) ? null : jc.getManager();
+		IProfiler profiler = (mgr == null) ? null : mgr.getProfiler();
+		if (profiler == null) return;
+		String name = (type instanceof Class) ? ((Class) type).getName() : "class " + type;
+		profiler.add("StageStats eventCost(us) <" + stage.getName() + "> " + name,
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) (entry.cost * 1000);
+			    }
+		    });
 	}
 
 	/**
@@ -138,6 +288,12 @@ public class StageStats implements IStageStats {
 		return this.rt90thPercentile;
 	}
 
+	static class costEntry {
+		volatile double cost = -1;
 
-}
+		synchronized void record(double sample) {
+			cost = (cost < 0) ? sample : (sample * COST_ALPHA) + (cost * (1.0 - COST_ALPHA));
+		}
+	}
 
+}
@@ -30,14 +30,16 @@ import org.jcyclone.core.cfg.IConfigData;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.profiler.StageResourceSampler;
 import org.jcyclone.core.queue.*;
 import org.jcyclone.core.rtc.*;
 import org.jcyclone.core.stage.IStage;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.core.stage.Stage;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Set;
 
 /**
  * A StageWrapper is a basic implementation of IStageWrapper for
@@ -53,11 +55,12 @@ public class StageWrapper implements IStageWrapper {
 	private IStage stage;
 	private IEventHandler handler;
 	private IConfigData config;
-	private IBlockingQueue eventQ;
+	private BlockingQueueProxy eventQ;
 	private AdmissionControlledSink admContSink;
 	private IScheduler threadmgr;
 	private IStageStats stats;
 	private IResponseTimeController rtc;
+	private QueueThresholdPredicate thresholdPred;
 	private IBatchSorter sorter;
 	private int status; // lifecycle level
 	private boolean reprogrammable;
@@ -114,33 +117,13 @@ public class StageWrapper implements IStageWrapper {
 			}
 		}
 
-		// XXX JM: queue implementation should be specified in the config
+		// Keep the pending events of a stage which is programmed again
 		if (this.eventQ == null)
-//			this.eventQ = new LinkedBlockingQueue();
-			this.eventQ = new DynamicArrayBlockingQueue();
-		else {
-			// XXX JM: change the queue only if it's not the same implementation
-			// create the new queue
-			IQueue newQueue = new LinkedBlockingQueue();
-			try {
-				// ensure that the new queue has enough space
-				int size = this.eventQ.size();
-				if (newQueue.capacity() < size) {
-					newQueue.setCapacity(size);
-				}
-				// transfer remaining events into the new queue
-				List buffer = new ArrayList();
-				this.eventQ.dequeueAll(buffer);
-				newQueue.enqueueMany(buffer);
-			} catch (SinkException e) {
-				e.printStackTrace();
-			}
-		}
+			this.eventQ = new BlockingQueueProxy(newQueue(mgrcfg, tag));
+		else
+			this.eventQ.setQueue(newQueue(mgrcfg, tag));
 
-		int queueThreshold = mgrcfg.getInt(tag + "queueThreshold", -1);
-		IEnqueuePredicate pred = new QueueThresholdPredicate(eventQ, queueThreshold);
-		admContSink = new AdmissionControlledSink(eventQ);
-		admContSink.setEnqueuePredicate(pred);
+		admContSink = new AdmissionControlledSink(name, eventQ);
 
 		if (mgrcfg.getBoolean("global.batchController.enable")) {
 			System.err.print(", batch controller enabled");
@@ -150,6 +133,8 @@ public class StageWrapper implements IStageWrapper {
 		}
 
 		this.stats = new StageStats(this);
+
+		configureAdmission(mgrcfg, tag);
 		this.stage = new Stage(name, this, (ISink) admContSink, config);
 
 		// XXX JM: I know, this is ugly
@@ -189,6 +174,15 @@ public class StageWrapper implements IStageWrapper {
 			} else if (contype.equals("multiclass")) {
 				System.err.print("multiclass");
 				this.rtc = new ResponseTimeControllerMulticlass(mgr, this);
+			} else if (contype.equals("codel")) {
+				System.err.print("codel");
+				this.rtc = new ResponseTimeControllerCoDel(mgr, this);
+				// CoDel sheds events as they are dequeued
+				this.sorter = ((ResponseTimeControllerCoDel) rtc).wrap(sorter);
+			} else if (contype.equals(AdaptiveConcurrencyLimiter.GRADIENT) ||
+			    contype.equals(AdaptiveConcurrencyLimiter.VEGAS)) {
+				System.err.print(contype);
+				this.rtc = new AdaptiveConcurrencyLimiter(mgr, this, contype);
 			} else {
 				throw new RuntimeException("StageWrapper <" + name + ">: Bad response time controller type " + contype);
 			}
@@ -197,10 +191,124 @@ public class StageWrapper implements IStageWrapper {
 		if (mgrcfg.getBoolean("global.profile.enable")) {
 			mgr.getProfiler().add(name + " queueLength",
 			    (IProfilable) stage.getSink());
+			StageResourceSampler sampler = ((JCycloneProfiler) mgr.getProfiler()).getResourceSampler();
+			if (sampler != null) sampler.addStage(this);
 		}
 		status = PROGRAMMED;
 	}
 
+	// Create the event queue configured with queue.type
+	private IBlockingQueue newQueue(ISystemConfig mgrcfg, String tag) throws Exception {
+		String type = mgrcfg.getString(tag + "queue.type", mgrcfg.getString("global.queue.type"));
+		if (type == null || type.equals("array")) {
+			return new DynamicArrayBlockingQueue();
+		} else if (type.equals("linked")) {
+			return new LinkedBlockingQueue();
+		} else {
+			return (IBlockingQueue) Class.forName(type).newInstance();
+		}
+	}
+
+	// Install the enqueue predicate configured for the stage
+	private void configureAdmission(ISystemConfig mgrcfg, String tag) throws Exception {
+		int queueThreshold = mgrcfg.getInt(tag + "queueThreshold", -1);
+		thresholdPred = new QueueThresholdPredicate(eventQ, queueThreshold);
+		IEnqueuePredicate pred = thresholdPred;
+
+		// A configured chain includes the shedding predicate when enabled
+		PredicateChain chain = PredicateChain.configure(mgr, this, eventQ);
+		boolean shedding = mgrcfg.getBoolean(tag + "admission.shedding.enable",
+		    mgrcfg.getBoolean("global.admission.shedding.enable"));
+		if (chain != null) {
+			System.err.print(", " + chain.size() + " admission predicates");
+			if (shedding) System.err.print(" with cost-aware shedding");
+			pred = chain;
+		} else if (shedding) {
+			System.err.print(", cost-aware shedding enabled");
+			if (queueThreshold != -1) System.err.print(" (queueThreshold ignored)");
+			pred = new CostAwareSheddingPredicate(mgr, this);
+		}
+		admContSink.setEnqueuePredicate(pred);
+	}
+
+	/**
+	 * Apply the current configuration of the stage, of which the given
+	 * keys have changed, while the stage runs. Changes to the queue
+	 * implementation, the admission predicates, the thread pool, the
+	 * batch controller limits and the response time target are applied;
+	 * other changes take effect when the stage is programmed again. The
+	 * admission predicates of a stage with a response time controller
+	 * are the controller's, and are not replaced.
+	 */
+	public synchronized void reconfigure(Set changed) throws Exception {
+		if (status < PROGRAMMED) return;
+		ISystemConfig mgrcfg = mgr.getConfig();
+		String tag = "stages." + name + ".";
+
+		if (changed(changed, tag + "queue.", "global.queue.")) {
+			IBlockingQueue queue = newQueue(mgrcfg, tag);
+			if (queue.getClass() != eventQ.getQueue().getClass()) {
+				System.err.println("StageWrapper <" + name + ">: Replacing queue with " + queue.getClass().getName());
+				eventQ.setQueue(queue);
+			}
+		}
+
+		if (rtc != null && changed(changed, tag + "queueThreshold", tag + "admission.", "global.admission.")) {
+			// The response time controller owns the stage's predicate
+			System.err.println("StageWrapper <" + name + ">: Admission control is left to the response time controller");
+		} else if (changed(changed, tag + "queueThreshold", tag + "admission.", "global.admission.")) {
+			IEnqueuePredicate old = admContSink.getEnqueuePredicate();
+			int queueThreshold = mgrcfg.getInt(tag + "queueThreshold", -1);
+			if (old == thresholdPred && !changed(changed, tag + "admission.", "global.admission.")) {
+				thresholdPred.setThreshold(queueThreshold);
+			} else {
+				System.err.print("StageWrapper <" + name + ">: Replacing admission control");
+				configureAdmission(mgrcfg, tag);
+				System.err.println();
+			}
+		}
+
+		if (changed(changed, "global.batchController.")) {
+			IBatchSorter s = sorter;
+			if (s instanceof CoDelBatchSorter) s = ((CoDelBatchSorter) s).getSorter();
+			if (s instanceof AggThrottleBatchSorter) {
+				((AggThrottleBatchSorter) s).setBatchLimits(mgrcfg.getInt("global.batchController.minBatch"),
+				    mgrcfg.getInt("global.batchController.maxBatch"));
+			}
+		}
+
+		if (rtc != null && changed(changed, tag + "rtController.targetResponseTime", "global.rtController.targetResponseTime")) {
+			double target = mgrcfg.getDouble(tag + "rtController.targetResponseTime");
+			if (target == -1) target = mgrcfg.getDouble("global.rtController.targetResponseTime");
+			if (target != -1 && target != rtc.getTarget()) {
+				System.err.println("StageWrapper <" + name + ">: Response time target " + target);
+				rtc.setTarget(target);
+			}
+		}
+
+		if (status >= STARTED && threadmgr instanceof IReconfigurableScheduler &&
+		    changed(changed, tag + "threadPool.", "global.threadPool.")) {
+			((IReconfigurableScheduler) threadmgr).reconfigure(this);
+		}
+	}
+
+	// Whether one of the given keys starts with one of the prefixes
+	private static boolean changed(Set keys, String p1) {
+		return changed(keys, p1, p1, p1);
+	}
+
+	private static boolean changed(Set keys, String p1, String p2) {
+		return changed(keys, p1, p2, p2);
+	}
+
+	private static boolean changed(Set keys, String p1, String p2, String p3) {
+		for (Iterator it = keys.iterator(); it.hasNext();) {
+			String key = (String) it.next();
+			if (key.startsWith(p1) || key.startsWith(p2) || key.startsWith(p3)) return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Initialize this stage.
 	 */
@@ -242,6 +350,8 @@ public class StageWrapper implements IStageWrapper {
 		if (status <= LOADED) return;
 		destroy();
 		this.mgr.getProfiler().remove(name + " queueLength");
+		StageResourceSampler sampler = ((JCycloneProfiler) mgr.getProfiler()).getResourceSampler();
+		if (sampler != null) sampler.removeStage(this);
 		status = LOADED;
 	}
 
@@ -300,6 +410,9 @@ public class StageWrapper implements IStageWrapper {
 	 * Set the batch sorter.
 	 */
 	public void setBatchSorter(IBatchSorter sorter) {
+		if (rtc instanceof ResponseTimeControllerCoDel) {
+			sorter = ((ResponseTimeControllerCoDel) rtc).wrap(sorter);
+		}
 		this.sorter = sorter;
 	}
 
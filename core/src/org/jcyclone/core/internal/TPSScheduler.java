@@ -27,6 +27,9 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.profiler.EventTracer;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.profiler.StageBatchEvent;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.rtc.IResponseTimeController;
 import org.jcyclone.core.stage.IStageManager;
@@ -40,7 +43,7 @@ import java.util.List;
  *
  * @author Matt Welsh and Jean Morissette
  */
-public class TPSScheduler implements IScheduler {
+public class TPSScheduler implements IReconfigurableScheduler {
 
 	private static final boolean DEBUG = false;
 	private static final boolean DEBUG_VERBOSE = false;
@@ -86,23 +89,46 @@ public class TPSScheduler implements IScheduler {
 	public synchronized void deregister(IStageWrapper stage) {
 		stageRunnable sr = (stageRunnable) srTbl.get(stage);
 		if (sr == null) {
-			throw new IllegalStateException("Stage " + stage.getStage().getName() + " not registered");
+			// already stopped by deregisterAll()
+			return;
 		}
 		sr.stop();
-		srTbl.remove(sr);
+		srTbl.remove(stage);
 	}
 
 	/**
-	 * Stop the thread manager and all threads managed by it.
+	 * Stop the thread manager and all threads managed by it. The thread
+	 * pools of all stages are stopped at once and drain concurrently;
+	 * threads still running after global.shutdown.timeout are abandoned.
 	 */
 	public synchronized void deregisterAll() {
+		long start = System.currentTimeMillis();
+		long deadline = start + config.getInt("global.shutdown.timeout");
+		Thread.interrupted(); // reset the status
 		Enumeration e = srTbl.elements();
+		while (e.hasMoreElements()) {
+			((stageRunnable) e.nextElement()).beginStop();
+		}
+		e = srTbl.elements();
 		while (e.hasMoreElements()) {
 			stageRunnable sr = (stageRunnable) e.nextElement();
-			sr.stop();
-            // NOTE: this is a bug. remove takes a key, not a value. elements() gives you values
-            srTbl.remove(sr);
+			if (!sr.awaitStop(start + sr.terminationTimeout, deadline)) {
+				System.err.println("TPSScheduler: Warning: stage " + sr.name
+				    + " did not terminate within global.shutdown.timeout");
+			}
 		}
+		srTbl.clear();
+	}
+
+	/**
+	 * Resize the thread pool of the given stage to its current
+	 * configuration. The pool of a single-threaded stage is left alone.
+	 */
+	public synchronized void reconfigure(IStageWrapper stage) {
+		stageRunnable sr = (stageRunnable) srTbl.get(stage);
+		if (sr == null || stage.getEventHandler() instanceof ISingleThreadedEventHandler) return;
+		sr.tp.reconfigure();
+		sr.blockTime = (int) sr.tp.getBlockTime();
 	}
 
 	/**
@@ -124,6 +150,7 @@ public class TPSScheduler implements IScheduler {
 		protected ISource source;
 		protected String name;
 		protected IResponseTimeController rtController = null;
+		protected EventTracer tracer = null;
 		protected boolean firstToken = false;
 		protected int blockTime = -1;
 		protected int terminationTimeout = 100;
@@ -145,6 +172,7 @@ public class TPSScheduler implements IScheduler {
 			this.handler = wrapper.getEventHandler();
 			this.name = wrapper.getStage().getName();
 			this.rtController = wrapper.getResponseTimeController();
+			this.tracer = ((JCycloneProfiler) mgr.getProfiler()).getEventTracer();
 
 			blockTime = (int) tp.getBlockTime();
 			if (sizeController != null) {
@@ -167,20 +195,37 @@ public class TPSScheduler implements IScheduler {
 		}
 
 		void stop() {
+			beginStop();
+			awaitStop(System.currentTimeMillis() + terminationTimeout, Long.MAX_VALUE);
+		}
+
+		void beginStop() {
 			Thread.interrupted(); // reset the status
 			tp.stop();
-			boolean terminated = false;
+		}
+
+		/**
+		 * Wait for the threads to finish until graceDeadline, then interrupt
+		 * them until they terminate or deadline passes. Returns true if
+		 * the pool has terminated.
+		 */
+		boolean awaitStop(long graceDeadline, long deadline) {
+			try {
+				if (tp.awaitTermination(Math.max(0, graceDeadline - System.currentTimeMillis())))
+					return true;
+			} catch (InterruptedException ie) {
+				// reset the status and roll-forward
+				Thread.interrupted();
+			}
 			while (true) {
+				tp.stopNow();
+				long wait = Math.min(terminationTimeout, deadline - System.currentTimeMillis());
+				if (wait <= 0) return tp.isTerminated();
 				try {
-					terminated = tp.awaitTermination(terminationTimeout);
-					if (terminated)
-						break;
-					else
-						tp.stopNow();
+					if (tp.awaitTermination(wait))
+						return true;
 				} catch (InterruptedException ie) {
-					// reset the status and roll-forward
 					Thread.interrupted();
-					tp.stopNow();
 				}
 			}
 		}
@@ -211,17 +256,40 @@ public class TPSScheduler implements IScheduler {
 
 						// Call event handler
 						tstart = System.currentTimeMillis();
-						handler.handleEvents(events);
-						batch.batchDone();
+						long nstart = System.nanoTime();
+						StageBatchEvent jfrEvent = new StageBatchEvent();
+						if (jfrEvent.isEnabled()) jfrEvent.queueDepth = source.size();
+						if (tracer != null) tracer.beginBatch(events, name);
+						jfrEvent.begin();
+						boolean handled = false;
+						try {
+							handler.handleEvents(events);
+							handled = true;
+						} finally {
+							if (!handled && rtController != null) rtController.batchFailed(events);
+						}
+						jfrEvent.end();
+						if (tracer != null) tracer.endBatch(events, name);
+						if (jfrEvent.shouldCommit()) {
+							jfrEvent.stage = name;
+							jfrEvent.batchSize = events.size();
+							jfrEvent.commit();
+						}
 						tend = System.currentTimeMillis();
+						long nanos = System.nanoTime() - nstart;
 
 						// Record service rate
-						wrapper.getStats().recordServiceRate(events.size(), tend - tstart);
+						wrapper.getStats().recordServiceRate(events.size(), tend - tstart, nanos);
+						wrapper.getStats().recordEventCosts(events, nanos);
 
 						// Run response time controller
 						if (rtController != null) {
 							rtController.adjustThreshold(events, tend - tstart);
 						}
+
+						// Only release the batch once the statistics and the controller
+						// have seen it; batchDone() may clear the list of events
+						batch.batchDone();
 					}
 
 					// Check if idle
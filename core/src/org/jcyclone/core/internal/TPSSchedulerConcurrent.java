@@ -3,6 +3,9 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.profiler.EventTracer;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.profiler.StageBatchEvent;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.rtc.IResponseTimeController;
 import org.jcyclone.core.stage.IStageManager;
@@ -22,7 +25,7 @@ import java.util.concurrent.TimeUnit;
  * @author Graham Miller
  * @version $Id: TPSSchedulerConcurrent.java,v 1.1 2006/09/27 01:37:23 tolikuznets Exp $
  */
-public class TPSSchedulerConcurrent implements IScheduler {
+public class TPSSchedulerConcurrent implements IReconfigurableScheduler {
 
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_VERBOSE = false;
@@ -74,15 +77,36 @@ public class TPSSchedulerConcurrent implements IScheduler {
     }
 
     /**
-     * Stop the thread manager and all threads managed by it.
+     * Stop the thread manager and all threads managed by it. The thread
+     * pools of all stages are shut down at once and drain concurrently;
+     * threads still running after global.shutdown.timeout are abandoned.
      */
     public synchronized void deregisterAll() {
+        long start = System.currentTimeMillis();
+        long deadline = start + config.getInt("global.shutdown.timeout");
         Set<IStageWrapper> theKeys = new HashSet<IStageWrapper>(stageWrapperTable.keySet());
         for (IStageWrapper wrapper : theKeys) {
-            StageRunnable sr = stageWrapperTable.get(wrapper);
-            sr.shutdown();
-            stageWrapperTable.remove(wrapper);
+            stageWrapperTable.get(wrapper).tp.shutdown();
         }
+        for (IStageWrapper wrapper : theKeys) {
+            StageRunnable sr = stageWrapperTable.remove(wrapper);
+            if (!sr.awaitShutdown(start + sr.terminationTimeout, deadline)) {
+                System.err.println("TPSSchedulerConcurrent: Warning: stage " + sr.name
+                    + " did not terminate within global.shutdown.timeout");
+            }
+        }
+    }
+
+    /**
+     * Resize the thread pool of the given stage to its current
+     * configuration. The pool of a single-threaded stage is left alone.
+     */
+    public synchronized void reconfigure(IStageWrapper stage) {
+        StageRunnable sr = stageWrapperTable.get(stage);
+        if (sr == null || stage.getEventHandler() instanceof ISingleThreadedEventHandler) {
+            return;
+        }
+        sr.configurePool();
     }
 
     /**
@@ -104,6 +128,7 @@ public class TPSSchedulerConcurrent implements IScheduler {
         protected ISource source;
         protected String name;
         protected IResponseTimeController rtController = null;
+        protected EventTracer tracer = null;
         protected boolean firstToken = false;
         protected int blockTime = -1;
         protected int terminationTimeout = 100;
@@ -120,6 +145,7 @@ public class TPSSchedulerConcurrent implements IScheduler {
             this.handler = wrapper.getEventHandler();
             this.name = wrapper.getStage().getName();
             this.rtController = wrapper.getResponseTimeController();
+            this.tracer = ((JCycloneProfiler) mgr.getProfiler()).getEventTracer();
 
             this.sorter = wrapper.getBatchSorter();
             if (this.sorter == null) {
@@ -128,6 +154,14 @@ public class TPSSchedulerConcurrent implements IScheduler {
             }
             sorter.init(wrapper, mgr);
 
+            configurePool();
+        }
+
+        /**
+         * Create the thread pool, or resize it, with the current
+         * configuration of the stage.
+         */
+        void configurePool() {
             ISystemConfig config = mgr.getConfig();
 
             // First look for stages.[stageName] options, then global options
@@ -155,27 +189,58 @@ public class TPSSchedulerConcurrent implements IScheduler {
             int idleTimeThreshold = config.getInt(tag + "sizeController.idleTimeThreshold",
                 config.getInt(globaltag + "sizeController.idleTimeThreshold", blockTime));
 
-            if (wrapper.getEventHandler() instanceof ISingleThreadedEventHandler) {
+            if (tp != null) {
+                // The pool only grows past its core size when its queue is full,
+                // which never happens: the core size is the number of threads
+                int core = Math.min(initialThreads, maxThreads);
+                System.err.println("TPSSchedulerConcurrent <" + name + ">: threads " + core + ", max " + maxThreads);
+                if (maxThreads >= tp.getCorePoolSize()) {
+                    tp.setMaximumPoolSize(maxThreads);
+                    tp.setCorePoolSize(core);
+                } else {
+                    tp.setCorePoolSize(core);
+                    tp.setMaximumPoolSize(maxThreads);
+                }
+                tp.setKeepAliveTime(idleTimeThreshold, TimeUnit.MILLISECONDS);
+            } else if (wrapper.getEventHandler() instanceof ISingleThreadedEventHandler) {
                 tp = new ThreadPoolExecutor(1,1,idleTimeThreshold, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
             } else {
                 tp = new ThreadPoolExecutor(initialThreads,maxThreads,idleTimeThreshold, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
             }
-
         }
 
+
         public void shutdown() {
             tp.shutdown();
-            boolean terminated = false;
+            awaitShutdown(System.currentTimeMillis() + terminationTimeout, Long.MAX_VALUE);
+        }
+
+        /**
+         * Wait for the threads to finish until graceDeadline, then interrupt
+         * them until they terminate or deadline passes. Returns true if
+         * the pool has terminated.
+         */
+        boolean awaitShutdown(long graceDeadline, long deadline) {
+            try {
+                long wait = Math.max(0, graceDeadline - System.currentTimeMillis());
+                if (tp.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException ie) {
+                // roll forward
+            }
             while (true) {
+                tp.shutdownNow();
+                long wait = Math.min(terminationTimeout, deadline - System.currentTimeMillis());
+                if (wait <= 0) {
+                    return tp.isTerminated();
+                }
                 try {
-                    terminated = tp.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS);
-                    if (terminated) {
-                        break;
-                    } else {
-                        tp.shutdownNow();
+                    if (tp.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                        return true;
                     }
                 } catch (InterruptedException ie) {
-                    tp.shutdownNow();
+                    // roll forward
                 }
             }
         }
@@ -225,17 +290,40 @@ public class TPSSchedulerConcurrent implements IScheduler {
                     long tstart;
                     long tend;
                     tstart = System.currentTimeMillis();
-                    handler.handleEvents(events);
-                    batch.batchDone();
+                    long nstart = System.nanoTime();
+                    StageBatchEvent jfrEvent = new StageBatchEvent();
+                    if (jfrEvent.isEnabled()) jfrEvent.queueDepth = source.size();
+                    if (tracer != null) tracer.beginBatch(events, name);
+                    jfrEvent.begin();
+                    boolean handled = false;
+                    try {
+                        handler.handleEvents(events);
+                        handled = true;
+                    } finally {
+                        if (!handled && rtController != null) rtController.batchFailed(events);
+                    }
+                    jfrEvent.end();
+                    if (tracer != null) tracer.endBatch(events, name);
+                    if (jfrEvent.shouldCommit()) {
+                        jfrEvent.stage = name;
+                        jfrEvent.batchSize = events.size();
+                        jfrEvent.commit();
+                    }
                     tend = System.currentTimeMillis();
+                    long nanos = System.nanoTime() - nstart;
 
                     // Record service rate
-                    wrapper.getStats().recordServiceRate(events.size(), tend - tstart);
+                    wrapper.getStats().recordServiceRate(events.size(), tend - tstart, nanos);
+                    wrapper.getStats().recordEventCosts(events, nanos);
                     // Run response time controller
                     if (rtController != null) {
                         rtController.adjustThreshold(events, tend - tstart);
                     }
 
+                    // Only release the batch once the statistics and the controller
+                    // have seen it; batchDone() may clear the list of events
+                    batch.batchDone();
+
                 } catch (Exception e) {
                     System.err.println("JCyclone: Stage <" + name + "> got exception: " + e);
                     e.printStackTrace();
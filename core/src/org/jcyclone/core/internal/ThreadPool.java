@@ -52,8 +52,6 @@ public class ThreadPool implements IProfilable {
 
 	private int blockTime;
 	private int idleTimeThreshold;
-	// wait time before interupt
-	private int waitTime = 100;
 
 	/**
 	 * Lifecycle state
@@ -85,7 +83,12 @@ public class ThreadPool implements IProfilable {
      * used.
      */
     public ThreadPool(IStageWrapper stage, IStageManager mgr, Runnable runnable) {
-        ISystemConfig config = mgr.getConfig();
+        int limits[] = readConfig(stage, mgr.getConfig());
+        init(stage, mgr, runnable, limits[0], limits[1], limits[2], limits[3], limits[4]);
+    }
+
+    // Read {initialThreads, minThreads, maxThreads, blockTime, idleTimeThreshold}
+    private static int[] readConfig(IStageWrapper stage, ISystemConfig config) {
 
         // First look for stages.[stageName] options, then global options
         String tag = "stages." + (stage.getStage().getName()) + ".threadPool.";
@@ -112,7 +115,7 @@ public class ThreadPool implements IProfilable {
         int idleTimeThreshold = config.getInt(tag + "sizeController.idleTimeThreshold",
             config.getInt(globaltag + "sizeController.idleTimeThreshold", DEFAULT_IDLE_TIME_THRESHOLD));
 
-        init(stage, mgr, runnable, initialThreads, minThreads, maxThreads, blockTime, idleTimeThreshold);
+        return new int[]{initialThreads, minThreads, maxThreads, blockTime, idleTimeThreshold};
     }
 
 	/**
@@ -143,18 +146,39 @@ public class ThreadPool implements IProfilable {
 		threads = Collections.synchronizedList(new LinkedList());
 		stoppingThreads = Collections.synchronizedList(new ArrayList());
 
-		this.minThreads = minThreads;
-		if (this.minThreads < 1) this.minThreads = 1;
 		this.initialThreads = initialThreads;
+		setLimits(minThreads, maxThreads, blockTime, idleTimeThreshold);
 		if (this.initialThreads < 1) this.initialThreads = this.minThreads;
+
+		runState = TERMINATED;
+		System.err.println("TP <" + poolname + ">: initial " + initialThreads + ", min " + minThreads + ", max " + maxThreads + ", blockTime " + blockTime + ", idleTime " + idleTimeThreshold);
+
+	}
+
+	private void setLimits(int minThreads, int maxThreads, int blockTime, int idleTimeThreshold) {
+		this.minThreads = minThreads;
+		if (this.minThreads < 1) this.minThreads = 1;
 		this.maxThreads = maxThreads;
 		if (maxThreads > 0 && maxThreads < minThreads) this.maxThreads = -1;  // Infinite
 		this.blockTime = blockTime;
 		this.idleTimeThreshold = idleTimeThreshold;
+	}
 
-		runState = TERMINATED;
-		System.err.println("TP <" + poolname + ">: initial " + initialThreads + ", min " + minThreads + ", max " + maxThreads + ", blockTime " + blockTime + ", idleTime " + idleTimeThreshold);
-
+	/**
+	 * Apply the thread pool settings currently configured for the stage,
+	 * adding or removing threads to fit the new limits.
+	 */
+	public synchronized void reconfigure() {
+		int limits[] = readConfig(stage, mgr.getConfig());
+		setLimits(limits[1], limits[2], limits[3], limits[4]);
+		System.err.println(getName() + ": min " + minThreads + ", max " + maxThreads + ", blockTime " + blockTime + ", idleTime " + idleTimeThreshold);
+		if (runState != RUNNING) return;
+		int num = threads.size();
+		if (num < minThreads) {
+			addThreads(minThreads - num, true);
+		} else if (maxThreads > 0 && num > maxThreads) {
+			removeThreads(num - maxThreads);
+		}
 	}
 
 	/**
@@ -239,6 +263,7 @@ public class ThreadPool implements IProfilable {
 	public boolean awaitTermination(long waitTime)
 	    throws InterruptedException {
 		long start = System.currentTimeMillis();
+		long timeout = waitTime;
 		while(true) {
             synchronized(this) {
                 if (runState == TERMINATED) {
@@ -255,7 +280,7 @@ public class ThreadPool implements IProfilable {
                 // is pool restarted?
                 if (runState == RUNNING)
                     return false;
-                waitTime = this.waitTime - (System.currentTimeMillis() - start);
+                waitTime = timeout - (System.currentTimeMillis() - start);
             }
         }
 	}
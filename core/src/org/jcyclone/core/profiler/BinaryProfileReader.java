@@ -0,0 +1,187 @@
+package org.jcyclone.core.profiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the snapshots written by BinaryProfilerHandler, in time order,
+ * across all the segment files given.
+ *
+ * @see BinaryProfilerHandler
+ * @see ProfileTool
+ */
+public class BinaryProfileReader {
+
+	private segment segments[];
+	private int cur = -1;
+	private ByteBuffer buf;
+
+	private List columns = new ArrayList();
+	private long values[] = new long[0];
+	private long time;
+
+	/**
+	 * Open the given files. Each may be either a segment file or the
+	 * base filename of a set of segments, in which case all the segments
+	 * found are read.
+	 */
+	public BinaryProfileReader(String files[]) throws IOException {
+		List segs = new ArrayList();
+		for (int i = 0; i < files.length; i++) {
+			File f = new File(files[i]);
+			if (f.isFile()) {
+				addSegment(segs, f);
+			} else {
+				for (int n = 0; ; n++) {
+					File sf = new File(BinaryProfilerHandler.segmentFilename(files[i], n));
+					if (!sf.isFile()) break;
+					addSegment(segs, sf);
+				}
+			}
+		}
+		segments = (segment[]) segs.toArray(new segment[segs.size()]);
+		Arrays.sort(segments, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				segment s1 = (segment) o1, s2 = (segment) o2;
+				if (s1.start != s2.start) return (s1.start < s2.start) ? -1 : 1;
+				return (s1.seq < s2.seq) ? -1 : ((s1.seq == s2.seq) ? 0 : 1);
+			}
+		});
+	}
+
+	private static void addSegment(List segs, File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer mb;
+		try {
+			mb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		for (int i = 0; i < BinaryProfilerHandler.MAGIC.length; i++) {
+			if (!mb.hasRemaining() || mb.get() != BinaryProfilerHandler.MAGIC[i])
+				throw new IOException(f + " is not a JCyclone binary profile");
+		}
+		int version = mb.get();
+		if (version != BinaryProfilerHandler.VERSION)
+			throw new IOException(f + ": unsupported version " + version);
+		segment s = new segment();
+		s.file = f;
+		s.seq = getVarLong(mb);
+		s.start = getVarLong(mb);
+		s.buf = mb;
+		segs.add(s);
+	}
+
+	/**
+	 * Return the number of segments being read.
+	 */
+	public int getNumSegments() {
+		return segments.length;
+	}
+
+	/**
+	 * Advance to the next snapshot.
+	 *
+	 * @return false if there are no more snapshots.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (buf == null) {
+				if (++cur >= segments.length) return false;
+				buf = segments[cur].buf;
+				time = segments[cur].start;
+				columns.clear();
+				values = new long[0];
+			}
+			if (!buf.hasRemaining()) {
+				buf = null;
+				continue;
+			}
+			byte tag = buf.get();
+			switch (tag) {
+				case BinaryProfilerHandler.END:
+					buf = null;
+					break;
+				case BinaryProfilerHandler.ADD: {
+					byte b[] = new byte[(int) getVarLong(buf)];
+					buf.get(b);
+					columns.add(new String(b, "UTF-8"));
+					long nv[] = new long[columns.size()];
+					System.arraycopy(values, 0, nv, 0, values.length);
+					values = nv;
+					break;
+				}
+				case BinaryProfilerHandler.REMOVE: {
+					int idx = (int) getVarLong(buf);
+					columns.remove(idx);
+					long nv[] = new long[columns.size()];
+					System.arraycopy(values, 0, nv, 0, idx);
+					System.arraycopy(values, idx + 1, nv, idx, nv.length - idx);
+					values = nv;
+					break;
+				}
+				case BinaryProfilerHandler.DELAY:
+					getVarLong(buf);
+					break;
+				case BinaryProfilerHandler.SNAPSHOT: {
+					time += BinaryProfilerHandler.unzigzag(getVarLong(buf));
+					int ncols = (int) getVarLong(buf);
+					for (int i = 0; i < ncols; i++) {
+						long v = BinaryProfilerHandler.unzigzag(getVarLong(buf));
+						if (i < values.length) values[i] += v;
+					}
+					return true;
+				}
+				default:
+					throw new IOException(segments[cur].file + ": corrupt record at offset " + (buf.position() - 1));
+			}
+		}
+	}
+
+	/**
+	 * Return the time of the current snapshot, in milliseconds since the epoch.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Return the names of the columns of the current snapshot.
+	 */
+	public List getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Return the values of the current snapshot, in column order.
+	 */
+	public long[] getValues() {
+		return values;
+	}
+
+	static long getVarLong(ByteBuffer b) {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			byte x = b.get();
+			v |= (long) (x & 0x7F) << shift;
+			if ((x & 0x80) == 0) return v;
+			shift += 7;
+		}
+	}
+
+	static class segment {
+		File file;
+		long seq, start;
+		ByteBuffer buf;
+	}
+
+}
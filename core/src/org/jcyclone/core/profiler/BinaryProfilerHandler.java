@@ -0,0 +1,244 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A profiler handler which appends snapshots to a compact binary log,
+ * rather than formatting them as text. Each snapshot is written as one
+ * record holding a value for every profiled column, in column order;
+ * the timestamp and each value are encoded as the zig-zag varint of their
+ * difference from the previous snapshot, so that a slowly changing
+ * column usually costs a single byte.
+ * <p/>
+ * The log is written to a set of <tt>global.profile.binary.segments</tt>
+ * memory-mapped segment files of <tt>global.profile.binary.segmentSize</tt>
+ * bytes each, named <tt>&lt;global.profile.binary.filename&gt;.&lt;n&gt;</tt>.
+ * When a segment is full, the oldest one is overwritten. Every segment
+ * starts with a header and the current list of columns, so it can be
+ * decoded on its own. Use ProfileTool to read the log.
+ * <p/>
+ * Segment layout (all integers are varints unless stated otherwise):
+ * <pre>
+ *   header:   'J' 'C' 'Y' 'P', version (byte), sequence number, start time (ms)
+ *   records:  tag (byte) followed by
+ *     'A' name (UTF-8 length + bytes)       a column is appended
+ *     'R' index                             a column is removed
+ *     'D' delay (ms)                        the sample delay changed
+ *     'S' time delta, ncols, value deltas   a snapshot
+ *   a 0 tag marks the end of the segment.
+ * </pre>
+ *
+ * @see ProfileTool
+ */
+public class BinaryProfilerHandler implements IProfilerHandler {
+
+	private static final boolean DEBUG = false;
+
+	static final byte MAGIC[] = {'J', 'C', 'Y', 'P'};
+	static final byte VERSION = 1;
+	static final byte END = 0;
+	static final byte ADD = 'A';
+	static final byte REMOVE = 'R';
+	static final byte DELAY = 'D';
+	static final byte SNAPSHOT = 'S';
+
+	private String filename;
+	private int segmentSize;
+	private int numSegments;
+
+	private MappedByteBuffer segment;
+	private long sequence = 0;
+	private List names = new ArrayList();
+	private long prevValues[] = new long[0];
+	private long prevTime;
+	private int delay = -1;
+	private byte scratch[] = new byte[256];
+
+	public BinaryProfilerHandler() {
+	}
+
+	/**
+	 * Create a handler writing to the given segment files.
+	 */
+	public BinaryProfilerHandler(String filename, int segmentSize, int numSegments) {
+		this.filename = filename;
+		this.segmentSize = segmentSize;
+		this.numSegments = numSegments;
+	}
+
+	public void init(IStageManager mgr) {
+		if (filename == null) {
+			ISystemConfig config = mgr.getConfig();
+			filename = config.getString("global.profile.binary.filename");
+			segmentSize = config.getInt("global.profile.binary.segmentSize", 4 * 1024 * 1024);
+			numSegments = config.getInt("global.profile.binary.segments", 4);
+		}
+		if (numSegments < 1) numSegments = 1;
+	}
+
+	/**
+	 * Return the name of the file holding the given segment.
+	 */
+	public static String segmentFilename(String filename, int index) {
+		return filename + "." + index;
+	}
+
+	public synchronized void profilableAdded(String name) {
+		names.add(name);
+		long nv[] = new long[names.size()];
+		System.arraycopy(prevValues, 0, nv, 0, prevValues.length);
+		prevValues = nv;
+		write(scratch, encodeAdd(name));
+	}
+
+	public synchronized void profilableRemoved(String name) {
+		int idx = names.indexOf(name);
+		if (idx == -1) return;
+		names.remove(idx);
+		long nv[] = new long[names.size()];
+		System.arraycopy(prevValues, 0, nv, 0, idx);
+		System.arraycopy(prevValues, idx + 1, nv, idx, nv.length - idx);
+		prevValues = nv;
+		int pos = 0;
+		scratch[pos++] = REMOVE;
+		pos = putVarLong(scratch, pos, idx);
+		write(scratch, pos);
+	}
+
+	public synchronized void sampleDelayChanged(int newDelay) {
+		delay = newDelay;
+		int pos = 0;
+		scratch[pos++] = DELAY;
+		pos = putVarLong(scratch, pos, newDelay);
+		write(scratch, pos);
+	}
+
+	public synchronized void profilablesSnapshot(int[] snapshot) {
+		int ncols = Math.min(snapshot.length, prevValues.length);
+		int max = 1 + 10 + 5 + ncols * 10;
+		if (scratch.length < max) scratch = new byte[max];
+		if (segment == null || segment.remaining() < max + 1) rotate();
+
+		long now = System.currentTimeMillis();
+		int pos = 0;
+		scratch[pos++] = SNAPSHOT;
+		pos = putVarLong(scratch, pos, zigzag(now - prevTime));
+		pos = putVarLong(scratch, pos, ncols);
+		for (int i = 0; i < ncols; i++) {
+			pos = putVarLong(scratch, pos, zigzag(snapshot[i] - prevValues[i]));
+			prevValues[i] = snapshot[i];
+		}
+		prevTime = now;
+		segment.put(scratch, 0, pos);
+	}
+
+	public synchronized void destroy() {
+		if (segment != null) {
+			if (segment.hasRemaining()) segment.put(END);
+			segment.force();
+			segment = null;
+		}
+	}
+
+	/**
+	 * Encode an ADD record into scratch, returning its length.
+	 */
+	private int encodeAdd(String name) {
+		byte b[];
+		try {
+			b = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e.toString());
+		}
+		if (scratch.length < b.length + 11) scratch = new byte[b.length + 11];
+		int pos = 0;
+		scratch[pos++] = ADD;
+		pos = putVarLong(scratch, pos, b.length);
+		System.arraycopy(b, 0, scratch, pos, b.length);
+		return pos + b.length;
+	}
+
+	private void write(byte buf[], int len) {
+		if (segment == null || segment.remaining() < len + 1) {
+			// A new segment replays the current state, including this record
+			rotate();
+			return;
+		}
+		segment.put(buf, 0, len);
+	}
+
+	/**
+	 * Start writing to the next segment file, beginning it with a header
+	 * and the current columns, and resetting the delta encoding.
+	 */
+	private void rotate() {
+		destroy();
+		int index = (int) (sequence % numSegments);
+		String fname = segmentFilename(filename, index);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(fname, "rw");
+			try {
+				raf.setLength(0);
+				raf.setLength(segmentSize);
+				segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} finally {
+				// The mapping remains valid once the file is closed
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("BinaryProfilerHandler: Cannot map " + fname + ": " + e);
+		}
+		if (DEBUG) System.err.println("BinaryProfilerHandler: Writing segment " + sequence + " to " + fname);
+
+		prevTime = System.currentTimeMillis();
+		byte header[] = new byte[4 + 1 + 10 + 10];
+		int pos = 0;
+		for (int i = 0; i < MAGIC.length; i++) header[pos++] = MAGIC[i];
+		header[pos++] = VERSION;
+		pos = putVarLong(header, pos, sequence);
+		pos = putVarLong(header, pos, prevTime);
+		segment.put(header, 0, pos);
+		sequence++;
+
+		for (int i = 0; i < prevValues.length; i++) prevValues[i] = 0;
+		for (int i = 0; i < names.size(); i++) {
+			int len = encodeAdd((String) names.get(i));
+			if (segment.remaining() < len + 1)
+				throw new RuntimeException("BinaryProfilerHandler: segmentSize is too small to hold the column names");
+			segment.put(scratch, 0, len);
+		}
+		if (delay != -1) {
+			int p = 0;
+			scratch[p++] = DELAY;
+			p = putVarLong(scratch, p, delay);
+			segment.put(scratch, 0, p);
+		}
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static int putVarLong(byte buf[], int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+}
@@ -0,0 +1,294 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.queue.IElement;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventTracer follows a sampled fraction of the events entering the
+ * system as they hop from stage to stage. An ITraceable event enqueued
+ * from outside of a stage's event handler (for example, by the aSocket
+ * layer or by application threads) is a new root, and is assigned a
+ * trace identifier with probability <tt>global.profile.trace.sampleRate</tt>.
+ * An event enqueued while a traced event is being handled inherits its
+ * trace identifier; the scheduler maintains this "current trace" in a
+ * thread-local.
+ * <p/>
+ * For every traced event, the enqueue, dequeue and handle-complete times
+ * of each stage hop are recorded into a lock-free ring buffer which can
+ * be dumped in the Chrome trace-event JSON format (load it with
+ * chrome://tracing or Perfetto).
+ * <p/>
+ * If <tt>global.profile.trace.classes</tt> is set, events of the listed
+ * classes (e.g. <tt>org.jcyclone.ext.http.HttpRequest</tt>) are the only
+ * candidates for new roots, wherever they are enqueued from.
+ * <p/>
+ * Note that when a stage handles a batch of several traced events, the
+ * events it enqueues are attributed to the first traced event of the batch.
+ *
+ * @see ITraceable
+ * @see org.jcyclone.core.internal.MonitoredSink
+ */
+public class EventTracer {
+
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Record type for an event being enqueued onto a stage.
+	 */
+	public static final int ENQUEUE = 0;
+	/**
+	 * Record type for an event being dequeued by a stage.
+	 */
+	public static final int DEQUEUE = 1;
+	/**
+	 * Record type for a stage having finished handling an event.
+	 */
+	public static final int COMPLETE = 2;
+
+	private final TraceBuffer buffer;
+	private final double sampleRate;
+	private final String[] rootClasses;
+	private final String filename;
+	private final AtomicLong nextTraceId = new AtomicLong(1);
+	private final long baseTime = System.nanoTime();
+
+	private final ThreadLocal state = new ThreadLocal() {
+		protected Object initialValue() {
+			return new threadState();
+		}
+	};
+
+	public EventTracer(ISystemConfig config) {
+		this(config.getDouble("global.profile.trace.sampleRate", 0.01),
+		    config.getInt("global.profile.trace.bufferSize", 65536),
+		    config.getStringList("global.profile.trace.classes"),
+		    config.getString("global.profile.trace.filename"));
+	}
+
+	public EventTracer(double sampleRate, int bufferSize, String[] rootClasses, String filename) {
+		this.sampleRate = sampleRate;
+		this.buffer = new TraceBuffer(bufferSize);
+		this.rootClasses = rootClasses;
+		this.filename = filename;
+		if (DEBUG) System.err.println("EventTracer: sampleRate " + sampleRate + ", bufferSize " + buffer.capacity());
+	}
+
+	/**
+	 * Return the trace identifier of the event being handled by the
+	 * current thread, or 0 if none.
+	 */
+	public long getCurrentTrace() {
+		return ((threadState) state.get()).current;
+	}
+
+	/**
+	 * Set the trace identifier of the event being handled by the current
+	 * thread. Events enqueued by this thread will inherit it. Handlers
+	 * which process batches one event at a time may call this to get
+	 * exact attribution.
+	 */
+	public void setCurrentTrace(long traceId) {
+		((threadState) state.get()).current = traceId;
+	}
+
+	/**
+	 * Invoked when an element is about to be enqueued onto the given stage.
+	 * Propagates or assigns the trace identifier and records the hop.
+	 */
+	public void enqueued(IElement element, String stage) {
+		if (!(element instanceof ITraceable)) return;
+		ITraceable ev = (ITraceable) element;
+		long id = ev.getTraceId();
+		if (id == 0) {
+			threadState ts = (threadState) state.get();
+			if (ts.current != 0) {
+				id = ts.current;
+			} else if (isRoot(element, ts) && ts.sample()) {
+				id = nextTraceId.getAndIncrement();
+				if (DEBUG) System.err.println("EventTracer: new trace " + id + " for " + element);
+			} else {
+				return;
+			}
+			ev.setTraceId(id);
+		}
+		buffer.record(id, ENQUEUE, stage, System.nanoTime());
+	}
+
+	/**
+	 * Invoked by the scheduler before a batch of events is passed to the
+	 * handler of the given stage.
+	 */
+	public void beginBatch(List events, String stage) {
+		long now = System.nanoTime();
+		long current = 0;
+		for (int i = 0; i < events.size(); i++) {
+			Object o = events.get(i);
+			if (!(o instanceof ITraceable)) continue;
+			long id = ((ITraceable) o).getTraceId();
+			if (id == 0) continue;
+			buffer.record(id, DEQUEUE, stage, now);
+			if (current == 0) current = id;
+		}
+		threadState ts = (threadState) state.get();
+		ts.current = current;
+		ts.handling = true;
+	}
+
+	/**
+	 * Invoked by the scheduler once the handler of the given stage has
+	 * returned from processing a batch of events.
+	 */
+	public void endBatch(List events, String stage) {
+		long now = System.nanoTime();
+		for (int i = 0; i < events.size(); i++) {
+			Object o = events.get(i);
+			if (!(o instanceof ITraceable)) continue;
+			long id = ((ITraceable) o).getTraceId();
+			if (id == 0) continue;
+			buffer.record(id, COMPLETE, stage, now);
+		}
+		threadState ts = (threadState) state.get();
+		ts.current = 0;
+		ts.handling = false;
+	}
+
+	private boolean isRoot(IElement element, threadState ts) {
+		if (rootClasses == null) return !ts.handling;
+		String cn = element.getClass().getName();
+		for (int i = 0; i < rootClasses.length; i++) {
+			if (rootClasses[i].equals(cn)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Dump the recorded traces to the configured
+	 * <tt>global.profile.trace.filename</tt>, if any.
+	 */
+	public void dump() {
+		if (filename == null) return;
+		try {
+			dump(filename);
+		} catch (IOException e) {
+			System.err.println("EventTracer: Warning: Could not write trace file " + filename + ": " + e);
+		}
+	}
+
+	/**
+	 * Dump the recorded traces to the given file.
+	 */
+	public void dump(String filename) throws IOException {
+		FileWriter fw = new FileWriter(filename);
+		try {
+			dump(fw);
+		} finally {
+			fw.close();
+		}
+	}
+
+	/**
+	 * Write the recorded traces in Chrome trace-event JSON format. Each
+	 * trace is shown as its own row; for each stage hop, the time spent
+	 * waiting in the stage's queue and the time spent in its handler are
+	 * emitted as separate slices.
+	 */
+	public synchronized void dump(Writer out) throws IOException {
+		int cap = buffer.capacity();
+		long ids[] = new long[cap];
+		int types[] = new int[cap];
+		String stages[] = new String[cap];
+		long times[] = new long[cap];
+		int n = buffer.snapshot(ids, types, stages, times);
+
+		// trace id + stage --> {enqueue time, dequeue time}
+		Map hops = new HashMap();
+		PrintWriter pw = new PrintWriter(out);
+		pw.println("{\"traceEvents\":[");
+		boolean first = true;
+		for (int i = 0; i < n; i++) {
+			String key = ids[i] + "/" + stages[i];
+			long hop[] = (long[]) hops.get(key);
+			switch (types[i]) {
+				case ENQUEUE:
+					if (hop == null) {
+						hop = new long[]{-1, -1};
+						hops.put(key, hop);
+					}
+					hop[0] = times[i];
+					hop[1] = -1;
+					break;
+				case DEQUEUE:
+					if (hop == null) {
+						hop = new long[]{-1, -1};
+						hops.put(key, hop);
+					}
+					hop[1] = times[i];
+					if (hop[0] != -1) {
+						first = slice(pw, first, "queue <" + stages[i] + ">", "queue", ids[i], hop[0], times[i]);
+						hop[0] = -1;
+					}
+					break;
+				case COMPLETE:
+					if (hop != null && hop[1] != -1) {
+						first = slice(pw, first, stages[i], "handler", ids[i], hop[1], times[i]);
+						hops.remove(key);
+					}
+					break;
+			}
+		}
+		pw.println();
+		pw.println("],\"displayTimeUnit\":\"ms\"}");
+		pw.flush();
+	}
+
+	private boolean slice(PrintWriter pw, boolean first, String name, String cat,
+	                      long traceId, long start, long end) {
+		if (!first) pw.println(",");
+		pw.print("{\"name\":\"" + escape(name) + "\",\"cat\":\"" + cat + "\",\"ph\":\"X\",\"pid\":1,\"tid\":" + traceId
+		    + ",\"ts\":" + micros(start - baseTime) + ",\"dur\":" + micros(end - start)
+		    + ",\"args\":{\"trace\":" + traceId + "}}");
+		return false;
+	}
+
+	private static String micros(long nanos) {
+		return Long.toString(nanos / 1000) + "." + ((nanos % 1000) / 100);
+	}
+
+	private static String escape(String s) {
+		if (s == null) return "null";
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\');
+			if (c < ' ') continue;
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private class threadState {
+		long current;
+		boolean handling;
+		long seed = (System.nanoTime() ^ Thread.currentThread().hashCode()) | 1;
+
+		// xorshift, so that sampling needs no shared state
+		boolean sample() {
+			if (sampleRate >= 1.0) return true;
+			if (sampleRate <= 0.0) return false;
+			seed ^= (seed << 21);
+			seed ^= (seed >>> 35);
+			seed ^= (seed << 4);
+			return ((seed >>> 11) * 0x1.0p-53) < sampleRate;
+		}
+	}
+
+}
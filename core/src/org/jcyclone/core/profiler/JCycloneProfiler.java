@@ -26,6 +26,8 @@
 package org.jcyclone.core.profiler;
 
 import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.BottleneckAnalyzer;
+import org.jcyclone.core.internal.LatencyBudgetController;
 import org.jcyclone.core.internal.StageGraph;
 import org.jcyclone.core.stage.IStageManager;
 
@@ -53,6 +55,10 @@ public class JCycloneProfiler implements IProfiler {
 	private List handlers;
 	private IStageManager mgr;
 	private StageGraph graphProfiler;
+	private EventTracer eventTracer;
+	private StageResourceSampler resourceSampler;
+	private BottleneckAnalyzer bottleneckAnalyzer;
+	private LatencyBudgetController budgetController;
 	private ProfilerRunner runner;
 	int[] snapshot;
 
@@ -80,6 +86,14 @@ public class JCycloneProfiler implements IProfiler {
 		runState = STOP;
 		ISystemConfig config = mgr.getConfig();
 
+		if (config.getBoolean("global.profile.trace.enable")) {
+			eventTracer = new EventTracer(config);
+		}
+
+		if (config.getBoolean("global.profile.cpu.enable")) {
+			resourceSampler = new StageResourceSampler(config, graphProfiler, this);
+		}
+
 		String filterClassname = config.getString("global.profile.filter.class");
 		if (filterClassname != null) {
 			try {
@@ -100,6 +114,16 @@ public class JCycloneProfiler implements IProfiler {
 			}
 		}
 
+		if (config.getBoolean("global.profile.bottleneck.enable")) {
+			bottleneckAnalyzer = new BottleneckAnalyzer(config, graphProfiler, resourceSampler);
+			addHandler(bottleneckAnalyzer);
+		}
+
+		if (config.getBoolean("global.admission.budget.enable")) {
+			budgetController = new LatencyBudgetController(config, graphProfiler);
+			addHandler(budgetController);
+		}
+
 		add("usedmem(kb)", new UsedMemory());
 		add("freemem(kb)", new FreeMemory());
 		add("totalmem(kb)", new TotalMemory());
@@ -236,6 +260,36 @@ public class JCycloneProfiler implements IProfiler {
 		return graphProfiler;
 	}
 
+	/**
+	 * Return the event tracer, or null if tracing is disabled.
+	 */
+	public EventTracer getEventTracer() {
+		return eventTracer;
+	}
+
+	/**
+	 * Return the per-stage CPU and allocation sampler, or null if
+	 * disabled.
+	 */
+	public StageResourceSampler getResourceSampler() {
+		return resourceSampler;
+	}
+
+	/**
+	 * Return the bottleneck analyzer, or null if disabled.
+	 */
+	public BottleneckAnalyzer getBottleneckAnalyzer() {
+		return bottleneckAnalyzer;
+	}
+
+	/**
+	 * Return the end-to-end latency budget controller, or null if
+	 * disabled.
+	 */
+	public LatencyBudgetController getLatencyBudgetController() {
+		return budgetController;
+	}
+
 	private void fireProfilableAdded(String name) {
 		for (int i = 0; i < handlers.size(); i++) {
 			IProfilerHandler handler = (IProfilerHandler) handlers.get(i);
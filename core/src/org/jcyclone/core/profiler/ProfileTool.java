@@ -0,0 +1,261 @@
+package org.jcyclone.core.profiler;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Command-line tool to analyze the profile logs written by
+ * BinaryProfilerHandler. It exports a time range of the log to CSV,
+ * optionally downsampled into fixed-length buckets, or prints summary
+ * statistics (count, min, avg, max) of each column over the range.
+ * Run it without arguments for usage.
+ *
+ * @see BinaryProfilerHandler
+ */
+public class ProfileTool {
+
+	private static final int AVG = 0, MIN = 1, MAX = 2, LAST = 3;
+
+	private long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+	private String fromArg, toArg;
+	private long step = 0;
+	private int agg = AVG;
+	private Pattern columnPattern;
+
+	// Selected columns, in order of first appearance
+	private List columns = new ArrayList();
+	private Map columnIndex = new HashMap();
+
+	// Per-bucket aggregates, indexed by column
+	private double sum[];
+	private long min[], max[], last[];
+	private int count[];
+
+	private static void usage() {
+		System.err.println("Usage:");
+		System.err.println("\tjava org.jcyclone.core.profiler.ProfileTool [options] <file>...\n");
+		System.err.println("<file> is a segment file, or the base name of a set of segments.");
+		System.err.println("Options:");
+		System.err.println("\t-from <time>\tstart of the time range");
+		System.err.println("\t-to <time>\tend of the time range");
+		System.err.println("\t\t\t<time> is in ms since the epoch, or +<sec> from the start of the log");
+		System.err.println("\t-step <ms>\tdownsample into buckets of this length");
+		System.err.println("\t-agg avg|min|max|last\thow to aggregate a bucket (default avg)");
+		System.err.println("\t-columns <regex>\tonly include the matching columns");
+		System.err.println("\t-summary\tprint count/min/avg/max of each column instead of CSV");
+		System.err.println("\t-o <file>\twrite to the given file instead of stdout");
+		System.exit(-1);
+	}
+
+	public static void main(String args[]) {
+		ProfileTool tool = new ProfileTool();
+		List files = new ArrayList();
+		String out = null;
+		boolean summary = false;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-from") && i + 1 < args.length) {
+					tool.fromArg = args[++i];
+				} else if (args[i].equals("-to") && i + 1 < args.length) {
+					tool.toArg = args[++i];
+				} else if (args[i].equals("-step") && i + 1 < args.length) {
+					tool.step = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-agg") && i + 1 < args.length) {
+					String a = args[++i];
+					if (a.equals("avg")) tool.agg = AVG;
+					else if (a.equals("min")) tool.agg = MIN;
+					else if (a.equals("max")) tool.agg = MAX;
+					else if (a.equals("last")) tool.agg = LAST;
+					else usage();
+				} else if (args[i].equals("-columns") && i + 1 < args.length) {
+					tool.columnPattern = Pattern.compile(args[++i]);
+				} else if (args[i].equals("-summary")) {
+					summary = true;
+				} else if (args[i].equals("-o") && i + 1 < args.length) {
+					out = args[++i];
+				} else if (args[i].startsWith("-")) {
+					usage();
+				} else {
+					files.add(args[i]);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		}
+		if (files.size() == 0) usage();
+
+		try {
+			String fnames[] = (String[]) files.toArray(new String[files.size()]);
+			PrintWriter pw = new PrintWriter((out == null) ? new OutputStreamWriter(System.out) : new FileWriter(out));
+			if (summary) {
+				tool.summary(fnames, pw);
+			} else {
+				tool.export(fnames, pw);
+			}
+			pw.close();
+		} catch (Exception e) {
+			System.err.println("ProfileTool: " + e);
+			System.exit(1);
+		}
+	}
+
+	private long parseTime(String s, long start) {
+		if (s.startsWith("+")) return start + (long) (Double.parseDouble(s.substring(1)) * 1000);
+		return Long.parseLong(s);
+	}
+
+	/**
+	 * Determine the time range and collect the columns which appear in it.
+	 * Returns false if there are no snapshots in the range.
+	 */
+	boolean scan(String files[]) throws IOException {
+		BinaryProfileReader r = new BinaryProfileReader(files);
+		boolean first = true;
+		boolean found = false;
+		while (r.next()) {
+			if (first) {
+				first = false;
+				if (fromArg != null) from = parseTime(fromArg, r.getTime());
+				if (toArg != null) to = parseTime(toArg, r.getTime());
+			}
+			if (r.getTime() < from || r.getTime() > to) continue;
+			found = true;
+			List cols = r.getColumns();
+			for (int i = 0; i < cols.size(); i++) {
+				String c = (String) cols.get(i);
+				if (columnIndex.containsKey(c)) continue;
+				if (columnPattern != null && !columnPattern.matcher(c).find()) continue;
+				columnIndex.put(c, Integer.valueOf(columns.size()));
+				columns.add(c);
+			}
+		}
+		int n = columns.size();
+		sum = new double[n];
+		min = new long[n];
+		max = new long[n];
+		last = new long[n];
+		count = new int[n];
+		return found;
+	}
+
+	/**
+	 * Write the snapshots in the selected range as CSV, one row per
+	 * snapshot, or one row per bucket if a step was given.
+	 */
+	public void export(String files[], PrintWriter pw) throws IOException {
+		if (!scan(files)) return;
+		pw.print("time");
+		for (int i = 0; i < columns.size(); i++) pw.print("," + csv((String) columns.get(i)));
+		pw.println();
+
+		BinaryProfileReader r = new BinaryProfileReader(files);
+		long bucket = Long.MIN_VALUE;
+		long origin = Long.MIN_VALUE;
+		while (r.next()) {
+			long t = r.getTime();
+			if (t < from || t > to) continue;
+			if (origin == Long.MIN_VALUE) origin = t;
+			if (step <= 0) {
+				accumulate(r);
+				flushRow(pw, t);
+				continue;
+			}
+			long b = origin + ((t - origin) / step) * step;
+			if (b != bucket) {
+				if (bucket != Long.MIN_VALUE) flushRow(pw, bucket);
+				bucket = b;
+			}
+			accumulate(r);
+		}
+		if (bucket != Long.MIN_VALUE) flushRow(pw, bucket);
+	}
+
+	/**
+	 * Print the number of samples, minimum, average and maximum of each
+	 * column over the selected range.
+	 */
+	public void summary(String files[], PrintWriter pw) throws IOException {
+		if (!scan(files)) return;
+		BinaryProfileReader r = new BinaryProfileReader(files);
+		while (r.next()) {
+			if (r.getTime() < from || r.getTime() > to) continue;
+			accumulate(r);
+		}
+		pw.println("column,count,min,avg,max");
+		for (int i = 0; i < columns.size(); i++) {
+			if (count[i] == 0) continue;
+			pw.println(csv((String) columns.get(i)) + "," + count[i] + "," + min[i] + ","
+			    + format(sum[i] / count[i]) + "," + max[i]);
+		}
+	}
+
+	private void accumulate(BinaryProfileReader r) {
+		List cols = r.getColumns();
+		long values[] = r.getValues();
+		for (int i = 0; i < cols.size(); i++) {
+			Integer idx = (Integer) columnIndex.get(cols.get(i));
+			if (idx == null) continue;
+			int c = idx.intValue();
+			long v = values[i];
+			if (count[c] == 0) {
+				min[c] = max[c] = v;
+			} else {
+				if (v < min[c]) min[c] = v;
+				if (v > max[c]) max[c] = v;
+			}
+			sum[c] += v;
+			last[c] = v;
+			count[c]++;
+		}
+	}
+
+	private void flushRow(PrintWriter pw, long time) {
+		pw.print(time);
+		for (int c = 0; c < columns.size(); c++) {
+			pw.print(",");
+			if (count[c] == 0) continue;
+			switch (agg) {
+				case AVG:
+					pw.print(format(sum[c] / count[c]));
+					break;
+				case MIN:
+					pw.print(min[c]);
+					break;
+				case MAX:
+					pw.print(max[c]);
+					break;
+				case LAST:
+					pw.print(last[c]);
+					break;
+			}
+			sum[c] = 0;
+			count[c] = 0;
+		}
+		pw.println();
+	}
+
+	private static String format(double d) {
+		if (d == Math.rint(d)) return Long.toString((long) d);
+		return Double.toString(Math.round(d * 1000) / 1000.0);
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') == -1 && s.indexOf('"') == -1) return s;
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"') sb.append('"');
+			sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.jcyclone.core.profiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.jcyclone.core.queue.ISink;
+
+/**
+ * A Java Flight Recorder event emitted when a stage's sink rejects an
+ * enqueue, either because its enqueue predicate refused the events or
+ * because the underlying queue was full. The stack trace points at the
+ * enqueuing code.
+ *
+ * @see org.jcyclone.core.rtc.AdmissionControlledSink
+ */
+@Name("org.jcyclone.QueueReject")
+@Label("Queue Reject")
+@Category({"JCyclone", "Stage"})
+@Description("Events rejected by a stage's sink (SinkFullException or enqueueLossy returning false)")
+public class QueueRejectEvent extends jdk.jfr.Event {
+
+	@Label("Stage")
+	public String stage;
+
+	@Label("Events")
+	@Description("Number of events rejected")
+	public int count;
+
+	@Label("Reason")
+	@Description("'predicate' if refused by the enqueue predicate, 'predicate <name>' if refused by a predicate of a chain, 'full' if the queue was full")
+	public String reason;
+
+	@Label("Queue Size")
+	public int queueSize;
+
+	/**
+	 * Emit a QueueRejectEvent, if enabled. The size of the given sink is
+	 * only queried if the event is recorded.
+	 */
+	public static void emit(String stage, int count, String reason, ISink sink) {
+		QueueRejectEvent ev = new QueueRejectEvent();
+		if (ev.shouldCommit()) {
+			ev.stage = stage;
+			ev.count = count;
+			ev.reason = reason;
+			ev.queueSize = sink.size();
+			ev.commit();
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.jcyclone.core.profiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event emitted by the TPS schedulers around each
+ * batch of events passed to a stage's event handler. The event duration
+ * is the time spent in the handler. Like all JFR events, it is only
+ * recorded if enabled in the JFR settings in use (e.g. with
+ * <tt>-XX:StartFlightRecording:settings=...</tt>), and costs next to
+ * nothing otherwise.
+ *
+ * @see org.jcyclone.core.internal.TPSScheduler
+ */
+@Name("org.jcyclone.StageBatch")
+@Label("Stage Batch")
+@Category({"JCyclone", "Stage"})
+@Description("Execution of a batch of events by a stage's event handler")
+@StackTrace(false)
+public class StageBatchEvent extends jdk.jfr.Event {
+
+	@Label("Stage")
+	public String stage;
+
+	@Label("Batch Size")
+	@Description("Number of events passed to the handler")
+	public int batchSize;
+
+	@Label("Queue Depth")
+	@Description("Number of events left on the stage's queue when the batch was dequeued")
+	public int queueDepth;
+
+}
@@ -0,0 +1,232 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StageGraph;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StageResourceSampler attributes the CPU time consumed and the bytes
+ * allocated by the threads of each stage to that stage, giving a "top"
+ * for the stage graph. It periodically reads the per-thread counters of
+ * the ThreadMXBean for every thread registered with the StageGraph, and
+ * computes, for each stage, over the last sampling interval:
+ * <ul>
+ * <li> its CPU usage, in percent of one CPU (so it may exceed 100 if the
+ * stage has several threads);
+ * <li> the number of bytes it allocated per second;
+ * <li> the number of bytes it allocated per event processed.
+ * </ul>
+ * These are exposed through the profiler as
+ * <tt>"&lt;stage&gt; cpu%"</tt>, <tt>"&lt;stage&gt; allocKB/s"</tt> and
+ * <tt>"&lt;stage&gt; allocBytes/event"</tt>. Sampling is driven by the
+ * profiler thread and happens at most every
+ * <tt>global.profile.cpu.interval</tt> milliseconds; one sample costs a
+ * couple of bulk ThreadMXBean calls. Allocation accounting requires a
+ * JVM supporting com.sun.management.ThreadMXBean.
+ *
+ * @see StageGraph#getThreads
+ */
+public class StageResourceSampler {
+
+	private static final boolean DEBUG = false;
+
+	private final StageGraph graph;
+	private final IProfiler profiler;
+	private final long interval;
+	private final ThreadMXBean mxbean;
+	private final com.sun.management.ThreadMXBean allocbean;
+
+	private List stages = new ArrayList();
+	// thread id --> {cpu nanos, allocated bytes} as of the last sample
+	private Map lastThreadUsage = new HashMap();
+	private long lastSample;
+
+	public StageResourceSampler(ISystemConfig config, StageGraph graph, IProfiler profiler) {
+		this.graph = graph;
+		this.profiler = profiler;
+		this.interval = config.getInt("global.profile.cpu.interval", 1000);
+		this.mxbean = ManagementFactory.getThreadMXBean();
+		if (mxbean.isThreadCpuTimeSupported() && !mxbean.isThreadCpuTimeEnabled()) {
+			mxbean.setThreadCpuTimeEnabled(true);
+		}
+		com.sun.management.ThreadMXBean ab = null;
+		if (mxbean instanceof com.sun.management.ThreadMXBean) {
+			ab = (com.sun.management.ThreadMXBean) mxbean;
+			if (ab.isThreadAllocatedMemorySupported()) {
+				if (!ab.isThreadAllocatedMemoryEnabled()) ab.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				ab = null;
+			}
+		}
+		this.allocbean = ab;
+		if (!mxbean.isThreadCpuTimeSupported())
+			System.err.println("StageResourceSampler: Warning: Thread CPU time not supported by this JVM");
+		if (allocbean == null)
+			System.err.println("StageResourceSampler: Warning: Thread allocation accounting not supported by this JVM");
+		this.lastSample = System.nanoTime();
+	}
+
+	/**
+	 * Start accounting for the given stage, and add its CPU and
+	 * allocation figures to the profiler.
+	 */
+	public void addStage(IStageWrapper stage) {
+		final stageUsage su = new stageUsage(stage);
+		synchronized (this) {
+			stages.add(su);
+		}
+		String name = stage.getName();
+		profiler.add(name + " cpu%", new IProfilable() {
+			public int profileSize() {
+				sampleIfDue();
+				return (int) su.cpuPercent;
+			}
+		});
+		profiler.add(name + " allocKB/s", new IProfilable() {
+			public int profileSize() {
+				sampleIfDue();
+				return (int) (su.allocRate / 1024);
+			}
+		});
+		profiler.add(name + " allocBytes/event", new IProfilable() {
+			public int profileSize() {
+				sampleIfDue();
+				return (int) su.allocPerEvent;
+			}
+		});
+	}
+
+	/**
+	 * Stop accounting for the given stage.
+	 */
+	public void removeStage(IStageWrapper stage) {
+		synchronized (this) {
+			stages.remove(find(stage));
+		}
+		String name = stage.getName();
+		profiler.remove(name + " cpu%");
+		profiler.remove(name + " allocKB/s");
+		profiler.remove(name + " allocBytes/event");
+	}
+
+	/**
+	 * Return the CPU usage of the given stage over the last sampling
+	 * interval, in percent of one CPU, or -1 if the stage is unknown.
+	 */
+	public synchronized double getCpuPercent(IStageWrapper stage) {
+		stageUsage su = find(stage);
+		return (su == null) ? -1 : su.cpuPercent;
+	}
+
+	/**
+	 * Return the number of bytes allocated per second by the given stage
+	 * over the last sampling interval, or -1 if unknown.
+	 */
+	public synchronized double getAllocRate(IStageWrapper stage) {
+		stageUsage su = find(stage);
+		return (su == null || allocbean == null) ? -1 : su.allocRate;
+	}
+
+	/**
+	 * Return the number of bytes allocated per event processed by the
+	 * given stage over the last sampling interval, or -1 if unknown.
+	 */
+	public synchronized double getAllocPerEvent(IStageWrapper stage) {
+		stageUsage su = find(stage);
+		return (su == null || allocbean == null) ? -1 : su.allocPerEvent;
+	}
+
+	private stageUsage find(IStageWrapper stage) {
+		for (int i = 0; i < stages.size(); i++) {
+			stageUsage su = (stageUsage) stages.get(i);
+			if (su.stage == stage) return su;
+		}
+		return null;
+	}
+
+	synchronized void sampleIfDue() {
+		if (System.nanoTime() - lastSample >= interval * 1000000L) sample();
+	}
+
+	/**
+	 * Take a sample of the CPU time and allocated bytes of all stage
+	 * threads, and update the per-stage figures.
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		double elapsed = (now - lastSample) * 1.0e-9;
+		if (elapsed <= 0) return;
+
+		// Gather all thread ids, so that the MXBean can be queried in bulk
+		int nstages = stages.size();
+		Thread threads[][] = new Thread[nstages][];
+		int total = 0;
+		for (int i = 0; i < nstages; i++) {
+			threads[i] = graph.getThreads(((stageUsage) stages.get(i)).stage);
+			total += threads[i].length;
+		}
+		long ids[] = new long[total];
+		int n = 0;
+		for (int i = 0; i < nstages; i++) {
+			for (int j = 0; j < threads[i].length; j++) ids[n++] = threads[i][j].getId();
+		}
+
+		long cpu[];
+		long alloc[] = null;
+		if (allocbean != null) {
+			cpu = allocbean.getThreadCpuTime(ids);
+			alloc = allocbean.getThreadAllocatedBytes(ids);
+		} else {
+			cpu = new long[total];
+			for (int i = 0; i < total; i++) cpu[i] = mxbean.getThreadCpuTime(ids[i]);
+		}
+
+		Map usage = new HashMap(total * 2);
+		n = 0;
+		for (int i = 0; i < nstages; i++) {
+			stageUsage su = (stageUsage) stages.get(i);
+			long cpuDelta = 0, allocDelta = 0;
+			for (int j = 0; j < threads[i].length; j++, n++) {
+				// -1 if the thread has died or is not yet started
+				if (cpu[n] < 0) continue;
+				long a = (alloc != null) ? alloc[n] : 0;
+				Long id = Long.valueOf(ids[n]);
+				long last[] = (long[]) lastThreadUsage.get(id);
+				if (last != null) {
+					cpuDelta += cpu[n] - last[0];
+					allocDelta += a - last[1];
+				}
+				usage.put(id, new long[]{cpu[n], a});
+			}
+			long events = su.stage.getStats().getTotalEvents();
+			long eventsDelta = events - su.lastEvents;
+			su.lastEvents = events;
+
+			su.cpuPercent = cpuDelta * 1.0e-9 / elapsed * 100.0;
+			su.allocRate = allocDelta / elapsed;
+			if (eventsDelta > 0) su.allocPerEvent = allocDelta / (double) eventsDelta;
+			if (DEBUG) System.err.println("StageResourceSampler <" + su.stage.getName() + ">: cpu " + su.cpuPercent
+			    + "%, alloc " + su.allocRate + " B/s, " + su.allocPerEvent + " B/event");
+		}
+		lastThreadUsage = usage;
+		lastSample = now;
+	}
+
+	static class stageUsage {
+		final IStageWrapper stage;
+		long lastEvents;
+		double cpuPercent, allocRate, allocPerEvent;
+
+		stageUsage(IStageWrapper stage) {
+			this.stage = stage;
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.jcyclone.core.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring buffer of trace records used by EventTracer.
+ * Writers claim a slot with a single atomic increment and never block;
+ * when the buffer wraps, the oldest records are overwritten. Each slot
+ * carries a sequence stamp so that a reader can detect (and skip)
+ * records which were being overwritten while it was copying them.
+ *
+ * @see EventTracer
+ */
+class TraceBuffer {
+
+	private final int mask;
+	private final long traceIds[];
+	private final long times[];
+	private final int types[];
+	private final String stages[];
+	// seq + 1 once slot is published, 0 while being written
+	private final AtomicLongArray stamps;
+	private final AtomicLong cursor = new AtomicLong();
+
+	/**
+	 * Create a buffer holding at least 'size' records. The capacity is
+	 * rounded up to the next power of two.
+	 */
+	TraceBuffer(int size) {
+		int cap = 1;
+		while (cap < size) cap <<= 1;
+		this.mask = cap - 1;
+		this.traceIds = new long[cap];
+		this.times = new long[cap];
+		this.types = new int[cap];
+		this.stages = new String[cap];
+		this.stamps = new AtomicLongArray(cap);
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Return the total number of records written since creation.
+	 */
+	long written() {
+		return cursor.get();
+	}
+
+	void record(long traceId, int type, String stage, long time) {
+		long seq = cursor.getAndIncrement();
+		int i = (int) (seq & mask);
+		stamps.set(i, 0);
+		traceIds[i] = traceId;
+		times[i] = time;
+		types[i] = type;
+		stages[i] = stage;
+		stamps.lazySet(i, seq + 1);
+	}
+
+	/**
+	 * Copy the records currently held in the buffer, oldest first, into
+	 * the given arrays, which must be at least capacity() long. Records
+	 * which are overwritten during the copy are skipped.
+	 *
+	 * @return The number of records copied.
+	 */
+	int snapshot(long outIds[], int outTypes[], String outStages[], long outTimes[]) {
+		long end = cursor.get();
+		long start = Math.max(0, end - capacity());
+		int n = 0;
+		for (long seq = start; seq < end; seq++) {
+			int i = (int) (seq & mask);
+			if (stamps.get(i) != seq + 1) continue;
+			long id = traceIds[i];
+			int type = types[i];
+			String stage = stages[i];
+			long time = times[i];
+			if (stamps.get(i) != seq + 1) continue;
+			outIds[n] = id;
+			outTypes[n] = type;
+			outStages[n] = stage;
+			outTimes[n] = time;
+			n++;
+		}
+		return n;
+	}
+
+}
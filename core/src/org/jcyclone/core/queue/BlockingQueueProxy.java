@@ -0,0 +1,238 @@
+package org.jcyclone.core.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A blocking queue which forwards to another queue, and whose
+ * implementation can be replaced while the queue is in use. Stages hold
+ * their event queue through a BlockingQueueProxy, so that the sink, the
+ * batch sorter and the scheduler keep their reference to it when the
+ * queue is replaced by {@link #setQueue}.
+ * <p/>
+ * The events pending in the replaced queue are transferred to the new
+ * one. Producers which obtained the old queue just before the swap may
+ * still enqueue into it; these events are collected by the next
+ * dequeue. Consumers blocked on the old queue are woken up and move to
+ * the new one.
+ */
+public class BlockingQueueProxy implements IBlockingQueue, IDrainNotifyingSink {
+
+	private static final boolean DEBUG = false;
+
+	// Enqueued into a replaced queue to wake up its consumers
+	private static final IElement WAKEUP = new IElement() {
+		public String toString() {
+			return "BlockingQueueProxy.WAKEUP";
+		}
+	};
+
+	private volatile IBlockingQueue q;
+	private volatile IBlockingQueue retired;
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final DrainNotifier drainNotifier = new DrainNotifier();
+
+	public BlockingQueueProxy(IBlockingQueue q) {
+		this.q = q;
+	}
+
+	public IBlockingQueue getQueue() {
+		return q;
+	}
+
+	/**
+	 * Replace the queue, transferring its pending events to the new
+	 * one. The new queue takes the capacity of the old one. The new
+	 * queue is only published once it holds the pending events; if they
+	 * cannot be transferred, they are put back and the old queue stays.
+	 */
+	public synchronized void setQueue(IBlockingQueue queue) throws SinkException {
+		IBlockingQueue old = q;
+		if (queue == old) return;
+		int capacity = old.capacity();
+		// Make room for all the pending events; the new queue may be
+		// over capacity until they are consumed
+		queue.setCapacity(Integer.MAX_VALUE);
+
+		List buffer = new ArrayList();
+		old.dequeueAll(buffer);
+		IBlockingQueue r = retired;
+		if (r != null) r.dequeueAll(buffer);
+		strip(buffer, 0);
+		if (!buffer.isEmpty()) {
+			boolean done = false;
+			try {
+				queue.enqueueMany(buffer);
+				done = true;
+			} finally {
+				if (!done) restore(old, buffer, capacity);
+			}
+		}
+		queue.setCapacity(capacity);
+		q = queue;
+		retired = old;
+		if (DEBUG) System.err.println("BlockingQueueProxy: Transferred " + buffer.size() + " events to " + queue);
+
+		for (int i = waiting.get(); i > 0; i--) {
+			old.enqueueLossy(WAKEUP);
+		}
+	}
+
+	// Put the events taken for a failed transfer back into the old queue
+	private static void restore(IBlockingQueue old, List buffer, int capacity) throws SinkException {
+		old.setCapacity(Integer.MAX_VALUE);
+		try {
+			old.enqueueMany(buffer);
+		} finally {
+			old.setCapacity(capacity);
+		}
+	}
+
+	// Collect the events left in the replaced queue, and drop wakeups.
+	// Returns the number of elements added to the list since start.
+	private int collect(List list, int start, int maxElements) {
+		IBlockingQueue r = retired;
+		if (r != null && r.size() > 0) {
+			int room = maxElements - (list.size() - start);
+			if (room > 0) r.dequeue(list, room);
+		}
+		strip(list, start);
+		return list.size() - start;
+	}
+
+	private static void strip(List list, int start) {
+		for (int i = list.size() - 1; i >= start; i--) {
+			if (list.get(i) == WAKEUP) list.remove(i);
+		}
+	}
+
+	public IElement dequeue() {
+		IElement el = q.dequeue();
+		if (el == null || el == WAKEUP) {
+			IBlockingQueue r = retired;
+			el = (r == null) ? null : r.dequeue();
+			if (el == WAKEUP) el = null;
+		}
+		if (el != null) drained(1);
+		return el;
+	}
+
+	// Tell the drain listeners that the given number of elements was removed
+	private int drained(int num) {
+		if (num > 0 && drainNotifier.isWaiting()) drainNotifier.drained(num, size() == 0);
+		return num;
+	}
+
+	public int dequeueAll(List list) {
+		int start = list.size();
+		q.dequeueAll(list);
+		return drained(collect(list, start, Integer.MAX_VALUE));
+	}
+
+	public int dequeue(List list, int maxElements) {
+		int start = list.size();
+		q.dequeue(list, maxElements);
+		return drained(collect(list, start, maxElements));
+	}
+
+	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout_millis;
+		while (true) {
+			IBlockingQueue cur = q;
+			IElement el;
+			waiting.incrementAndGet();
+			try {
+				el = cur.blockingDequeue(timeout_millis);
+			} finally {
+				waiting.decrementAndGet();
+			}
+			if (el != null && el != WAKEUP) {
+				drained(1);
+				return el;
+			}
+			el = dequeue();
+			if (el != null || cur == q || timeout_millis <= 0) return el;
+			// Woken up by a swap; wait on the new queue for the rest of the time
+			timeout_millis = (int) (end - System.currentTimeMillis());
+			if (timeout_millis <= 0) return null;
+		}
+	}
+
+	public int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		return blockingDequeue(list, msecs, Integer.MAX_VALUE);
+	}
+
+	public int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		int start = list.size();
+		long end = System.currentTimeMillis() + msecs;
+		while (true) {
+			IBlockingQueue cur = q;
+			waiting.incrementAndGet();
+			try {
+				if (maxElements == Integer.MAX_VALUE) {
+					cur.blockingDequeueAll(list, msecs);
+				} else {
+					cur.blockingDequeue(list, msecs, maxElements);
+				}
+			} finally {
+				waiting.decrementAndGet();
+			}
+			int num = collect(list, start, maxElements);
+			if (num > 0 || cur == q || msecs <= 0) return drained(num);
+			// Woken up by a swap; wait on the new queue for the rest of the time
+			msecs = (int) (end - System.currentTimeMillis());
+			if (msecs <= 0) return 0;
+		}
+	}
+
+	public int size() {
+		return q.size();
+	}
+
+	public boolean notifyOnDrain(IDrainListener listener) {
+		drainNotifier.notifyOnDrain(listener, this);
+		return true;
+	}
+
+	public void setCapacity(int newCapacity) {
+		q.setCapacity(newCapacity);
+	}
+
+	public int capacity() {
+		return q.capacity();
+	}
+
+	public void enqueue(IElement element) throws SinkException {
+		q.enqueue(element);
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		return q.enqueueLossy(element);
+	}
+
+	public void enqueueMany(List list) throws SinkException {
+		q.enqueueMany(list);
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		return q.enqueuePrepare(elements);
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		q.enqueuePrepare(elements, txn);
+	}
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		q.blockingEnqueue(element);
+	}
+
+	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
+		return q.enqueueLossy(element, timeout_millis);
+	}
+
+	public String toString() {
+		return "BlockingQueueProxy[" + q + "]";
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.jcyclone.core.queue;
+
+import java.util.LinkedList;
+
+/**
+ * The list of listeners waiting for elements to be removed from a queue.
+ * Queues call {@link #drained} outside of their locks after removing
+ * elements, which costs a volatile read when no listener is waiting.
+ */
+class DrainNotifier {
+
+	private final LinkedList listeners = new LinkedList();
+	private volatile int numListeners;
+
+	synchronized void add(IDrainListener listener) {
+		listeners.add(listener);
+		numListeners = listeners.size();
+	}
+
+	boolean isWaiting() {
+		return numListeners > 0;
+	}
+
+	/**
+	 * Call the first num listeners, or all listeners if the queue is
+	 * now empty.
+	 */
+	void drained(int num, boolean empty) {
+		if (numListeners == 0 || num <= 0) return;
+		IDrainListener called[];
+		synchronized (this) {
+			if (empty) num = listeners.size();
+			called = new IDrainListener[Math.min(num, listeners.size())];
+			for (int i = 0; i < called.length; i++) called[i] = (IDrainListener) listeners.removeFirst();
+			numListeners = listeners.size();
+		}
+		for (int i = 0; i < called.length; i++) called[i].sinkDrained();
+	}
+
+	/**
+	 * Register the given listener on the given queue.
+	 */
+	void notifyOnDrain(IDrainListener listener, IQueue q) {
+		add(listener);
+		// The queue may have been emptied before the listener was added
+		if (q.size() == 0) drained(1, true);
+	}
+
+}
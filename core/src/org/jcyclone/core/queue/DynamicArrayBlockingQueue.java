@@ -14,7 +14,7 @@ import java.util.WeakHashMap;
  *
  * @author Jean Morissette
  */
-public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
+public class DynamicArrayBlockingQueue implements IBlockingQueue, IDrainNotifyingSink, IProfilable {
 
 	private static final boolean DEBUG = false;
 
@@ -44,6 +44,9 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 	// transactional map
 	protected Map txnMap = Collections.synchronizedMap(new WeakHashMap());
 
+	// Listeners waiting for elements to be removed
+	private final DrainNotifier drainNotifier = new DrainNotifier();
+
 	/**
 	 * Create a queue with the default capacity
 	 */
@@ -302,6 +305,11 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 		return old;
 	}
 
+	public boolean notifyOnDrain(IDrainListener listener) {
+		drainNotifier.notifyOnDrain(listener, this);
+		return true;
+	}
+
 	/**
 	 * Return the number of elements in the buffer.
 	 * This is only a snapshot value, that may change
@@ -323,7 +331,8 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 	public void setCapacity(int newCapacity) {
 		if (newCapacity <= 0) throw new IllegalArgumentException();
 		synchronized (putMonitor) {
-			emptySlots += newCapacity - capacity;
+			// Only the slots of the array up to the capacity may be used
+			emptySlots += Math.min(array.length, newCapacity) - Math.min(array.length, capacity);
 			if (newCapacity > capacity) {
 				if (waitingPuts > 0)
 					putMonitor.notifyAll();
@@ -391,6 +400,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 			if (waitingPuts > 0)
 				putMonitor.notify();
 		}
+		if (drainNotifier.isWaiting()) drainNotifier.drained(1, size() == 0);
 	}
 
 	protected void incEmptySlots(int slotCount) {
@@ -406,6 +416,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 				}
 			}
 		}
+		if (drainNotifier.isWaiting()) drainNotifier.drained(slotCount, size() == 0);
 	}
 
 	protected void incUsedSlots() {
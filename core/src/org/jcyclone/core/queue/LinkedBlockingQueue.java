@@ -15,7 +15,7 @@ import java.util.WeakHashMap;
  *
  * @author Jean Morissette
  */
-public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
+public class LinkedBlockingQueue implements IBlockingQueue, IDrainNotifyingSink, IProfilable {
 
 	private class LinkedNode {
 		LinkedNode next;
@@ -63,6 +63,9 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 	// transactional map
 	protected Map txnMap = Collections.synchronizedMap(new WeakHashMap());
 
+	// Listeners waiting for elements to be removed
+	private final DrainNotifier drainNotifier = new DrainNotifier();
+
 
 	/**
 	 * One side of a split permit count.
@@ -282,6 +285,15 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 		return capacity - (takeSidePutPermits + putSidePutPermits);
 	}
 
+	/**
+	 * Register a listener to be told once elements are removed from
+	 * this queue. Always succeeds, since every take is seen here.
+	 */
+	public boolean notifyOnDrain(IDrainListener listener) {
+		drainNotifier.notifyOnDrain(listener, this);
+		return true;
+	}
+
 	/**
 	 * Reset the capacity of this queue.
 	 * If the new capacity is less than the old capacity,
@@ -438,7 +450,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 		}
 		synchronized (this.last) {
 			this.last.next = n;
-			this.last = n;
+			this.last = last;
 		}
 	}
 
@@ -532,7 +544,13 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 	/**
 	 * Main mechanics for take/poll
 	 */
-	protected synchronized IElement extract() {
+	protected IElement extract() {
+		IElement x = extractOne();
+		if (x != null && drainNotifier.isWaiting()) drainNotifier.drained(1, size() == 0);
+		return x;
+	}
+
+	private synchronized IElement extractOne() {
 		synchronized (head) {
 			IElement x = null;
 			LinkedNode first = head.next;
@@ -576,6 +594,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 			list.add(p.value);
 			p.value = null;
 		}
+		if (count > 0 && drainNotifier.isWaiting()) drainNotifier.drained(count, size() == 0);
 		return count;
 	}
 
@@ -613,6 +632,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 			list.add(p.value);
 			p.value = null;
 		}
+		if (count > 0 && drainNotifier.isWaiting()) drainNotifier.drained(count, size() == 0);
 		return count;
 	}
 
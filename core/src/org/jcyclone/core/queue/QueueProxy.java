@@ -28,7 +28,7 @@ public class QueueProxy implements IQueue {
 	}
 
 	public int dequeue(List list, int maxElements) {
-		return dequeue(list, maxElements);
+		return q.dequeue(list, maxElements);
 	}
 
 	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
@@ -0,0 +1,346 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A response time controller which lets a stage discover its own safe
+ * concurrency from latency, rather than from a fixed queue threshold.
+ * It limits the number of events in flight through the stage (from
+ * enqueue until the event handler returns), and adjusts the limit by
+ * comparing the minimum round-trip time of events through the stage
+ * (the no-load RTT) with the current RTT:
+ * <ul>
+ * <li><b>gradient</b>: the limit is scaled by noLoadRTT / RTT (between
+ * 0.5 and 1), plus an allowance of sqrt(limit) queued events, and
+ * smoothed.</li>
+ * <li><b>vegas</b>: the number of queued events is estimated as
+ * limit * (1 - noLoadRTT / RTT); the limit grows while it is small and
+ * shrinks while it is large, by steps of log10(limit).</li>
+ * </ul>
+ * Since a stage which is overloaded when the limiter starts never
+ * shows its no-load RTT, the limiter probes for it every
+ * <tt>probeInterval</tt> windows, by dropping the limit to the minimum
+ * until the queue has drained and measuring the RTT afresh.
+ * <p/>
+ * Enqueues above the limit are rejected through the stage's
+ * {@link AdmissionControlledSink}. The RTT of an event is measured from
+ * its enqueue onto this stage, which is kept in an {@link EnqueueStamps}
+ * so that a timestamp set upstream does not count.
+ * <p/>
+ * Configured with <tt>rtController.type gradient</tt> or
+ * <tt>rtController.type vegas</tt>, and the <tt>rtController.limiter.*</tt>
+ * settings.
+ */
+public class AdaptiveConcurrencyLimiter implements IResponseTimeController {
+
+	private static final boolean DEBUG = false;
+
+	public static final String GRADIENT = "gradient";
+	public static final String VEGAS = "vegas";
+
+	private IStageWrapper stage;
+	private String name;
+	private boolean vegas;
+	private IEnqueuePredicate pred;
+	private boolean enabled;
+
+	private int minLimit, maxLimit;
+	private long window;
+	private double smoothing;
+	private int probeInterval, untilProbe;
+
+	private volatile int limit;
+	private double estimatedLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final EnqueueStamps stamps = new EnqueueStamps();
+
+	// RTT measurement, guarded by this
+	private double noLoadRTT = -1, curRTT;
+	private long windowStart, windowTotal; // windowStart is 0 until the first completion
+	private int windowSamples, windowMaxInFlight;
+
+	public AdaptiveConcurrencyLimiter(IStageManager mgr, IStageWrapper stage, String algorithm)
+	    throws IllegalArgumentException {
+		this.stage = stage;
+		this.name = stage.getStage().getName();
+		if (VEGAS.equals(algorithm)) {
+			this.vegas = true;
+		} else if (!GRADIENT.equals(algorithm)) {
+			throw new IllegalArgumentException("AdaptiveConcurrencyLimiter: Bad algorithm " + algorithm);
+		}
+
+		ISystemConfig config = mgr.getConfig();
+		this.minLimit = (int) getDouble(config, "minLimit");
+		this.maxLimit = (int) getDouble(config, "maxLimit");
+		this.window = (long) getDouble(config, "window");
+		this.smoothing = getDouble(config, "smoothing");
+		this.probeInterval = (int) getDouble(config, "probeInterval");
+		this.untilProbe = probeInterval;
+		int initialLimit = (int) getDouble(config, "initialLimit");
+		if (minLimit < 1 || maxLimit < minLimit || window <= 0 || smoothing <= 0 || smoothing > 1) {
+			throw new IllegalArgumentException("AdaptiveConcurrencyLimiter: Bad limiter configuration");
+		}
+		setLimit(initialLimit);
+
+		mgr.getProfiler().add("RTController limit <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return limit;
+			    }
+		    });
+		mgr.getProfiler().add("RTController inFlight <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return inFlight.get();
+			    }
+		    });
+
+		this.pred = new LimitPredicate();
+		stage.getSink().setEnqueuePredicate(pred);
+		this.enabled = true;
+
+		System.err.println("AdaptiveConcurrencyLimiter <" + name + ">: " + algorithm + ", limit=" + limit + ", minLimit=" + minLimit + ", maxLimit=" + maxLimit + ", window=" + window + ", smoothing=" + smoothing + ", probeInterval=" + probeInterval);
+	}
+
+	private double getDouble(ISystemConfig config, String key) {
+		double val = config.getDouble("stages." + name + ".rtController.limiter." + key);
+		if (val == -1) val = config.getDouble("global.rtController.limiter." + key);
+		return val;
+	}
+
+	/**
+	 * Fix the no-load RTT, in milliseconds, which is otherwise measured.
+	 */
+	public synchronized void setTarget(double target) {
+		this.noLoadRTT = target;
+	}
+
+	/**
+	 * Return the no-load RTT, or -1 if none has been measured yet.
+	 */
+	public synchronized double getTarget() {
+		return noLoadRTT;
+	}
+
+	public synchronized void enable() {
+		if (enabled) return;
+		System.err.println("AdaptiveConcurrencyLimiter <" + name + ">: Enabling");
+		// The stage may have changed while we were not looking
+		noLoadRTT = -1;
+		windowSamples = 0;
+		windowTotal = 0;
+		windowMaxInFlight = 0;
+		windowStart = 0;
+		stage.getSink().setEnqueuePredicate(pred);
+		enabled = true;
+	}
+
+	public synchronized void disable() {
+		if (!enabled) return;
+		System.err.println("AdaptiveConcurrencyLimiter <" + name + ">: Disabling");
+		stage.getSink().setEnqueuePredicate(null);
+		enabled = false;
+	}
+
+	/**
+	 * Return the current limit on the number of events in flight.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Return the number of events in flight.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Return the RTT measured over the last window.
+	 */
+	public synchronized double getRTT() {
+		return curRTT;
+	}
+
+	/**
+	 * Return the enqueue predicate which enforces the limit.
+	 */
+	public IEnqueuePredicate getPredicate() {
+		return pred;
+	}
+
+	/**
+	 * Return the enqueue times of the events in flight.
+	 */
+	EnqueueStamps getStamps() {
+		return stamps;
+	}
+
+	/**
+	 * Invoked by the thread manager once the event handler has processed
+	 * the given events.
+	 */
+	public void adjustThreshold(List fetched, long serviceTime) {
+		complete(fetched, System.currentTimeMillis());
+	}
+
+	/**
+	 * Invoked by the thread manager when the event handler threw on the
+	 * given events: release their slots without sampling their times.
+	 */
+	public void batchFailed(List fetched) {
+		stamps.removeAll(fetched);
+		release(fetched.size());
+	}
+
+	/**
+	 * Record the completion of the given events at the given time.
+	 */
+	void complete(List fetched, long now) {
+		long total = 0;
+		int n = 0;
+		for (int i = 0; i < fetched.size(); i++) {
+			long time = stamps.remove(fetched.get(i));
+			if (time != 0) {
+				total += now - time;
+				n++;
+			}
+		}
+		int cur = release(fetched.size());
+
+		synchronized (this) {
+			if (windowStart == 0) windowStart = now;
+			windowTotal += total;
+			windowSamples += n;
+			if (cur + fetched.size() > windowMaxInFlight) windowMaxInFlight = cur + fetched.size();
+			if (now - windowStart < window) return;
+			if (windowSamples > 0) {
+				curRTT = (double) windowTotal / windowSamples;
+				if (noLoadRTT < 0 || curRTT < noLoadRTT) noLoadRTT = curRTT;
+				if (enabled) {
+					if (probeInterval > 0 && --untilProbe <= 0) {
+						probe();
+					} else {
+						update();
+					}
+				}
+			}
+			windowStart = now;
+			windowTotal = 0;
+			windowSamples = 0;
+			windowMaxInFlight = 0;
+		}
+	}
+
+	private int release(int n) {
+		while (true) {
+			int cur = inFlight.get();
+			int next = Math.max(0, cur - n);
+			if (inFlight.compareAndSet(cur, next)) return next;
+		}
+	}
+
+	// Called with the lock held at the end of each window
+	private void update() {
+		// Avoid division by zero for very fast stages
+		double rtt = Math.max(curRTT, 1.0e-3);
+		double noLoad = Math.max(noLoadRTT, 1.0e-3);
+		// Do not grow the limit if the stage is not using it
+		boolean appLimited = windowMaxInFlight < estimatedLimit / 2;
+		double newLimit;
+
+		if (vegas) {
+			double queued = estimatedLimit * (1.0 - noLoad / rtt);
+			double step = Math.max(1.0, log10(estimatedLimit));
+			if (queued <= step) {
+				newLimit = appLimited ? estimatedLimit : estimatedLimit + 6 * step;
+			} else if (queued < 3 * step) {
+				newLimit = appLimited ? estimatedLimit : estimatedLimit + step;
+			} else if (queued > 6 * step) {
+				newLimit = estimatedLimit - step;
+			} else {
+				newLimit = estimatedLimit;
+			}
+		} else {
+			double gradient = Math.max(0.5, Math.min(1.0, noLoad / rtt));
+			newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+			if (appLimited && newLimit > estimatedLimit) newLimit = estimatedLimit;
+			newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+		}
+		setLimit(newLimit);
+
+		if (DEBUG) System.err.println("AdaptiveConcurrencyLimiter <" + name + ">: rtt " + curRTT + " noLoad " + noLoadRTT + " limit " + limit);
+	}
+
+	// Drop the limit so that the queue drains, and measure the no-load
+	// RTT again
+	private void probe() {
+		untilProbe = probeInterval;
+		noLoadRTT = -1;
+		setLimit(minLimit);
+		if (DEBUG) System.err.println("AdaptiveConcurrencyLimiter <" + name + ">: probing, rtt " + curRTT);
+	}
+
+	private static double log10(double x) {
+		return Math.log(x) / Math.log(10);
+	}
+
+	private void setLimit(double newLimit) {
+		if (newLimit < minLimit) newLimit = minLimit;
+		if (newLimit > maxLimit) newLimit = maxLimit;
+		estimatedLimit = newLimit;
+		limit = (int) newLimit;
+	}
+
+	private boolean acquire(int n) {
+		while (true) {
+			int cur = inFlight.get();
+			if (cur + n > limit) return false;
+			if (inFlight.compareAndSet(cur, cur + n)) return true;
+		}
+	}
+
+	/**
+	 * Admits events while fewer than the limit are in flight.
+	 */
+	class LimitPredicate implements IEnqueuePredicate {
+
+		public boolean accept(IElement element) {
+			if (!acquire(1)) return false;
+			stamps.stamp(element, System.currentTimeMillis());
+			return true;
+		}
+
+		public void blockingAccept(IElement element) {
+			// Blocking enqueues are never rejected, but still count
+			inFlight.incrementAndGet();
+			stamps.stamp(element, System.currentTimeMillis());
+		}
+
+		public boolean acceptMany(List elements) {
+			if (!acquire(elements.size())) return false;
+			stamps.stampAll(elements, System.currentTimeMillis());
+			return true;
+		}
+
+		// The events never reach the stage, so give back their slots
+		public void rejected(IElement element) {
+			stamps.remove(element);
+			release(1);
+		}
+
+		public void rejectedMany(List elements) {
+			stamps.removeAll(elements);
+			release(elements.size());
+		}
+	}
+
+}
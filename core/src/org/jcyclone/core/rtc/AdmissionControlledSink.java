@@ -1,19 +1,38 @@
 package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.QueueRejectEvent;
 import org.jcyclone.core.queue.*;
 
 import java.util.List;
 
 /**
+ * The sink of a stage, which applies the stage's enqueue predicate
+ * before passing events on to the underlying queue. Rejected enqueues
+ * are reported as JFR QueueRejectEvents. When the predicate accepts
+ * elements which the queue then rejects, or whose transaction is
+ * aborted, the predicate is told through rejected() or rejectedMany().
+ *
  * @author Jean Morissette
  */
-public class AdmissionControlledSink implements IAdmissionControlledSink, IProfilable {
+public class AdmissionControlledSink implements IAdmissionControlledSink, IDrainNotifyingSink, IProfilable {
+
+	private static final String PREDICATE = "predicate";
+	private static final String FULL = "full";
 
 	volatile IEnqueuePredicate pred;
 	IBlockingSink sink;
+	String name;
 
 	public AdmissionControlledSink(IBlockingSink sink) {
+		this(null, sink);
+	}
+
+	/**
+	 * Create an AdmissionControlledSink for the stage with the given name.
+	 */
+	public AdmissionControlledSink(String name, IBlockingSink sink) {
+		this.name = name;
 		this.sink = sink;
 	}
 
@@ -26,45 +45,147 @@ public class AdmissionControlledSink implements IAdmissionControlledSink, IProfi
 	}
 
 	public void blockingEnqueue(IElement element) throws InterruptedException {
-		if (pred != null)
-			pred.blockingAccept(element);
-		sink.blockingEnqueue(element);
+		IEnqueuePredicate p = pred;
+		if (p != null)
+			p.blockingAccept(element);
+		boolean done = false;
+		try {
+			sink.blockingEnqueue(element);
+			done = true;
+		} finally {
+			if (!done && p != null) p.rejected(element);
+		}
+	}
+
+	/**
+	 * Return null if the predicate accepts the element, or else the reason
+	 * for the rejection; a PredicateChain tells which of its predicates
+	 * rejected it.
+	 */
+	private String reject(IEnqueuePredicate p, IElement element) {
+		if (p == null) return null;
+		if (p instanceof PredicateChain) {
+			PredicateChain chain = (PredicateChain) p;
+			int i = chain.test(element);
+			return (i < 0) ? null : chain.getReason(i);
+		}
+		return p.accept(element) ? null : PREDICATE;
+	}
+
+	private String rejectMany(IEnqueuePredicate p, List elements) {
+		if (p == null) return null;
+		if (p instanceof PredicateChain) {
+			PredicateChain chain = (PredicateChain) p;
+			int i = chain.testMany(elements);
+			return (i < 0) ? null : chain.getReason(i);
+		}
+		return p.acceptMany(elements) ? null : PREDICATE;
 	}
 
 	public void enqueue(IElement element) throws SinkException {
-		if (pred != null && !pred.accept(element))
-			throw new SinkFullException();
-		sink.enqueue(element);
+		IEnqueuePredicate p = pred;
+		String reason = reject(p, element);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, 1, reason, sink);
+			throw new SinkFullException(reason);
+		}
+		boolean done = false;
+		try {
+			sink.enqueue(element);
+			done = true;
+		} catch (SinkFullException e) {
+			QueueRejectEvent.emit(name, 1, FULL, sink);
+			throw e;
+		} finally {
+			if (!done && p != null) p.rejected(element);
+		}
 	}
 
 	public boolean enqueueLossy(IElement element) {
-		if (pred != null && !pred.accept(element))
+		IEnqueuePredicate p = pred;
+		String reason = reject(p, element);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, 1, reason, sink);
 			return false;
-		return sink.enqueueLossy(element);
+		}
+		boolean done = false;
+		try {
+			done = sink.enqueueLossy(element);
+		} finally {
+			if (!done && p != null) p.rejected(element);
+		}
+		if (!done) QueueRejectEvent.emit(name, 1, FULL, sink);
+		return done;
 	}
 
 	public void enqueueMany(List list) throws SinkException {
-		if (pred != null && !pred.acceptMany(list))
-			throw new SinkFullException();
-		sink.enqueueMany(list);
+		IEnqueuePredicate p = pred;
+		String reason = rejectMany(p, list);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, list.size(), reason, sink);
+			throw new SinkFullException(reason);
+		}
+		boolean done = false;
+		try {
+			sink.enqueueMany(list);
+			done = true;
+		} catch (SinkFullException e) {
+			QueueRejectEvent.emit(name, list.size(), FULL, sink);
+			throw e;
+		} finally {
+			if (!done && p != null) p.rejectedMany(list);
+		}
 	}
 
 	public ITransaction enqueuePrepare(List elements) throws SinkException {
-		if (pred != null && !pred.acceptMany(elements))
-			throw new SinkFullException();
-		return sink.enqueuePrepare(elements);
+		IEnqueuePredicate p = pred;
+		String reason = rejectMany(p, elements);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, elements.size(), reason, sink);
+			throw new SinkFullException(reason);
+		}
+		ITransaction txn = null;
+		try {
+			txn = sink.enqueuePrepare(elements);
+		} catch (SinkFullException e) {
+			QueueRejectEvent.emit(name, elements.size(), FULL, sink);
+			throw e;
+		} finally {
+			if (txn == null && p != null) p.rejectedMany(elements);
+		}
+		if (p != null) txn.join(new RejectOnAbort(p, elements));
+		return txn;
 	}
 
 	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
-		if (pred != null && !pred.acceptMany(elements))
-			throw new SinkFullException();
-		sink.enqueuePrepare(elements, txn);
+		IEnqueuePredicate p = pred;
+		String reason = rejectMany(p, elements);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, elements.size(), reason, sink);
+			throw new SinkFullException(reason);
+		}
+		boolean done = false;
+		try {
+			sink.enqueuePrepare(elements, txn);
+			done = true;
+		} catch (SinkFullException e) {
+			QueueRejectEvent.emit(name, elements.size(), FULL, sink);
+			throw e;
+		} finally {
+			if (!done && p != null) p.rejectedMany(elements);
+		}
+		if (p != null) txn.join(new RejectOnAbort(p, elements));
 	}
 
 	public int size() {
 		return sink.size();
 	}
 
+	public boolean notifyOnDrain(IDrainListener listener) {
+		if (!(sink instanceof IDrainNotifyingSink)) return false;
+		return ((IDrainNotifyingSink) sink).notifyOnDrain(listener);
+	}
+
 	public void setCapacity(int newCapacity) {
 		// XXX JM: block the access to this method,
 		// i.e. throw an UnsupportedOperationException?
@@ -76,12 +197,48 @@ public class AdmissionControlledSink implements IAdmissionControlledSink, IProfi
 	}
 
 	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
-		if (pred != null && !pred.accept(element))
+		IEnqueuePredicate p = pred;
+		String reason = reject(p, element);
+		if (reason != null) {
+			QueueRejectEvent.emit(name, 1, reason, sink);
 			return false;
-		return sink.enqueueLossy(element, timeout_millis);
+		}
+		boolean done = false;
+		try {
+			done = sink.enqueueLossy(element, timeout_millis);
+		} finally {
+			if (!done && p != null) p.rejected(element);
+		}
+		if (!done) QueueRejectEvent.emit(name, 1, FULL, sink);
+		return done;
 	}
 
 	public int profileSize() {
 		return sink.size();
 	}
+
+	/**
+	 * Joined to the transaction of a prepared enqueue, so that the
+	 * predicate learns when the elements it accepted are discarded.
+	 */
+	static class RejectOnAbort extends ITransaction.AbstractTransaction {
+		private IEnqueuePredicate pred;
+		private List elements;
+		private boolean done;
+
+		RejectOnAbort(IEnqueuePredicate pred, List elements) {
+			this.pred = pred;
+			this.elements = elements;
+		}
+
+		protected synchronized void doCommit() {
+			done = true;
+		}
+
+		protected synchronized void doAbort() {
+			if (done) return;
+			done = true;
+			pred.rejectedMany(elements);
+		}
+	}
 }
@@ -0,0 +1,46 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+
+import java.util.List;
+
+/**
+ * An enqueue predicate which only accepts IClassEvents of the given
+ * request classes. Events which are not IClassEvents, or have no class,
+ * are always accepted.
+ */
+public class ClassFilterPredicate implements IEnqueuePredicate {
+
+	private boolean accepted[];
+
+	/**
+	 * Create a ClassFilterPredicate accepting the given request classes.
+	 */
+	public ClassFilterPredicate(int classes[]) {
+		int max = -1;
+		for (int i = 0; i < classes.length; i++) {
+			if (classes[i] < 0) throw new IllegalArgumentException("ClassFilterPredicate: Bad class " + classes[i]);
+			max = Math.max(max, classes[i]);
+		}
+		accepted = new boolean[max + 1];
+		for (int i = 0; i < classes.length; i++) accepted[classes[i]] = true;
+	}
+
+	public boolean accept(IElement element) {
+		if (!(element instanceof IClassEvent)) return true;
+		int c = ((IClassEvent) element).getRequestClass();
+		return c < 0 || (c < accepted.length && accepted[c]);
+	}
+
+	public void blockingAccept(IElement element) {
+		// Blocking enqueues cannot be refused
+	}
+
+	public boolean acceptMany(List elements) {
+		for (int i = 0; i < elements.size(); i++) {
+			if (!accept((IElement) elements.get(i))) return false;
+		}
+		return true;
+	}
+
+}
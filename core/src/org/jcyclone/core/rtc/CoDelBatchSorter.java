@@ -0,0 +1,48 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.internal.IBatchDescr;
+import org.jcyclone.core.internal.IBatchSorter;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.stage.IStageManager;
+
+/**
+ * The dequeue side of {@link ResponseTimeControllerCoDel}. Wraps the
+ * stage's batch sorter, and sheds events from each batch it releases
+ * before the batch reaches the event handler. A batch from which all
+ * events are shed is never released.
+ */
+public class CoDelBatchSorter implements IBatchSorter {
+
+	private ResponseTimeControllerCoDel controller;
+	private IBatchSorter sorter;
+	private ISource source;
+
+	public CoDelBatchSorter(ResponseTimeControllerCoDel controller, IBatchSorter sorter) {
+		this.controller = controller;
+		this.sorter = sorter;
+	}
+
+	/**
+	 * Return the batch sorter wrapped by this one.
+	 */
+	public IBatchSorter getSorter() {
+		return sorter;
+	}
+
+	public void init(IStageWrapper stage, IStageManager mgr) {
+		this.source = stage.getSource();
+		sorter.init(stage, mgr);
+	}
+
+	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
+		while (true) {
+			IBatchDescr batch = sorter.nextBatch(timeout);
+			if (batch == null) return null;
+			controller.filter(batch.getBatch(), source, System.currentTimeMillis());
+			if (!batch.getBatch().isEmpty()) return batch;
+			batch.batchDone();
+		}
+	}
+
+}
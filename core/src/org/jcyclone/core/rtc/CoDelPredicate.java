@@ -0,0 +1,50 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+
+import java.util.List;
+
+/**
+ * The enqueue side of {@link ResponseTimeControllerCoDel}. Records the
+ * enqueue time of each event with the controller, and rejects the
+ * enqueue when the controller is shedding and a drop is due, so that the
+ * producer learns of the overload without the event waiting in the queue
+ * first.
+ */
+public class CoDelPredicate implements IEnqueuePredicate {
+
+	private ResponseTimeControllerCoDel controller;
+	private EnqueueStamps stamps;
+
+	public CoDelPredicate(ResponseTimeControllerCoDel controller) {
+		this.controller = controller;
+		this.stamps = controller.getStamps();
+	}
+
+	public boolean accept(IElement element) {
+		long now = System.currentTimeMillis();
+		if (!controller.acceptEnqueue(now)) return false;
+		stamps.stamp(element, now);
+		return true;
+	}
+
+	public void blockingAccept(IElement element) {
+		stamps.stamp(element, System.currentTimeMillis());
+	}
+
+	public boolean acceptMany(List elements) {
+		long now = System.currentTimeMillis();
+		if (!controller.acceptEnqueue(now)) return false;
+		stamps.stampAll(elements, now);
+		return true;
+	}
+
+	public void rejected(IElement element) {
+		stamps.remove(element);
+	}
+
+	public void rejectedMany(List elements) {
+		stamps.removeAll(elements);
+	}
+
+}
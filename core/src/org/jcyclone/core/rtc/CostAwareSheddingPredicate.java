@@ -0,0 +1,237 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IStageStats;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An enqueue predicate which sheds the most expensive work first when a
+ * stage is overloaded. The cost of an event is the mean service time of
+ * events of its type, as measured by the stage's IStageStats; its value
+ * is set per request class with <tt>admission.shedding.class&lt;N&gt;Value</tt>
+ * (1 by default, and for events which are not IClassEvents).
+ * <p/>
+ * While the utilization of the stage is above
+ * <tt>admission.shedding.threshold</tt>, the fraction of the offered
+ * work to shed grows by a fixed step every
+ * <tt>admission.shedding.interval</tt> milliseconds, up to
+ * <tt>admission.shedding.maxShed</tt>; once it falls below, the fraction
+ * shrinks again. Events are ranked by cost per unit of value, in
+ * buckets of powers of two, and the predicate rejects the events with
+ * the highest cost per value until the rejected work makes up that
+ * fraction of the work offered over the last interval. Events of the
+ * boundary bucket are rejected in the proportion needed. Events whose
+ * cost is not known yet are always accepted.
+ * <p/>
+ * Enabled with <tt>admission.shedding.enable</tt>, per stage or global.
+ * The predicate neither allocates nor locks on enqueue.
+ */
+public class CostAwareSheddingPredicate implements IEnqueuePredicate {
+
+	private static final boolean DEBUG = false;
+
+	private static final int MAX_CLASSES = 10;
+	// Cost per value is bucketed by powers of two from MIN_DENSITY msec
+	private static final double MIN_DENSITY = 1.0e-4;
+	private static final int NUM_BUCKETS = 40;
+	private static final double STEP = 0.05;
+
+	private IStageStats stats;
+	private String name;
+	private double threshold, maxShed;
+	private long interval;
+	private double values[] = new double[MAX_CLASSES];
+
+	// Work offered in each bucket since the last update, in usec
+	private final AtomicLongArray offered = new AtomicLongArray(NUM_BUCKETS);
+	private final long work[] = new long[NUM_BUCKETS];
+	// Buckets above cutBucket are rejected, and cutFraction of cutBucket
+	private volatile int cutBucket = NUM_BUCKETS;
+	private volatile double cutFraction;
+	private double shedFraction;
+
+	private final AtomicLong nextUpdate;
+	private final AtomicLong boundary = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public CostAwareSheddingPredicate(IStageManager mgr, IStageWrapper stage) {
+		this(stage.getStats(), stage.getName(), 0, 0, 0);
+		ISystemConfig config = mgr.getConfig();
+		this.threshold = getDouble(config, "threshold");
+		this.interval = (long) getDouble(config, "interval");
+		this.maxShed = getDouble(config, "maxShed");
+		if (threshold <= 0 || threshold > 1 || interval <= 0 || maxShed < 0 || maxShed > 1) {
+			throw new IllegalArgumentException("CostAwareSheddingPredicate <" + name + ">: Bad shedding configuration");
+		}
+		for (int c = 0; c < MAX_CLASSES; c++) {
+			double v = getDouble(config, "class" + c + "Value");
+			if (v > 0) values[c] = v;
+		}
+
+		IProfiler profiler = mgr.getProfiler();
+		if (profiler != null) {
+			// Replace the gauges of a predicate created before for the stage
+			profiler.remove("Shedding fraction(%) <" + name + ">");
+			profiler.remove("Shedding rejected <" + name + ">");
+			profiler.add("Shedding fraction(%) <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return (int) (getShedFraction() * 100);
+				    }
+			    });
+			profiler.add("Shedding rejected <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return (int) rejected.get();
+				    }
+			    });
+		}
+		System.err.println("CostAwareSheddingPredicate <" + name + ">: threshold=" + threshold + ", interval=" + interval + ", maxShed=" + maxShed);
+	}
+
+	/**
+	 * Create a predicate for the given stage statistics, shedding above
+	 * the given utilization.
+	 */
+	public CostAwareSheddingPredicate(IStageStats stats, String name, double threshold, long interval, double maxShed) {
+		this.stats = stats;
+		this.name = name;
+		this.threshold = threshold;
+		this.interval = interval;
+		this.maxShed = maxShed;
+		for (int c = 0; c < MAX_CLASSES; c++) values[c] = 1.0;
+		this.nextUpdate = new AtomicLong(System.currentTimeMillis() + interval);
+	}
+
+	private double getDouble(ISystemConfig config, String key) {
+		double val = config.getDouble("stages." + name + ".admission.shedding." + key);
+		if (val == -1) val = config.getDouble("global.admission.shedding." + key);
+		return val;
+	}
+
+	/**
+	 * Set the value of events of the given request class.
+	 */
+	public void setValue(int theclass, double value) {
+		if (value <= 0) throw new IllegalArgumentException("CostAwareSheddingPredicate: Bad value " + value);
+		values[theclass] = value;
+	}
+
+	/**
+	 * Return the fraction of the offered work currently shed.
+	 */
+	public synchronized double getShedFraction() {
+		return shedFraction;
+	}
+
+	/**
+	 * Return the number of rejected events.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public boolean accept(IElement element) {
+		long now = System.currentTimeMillis();
+		long next = nextUpdate.get();
+		if (now >= next && nextUpdate.compareAndSet(next, now + interval)) update();
+		return admit(element);
+	}
+
+	public void blockingAccept(IElement element) {
+		// Blocking enqueues are never shed, but their work counts
+		double cost = stats.getEventCost(element);
+		if (cost >= 0) offer(element, cost);
+	}
+
+	public boolean acceptMany(List elements) {
+		// A batch is rejected as a whole if any of its elements is shed
+		for (int i = 0; i < elements.size(); i++) {
+			if (!accept((IElement) elements.get(i))) return false;
+		}
+		return true;
+	}
+
+	private boolean admit(IElement element) {
+		double cost = stats.getEventCost(element);
+		if (cost < 0) return true;
+		int b = offer(element, cost);
+		int cut = cutBucket;
+		if (b > cut || (b == cut && shedBoundary())) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private int offer(IElement element, double cost) {
+		int b = bucket(cost / valueOf(element));
+		offered.addAndGet(b, Math.max(1, (long) (cost * 1000)));
+		return b;
+	}
+
+	// Reject cutFraction of the boundary bucket, evenly spread
+	private boolean shedBoundary() {
+		long n = boundary.getAndIncrement();
+		double f = cutFraction;
+		return (long) ((n + 1) * f) > (long) (n * f);
+	}
+
+	private double valueOf(IElement element) {
+		if (element instanceof IClassEvent) {
+			int c = ((IClassEvent) element).getRequestClass();
+			if (c >= 0 && c < MAX_CLASSES) return values[c];
+		}
+		return 1.0;
+	}
+
+	private static int bucket(double density) {
+		if (density <= MIN_DENSITY) return 0;
+		int b = (int) (Math.log(density / MIN_DENSITY) / Math.log(2));
+		return Math.min(b, NUM_BUCKETS - 1);
+	}
+
+	/**
+	 * Adjust the fraction of work to shed from the utilization of the
+	 * stage, and move the cut to shed that fraction of the work offered
+	 * since the last update.
+	 */
+	synchronized void update() {
+		double util = stats.getUtilization();
+		if (util > threshold) {
+			shedFraction = Math.min(maxShed, shedFraction + STEP);
+		} else {
+			shedFraction = (shedFraction < 1.5 * STEP) ? 0 : shedFraction - STEP;
+		}
+
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			work[i] = offered.getAndSet(i, 0);
+			total += work[i];
+		}
+		if (shedFraction == 0) {
+			cutBucket = NUM_BUCKETS;
+			cutFraction = 0;
+		} else if (total > 0) {
+			// Shed from the highest cost per value down
+			double toShed = shedFraction * total;
+			int b = NUM_BUCKETS - 1;
+			while (b > 0 && work[b] < toShed) {
+				toShed -= work[b];
+				b--;
+			}
+			cutFraction = (work[b] == 0) ? 1.0 : Math.min(1.0, toShed / work[b]);
+			cutBucket = b;
+		}
+		if (DEBUG) System.err.println("CostAwareSheddingPredicate <" + name + ">: util " + util + " shed " + shedFraction + " cut " + cutBucket + "/" + cutFraction);
+	}
+
+}
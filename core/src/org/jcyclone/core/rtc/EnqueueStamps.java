@@ -0,0 +1,176 @@
+package org.jcyclone.core.rtc;
+
+import java.util.List;
+
+/**
+ * The times at which events were enqueued onto one stage's sink, for
+ * the controllers which measure how long events spend in that stage.
+ * The times are kept here, by event identity, rather than in
+ * {@link org.jcyclone.core.event.TimeStampedEvent#timestamp}: an event
+ * which passes through several stages is timed afresh by each of them,
+ * whatever timestamp it carries from upstream, and events which are not
+ * TimeStampedEvents are timed too.
+ * <p/>
+ * Every enqueue and dequeue on the stage goes through here, so the
+ * stamps are spread over several independently locked tables, chosen by
+ * identity hash, and held as primitive longs rather than boxed.
+ * <p/>
+ * Each stamp must be removed once its event leaves the stage (or is
+ * rejected), otherwise it stays here.
+ */
+class EnqueueStamps {
+
+	private static final int NUM_STRIPES = 16;   // Must be a power of 2
+
+	private final Stripe stripes[];
+
+	EnqueueStamps() {
+		stripes = new Stripe[NUM_STRIPES];
+		for (int i = 0; i < NUM_STRIPES; i++) stripes[i] = new Stripe();
+	}
+
+	private static int hash(Object element) {
+		int h = System.identityHashCode(element);
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe stripeFor(int hash) {
+		return stripes[hash & (NUM_STRIPES - 1)];
+	}
+
+	/**
+	 * Record that the given element was enqueued at the given time,
+	 * replacing any earlier stamp.
+	 */
+	void stamp(Object element, long now) {
+		int h = hash(element);
+		stripeFor(h).put(element, h, now);
+	}
+
+	/**
+	 * Record that the given elements were enqueued at the given time.
+	 */
+	void stampAll(List elements, long now) {
+		for (int i = 0; i < elements.size(); i++) stamp(elements.get(i), now);
+	}
+
+	/**
+	 * Return the enqueue time of the given element, or 0 if it has none.
+	 */
+	long get(Object element) {
+		int h = hash(element);
+		return stripeFor(h).get(element, h);
+	}
+
+	/**
+	 * Forget the enqueue time of the given element, and return it, or 0
+	 * if it has none.
+	 */
+	long remove(Object element) {
+		int h = hash(element);
+		return stripeFor(h).remove(element, h);
+	}
+
+	/**
+	 * Forget the enqueue times of the given elements.
+	 */
+	void removeAll(List elements) {
+		for (int i = 0; i < elements.size(); i++) remove(elements.get(i));
+	}
+
+	/**
+	 * Return the number of elements stamped and not yet removed.
+	 */
+	int size() {
+		int n = 0;
+		for (int i = 0; i < NUM_STRIPES; i++) n += stripes[i].size();
+		return n;
+	}
+
+	/**
+	 * An identity hash table from elements to primitive times, using
+	 * linear probing. The low bits of the hash pick the stripe, so the
+	 * slot is taken from the bits above them.
+	 */
+	private static class Stripe {
+		private Object keys[] = new Object[16];
+		private long times[] = new long[16];
+		private int count;
+
+		private static int home(int hash, int mask) {
+			return (hash >>> 4) & mask;
+		}
+
+		private int indexOf(Object element, int hash) {
+			int mask = keys.length - 1;
+			for (int i = home(hash, mask); ; i = (i + 1) & mask) {
+				Object k = keys[i];
+				if (k == element) return i;
+				if (k == null) return -1;
+			}
+		}
+
+		synchronized void put(Object element, int hash, long time) {
+			int mask = keys.length - 1;
+			int i = home(hash, mask);
+			while (keys[i] != null && keys[i] != element) i = (i + 1) & mask;
+			if (keys[i] == null) {
+				keys[i] = element;
+				count++;
+			}
+			times[i] = time;
+			if (count * 4 >= keys.length * 3) grow();
+		}
+
+		synchronized long get(Object element, int hash) {
+			int i = indexOf(element, hash);
+			return (i < 0) ? 0 : times[i];
+		}
+
+		synchronized long remove(Object element, int hash) {
+			int i = indexOf(element, hash);
+			if (i < 0) return 0;
+			long time = times[i];
+			count--;
+			// Shift later entries of the probe run back over the gap, so
+			// that lookups never stop early at an empty slot
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				Object k = keys[j];
+				if (k == null) break;
+				int h = home(hash(k), mask);
+				if ((j > i) ? (h <= i || h > j) : (h <= i && h > j)) {
+					keys[i] = k;
+					times[i] = times[j];
+					i = j;
+				}
+			}
+			keys[i] = null;
+			times[i] = 0;
+			return time;
+		}
+
+		synchronized int size() {
+			return count;
+		}
+
+		private void grow() {
+			Object oldKeys[] = keys;
+			long oldTimes[] = times;
+			keys = new Object[oldKeys.length * 2];
+			times = new long[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int n = 0; n < oldKeys.length; n++) {
+				Object k = oldKeys[n];
+				if (k == null) continue;
+				int i = home(hash(k), mask);
+				while (keys[i] != null) i = (i + 1) & mask;
+				keys[i] = k;
+				times[i] = oldTimes[n];
+			}
+		}
+	}
+
+}
@@ -26,12 +26,21 @@ package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
-import org.jcyclone.util.StatsGatherer;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * This enqueue predicate implements multiclass input rate policing.
+ * This enqueue predicate implements multiclass input rate policing,
+ * with a lock-free token bucket per class.
+ * <p/>
+ * In hierarchical mode, enabled with setGlobalRate(), there is also a
+ * global bucket for the aggregate rate of all classes. An event is
+ * accepted if its class has a token, in which case the token is also
+ * charged to the global bucket; otherwise, the class may borrow a token
+ * from the global bucket, if any are left over.
+ *
+ * @see TokenBucket
  */
 public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
@@ -39,18 +48,9 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
 	private ISink thesink;
 	private int NUM_CLASSES;
-	private double targetRate[];
-	private int depth[];
-	private double tokenCount[];
-	private double regenTimeMS[];
-	private long lasttime[];
-
-	// Number of milliseconds between regenerations
-	private long MIN_REGEN_TIME = 0;
-
-	private static final boolean PROFILE = true;
-	private StatsGatherer interArrivalStats;
-	private StatsGatherer acceptArrivalStats;
+	private TokenBucket buckets[];
+	private volatile TokenBucket global;
+	private AtomicLongArray borrowed;
 
 	/**
 	 * Create a new RateLimitingPredicate for the given sink,
@@ -60,29 +60,23 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 		this.thesink = sink;
 		this.NUM_CLASSES = numclasses;
 
-		this.targetRate = new double[NUM_CLASSES];
-		this.depth = new int[NUM_CLASSES];
-		this.regenTimeMS = new double[NUM_CLASSES];
-		this.tokenCount = new double[NUM_CLASSES];
-		this.lasttime = new long[NUM_CLASSES];
-
+		this.buckets = new TokenBucket[NUM_CLASSES];
 		for (int c = 0; c < NUM_CLASSES; c++) {
-			this.targetRate[c] = targetRate;
-			this.regenTimeMS[c] = (1.0 / this.targetRate[c]) * 1.0e3;
-			if (this.regenTimeMS[c] < 1) this.regenTimeMS[c] = 1;
-			this.depth[c] = depth;
-			this.tokenCount[c] = depth * 1.0;
-			this.lasttime[c] = System.currentTimeMillis();
+			this.buckets[c] = new TokenBucket(targetRate, depth);
 		}
+		this.borrowed = new AtomicLongArray(NUM_CLASSES);
 
 		System.err.println("MulticlassRateLimitingPredicate<" + sink.toString() + ">: Created");
+	}
 
-		if (PROFILE) {
-			interArrivalStats = new StatsGatherer("IA<" + sink.toString() + ">",
-			    "IA<" + sink.toString() + ">", 1, 0);
-			acceptArrivalStats = new StatsGatherer("AA<" + sink.toString() + ">",
-			    "AA<" + sink.toString() + ">", 1, 0);
+	private int getClass(IElement qel) {
+		int c = 0;
+		if (qel instanceof IClassEvent) {
+			IClassEvent cqel = (IClassEvent) qel;
+			c = cqel.getRequestClass();
+			if (c == -1) c = 0;
 		}
+		return c;
 	}
 
 	/**
@@ -92,71 +86,90 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
 		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Got " + qel);
 
-		int c = 0;
-		if (qel instanceof IClassEvent) {
-			IClassEvent cqel = (IClassEvent) qel;
-			c = cqel.getRequestClass();
-			if (c == -1) c = 0;
-		}
+		int c = getClass(qel);
 		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Class is " + c);
 
-		if (targetRate[c] == -1.0) return true;
-
-		// First regenerate tokens
-		long curtime = System.currentTimeMillis();
-		long delay = curtime - lasttime[c];
+		return acquire(c, System.nanoTime()) != REJECTED;
+	}
 
-		if (PROFILE) {
-			interArrivalStats.add(delay);
-		}
+	private static final int REJECTED = 0, ASSURED = 1, BORROWED = 2;
 
-		if (delay >= MIN_REGEN_TIME) {
-			double numTokens = ((double) delay * 1.0) / (regenTimeMS[c] * 1.0);
-			tokenCount[c] += numTokens;
-			if (tokenCount[c] > depth[c]) tokenCount[c] = depth[c];
-			lasttime[c] = curtime;
+	private int acquire(int c, long now) {
+		TokenBucket global = this.global;
+		if (buckets[c].tryAcquire(1, now)) {
+			if (global != null) global.acquire(1, now);
+			return ASSURED;
 		}
-
-		if (tokenCount[c] >= 1.0) {
-			tokenCount[c] -= 1.0;
-			if (PROFILE) {
-				acceptArrivalStats.add(delay);
-			}
-			return true;
-		} else {
-			return false;
+		if (global != null && global.tryAcquire(1, now)) {
+			borrowed.incrementAndGet(c);
+			return BORROWED;
 		}
+		return REJECTED;
 	}
 
+	/**
+	 * Blocking enqueues cannot be refused, but still take tokens.
+	 */
 	public void blockingAccept(IElement element) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+		long now = System.nanoTime();
+		buckets[getClass(element)].acquire(1, now);
+		TokenBucket global = this.global;
+		if (global != null) global.acquire(1, now);
 	}
 
+	/**
+	 * Returns true if there are tokens for all of the given elements.
+	 */
 	public boolean acceptMany(List elements) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+		long now = System.nanoTime();
+		int taken[] = new int[elements.size()];
+		for (int i = 0; i < elements.size(); i++) {
+			taken[i] = acquire(getClass((IElement) elements.get(i)), now);
+			if (taken[i] == REJECTED) {
+				// Return the tokens of the elements accepted so far; tokens
+				// charged to the global bucket for assured elements are kept
+				for (int j = 0; j < i; j++) {
+					int c = getClass((IElement) elements.get(j));
+					if (taken[j] == ASSURED) {
+						buckets[c].release(1);
+					} else {
+						global.release(1);
+						borrowed.decrementAndGet(c);
+					}
+				}
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
 	 * Return the current rate limit.
 	 */
 	public double getTargetRate(int theclass) {
-		return targetRate[theclass];
+		return buckets[theclass].getRate();
 	}
 
 	/**
 	 * Return the current depth.
 	 */
 	public int getDepth(int theclass) {
-		return depth[theclass];
+		return buckets[theclass].getDepth();
 	}
 
 	/**
 	 * Return the number of tokens currently in the bucket.
 	 */
 	public int getBucketSize(int theclass) {
-		return (int) tokenCount[theclass];
+		return buckets[theclass].getTokens();
+	}
+
+	/**
+	 * Return the number of tokens the given class has borrowed from the
+	 * global bucket.
+	 */
+	public long getBorrowed(int theclass) {
+		return borrowed.get(theclass);
 	}
 
 	/**
@@ -164,20 +177,40 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 	 */
 	public void setTargetRate(int theclass, double targetRate) {
 		// Kill off old tokens if reducing rate
-		if (targetRate < this.targetRate[theclass]) {
-			this.tokenCount[theclass] = 0;
-		}
-
-		this.targetRate[theclass] = targetRate;
-		this.regenTimeMS[theclass] = (1.0 / targetRate) * 1.0e3;
-		if (regenTimeMS[theclass] < 1) regenTimeMS[theclass] = 1;
+		boolean reduce = targetRate < buckets[theclass].getRate();
+		buckets[theclass].setRate(targetRate);
+		if (reduce) buckets[theclass].drain();
 	}
 
 	/**
 	 * Set the bucket depth.
 	 */
 	public void setDepth(int theclass, int depth) {
-		this.depth[theclass] = depth;
+		buckets[theclass].setDepth(depth);
+	}
+
+	/**
+	 * Enable hierarchical mode, with the given aggregate rate and depth
+	 * for the global bucket. A rate of -1.0 disables hierarchical mode.
+	 */
+	public void setGlobalRate(double rate, int depth) {
+		if (rate < 0) {
+			global = null;
+		} else if (global == null) {
+			global = new TokenBucket(rate, depth);
+		} else {
+			global.setRate(rate);
+			global.setDepth(depth);
+		}
+	}
+
+	/**
+	 * Return the aggregate rate of the global bucket, or -1.0 if not in
+	 * hierarchical mode.
+	 */
+	public double getGlobalRate() {
+		TokenBucket global = this.global;
+		return (global == null) ? -1.0 : global.getRate();
 	}
 
 }
@@ -0,0 +1,241 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An enqueue predicate which accepts an element only if all of a list
+ * of predicates accept it, evaluated in order. Nested chains are
+ * flattened when the chain is created, so that an element is tested by
+ * a single loop over an array, without allocation. The chain counts the
+ * rejections of each predicate, and {@link #test} tells which predicate
+ * rejected an element; AdmissionControlledSink uses it as the reason for
+ * the rejection.
+ * <p/>
+ * When a predicate refuses an element, the predicates before it in the
+ * chain have already accepted it, and are told of the rejection through
+ * rejected() or rejectedMany().
+ * <p/>
+ * A chain is configured for a stage with
+ * <tt>stages.&lt;name&gt;.admission.predicates</tt>, a list of
+ * predicate names, each configured with
+ * <tt>stages.&lt;name&gt;.admission.&lt;predicate&gt;.*</tt> or, by
+ * default, <tt>global.admission.&lt;predicate&gt;.*</tt>:
+ * <ul>
+ * <li><b>threshold</b>: a QueueThresholdPredicate of <tt>size</tt>;</li>
+ * <li><b>rate</b>: a RateLimitingPredicate of <tt>rate</tt> events per
+ * second and bucket <tt>depth</tt>;</li>
+ * <li><b>classfilter</b>: a ClassFilterPredicate accepting the request
+ * classes listed in <tt>classes</tt>;</li>
+ * <li><b>shedding</b>: a CostAwareSheddingPredicate;</li>
+ * <li>any other name: an IEnqueuePredicate of the <tt>class</tt> given,
+ * created with its no-argument constructor.</li>
+ * </ul>
+ * If <tt>admission.shedding.enable</tt> is set for the stage and the
+ * list does not name <b>shedding</b>, it is added at the end of the
+ * chain.
+ * A response time controller installs its own predicate on the stage,
+ * which replaces the chain.
+ */
+public class PredicateChain implements IEnqueuePredicate {
+
+	private final IEnqueuePredicate preds[];
+	private final String names[];
+	private final String reasons[];
+	private final AtomicLongArray rejected;
+
+	/**
+	 * Create a chain of the given predicates, with the given names.
+	 */
+	public PredicateChain(IEnqueuePredicate preds[], String names[]) {
+		if (preds.length != names.length) {
+			throw new IllegalArgumentException("PredicateChain: Need one name per predicate");
+		}
+		List p = new ArrayList();
+		List n = new ArrayList();
+		for (int i = 0; i < preds.length; i++) {
+			if (preds[i] instanceof PredicateChain) {
+				PredicateChain chain = (PredicateChain) preds[i];
+				for (int j = 0; j < chain.preds.length; j++) {
+					p.add(chain.preds[j]);
+					n.add(names[i] + "." + chain.names[j]);
+				}
+			} else if (preds[i] != null) {
+				p.add(preds[i]);
+				n.add(names[i]);
+			}
+		}
+		this.preds = (IEnqueuePredicate[]) p.toArray(new IEnqueuePredicate[p.size()]);
+		this.names = (String[]) n.toArray(new String[n.size()]);
+		this.reasons = new String[this.names.length];
+		for (int i = 0; i < reasons.length; i++) reasons[i] = "predicate " + this.names[i];
+		this.rejected = new AtomicLongArray(this.preds.length);
+	}
+
+	/**
+	 * Return the index of the first predicate which rejects the given
+	 * element, or -1 if all accept it.
+	 */
+	public int test(IElement element) {
+		for (int i = 0; i < preds.length; i++) {
+			if (!preds[i].accept(element)) {
+				rejected.incrementAndGet(i);
+				for (int j = 0; j < i; j++) preds[j].rejected(element);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the index of the first predicate which rejects the given
+	 * elements, or -1 if all accept them.
+	 */
+	public int testMany(List elements) {
+		for (int i = 0; i < preds.length; i++) {
+			if (!preds[i].acceptMany(elements)) {
+				rejected.addAndGet(i, elements.size());
+				for (int j = 0; j < i; j++) preds[j].rejectedMany(elements);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean accept(IElement element) {
+		return test(element) < 0;
+	}
+
+	public void blockingAccept(IElement element) {
+		for (int i = 0; i < preds.length; i++) preds[i].blockingAccept(element);
+	}
+
+	public boolean acceptMany(List elements) {
+		return testMany(elements) < 0;
+	}
+
+	public void rejected(IElement element) {
+		for (int i = 0; i < preds.length; i++) preds[i].rejected(element);
+	}
+
+	public void rejectedMany(List elements) {
+		for (int i = 0; i < preds.length; i++) preds[i].rejectedMany(elements);
+	}
+
+	/**
+	 * Return the number of predicates in the chain.
+	 */
+	public int size() {
+		return preds.length;
+	}
+
+	public IEnqueuePredicate getPredicate(int i) {
+		return preds[i];
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Return the reason reported when the given predicate rejects an
+	 * element.
+	 */
+	public String getReason(int i) {
+		return reasons[i];
+	}
+
+	/**
+	 * Return the number of elements rejected by the given predicate.
+	 */
+	public long getRejected(int i) {
+		return rejected.get(i);
+	}
+
+	/**
+	 * Create the chain configured for the given stage, whose events are
+	 * held in the given queue, or return null if there is none.
+	 */
+	public static PredicateChain configure(IStageManager mgr, IStageWrapper stage, ISink queue)
+	    throws Exception {
+		ISystemConfig config = mgr.getConfig();
+		String name = stage.getName();
+		String list[] = config.getStringList("stages." + name + ".admission.predicates");
+		if (list == null || list.length == 0) return null;
+		boolean shedding = config.getBoolean("stages." + name + ".admission.shedding.enable",
+		    config.getBoolean("global.admission.shedding.enable"));
+		if (shedding && !Arrays.asList(list).contains("shedding")) {
+			String l[] = new String[list.length + 1];
+			System.arraycopy(list, 0, l, 0, list.length);
+			l[list.length] = "shedding";
+			list = l;
+		}
+
+		IEnqueuePredicate preds[] = new IEnqueuePredicate[list.length];
+		for (int i = 0; i < list.length; i++) {
+			String p = list[i];
+			if (p.equals("threshold")) {
+				preds[i] = new QueueThresholdPredicate(queue, (int) getDouble(config, name, p, "size"));
+			} else if (p.equals("rate")) {
+				preds[i] = new RateLimitingPredicate(queue, getDouble(config, name, p, "rate"),
+				    (int) getDouble(config, name, p, "depth"));
+			} else if (p.equals("classfilter")) {
+				String classes[] = config.getStringList("stages." + name + ".admission." + p + ".classes");
+				if (classes == null) classes = config.getStringList("global.admission." + p + ".classes");
+				if (classes == null) {
+					throw new IllegalArgumentException("PredicateChain <" + name + ">: No classes for predicate " + p);
+				}
+				int c[] = new int[classes.length];
+				for (int j = 0; j < classes.length; j++) c[j] = Integer.parseInt(classes[j]);
+				preds[i] = new ClassFilterPredicate(c);
+			} else if (p.equals("shedding")) {
+				preds[i] = new CostAwareSheddingPredicate(mgr, stage);
+			} else {
+				String classname = getString(config, name, p, "class");
+				if (classname == null) {
+					throw new IllegalArgumentException("PredicateChain <" + name + ">: No class for predicate " + p);
+				}
+				preds[i] = (IEnqueuePredicate) Class.forName(classname).newInstance();
+			}
+		}
+
+		final PredicateChain chain = new PredicateChain(preds, list);
+		IProfiler profiler = mgr.getProfiler();
+		if (profiler != null) {
+			for (int i = 0; i < chain.size(); i++) {
+				final int index = i;
+				profiler.remove("Admission rejected <" + name + "> " + chain.getName(i));
+				profiler.add("Admission rejected <" + name + "> " + chain.getName(i),
+				    new IProfilable() {
+					    public int profileSize() {
+						    return (int) chain.getRejected(index);
+					    }
+				    });
+			}
+		}
+		return chain;
+	}
+
+	private static double getDouble(ISystemConfig config, String stage, String pred, String key) {
+		double val = config.getDouble("stages." + stage + ".admission." + pred + "." + key);
+		if (val == -1) val = config.getDouble("global.admission." + pred + "." + key);
+		return val;
+	}
+
+	private static String getString(ISystemConfig config, String stage, String pred, String key) {
+		String val = config.getString("stages." + stage + ".admission." + pred + "." + key);
+		if (val == null) val = config.getString("global.admission." + pred + "." + key);
+		return val;
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.jcyclone.core.rtc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A streaming quantile estimator for response times, used by the
+ * response time controllers in place of sorting a window of samples.
+ * Like DDSketch, it counts samples in buckets whose bounds grow
+ * geometrically, so that any quantile is estimated within a fixed
+ * relative error (1% by default) using a fixed amount of memory.
+ * <p/>
+ * add() is lock-free and allocation-free, so that it may be called by
+ * all the threads of a stage as batches complete. Samples are weighted:
+ * each call to age() multiplies the weight of the samples seen so far
+ * by 0.5^(elapsed / halfLife), so that the estimate follows recent
+ * behaviour. With a half-life of 0, age() simply discards them, which
+ * gives a tumbling window.
+ */
+public class QuantileSketch {
+
+	// Samples at or below MIN_VALUE count as 0; above MAX_VALUE as MAX_VALUE
+	private static final double MIN_VALUE = 1.0e-3;
+	private static final double MAX_VALUE = 1.0e8;
+	// Fixed-point weight of one sample, so that decayed weights keep precision
+	private static final long UNIT = 1 << 10;
+
+	private final double gamma, logGamma;
+	private final int minIndex;
+	private final long halfLife;
+	// counts[0] holds the zero bucket
+	private final AtomicLongArray counts;
+	private volatile long lastAged;
+
+	/**
+	 * Create a sketch with the given relative accuracy (e.g. 0.01) and
+	 * half-life in milliseconds.
+	 */
+	public QuantileSketch(double relativeAccuracy, long halfLife) {
+		if (relativeAccuracy <= 0 || relativeAccuracy >= 1)
+			throw new IllegalArgumentException("QuantileSketch: relativeAccuracy must be in (0,1)");
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(gamma);
+		this.minIndex = (int) Math.ceil(Math.log(MIN_VALUE) / logGamma);
+		int maxIndex = (int) Math.ceil(Math.log(MAX_VALUE) / logGamma);
+		this.counts = new AtomicLongArray(maxIndex - minIndex + 2);
+		this.halfLife = halfLife;
+		this.lastAged = System.currentTimeMillis();
+	}
+
+	/**
+	 * Add a sample.
+	 */
+	public void add(double value) {
+		counts.addAndGet(bucket(value), UNIT);
+	}
+
+	private int bucket(double value) {
+		if (value <= MIN_VALUE) return 0;
+		if (value > MAX_VALUE) value = MAX_VALUE;
+		return (int) Math.ceil(Math.log(value) / logGamma) - minIndex + 1;
+	}
+
+	private double value(int bucket) {
+		if (bucket == 0) return 0;
+		// The middle of the bucket, in terms of relative error
+		return 2 * Math.pow(gamma, bucket - 1 + minIndex) / (gamma + 1);
+	}
+
+	/**
+	 * Return the estimated q-quantile (0 <= q <= 1) of the samples, or 0
+	 * if there are none.
+	 */
+	public double quantile(double q) {
+		int n = counts.length();
+		long total = 0;
+		for (int i = 0; i < n; i++) total += counts.get(i);
+		if (total == 0) return 0;
+		// The rank of the quantile, as in sorted[(int) (q * size)]
+		double rank = Math.min(q * total, total - 1);
+		long seen = 0;
+		for (int i = 0; i < n; i++) {
+			seen += counts.get(i);
+			if (seen > rank) return value(i);
+		}
+		return value(n - 1);
+	}
+
+	/**
+	 * Return the weighted number of samples.
+	 */
+	public double count() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+		return total / (double) UNIT;
+	}
+
+	/**
+	 * Decay the weight of the samples seen so far by the time elapsed
+	 * since the previous call, according to the half-life.
+	 */
+	public void age() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastAged;
+		lastAged = now;
+		if (halfLife <= 0) {
+			decay(0);
+		} else if (elapsed > 0) {
+			decay(Math.pow(0.5, elapsed / (double) halfLife));
+		}
+	}
+
+	/**
+	 * Multiply the weight of all samples by the given factor. Samples
+	 * added concurrently are never lost.
+	 */
+	public void decay(double factor) {
+		for (int i = 0; i < counts.length(); i++) {
+			while (true) {
+				long c = counts.get(i);
+				if (c == 0) break;
+				if (counts.compareAndSet(i, c, (long) (c * factor))) break;
+			}
+		}
+	}
+
+	/**
+	 * Discard all samples.
+	 */
+	public void reset() {
+		decay(0);
+	}
+
+}
@@ -25,10 +25,12 @@
 package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.stage.IStageManager;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The ResponseTimeController attempts to keep the response time of
@@ -46,6 +48,15 @@ public abstract class ResponseTimeController implements IResponseTimeController
 	protected IStageWrapper stage;
 	protected IEnqueuePredicate pred;
 	protected double targetRT;
+	/**
+	 * The response time percentile to control, e.g. 0.9.
+	 */
+	protected double percentile;
+	/**
+	 * The response times of the stage, recorded by recordSamples().
+	 */
+	protected QuantileSketch sketch;
+	private final AtomicInteger numSamples = new AtomicInteger();
 
 	protected ResponseTimeController(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
 		this.stage = stage;
@@ -58,6 +69,63 @@ public abstract class ResponseTimeController implements IResponseTimeController
 				throw new IllegalArgumentException("ResponseTimeController: Must specify targetResponseTime");
 			}
 		}
+		this.percentile = getDouble(config, stage, "percentile");
+		if (percentile <= 0 || percentile > 1) {
+			throw new IllegalArgumentException("ResponseTimeController: percentile must be in (0,1]");
+		}
+		this.sketch = newSketch(config, stage);
+	}
+
+	private static double getDouble(ISystemConfig config, IStageWrapper stage, String key) {
+		double val = config.getDouble("stages." + stage.getStage().getName() + ".rtController." + key);
+		if (val == -1) val = config.getDouble("global.rtController." + key);
+		return val;
+	}
+
+	/**
+	 * Create a response time sketch with the accuracy and half-life
+	 * configured for the given stage.
+	 */
+	protected static QuantileSketch newSketch(ISystemConfig config, IStageWrapper stage) {
+		return new QuantileSketch(getDouble(config, stage, "accuracy"),
+		    (long) getDouble(config, stage, "halfLife"));
+	}
+
+	/**
+	 * Record the response time of each of the given events in the
+	 * sketch, without locking. Returns the number of samples recorded
+	 * since the last call to takeSamples().
+	 */
+	protected int recordSamples(List fetched, long curtime) {
+		int n = 0;
+		for (int i = 0; i < fetched.size(); i++) {
+			Object event = fetched.get(i);
+			if (event instanceof TimeStampedEvent) {
+				long time = ((TimeStampedEvent) event).timestamp;
+				if (time != 0) {
+					sketch.add(curtime - time);
+					n++;
+				}
+			}
+		}
+		if (n == 0) return numSamples.get();
+		return numSamples.addAndGet(n);
+	}
+
+	/**
+	 * Return the number of samples recorded since the last call, and
+	 * start counting again.
+	 */
+	protected int takeSamples() {
+		return numSamples.getAndSet(0);
+	}
+
+	/**
+	 * Return the number of samples recorded since the last call to
+	 * takeSamples().
+	 */
+	protected int numSamples() {
+		return numSamples.get();
 	}
 
 	public void setTarget(double target) {
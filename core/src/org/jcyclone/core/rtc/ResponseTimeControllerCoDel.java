@@ -0,0 +1,267 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IBatchSorter;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.List;
+
+/**
+ * A response time controller implementing Controlled Delay (CoDel).
+ * Rather than reacting to the length of the queue or to a smoothed
+ * response time, CoDel watches the sojourn time of the events leaving
+ * the queue. If the minimum sojourn time over an interval stays above
+ * the target, the queue is standing rather than absorbing a burst, and
+ * the controller starts shedding events at dequeue, at a rate which
+ * increases with the square root of the number of drops until the
+ * sojourn time falls back below the target.
+ * <p/>
+ * The controller works as a pair: a {@link CoDelPredicate} on the stage's
+ * sink, which stamps events as they are enqueued and rejects enqueues
+ * when a drop is due, and a {@link CoDelBatchSorter} which sheds events
+ * from each batch as it is dequeued. The enqueue times are kept in an
+ * {@link EnqueueStamps} rather than in the events, so the sojourn time
+ * is that spent in this stage's queue alone, even for events carrying
+ * a timestamp set upstream (e.g., when a request arrived).
+ * <p/>
+ * Configured with <tt>rtController.type codel</tt>, and the
+ * <tt>rtController.codel.target</tt> and
+ * <tt>rtController.codel.interval</tt> settings, in milliseconds.
+ */
+public class ResponseTimeControllerCoDel implements IResponseTimeController {
+
+	private static final boolean DEBUG = false;
+
+	private IStageWrapper stage;
+	private CoDelPredicate pred;
+	private final EnqueueStamps stamps = new EnqueueStamps();
+	private double target;
+	private long interval;
+	private boolean enabled;
+
+	// CoDel state
+	private long firstAboveTime, dropNext;
+	private int count, lastCount;
+	private boolean dropping;
+
+	// Minimum sojourn time over the current and the last interval
+	private long minSojourn = Long.MAX_VALUE, lastMinSojourn, minSojournTime;
+	private long numDropped, numRejected;
+
+	public ResponseTimeControllerCoDel(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
+		this.stage = stage;
+
+		ISystemConfig config = mgr.getConfig();
+		String name = stage.getStage().getName();
+		this.target = config.getDouble("stages." + name + ".rtController.codel.target");
+		if (this.target == -1) this.target = config.getDouble("global.rtController.codel.target");
+		this.interval = config.getInt("stages." + name + ".rtController.codel.interval");
+		if (this.interval == -1) this.interval = config.getInt("global.rtController.codel.interval");
+		if (target <= 0 || interval <= 0) {
+			throw new IllegalArgumentException("ResponseTimeControllerCoDel: Must specify codel.target and codel.interval");
+		}
+
+		mgr.getProfiler().add("RTControllerCoDel minSojourn <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) lastMinSojourn;
+			    }
+		    });
+		mgr.getProfiler().add("RTControllerCoDel dropped <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) (numDropped + numRejected);
+			    }
+		    });
+
+		this.pred = new CoDelPredicate(this);
+		stage.getSink().setEnqueuePredicate(pred);
+		this.enabled = true;
+
+		System.err.println("RTControllerCoDel <" + name + ">: target=" + target + ", interval=" + interval);
+	}
+
+	/**
+	 * Set the target sojourn time in milliseconds.
+	 */
+	public synchronized void setTarget(double target) {
+		this.target = target;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	/**
+	 * Return the interval in milliseconds over which the sojourn time
+	 * must stay above the target before events are shed.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public synchronized void enable() {
+		if (enabled) return;
+		System.err.println("RTControllerCoDel <" + stage.getStage().getName() + ">: Enabling");
+		stage.getSink().setEnqueuePredicate(pred);
+		enabled = true;
+	}
+
+	public synchronized void disable() {
+		if (!enabled) return;
+		System.err.println("RTControllerCoDel <" + stage.getStage().getName() + ">: Disabling");
+		stage.getSink().setEnqueuePredicate(null);
+		dropping = false;
+		firstAboveTime = 0;
+		enabled = false;
+	}
+
+	/**
+	 * Events are shed by the batch sorter before they reach the event
+	 * handler, so there is nothing to do here.
+	 */
+	public void adjustThreshold(List fetched, long serviceTime) {
+	}
+
+	/**
+	 * Return a batch sorter which sheds events from the batches of the
+	 * given sorter according to this controller.
+	 */
+	public IBatchSorter wrap(IBatchSorter sorter) {
+		return new CoDelBatchSorter(this, sorter);
+	}
+
+	/**
+	 * Return true if the controller is currently shedding events.
+	 */
+	public synchronized boolean isDropping() {
+		return dropping;
+	}
+
+	/**
+	 * Return the number of events shed at dequeue.
+	 */
+	public synchronized long getDropped() {
+		return numDropped;
+	}
+
+	/**
+	 * Return the number of enqueues rejected.
+	 */
+	public synchronized long getRejected() {
+		return numRejected;
+	}
+
+	/**
+	 * Return the minimum sojourn time over the last complete interval.
+	 */
+	public synchronized long getMinSojourn() {
+		return lastMinSojourn;
+	}
+
+	/**
+	 * Return the enqueue times of the events in the stage's queue.
+	 */
+	EnqueueStamps getStamps() {
+		return stamps;
+	}
+
+	/**
+	 * Called by the predicate when an event is enqueued. Returns false
+	 * if a drop is due, in which case the enqueue takes the drop.
+	 */
+	synchronized boolean acceptEnqueue(long now) {
+		if (!enabled || !dropping || now < dropNext) return true;
+		count++;
+		dropNext = controlLaw(dropNext);
+		numRejected++;
+		return false;
+	}
+
+	/**
+	 * Shed events from a batch which has just been dequeued, in queue
+	 * order. Returns the number of events removed from the list.
+	 */
+	synchronized int filter(List batch, ISource source, long now) {
+		if (!enabled) {
+			stamps.removeAll(batch);
+			return 0;
+		}
+		int n = batch.size();
+		int j = 0;
+		for (int i = 0; i < n; i++) {
+			Object event = batch.get(i);
+			long timestamp = stamps.remove(event);
+			boolean last = (i == n - 1) && (source.size() == 0);
+			if (shouldDrop(timestamp, last, now)) continue;
+			if (i != j) batch.set(j, event);
+			j++;
+		}
+		for (int i = n - 1; i >= j; i--) batch.remove(i);
+		numDropped += n - j;
+		if (DEBUG && n != j)
+			System.err.println("RTControllerCoDel <" + stage.getStage().getName() + ">: dropped " + (n - j) + " of " + n + ", count " + count);
+		return n - j;
+	}
+
+	private boolean shouldDrop(long timestamp, boolean last, long now) {
+		boolean okToDrop = okToDrop(timestamp, last, now);
+		if (dropping) {
+			if (!okToDrop) {
+				// Sojourn time is below target; leave the dropping state
+				dropping = false;
+				return false;
+			}
+			if (now >= dropNext) {
+				count++;
+				dropNext = controlLaw(dropNext);
+				return true;
+			}
+			return false;
+		} else if (okToDrop) {
+			dropping = true;
+			// If we were dropping recently, start at the previous drop rate
+			int delta = count - lastCount;
+			if (delta > 1 && now - dropNext < 16 * interval) {
+				count = delta;
+			} else {
+				count = 1;
+			}
+			lastCount = count;
+			dropNext = controlLaw(now);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean okToDrop(long timestamp, boolean last, long now) {
+		if (timestamp == 0) return false;
+		long sojourn = now - timestamp;
+
+		if (now - minSojournTime >= interval) {
+			lastMinSojourn = (minSojourn == Long.MAX_VALUE) ? 0 : minSojourn;
+			minSojourn = Long.MAX_VALUE;
+			minSojournTime = now;
+		}
+		if (sojourn < minSojourn) minSojourn = sojourn;
+
+		if (sojourn < target || last) {
+			// Not a standing queue
+			firstAboveTime = 0;
+			return false;
+		}
+		if (firstAboveTime == 0) {
+			firstAboveTime = now + interval;
+			return false;
+		}
+		return now >= firstAboveTime;
+	}
+
+	private long controlLaw(long t) {
+		return t + (long) (interval / Math.sqrt(count));
+	}
+
+}
@@ -24,19 +24,16 @@
 
 package org.jcyclone.core.rtc;
 
-import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.profiler.IProfilable;
-import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
  * An implementation of ResponseTimeController that uses a direct
  * adjustment of queue thresholds based on the error in the 90th
- * percentile response time.
+ * percentile response time (or the configured percentile).
  *
  * @author Matt Welsh
  */
@@ -50,7 +47,6 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	private static final int MEASUREMENT_SIZE = 100;
 	private static final long MEASUREMENT_TIME = 1000;
 	private static final double SMOOTH_CONST = 0.7;
-	private static final int NINETIETH = (int) ((double) MEASUREMENT_SIZE * 0.9);
 
 	private static final double LOW_WATER = 0.9;
 	private static final double HIGH_WATER = 1.2;
@@ -67,9 +63,8 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	private static final double MAX_RATE = 5000.0;
 	private static final double MIN_RATE = 0.05;
 
-	private long adjtime;
-	private long measurements[], sortedmeasurements[];
-	private int curThreshold, cur_measurement;
+	private volatile long adjtime;
+	private int curThreshold;
 	private double curRate;
 	private double ninetiethRT;
 	private boolean enabled;
@@ -77,9 +72,6 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	public ResponseTimeControllerDirect(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
 		super(mgr, stage);
 
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
-		this.cur_measurement = 0;
 		this.adjtime = System.currentTimeMillis();
 
 		// Add profile
@@ -145,39 +137,24 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 		enabled = false;
 	}
 
-	public synchronized void adjustThreshold(List fetched, long procTime) {
+	public void adjustThreshold(List fetched, long procTime) {
 		long curtime = System.currentTimeMillis();
-		boolean adjust = false;
-
-		IElement event;
-		for (int i = 0; i < fetched.size(); i++) {
-			event = (IElement) fetched.get(i);
-			if (event instanceof TimeStampedEvent) {
-				TimeStampedEvent ev = (TimeStampedEvent) event;
-				long time = ev.timestamp;
-				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
-					cur_measurement++;
-					if (cur_measurement == MEASUREMENT_SIZE) {
-						cur_measurement = 0;
-						adjust = true;
-					}
-				}
-			}
-		}
 
-		int numsort = MEASUREMENT_SIZE;
-		if ((curtime - adjtime) >= MEASUREMENT_TIME) {
-			adjust = true;
-			numsort = cur_measurement;
-			cur_measurement = 0;
+		// Samples are recorded without locking; only the thread which
+		// completes a measurement period adjusts the controller
+		int n = recordSamples(fetched, curtime);
+		if (n < MEASUREMENT_SIZE && (curtime - adjtime) < MEASUREMENT_TIME) return;
+		synchronized (this) {
+			if (numSamples() < MEASUREMENT_SIZE && (curtime - adjtime) < MEASUREMENT_TIME) return;
+			takeSamples();
+			adjust(curtime);
 		}
+	}
 
-		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
-		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
+	private void adjust(long curtime) {
+		double cur = sketch.quantile(percentile);
+		sketch.age();
+		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * cur);
 		stage.getStats().record90thRT(ninetiethRT);
 
 		adjtime = curtime;
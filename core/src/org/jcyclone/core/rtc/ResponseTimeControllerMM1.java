@@ -32,7 +32,6 @@ import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.util.Util;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -76,15 +75,13 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 //  private static final long ESTIMATION_TIME = 1000;
 
 	private static final double SMOOTH_CONST = 0.1;
-	private static final int NINETIETH = (int) ((double) MEASUREMENT_SIZE * 0.9);
 
 	private static final boolean BIDIRECTIONAL_FILTER = true;
 	private static final double SMOOTH_CONST_UP = 0.9;
 	private static final double SMOOTH_CONST_DOWN = 0.1;
 
 	private MonitoredSink sinkProxy;
-	private long measurements[], sortedmeasurements[];
-	private int curThreshold, cur_measurement;
+	private int curThreshold, numMeasurements;
 	private double curRate;
 	private double measured_mu, measured_lambda, est_ninetiethRT;
 	private double total_measured_mu, count_measured_mu, total_measured_lambda,
@@ -114,9 +111,6 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 		stage.getSink().setEnqueuePredicate(pred);
 		enabled = true;
 
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
-		this.cur_measurement = 0;
 		this.startProcTime = Long.MAX_VALUE;
 		this.endProcTime = 0L;
 
@@ -268,26 +262,23 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
-					cur_measurement++;
-					if (cur_measurement == MEASUREMENT_SIZE) {
-						cur_measurement = 0;
-						adjust_meas = true;
-						break; // XXX MDW TESTING
-					}
+					sketch.add(curtime - time);
+					numMeasurements++;
 				}
 			}
 		}
 
 		// XXX MDW: Continuously update
-		adjust_meas = true;
+		adjust_meas = (numMeasurements > 0);
 		if (adjust_meas) {
-			System.arraycopy(measurements, 0, sortedmeasurements, 0, MEASUREMENT_SIZE);
-			Arrays.sort(sortedmeasurements);
-			long cur = sortedmeasurements[NINETIETH];
+			double cur = sketch.quantile(percentile);
+			if (numMeasurements >= MEASUREMENT_SIZE) {
+				sketch.age();
+				numMeasurements = 0;
+			}
 
 			if (MOVING_AVERAGE) {
-				ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) (cur) * 1.0));
+				ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * cur);
 			} else {
 				totalNinetiethRT += cur;
 				countNinetiethRT++;
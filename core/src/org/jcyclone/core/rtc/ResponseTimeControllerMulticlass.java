@@ -32,11 +32,14 @@ import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.util.Util;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An implementation of ResponseTimeController that uses a direct
  * adjustment of queue thresholds based on the error in the 90th
- * percentile response time. Allows multiple class SLAs.
+ * percentile response time (or the configured percentile). Allows
+ * multiple class SLAs.
  *
  * @author Matt Welsh
  */
@@ -47,7 +50,6 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 	private static final int MEASUREMENT_SIZE = 100;
 	private static final long MEASUREMENT_TIME = 1000;
 	private static final double SMOOTH_CONST = 0.7;
-	private static final int NINETIETH = (int) ((double) MEASUREMENT_SIZE * 0.9);
 
 	private static final double LOW_WATER = -0.1;
 	private static final double HIGH_WATER = 0.0;
@@ -75,25 +77,23 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 
 	class cinfo {
 		int theclass;
-		double adjtime;
+		volatile double adjtime;
 		double targetRT;
-		long measurements[], sortedmeasurements[];
-		int cur_measurement = 0;
-		int num_measurements = 0;
+		QuantileSketch sketch;
+		AtomicInteger samples = new AtomicInteger();
+		volatile int num_measurements = 0;
 		double curRate;
 		int lowCount = 0;
 		double ninetiethRT;
 		double err, last_err;
-		boolean adjust = false;
 		boolean preempted = false;
 		double maxRate = -1.0;
 		boolean last_increased = false;
 
-		cinfo(int theclass, double target) {
+		cinfo(int theclass, double target, ISystemConfig config) {
 			this.theclass = theclass;
 			this.targetRT = target;
-			this.measurements = new long[MEASUREMENT_SIZE];
-			this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+			this.sketch = newSketch(config, stage);
 
 			this.curRate = ((MulticlassRateLimitingPredicate) pred).getTargetRate(theclass);
 			this.adjtime = System.currentTimeMillis();
@@ -108,43 +108,34 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			((MulticlassRateLimitingPredicate) pred).setTargetRate(theclass, curRate);
 		}
 
+		// Called without locking
 		void addMeasurement(long time) {
-			measurements[cur_measurement] = time;
-			cur_measurement++;
-			num_measurements++;
-			if (cur_measurement == MEASUREMENT_SIZE) {
-				cur_measurement = 0;
-				adjust = true;
-			}
+			sketch.add(time);
+			samples.incrementAndGet();
+		}
+
+		// Called without locking
+		boolean due(long curtime) {
+			int n = samples.get();
+			if (n >= MEASUREMENT_SIZE) return true;
+			return (n > 0 || num_measurements > 0) && (curtime - adjtime) >= MEASUREMENT_TIME;
 		}
 
-		void record90th(int numsort, long curtime) {
-			System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-			Arrays.sort(sortedmeasurements, 0, numsort);
-			long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
-			ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
+		void record90th(long curtime) {
+			double cur = sketch.quantile(percentile);
+			sketch.age();
+			ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * cur);
 			if (ninetiethRT < MIN_90th) ninetiethRT = 0;
 
 			if (theclass == 0) stage.getStats().record90thRT(ninetiethRT);
 			adjtime = curtime;
-
-			// Avoid timeout causing us to always read old value
-			if (cur_measurement == 0) sortedmeasurements[0] = 0L;
 		}
 
 		boolean adjust(long curtime) {
+			if (!due(curtime)) return false;
+			num_measurements += samples.getAndSet(0);
 
-			int numsort = MEASUREMENT_SIZE;
-			if (num_measurements > 0 && (curtime - adjtime) >= MEASUREMENT_TIME) {
-				adjust = true;
-				numsort = cur_measurement;
-				cur_measurement = 0;
-			}
-
-			if (!adjust) return false;
-			adjust = false;
-
-			record90th(numsort, curtime);
+			record90th(curtime);
 
 			if (!enabled) return false;
 			if (targetRT == -1) return false;
@@ -221,6 +212,12 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 		}
 
 		this.pred = new MulticlassRateLimitingPredicate(stage.getStage().getSink(), NUM_CLASSES, INIT_RATE, INIT_DEPTH);
+		// Hierarchical mode: classes may borrow from an aggregate rate
+		double globalRate = config.getDouble("stages." + name + ".rtController.multiclass.globalRate");
+		if (globalRate == -1) globalRate = config.getDouble("global.rtController.multiclass.globalRate");
+		int globalDepth = config.getInt("stages." + name + ".rtController.multiclass.globalDepth");
+		if (globalDepth == -1) globalDepth = config.getInt("global.rtController.multiclass.globalDepth");
+		((MulticlassRateLimitingPredicate) pred).setGlobalRate(globalRate, globalDepth);
 		stage.getSink().setEnqueuePredicate(pred);
 
 		this.carr = new cinfo[NUM_CLASSES];
@@ -229,7 +226,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			if (t == -1) {
 				t = config.getDouble("global.rtController.multiclass.class" + c + "Target");
 			}
-			this.carr[c] = new cinfo(c, t);
+			this.carr[c] = new cinfo(c, t, config);
 		}
 
 		System.err.println("RTControllerMulticlass9 <" + name + ">: MEASUREMENT_SIZE=" + MEASUREMENT_SIZE + ", SMOOTH_CONST=" + SMOOTH_CONST + ", LOW_WATER=" + LOW_WATER + ", HIGH_WATER=" + HIGH_WATER + ", ADDITIVE_INCREASE=" + ADDITIVE_INCREASE + ", MULTIPLCATIVE_DECREASE=" + MULTIPLICATIVE_DECREASE);
@@ -246,12 +243,17 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			return ADDITIVE_INCREASE * ((-1.0 * err) + LOW_WATER);
 	}
 
-	public synchronized void adjustThreshold(IElement fetched[], long procTime) {
+	public void adjustThreshold(IElement fetched[], long procTime) {
+		adjustThreshold(Arrays.asList(fetched), procTime);
+	}
+
+	public void adjustThreshold(List fetched, long procTime) {
 		long curtime = System.currentTimeMillis();
 
-		for (int i = 0; i < fetched.length; i++) {
-			if (fetched[i] instanceof TimeStampedEvent) {
-				TimeStampedEvent ev = (TimeStampedEvent) fetched[i];
+		for (int i = 0; i < fetched.size(); i++) {
+			Object event = fetched.get(i);
+			if (event instanceof TimeStampedEvent) {
+				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
 					int theclass = 0;
@@ -265,6 +267,20 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			}
 		}
 
+		// Samples are recorded without locking; only adjust when some
+		// class has completed a measurement period
+		boolean due = false;
+		for (int c = 0; c < NUM_CLASSES && !due; c++) {
+			due = carr[c].due(curtime);
+		}
+		if (!due) return;
+
+		synchronized (this) {
+			adjustClasses(curtime);
+		}
+	}
+
+	private void adjustClasses(long curtime) {
 		boolean adjusted_any = false;
 
 		for (int c = NUM_CLASSES - 1; c >= 0; c--) {
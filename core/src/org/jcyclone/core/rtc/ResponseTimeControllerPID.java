@@ -24,15 +24,12 @@
 
 package org.jcyclone.core.rtc;
 
-import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.internal.MonitoredSink;
 import org.jcyclone.core.profiler.IProfilable;
-import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.util.Util;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -55,7 +52,6 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 	private static final double PROP_GAIN = 1.0;
 	private static final double DERIV_GAIN = -0.5;
 	private static final double INTR_GAIN = (0.2 / MEASUREMENT_SIZE);
-	private static final int NINETIETH = (int) ((double) MEASUREMENT_SIZE * 0.9);
 
 	protected final static int INIT_THRESHOLD = 1;
 	protected final static int MIN_THRESHOLD = 1;
@@ -67,23 +63,19 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 	private static final double MIN_RATE = 0.05;
 
 	private MonitoredSink sinkProxy;
-	private long measurements[], sortedmeasurements[];
 	private double errors[], lasterr, lastinterr, totalinterr;
-	private int curThreshold, cur_measurement, cur_error;
+	private int curThreshold, cur_error;
 	private long numReceived;
 	private double curRate;
 	private double ninetiethRT, lambda;
-	private long adjtime;
+	private volatile long adjtime;
 	private boolean enabled;
 
 	public ResponseTimeControllerPID(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
 		super(mgr, stage);
 		this.adjtime = System.currentTimeMillis();
 		this.sinkProxy = (MonitoredSink) stage.getStage().getSink();
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
 		this.errors = new double[MEASUREMENT_SIZE];
-		this.cur_measurement = 0;
 		this.cur_error = 0;
 
 		// Add profile
@@ -145,40 +137,25 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 		enabled = false;
 	}
 
-	public synchronized void adjustThreshold(List fetched, long procTime) {
+	public void adjustThreshold(List fetched, long procTime) {
 		long curtime = System.currentTimeMillis();
-		boolean adjust = false;
-
-		IElement event;
-		for (int i = 0; i < fetched.size(); i++) {
-			event = (IElement) fetched.get(i);
-			if (event instanceof TimeStampedEvent) {
-				TimeStampedEvent ev = (TimeStampedEvent) event;
-				long time = ev.timestamp;
-				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
-					cur_measurement++;
-					if (cur_measurement == MEASUREMENT_SIZE) {
-						cur_measurement = 0;
-						adjust = true;
-					}
-				}
-			}
-		}
 
-		int numsort = MEASUREMENT_SIZE;
-		long elapsed = curtime - adjtime;
-		if (elapsed >= MEASUREMENT_TIME) {
-			adjust = true;
-			numsort = cur_measurement;
-			cur_measurement = 0;
+		// Samples are recorded without locking; only the thread which
+		// completes a measurement period adjusts the controller
+		int n = recordSamples(fetched, curtime);
+		if (n < MEASUREMENT_SIZE && (curtime - adjtime) < MEASUREMENT_TIME) return;
+		synchronized (this) {
+			if (numSamples() < MEASUREMENT_SIZE && (curtime - adjtime) < MEASUREMENT_TIME) return;
+			takeSamples();
+			adjust(curtime);
 		}
+	}
 
-		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
-		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
+	private void adjust(long curtime) {
+		long elapsed = curtime - adjtime;
+		double cur = sketch.quantile(percentile);
+		sketch.age();
+		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * cur);
 		adjtime = curtime;
 		stage.getStats().record90thRT(ninetiethRT);
 
@@ -0,0 +1,132 @@
+package org.jcyclone.core.rtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, refilled at a given rate up to a given
+ * depth. Rather than a token count and the time of the last refill,
+ * which would have to be updated together, the whole state of the
+ * bucket is the time (from System.nanoTime()) at which it will next be
+ * full; one token is worth <tt>interval = 1e9 / rate</tt> nanoseconds
+ * of that time, so that tokens are in effect fixed-point numbers with
+ * nanosecond resolution. Taking tokens is a single compare-and-set, and
+ * a refusal is a single read, so the bucket stays cheap when shared by
+ * many threads, and cheapest when it is overloaded.
+ */
+public class TokenBucket {
+
+	private static final long NANOS = 1000000000L;
+	// At least one token an hour, so that depth * interval cannot overflow
+	private static final long MAX_INTERVAL = 3600 * NANOS;
+
+	// Time at which the bucket will be full
+	private final AtomicLong fullTime;
+	// Nanoseconds per token, or 0 for no limit
+	private volatile long interval;
+	private volatile int depth;
+	private volatile double rate;
+
+	/**
+	 * Create a full bucket with the given rate (tokens per second) and
+	 * depth. A rate of -1.0 indicates no rate limit.
+	 */
+	public TokenBucket(double rate, int depth) {
+		this.fullTime = new AtomicLong(System.nanoTime());
+		this.depth = depth;
+		setRate(rate);
+	}
+
+	/**
+	 * Take one token, if available.
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(1, System.nanoTime());
+	}
+
+	/**
+	 * Take n tokens at the given time (from System.nanoTime()), if all are
+	 * available.
+	 */
+	public boolean tryAcquire(int n, long now) {
+		long interval = this.interval;
+		if (interval == 0) return true;
+		long capacity = depth * interval;
+		while (true) {
+			long full = fullTime.get();
+			long next = Math.max(full, now) + n * interval;
+			if (next - now > capacity) return false;
+			if (fullTime.compareAndSet(full, next)) return true;
+		}
+	}
+
+	/**
+	 * Take n tokens at the given time even if they are not available,
+	 * leaving the bucket empty rather than in debt.
+	 */
+	public void acquire(int n, long now) {
+		long interval = this.interval;
+		if (interval == 0) return;
+		long capacity = depth * interval;
+		while (true) {
+			long full = fullTime.get();
+			long next = Math.min(Math.max(full, now) + n * interval, now + capacity);
+			if (fullTime.compareAndSet(full, next)) return;
+		}
+	}
+
+	/**
+	 * Give back n tokens taken with tryAcquire().
+	 */
+	public void release(int n) {
+		fullTime.addAndGet(-n * interval);
+	}
+
+	/**
+	 * Return the number of tokens currently in the bucket.
+	 */
+	public int getTokens() {
+		long interval = this.interval;
+		if (interval == 0) return depth;
+		long now = System.nanoTime();
+		long missing = Math.max(0, fullTime.get() - now);
+		return Math.max(0, depth - (int) ((missing + interval - 1) / interval));
+	}
+
+	/**
+	 * Remove all tokens from the bucket.
+	 */
+	public void drain() {
+		long interval = this.interval;
+		if (interval == 0) return;
+		fullTime.set(System.nanoTime() + depth * interval);
+	}
+
+	/**
+	 * Return the rate, in tokens per second.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Set the rate, in tokens per second. A rate of -1.0 indicates no
+	 * rate limit.
+	 */
+	public void setRate(double rate) {
+		this.rate = rate;
+		if (rate < 0) {
+			this.interval = 0;
+		} else {
+			this.interval = Math.max(1, Math.min(MAX_INTERVAL, (long) (NANOS / rate)));
+		}
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+}
@@ -24,6 +24,7 @@
 
 package org.jcyclone.core.stage;
 
+import org.jcyclone.core.cfg.IMutableSystemConfig;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.cfg.JCycloneConfig;
 import org.jcyclone.core.handler.IEventHandler;
@@ -156,6 +157,8 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
         }
         unloadStages();
         profiler.stop();
+        profiler.getGraphProfiler().stop();
+        if (profiler.getEventTracer() != null) profiler.getEventTracer().dump();
 		signalMgr.stop();
 	}
 
@@ -349,21 +352,21 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 	public void initStages() {
 		programStages();
 		System.err.println("JCyclone: Initializing stages");
-		Iterator it = stagetbl.values().iterator();
-		while (it.hasNext()) {
-			IStageWrapper wrapper = (IStageWrapper) it.next();
-			try {
-				wrapper.init();
-			} catch (Exception ex) {
-				System.err.println("JCyclone: Caught exception initializing stage "
-				    + wrapper.getStage().getName() + ": " + ex);
-				ex.printStackTrace();
-				if (crashOnException) {
-					System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
-					System.exit(-1);
+		runStages(mgrconfig.getInt("global.init.threads"), new StageDependencyRunner.Task() {
+			public void run(IStageWrapper wrapper) {
+				try {
+					wrapper.init();
+				} catch (Exception ex) {
+					System.err.println("JCyclone: Caught exception initializing stage "
+					    + wrapper.getStage().getName() + ": " + ex);
+					ex.printStackTrace();
+					if (crashOnException) {
+						System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+						System.exit(-1);
+					}
 				}
 			}
-		}
+		});
 
 		signalMgr.fire(new StagesInitializedSignal());
 	}
@@ -372,32 +375,135 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 	public void startStages() {
 		initStages();
 		System.err.println("JCyclone: Starting stages");
+		runStages(1, new StageDependencyRunner.Task() {
+			public void run(IStageWrapper wrapper) {
+				try {
+					wrapper.start();
+				} catch (Exception ex) {
+					System.err.println("JCyclone: Caught exception starting stage "
+					    + wrapper.getStage().getName() + ": " + ex);
+					ex.printStackTrace();
+					if (crashOnException) {
+						System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+						System.exit(-1);
+					}
+				}
+			}
+		});
+		// TODO: fire signal
+//		signalMgr.fire(new StagesStartedSignal());
+	}
+
+	// Run the given task for all stages, in dependency order
+	private void runStages(int threads, StageDependencyRunner.Task task) {
+		try {
+			new StageDependencyRunner(mgrconfig, threads).run(stagetbl.values(), task);
+		} catch (InterruptedException ie) {
+			System.err.println("JCyclone: Interrupted waiting for stages: " + ie);
+		}
+	}
+
+	// Stop the thread managers concurrently, within global.shutdown.timeout
+	public void stopStages() {
+		final long deadline = System.currentTimeMillis() + mgrconfig.getInt("global.shutdown.timeout");
+		List threads = new ArrayList();
+		Iterator it = new ArrayList(tmtbl.keySet()).iterator();
+		while (it.hasNext()) {
+			final String tmname = (String) it.next();
+			final IScheduler tm = (IScheduler) tmtbl.get(tmname);
+			System.err.println("JCyclone: Stopping ThreadManager " + tmname);
+			Thread t = new Thread("JCyclone stop " + tmname) {
+				public void run() {
+					try {
+						tm.deregisterAll();
+					} catch (Exception ex) {
+						System.err.println("JCyclone: Caught exception stopping ThreadManager "
+						    + tmname + ": " + ex);
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		for (int i = 0; i < threads.size(); i++) {
+			Thread t = (Thread) threads.get(i);
+			try {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait > 0) t.join(wait);
+			} catch (InterruptedException ie) {
+				break;
+			}
+			if (t.isAlive()) {
+				System.err.println("JCyclone: Warning: " + t.getName() + " did not complete within global.shutdown.timeout");
+			}
+		}
+	}
+
+	public synchronized void reconfigure(ISystemConfig config) throws Exception {
+		if (!(mgrconfig instanceof IMutableSystemConfig)) {
+			throw new IllegalStateException("JCyclone: The configuration cannot be changed at runtime");
+		}
+		Map values = new HashMap();
+		collectValues(config, "global", values);
+		collectValues(config, "stages", values);
+		Map current = new HashMap();
+		collectValues(mgrconfig, "global", current);
+		collectValues(mgrconfig, "stages", current);
+
+		Set changed = new TreeSet();
+		for (Iterator it = values.keySet().iterator(); it.hasNext();) {
+			String key = (String) it.next();
+			if (!values.get(key).equals(current.get(key))) changed.add(key);
+		}
+		for (Iterator it = current.keySet().iterator(); it.hasNext();) {
+			String key = (String) it.next();
+			if (values.containsKey(key)) continue;
+			String def = null;
+			for (int i = 0; i < JCycloneConfig.defaults.length; i += 2) {
+				if (JCycloneConfig.defaults[i].equals(key)) def = JCycloneConfig.defaults[i + 1];
+			}
+			if (def == null) {
+				System.err.println("JCyclone: Warning: Cannot unset " + key + " at runtime, ignoring");
+			} else if (!def.equals(current.get(key))) {
+				values.put(key, def);
+				changed.add(key);
+			}
+		}
+		if (changed.isEmpty()) return;
+
+		System.err.println("JCyclone: Reconfiguring " + changed);
+		IMutableSystemConfig mutable = (IMutableSystemConfig) mgrconfig;
+		for (Iterator it = changed.iterator(); it.hasNext();) {
+			String key = (String) it.next();
+			mutable.putString(key, (String) values.get(key));
+		}
+
 		Iterator it = stagetbl.values().iterator();
 		while (it.hasNext()) {
 			IStageWrapper wrapper = (IStageWrapper) it.next();
+			if (!(wrapper instanceof StageWrapper)) continue;
 			try {
-				wrapper.start();
+				((StageWrapper) wrapper).reconfigure(changed);
 			} catch (Exception ex) {
-				System.err.println("JCyclone: Caught exception starting stage "
-				    + wrapper.getStage().getName() + ": " + ex);
+				System.err.println("JCyclone: Caught exception reconfiguring stage "
+				    + wrapper.getName() + ": " + ex);
 				ex.printStackTrace();
-				if (crashOnException) {
-					System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
-					System.exit(-1);
-				}
 			}
 		}
-		// TODO: fire signal
-//		signalMgr.fire(new StagesStartedSignal());
 	}
 
-	public void stopStages() {
-		Iterator it = tmtbl.keySet().iterator();
-		while (it.hasNext()) {
-			String stagename = (String) it.next();
-			IScheduler tm = (IScheduler) tmtbl.get(stagename);
-			System.err.println("JCyclone: Stopping ThreadManager " + stagename);
-			tm.deregisterAll();
+	// Collect the values of all the keys under the given prefix
+	private static void collectValues(ISystemConfig config, String prefix, Map values) {
+		Enumeration e = config.getKeys(prefix);
+		while (e != null && e.hasMoreElements()) {
+			String key = (String) e.nextElement();
+			if (key.endsWith(".")) {
+				collectValues(config, prefix + "." + key.substring(0, key.length() - 1), values);
+			} else {
+				String val = config.getString(prefix + "." + key);
+				if (val != null) values.put(prefix + "." + key, val);
+			}
 		}
 	}
 
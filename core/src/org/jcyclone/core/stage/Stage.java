@@ -58,10 +58,16 @@ public class Stage implements IStage {
 		ISystemConfig cf = config.getManager().getConfig();
 		this.mainsink = mainsink;
 
-		if (ENABLE_SINK_PROXY &&
+		// The proxy records stage graph edges and their statistics,
+		// which the bottleneck analyzer reads, and assigns and
+		// propagates trace identifiers
+		if ((ENABLE_SINK_PROXY &&
 		    (cf.getBoolean("global.batchController.enable") ||
-		    cf.getBoolean("global.rtController.enable"))) {
-			this.mainsink = new MonitoredSink((ISink) mainsink, config.getManager(), wrapper);
+		    cf.getBoolean("global.rtController.enable"))) ||
+		    cf.getBoolean("global.profile.graph") ||
+		    cf.getBoolean("global.profile.trace.enable") ||
+		    cf.getBoolean("global.profile.bottleneck.enable")) {
+			this.mainsink = new MonitoredSink(mainsink, config.getManager(), wrapper);
 		}
 	}
 
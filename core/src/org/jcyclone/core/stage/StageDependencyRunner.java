@@ -0,0 +1,165 @@
+package org.jcyclone.core.stage;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a lifecycle task (such as init) for a set of stages, starting the
+ * task of a stage only once the tasks of the stages it depends on have
+ * completed. A stage lists the stages it depends on with
+ * <tt>stages.&lt;name&gt;.dependsOn</tt>; dependencies on stages outside
+ * the set are ignored. Independent stages run concurrently on a pool of
+ * the given number of threads, or in the calling thread, in dependency
+ * order, if it is 1. If the dependencies form a cycle, it is broken at
+ * one of its stages, with a warning.
+ */
+class StageDependencyRunner {
+
+	private static final boolean DEBUG = false;
+
+	interface Task {
+		/**
+		 * Run the task for the given stage. Exceptions are reported by the
+		 * task itself.
+		 */
+		void run(IStageWrapper stage);
+	}
+
+	private ISystemConfig config;
+	private int threads;
+
+	// Guarded by this while running
+	private Map byName;       // stage name --> IStageWrapper
+	private Map waitingOn;    // stage name --> int[] {unfinished dependencies}
+	private Map dependents;   // stage name --> List of stage names
+	private LinkedList ready;
+	private int running, done;
+
+	StageDependencyRunner(ISystemConfig config, int threads) {
+		this.config = config;
+		this.threads = threads;
+	}
+
+	/**
+	 * Run the given task for each of the given stages, and return once
+	 * all have completed.
+	 */
+	synchronized void run(Collection stages, final Task task) throws InterruptedException {
+		List order = new ArrayList(stages);
+		byName = new HashMap();
+		waitingOn = new HashMap();
+		dependents = new HashMap();
+		ready = new LinkedList();
+		running = done = 0;
+
+		for (int i = 0; i < order.size(); i++) {
+			IStageWrapper wrapper = (IStageWrapper) order.get(i);
+			byName.put(wrapper.getName(), wrapper);
+		}
+		for (int i = 0; i < order.size(); i++) {
+			IStageWrapper wrapper = (IStageWrapper) order.get(i);
+			String name = wrapper.getName();
+			String deps[] = config.getStringList("stages." + name + ".dependsOn");
+			int count = 0;
+			for (int j = 0; deps != null && j < deps.length; j++) {
+				if (deps[j].equals(name)) continue;
+				if (!byName.containsKey(deps[j])) {
+					System.err.println("JCyclone: Warning: Stage <" + name + "> depends on unknown stage <" + deps[j] + ">, ignoring");
+					continue;
+				}
+				List l = (List) dependents.get(deps[j]);
+				if (l == null) {
+					l = new ArrayList();
+					dependents.put(deps[j], l);
+				}
+				l.add(name);
+				count++;
+			}
+			waitingOn.put(name, new int[]{count});
+			if (count == 0) ready.add(wrapper);
+		}
+
+		ExecutorService pool = null;
+		if (threads > 1 && order.size() > 1) {
+			pool = Executors.newFixedThreadPool(Math.min(threads, order.size()), new ThreadFactory() {
+				private int n = 0;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "JCyclone lifecycle-" + (n++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		try {
+			while (done < order.size()) {
+				if (ready.isEmpty() && running == 0) breakCycle(order);
+				while (!ready.isEmpty()) {
+					final IStageWrapper wrapper = (IStageWrapper) ready.removeFirst();
+					running++;
+					if (pool == null) {
+						task.run(wrapper);
+						finished(wrapper);
+					} else {
+						if (DEBUG) System.err.println("StageDependencyRunner: Starting <" + wrapper.getName() + ">");
+						pool.execute(new Runnable() {
+							public void run() {
+								try {
+									task.run(wrapper);
+								} finally {
+									synchronized (StageDependencyRunner.this) {
+										finished(wrapper);
+										StageDependencyRunner.this.notifyAll();
+									}
+								}
+							}
+						});
+					}
+				}
+				if (done < order.size() && ready.isEmpty()) wait();
+			}
+		} finally {
+			if (pool != null) pool.shutdown();
+		}
+	}
+
+	private void finished(IStageWrapper wrapper) {
+		running--;
+		done++;
+		List l = (List) dependents.get(wrapper.getName());
+		for (int i = 0; l != null && i < l.size(); i++) {
+			int w[] = (int[]) waitingOn.get(l.get(i));
+			if (w[0] > 0 && --w[0] == 0) ready.add(byName.get(l.get(i)));
+		}
+	}
+
+	// Every remaining stage waits for another: release the first of them
+	private void breakCycle(List order) {
+		List cycle = new ArrayList();
+		IStageWrapper first = null;
+		for (Iterator it = order.iterator(); it.hasNext();) {
+			IStageWrapper wrapper = (IStageWrapper) it.next();
+			int w[] = (int[]) waitingOn.get(wrapper.getName());
+			if (w[0] > 0) {
+				cycle.add(wrapper.getName());
+				if (first == null) first = wrapper;
+			}
+		}
+		System.err.println("JCyclone: Warning: Cyclic dependencies between stages " + cycle + ", ignoring the dependencies of <" + first.getName() + ">");
+		((int[]) waitingOn.get(first.getName()))[0] = 0;
+		ready.add(first);
+	}
+
+}
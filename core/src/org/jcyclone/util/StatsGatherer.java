@@ -24,21 +24,68 @@
 
 package org.jcyclone.util;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
 
+/**
+ * StatsGatherer collects the count, minimum, maximum and mean of a stream
+ * of samples, and a histogram from which percentiles are computed.
+ * <p/>
+ * Samples are accumulated without locking or allocation: each thread
+ * adds to its own set of primitive counters, which are merged when the
+ * statistics are read. The histogram has fixed log-linear buckets: a
+ * sample <tt>val</tt> falls into bucket <tt>val / bucketSize</tt>, which
+ * is exact for the first LINEAR_BUCKETS buckets; beyond that each power
+ * of two is split into SUB_BUCKETS buckets, so the error of a reported
+ * bucket or percentile is below 1%. Negative samples are counted in the
+ * first bucket. A thread allocates the part of its histogram holding
+ * the linear buckets, or a power of two, when it first adds a sample
+ * falling there.
+ * <p/>
+ * The public fields are no longer updated by add(): they hold the
+ * merged statistics as of the last call to one of the accessors, and
+ * are deprecated. Use num(), min(), max() and mean() instead.
+ */
 public class StatsGatherer {
 
-	private Hashtable histogram;
+	private static final int LINEAR_BITS = 8;
+	private static final int LINEAR_BUCKETS = 1 << LINEAR_BITS;
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int NUM_BUCKETS = LINEAR_BUCKETS + (31 - LINEAR_BITS) * SUB_BUCKETS;
+
 	private int bucketSize;
 	private String name;
 	private String tag;
-	private double mean = -1;
 
 	private int skipSamples;
-	private int skip = 0;
+	private volatile int skip = 0;
+	private volatile int epoch = 0;
+	private List shards = new ArrayList();
+	private ThreadLocal localShard = new ThreadLocal();
+	private long merged[];
+
+	/**
+	 * @deprecated Only updated by the accessors; use num().
+	 */
+	@Deprecated
 	public int num = 0;
+	/**
+	 * @deprecated Only updated by the accessors; use max().
+	 */
+	@Deprecated
 	public double maxVal = 0;
+	/**
+	 * @deprecated Only updated by the accessors; use min().
+	 */
+	@Deprecated
 	public double minVal = Double.MAX_VALUE;
+	/**
+	 * @deprecated Only updated by the accessors; use num() and mean().
+	 */
+	@Deprecated
 	public double cumulativeVal = 0;
 
 	private static Hashtable sgTbl = new Hashtable();
@@ -49,7 +96,7 @@ public class StatsGatherer {
 		this.bucketSize = bucketSize;
 		this.skipSamples = skipSamples;
 		if (bucketSize != 0) {
-			histogram = new Hashtable(1);
+			merged = new long[NUM_BUCKETS];
 		}
 		sgTbl.put(name, this);
 	}
@@ -75,64 +122,103 @@ public class StatsGatherer {
 	}
 
 	public synchronized void reset() {
-		this.num = 0;
-		this.maxVal = 0;
-		this.minVal = Double.MAX_VALUE;
-		this.cumulativeVal = 0;
-		if (bucketSize != 0) {
-			histogram = new Hashtable(1);
-		}
+		// Each thread clears its own counters on its next add()
+		epoch++;
+		merge();
 	}
 
-	public synchronized void add(double val) {
+	public void add(double val) {
 		if (skip < skipSamples) {
-			skip++;
-			return;
+			synchronized (this) {
+				if (skip < skipSamples) {
+					skip++;
+					return;
+				}
+			}
 		}
 
-		num++;
+		shard s = (shard) localShard.get();
+		if (s == null) s = newShard();
+		if (s.epoch != epoch) s.clear(epoch);
 
-		if (val > maxVal) maxVal = val;
-		if (val < minVal) minVal = val;
-		cumulativeVal += val;
+		s.num++;
+		if (val > s.max) s.max = val;
+		if (val < s.min) s.min = val;
+		s.sum += val;
+		if (s.pages != null) s.count(bucketIndex((int) val / bucketSize));
+	}
 
-		if (bucketSize != 0) {
-			Integer ct = new Integer((int) val / bucketSize);
-			Integer bval = (Integer) histogram.remove(ct);
-
-			if (bval == null) {
-				histogram.put(ct, new Integer(1));
-			} else {
-				bval = new Integer(bval.intValue() + 1);
-				histogram.put(ct, bval);
+	private synchronized shard newShard() {
+		shard s = new shard(bucketSize != 0);
+		s.epoch = epoch;
+		shards.add(s);
+		localShard.set(s);
+		return s;
+	}
+
+	/**
+	 * Merge the per-thread counters into the public fields and the
+	 * merged histogram.
+	 */
+	private void merge() {
+		int n = 0;
+		double mx = 0, mn = Double.MAX_VALUE, sum = 0;
+		if (merged != null) {
+			for (int i = 0; i < merged.length; i++) merged[i] = 0;
+		}
+		for (int i = 0; i < shards.size(); i++) {
+			shard s = (shard) shards.get(i);
+			if (s.epoch != epoch) continue;
+			n += s.num;
+			if (s.max > mx) mx = s.max;
+			if (s.min < mn) mn = s.min;
+			sum += s.sum;
+			if (merged != null) {
+				for (int p = 0; p < s.pages.length; p++) {
+					long page[] = s.pages[p];
+					if (page == null) continue;
+					int base = (p == 0) ? 0 : LINEAR_BUCKETS + (p - 1) * SUB_BUCKETS;
+					for (int j = 0; j < page.length; j++) merged[base + j] += page[j];
+				}
 			}
 		}
+		this.num = n;
+		this.maxVal = mx;
+		this.minVal = mn;
+		this.cumulativeVal = sum;
+	}
+
+	/**
+	 * Return the index of the histogram bucket holding linear bucket k.
+	 */
+	static int bucketIndex(int k) {
+		if (k < LINEAR_BUCKETS) return (k < 0) ? 0 : k;
+		int octave = 31 - Integer.numberOfLeadingZeros(k);
+		int sub = (k >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (octave - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Return the lowest linear bucket held by the given histogram bucket.
+	 */
+	static int bucketStart(int index) {
+		if (index < LINEAR_BUCKETS) return index;
+		int octave = LINEAR_BITS + (index - LINEAR_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (octave - SUB_BITS);
 	}
 
 	public synchronized void dumpHistogram() {
+		merge();
 		System.err.println("=== Histogram dump of StatsGatherer: " + name + " ===");
 
-		TreeSet ts = new TreeSet(new Comparator() {
-			public int compare(Object o1, Object o2) {
-				Integer i1 = (Integer) o1;
-				Integer i2 = (Integer) o2;
-				if (i1.intValue() == i2.intValue())
-					return 0;
-				else if (i1.intValue() < i2.intValue())
-					return -1;
-				else
-					return 1;
+		if (merged != null) {
+			for (int i = 0; i < merged.length; i++) {
+				long val = merged[i];
+				if (val == 0) continue;
+				int time = bucketStart(i) * bucketSize;
+				System.err.println(tag + " " + time + " ms " + Util.format(val) + " count " + Util.format((val * 100.0) / (num * 1.0)) + " pct");
 			}
-		});
-
-		ts.addAll(histogram.keySet());
-
-		Object arr[] = ts.toArray();
-		for (int i = 0; i < arr.length; i++) {
-			Integer bucket = (Integer) arr[i];
-			int time = bucket.intValue() * bucketSize;
-			int val = ((Integer) histogram.get(bucket)).intValue();
-			System.err.println(tag + " " + time + " ms " + Util.format(val) + " count " + Util.format((val * 100.0) / (num * 1.0)) + " pct");
 		}
 		System.err.println("=== Summary of StatsGatherer: " + name + " ===");
 		System.err.println(tag + ": num " + num + " avg " + mean() + " max " + max() + " 90th " + percentile(0.9));
@@ -141,39 +227,85 @@ public class StatsGatherer {
 	}
 
 	public synchronized int num() {
+		merge();
 		return num;
 	}
 
 	public synchronized double mean() {
+		merge();
 		if (num == 0) return 0.0;
 		return (cumulativeVal * 1.0) / num;
 	}
 
 	public synchronized double min() {
+		merge();
 		return minVal;
 	}
 
 	public synchronized double max() {
+		merge();
 		return maxVal;
 	}
 
 	public synchronized double percentile(double pct) {
-		if (num == 0) return 0.0;
-		double data[] = new double[num];
-		int n = 0;
-		Enumeration e = histogram.keys();
-		while (e.hasMoreElements()) {
-			Integer bucket = (Integer) e.nextElement();
-			int time = bucket.intValue() * bucketSize;
-			int val = ((Integer) histogram.get(bucket)).intValue();
-			for (int j = 0; j < val; j++) {
-				data[n++] = time;
+		merge();
+		if (num == 0 || merged == null) return 0.0;
+		long index = (long) (num * pct);
+		if (index >= num) index = num - 1;
+		long seen = 0;
+		for (int i = 0; i < merged.length; i++) {
+			seen += merged[i];
+			if (seen > index) return bucketStart(i) * bucketSize;
+		}
+		return 0.0;
+	}
+
+	/**
+	 * The counters of one thread. Only the owning thread writes them.
+	 */
+	static class shard {
+		int epoch;
+		int num;
+		double max, min, sum;
+		// The histogram, in pages allocated on first use: the linear
+		// buckets, then the buckets of each power of two
+		long pages[][];
+
+		shard(boolean hist) {
+			if (hist) pages = new long[1 + (NUM_BUCKETS - LINEAR_BUCKETS) / SUB_BUCKETS][];
+			clear(0);
+		}
+
+		void count(int index) {
+			int p = 0;
+			if (index >= LINEAR_BUCKETS) {
+				index -= LINEAR_BUCKETS;
+				p = 1 + (index >> SUB_BITS);
+				index &= SUB_BUCKETS - 1;
+			}
+			long page[] = pages[p];
+			if (page == null) {
+				page = new long[(p == 0) ? LINEAR_BUCKETS : SUB_BUCKETS];
+				pages[p] = page;
 			}
+			page[index]++;
+		}
+
+		void clear(int epoch) {
+			num = 0;
+			max = 0;
+			min = Double.MAX_VALUE;
+			sum = 0;
+			if (pages != null) {
+				for (int p = 0; p < pages.length; p++) {
+					long page[] = pages[p];
+					if (page == null) continue;
+					for (int i = 0; i < page.length; i++) page[i] = 0;
+				}
+			}
+			// Set last, so that merge() skips the shard until it is clear
+			this.epoch = epoch;
 		}
-		Arrays.sort(data);
-		int index = (int) (data.length * pct);
-		return data[index];
 	}
 
 }
-
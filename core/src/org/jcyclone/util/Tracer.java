@@ -24,7 +24,11 @@
 
 package org.jcyclone.util;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a debugging utility class that can be used to trace
@@ -46,6 +50,11 @@ import java.util.*;
  * the call to <tt>trace("event1")</tt> and <tt>trace("event2")</tt>.
  * The average time for 'event1' is that elapsed between the time the
  * tracer is created and the call to <tt>trace("event1")</tt>.
+ * <p/>
+ * Tracing is cheap enough to leave in hot paths: it takes no lock and
+ * allocates nothing once a thread has seen a key. The preceeding event
+ * is the last one traced by any thread, as before; each thread keeps its
+ * own timings in primitive arrays, which are merged by <tt>dump()</tt>.
  *
  * @author Matt Welsh
  */
@@ -55,24 +64,78 @@ public class Tracer {
 	private static Hashtable trTbl = new Hashtable();
 
 	private String name;
-	private Hashtable valTbl;
-	private traceVal initVal, lastTr;
-	private int tv_create_count;
-
-	private class traceVal {
-		String key;
-		long total = 0;
-		long lastValue = 0;
-		long count = 0;
-		int create_count;
-
-		traceVal(String key) {
-			this.key = key;
-			this.create_count = tv_create_count++;
+	private volatile int epoch = 0;
+	private volatile long initTime;
+	// Time of the last event traced by any thread
+	private final AtomicLong lastValue = new AtomicLong();
+
+	// Key --> id map; copied on write, so that lookups need no lock
+	private volatile keyTable keys = new keyTable(16);
+	private List keyNames = new ArrayList();
+
+	private List shards = new ArrayList();
+	private ThreadLocal localShard = new ThreadLocal();
+
+	/**
+	 * Open-addressed table from trace key to its index, in order of
+	 * first appearance.
+	 */
+	private static class keyTable {
+		final String keys[];
+		final int ids[];
+		int size;
+
+		keyTable(int capacity) {
+			keys = new String[capacity];
+			ids = new int[capacity];
+		}
+
+		int get(String key) {
+			int mask = keys.length - 1;
+			for (int i = key.hashCode() & mask; ; i = (i + 1) & mask) {
+				String k = keys[i];
+				if (k == null) return -1;
+				if (k == key || k.equals(key)) return ids[i];
+			}
+		}
+
+		void put(String key, int id) {
+			int mask = keys.length - 1;
+			int i = key.hashCode() & mask;
+			while (keys[i] != null) i = (i + 1) & mask;
+			keys[i] = key;
+			ids[i] = id;
+			size++;
+		}
+	}
+
+	/**
+	 * The timings of one thread, indexed by key id. Only the owning
+	 * thread writes them.
+	 */
+	private static class shard {
+		int epoch;
+		long total[] = new long[8];
+		long count[] = new long[8];
+
+		void clear(int epoch) {
+			for (int i = 0; i < count.length; i++) {
+				total[i] = 0;
+				count[i] = 0;
+			}
+			// Set last, so that dump() skips the shard until it is clear
+			this.epoch = epoch;
 		}
 
-		public int hashCode() {
-			return create_count;
+		void ensure(int id) {
+			if (id < count.length) return;
+			int n = Math.max(count.length * 2, id + 1);
+			long nt[] = new long[n];
+			long nc[] = new long[n];
+			System.arraycopy(total, 0, nt, 0, total.length);
+			System.arraycopy(count, 0, nc, 0, count.length);
+			total = nt;
+			count = nc;
 		}
 	}
 
@@ -80,11 +143,12 @@ public class Tracer {
 	 * Reset this Tracer - clears all timings.
 	 */
 	public synchronized void reset() {
-		this.tv_create_count = 0;
-		this.valTbl = new Hashtable();
-		this.lastTr = null;
-		this.trace("init", System.currentTimeMillis());
-		initVal = (traceVal) valTbl.get("init");
+		// Each thread clears its own timings on its next trace()
+		long now = System.currentTimeMillis();
+		this.initTime = now;
+		this.lastValue.set(now);
+		this.epoch++;
+		this.trace("init", now);
 	}
 
 	/**
@@ -92,12 +156,11 @@ public class Tracer {
 	 */
 	public Tracer(String name) {
 		this.name = name;
-		this.tv_create_count = 0;
-		this.valTbl = new Hashtable();
-		this.lastTr = null;
 		trTbl.put(name, this);
-		this.trace("init", System.currentTimeMillis());
-		initVal = (traceVal) valTbl.get("init");
+		long now = System.currentTimeMillis();
+		this.initTime = now;
+		this.lastValue.set(now);
+		this.trace("init", now);
 	}
 
 	/**
@@ -116,35 +179,64 @@ public class Tracer {
 		return (Tracer) trTbl.get(name);
 	}
 
+	private synchronized int addKey(String key) {
+		keyTable kt = keys;
+		int id = kt.get(key);
+		if (id != -1) return id;
+		id = keyNames.size();
+		keyNames.add(key);
+		if ((kt.size + 1) * 2 > kt.keys.length) {
+			keyTable nkt = new keyTable(kt.keys.length * 2);
+			for (int i = 0; i < kt.keys.length; i++) {
+				if (kt.keys[i] != null) nkt.put(kt.keys[i], kt.ids[i]);
+			}
+			nkt.put(key, id);
+			keys = nkt;
+		} else {
+			keyTable nkt = new keyTable(kt.keys.length);
+			System.arraycopy(kt.keys, 0, nkt.keys, 0, kt.keys.length);
+			System.arraycopy(kt.ids, 0, nkt.ids, 0, kt.ids.length);
+			nkt.size = kt.size;
+			nkt.put(key, id);
+			keys = nkt;
+		}
+		return id;
+	}
+
+	private synchronized shard newShard() {
+		shard s = new shard();
+		s.clear(epoch);
+		shards.add(s);
+		localShard.set(s);
+		return s;
+	}
+
 	/**
 	 * Trace an event with the given descriptive key and given time value
 	 * (typically in units of msec or usec).
 	 */
-	public synchronized void trace(String key, long value) {
-		traceVal tv = (traceVal) valTbl.get(key);
-		if (tv == null) {
-			tv = new traceVal(key);
-			valTbl.put(key, tv);
-		}
-		tv.lastValue = value;
-		tv.count++;
+	public void trace(String key, long value) {
+		int id = keys.get(key);
+		if (id == -1) id = addKey(key);
 
-		if (lastTr == null) {
-			tv.total = 0;
-		} else {
-			if (verbose) {
-				System.err.println("T[" + name + "][" + key + "] " + (value - initVal.lastValue) + " " + (value - lastTr.lastValue));
-			}
-			tv.total += (value - lastTr.lastValue);
+		shard s = (shard) localShard.get();
+		if (s == null) s = newShard();
+		if (s.epoch != epoch) s.clear(epoch);
+		s.ensure(id);
+
+		long last = lastValue.getAndSet(value);
+		if (verbose) {
+			System.err.println("T[" + name + "][" + key + "] " + (value - initTime) + " " + (value - last));
 		}
-		lastTr = tv;
+		s.total[id] += (value - last);
+		s.count[id]++;
 	}
 
 	/**
 	 * Trace an event with the given descriptive key and the current
-	 * time, from <tt>MDWUtil.currentTimeUsec()</tt>.
+	 * time, from <tt>System.currentTimeMillis()</tt>.
 	 */
-	public synchronized void trace(String key) {
+	public void trace(String key) {
 		trace(key, System.currentTimeMillis());
 	}
 
@@ -153,44 +245,28 @@ public class Tracer {
 	 */
 	public synchronized void dump() {
 		System.err.println("--- Dump of Tracer [" + name + "] ---");
-		Set s = valTbl.entrySet();
-		Object vals[] = s.toArray();
-		Arrays.sort(vals, new Comparator() {
-			public int compare(Object o1, Object o2) {
-				Map.Entry e1 = (Map.Entry) o1;
-				Map.Entry e2 = (Map.Entry) o2;
-				traceVal tv1 = (traceVal) e1.getValue();
-				traceVal tv2 = (traceVal) e2.getValue();
-				if (tv1.create_count < tv2.create_count) {
-					return -1;
-				} else if (tv1.create_count > tv2.create_count) {
-					return 1;
-				} else {
-					return 0;
-				}
+		int nkeys = keyNames.size();
+		long total[] = new long[nkeys];
+		long count[] = new long[nkeys];
+		for (int i = 0; i < shards.size(); i++) {
+			shard s = (shard) shards.get(i);
+			if (s.epoch != epoch) continue;
+			long st[] = s.total, sc[] = s.count;
+			for (int j = 0; j < Math.min(nkeys, sc.length); j++) {
+				total[j] += st[j];
+				count[j] += sc[j];
 			}
-
-			public boolean equals(Object o1, Object o2) {
-				Map.Entry e1 = (Map.Entry) o1;
-				Map.Entry e2 = (Map.Entry) o2;
-				traceVal tv1 = (traceVal) e1.getValue();
-				traceVal tv2 = (traceVal) e2.getValue();
-				if (tv1.create_count == tv2.create_count) {
-					return true;
-				} else {
-					return false;
-				}
-			}
-		});
-		for (int i = 0; i < vals.length; i++) {
-			Map.Entry en = (Map.Entry) vals[i];
-			traceVal tv = (traceVal) en.getValue();
-			double usec_per = (tv.total * 1.0) / (tv.count * 1.0);
-			String k = tv.key.substring(0, Math.min(tv.key.length(), 30));
+		}
+		// Keys are listed in order of first appearance
+		for (int i = 0; i < nkeys; i++) {
+			if (count[i] == 0) continue;
+			double usec_per = (total[i] * 1.0) / (count[i] * 1.0);
+			String key = (String) keyNames.get(i);
+			String k = key.substring(0, Math.min(key.length(), 30));
 			for (int j = 30 - k.length(); j >= 0; j--) {
 				k += " ";
 			}
-			System.err.println("    " + k + "  count " + tv.count + "  usec_per " + Util.format(usec_per));
+			System.err.println("    " + k + "  count " + count[i] + "  usec_per " + Util.format(usec_per));
 		}
 		System.err.println("--- End dump of Tracer [" + name + "] ---");
 	}
@@ -219,4 +295,3 @@ public class Tracer {
 	}
 
 }
-
@@ -0,0 +1,110 @@
+package org.jcyclone.core.internal;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.signal.BottleneckSignal;
+import org.jcyclone.core.signal.ISignalMgr;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link BottleneckAnalyzer} finds the saturated stage and the
+ * critical path of a stage graph A -> B -> C, A -> D.
+ */
+public class BottleneckAnalyzerTest extends TestCase {
+    private static final ISink SINK = new LinkedBlockingQueue();
+
+    public BottleneckAnalyzerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BottleneckAnalyzerTest.class);
+    }
+
+    public void testAnalyze() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        StageGraph graph = new StageGraph(config);
+        LinkedBlockingQueue bq = new LinkedBlockingQueue();
+        IStageWrapper a = StubInvocationHandler.stage("A", new LinkedBlockingQueue());
+        IStageWrapper b = StubInvocationHandler.stage("B", bq);
+        IStageWrapper c = StubInvocationHandler.stage("C", new LinkedBlockingQueue());
+        IStageWrapper d = StubInvocationHandler.stage("D", new LinkedBlockingQueue());
+        graph.addThread(new Thread(), a);
+        graph.addThread(new Thread(), b);
+        graph.addThread(new Thread(), b);
+        graph.addThread(new Thread(), c);
+        graph.addThread(new Thread(), d);
+        StageGraphEdge ab = graph.addEdge(newEdge(a, b));
+        StageGraphEdge bc = graph.addEdge(newEdge(b, c));
+        StageGraphEdge ad = graph.addEdge(newEdge(a, d));
+
+        final List fired = new ArrayList();
+        ISignalMgr signalMgr = (ISignalMgr) StubInvocationHandler.newProxy(ISignalMgr.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("fire")) fired.add(args[0]);
+                return null;
+            }
+        });
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config)
+                .put("getSignalMgr", signalMgr)
+                .proxy(IStageManager.class);
+
+        BottleneckAnalyzer analyzer = new BottleneckAnalyzer(config, graph, null);
+        analyzer.init(mgr);
+        analyzer.analyze();
+        assertEquals(0, analyzer.getSaturatedStages().length);
+
+        Thread.sleep(500);
+        // B is busy all the time, rejects some events and its queue grows
+        a.getStats().recordServiceRate(1000, 20);
+        b.getStats().recordServiceRate(1000, 1000);
+        c.getStats().recordServiceRate(1000, 10);
+        d.getStats().recordServiceRate(10, 1);
+        for (int i = 0; i < 100; i++) bq.enqueue(new BufferElement(1));
+        ab.events.addAndGet(1100);
+        ab.rejects.addAndGet(50);
+        bc.events.addAndGet(1000);
+        ad.events.addAndGet(10);
+        analyzer.analyze();
+
+        IStageWrapper sat[] = analyzer.getSaturatedStages();
+        assertEquals(analyzer.getReport(), 1, sat.length);
+        assertSame(b, sat[0]);
+        assertTrue(analyzer.getUtilization(b) > 0.9);
+        assertTrue(analyzer.getUtilization(a) < 0.5);
+        double gain = analyzer.getExpectedGain(b);
+        assertTrue("gain " + gain, gain > 0 && gain < 1150 / 0.5);
+        assertEquals(0.0, analyzer.getExpectedGain(a), 0);
+
+        IStageWrapper path[] = analyzer.getCriticalPath();
+        assertEquals(analyzer.getReport(), 3, path.length);
+        assertSame(a, path[0]);
+        assertSame(b, path[1]);
+        assertSame(c, path[2]);
+        assertTrue(analyzer.getReport(), analyzer.getReport().indexOf("Critical path from A: A -> B -> C") != -1);
+
+        assertEquals(1, fired.size());
+        BottleneckSignal signal = (BottleneckSignal) fired.get(0);
+        assertSame(b, signal.getSaturatedStages()[0]);
+        assertEquals(gain, signal.getExpectedGain()[0], 0);
+    }
+
+    private static StageGraphEdge newEdge(IStageWrapper from, IStageWrapper to) {
+        StageGraphEdge edge = new StageGraphEdge();
+        edge.fromStage = from;
+        edge.toStage = to;
+        edge.sink = SINK;
+        return edge;
+    }
+}
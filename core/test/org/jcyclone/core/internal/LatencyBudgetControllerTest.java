@@ -0,0 +1,131 @@
+package org.jcyclone.core.internal;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.rtc.IClassEvent;
+import org.jcyclone.core.stage.IStageManager;
+
+/**
+ * Tests that {@link LatencyBudgetController} predicts the latency of the
+ * busiest path of a stage graph A -> B -> C, A -> D, and rejects
+ * requests which would exceed their budget.
+ */
+public class LatencyBudgetControllerTest extends TestCase {
+    private static final ISink SINK = new LinkedBlockingQueue();
+
+    public LatencyBudgetControllerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(LatencyBudgetControllerTest.class);
+    }
+
+    public void testAdmit() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putString("global.admission.budget.smoothing", "1.0");
+        config.putString("global.admission.budget.class1", "50");
+        config.putString("global.admission.budget.class2", "50");
+        config.putString("global.admission.budget.class2.path", "A D");
+        StageGraph graph = new StageGraph(config);
+        LinkedBlockingQueue bq = new LinkedBlockingQueue();
+        IStageWrapper a = StubInvocationHandler.stage("A", new LinkedBlockingQueue());
+        IStageWrapper b = StubInvocationHandler.stage("B", bq);
+        IStageWrapper c = StubInvocationHandler.stage("C", new LinkedBlockingQueue());
+        IStageWrapper d = StubInvocationHandler.stage("D", new LinkedBlockingQueue());
+        graph.addThread(new Thread(), a);
+        graph.addThread(new Thread(), b);
+        graph.addThread(new Thread(), b);
+        graph.addThread(new Thread(), c);
+        graph.addThread(new Thread(), d);
+        StageGraphEdge ab = graph.addEdge(newEdge(a, b));
+        StageGraphEdge bc = graph.addEdge(newEdge(b, c));
+        StageGraphEdge ad = graph.addEdge(newEdge(a, d));
+
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config).proxy(IStageManager.class);
+
+        LatencyBudgetController budget = new LatencyBudgetController(config, graph);
+        budget.init(mgr);
+        budget.update();
+        // Nothing is known yet
+        assertEquals(0.0, budget.getPredictedLatency("A", 0), 0);
+        assertTrue(budget.admit(new Event(1, -1), "A"));
+
+        // A takes 1ms per event, B 10ms with 10 events queued for its
+        // two threads, C 2ms, D 100ms but rarely used
+        a.getStats().recordServiceRate(1000, 1000);
+        b.getStats().recordServiceRate(100, 1000);
+        c.getStats().recordServiceRate(100, 200);
+        d.getStats().recordServiceRate(10, 1000);
+        for (int i = 0; i < 10; i++) bq.enqueue(new BufferElement(1));
+        ab.events.addAndGet(100);
+        bc.events.addAndGet(100);
+        ad.events.addAndGet(10);
+        budget.update();
+
+        assertEquals(1.0, budget.getStageLatency("A"), 1e-6);
+        assertEquals(10.0 + 10 * 10.0 / 2, budget.getStageLatency("B"), 1e-6);
+        assertEquals(2.0, budget.getStageLatency("C"), 1e-6);
+        assertEquals(62.0, budget.getPredictedLatency("B", 0), 1e-6);
+        assertEquals(63.0, budget.getPredictedLatency("A", 0), 1e-6);
+        // Class 2 follows its configured path
+        assertEquals(100.0, budget.getPredictedLatency("D", 2), 1e-6);
+        assertEquals(101.0, budget.getPredictedLatency("A", 2), 1e-6);
+
+        // No budget
+        assertTrue(budget.admit(new Event(0, -1), "A"));
+        // Class budget
+        assertFalse(budget.admit(new Event(1, -1), "A"));
+        assertTrue(budget.admit(new Event(1, -1), "C"));
+        // The event budget overrides the class budget
+        assertTrue(budget.admit(new Event(1, 100), "A"));
+        assertFalse(budget.admit(new Event(2, 100), "A"));
+        // Time already spent is deducted
+        Event late = new Event(0, 100);
+        late.timestamp = System.currentTimeMillis() - 50;
+        assertFalse(budget.admit(late, "A"));
+        assertEquals(4, budget.getAdmitted());
+        assertEquals(3, budget.getRejected());
+    }
+
+    private static StageGraphEdge newEdge(IStageWrapper from, IStageWrapper to) {
+        StageGraphEdge edge = new StageGraphEdge();
+        edge.fromStage = from;
+        edge.toStage = to;
+        edge.sink = SINK;
+        return edge;
+    }
+
+    private static class Event extends TimeStampedEvent implements IClassEvent {
+        private int theclass;
+        private long budget;
+
+        Event(int theclass, long budget) {
+            this.theclass = theclass;
+            this.budget = budget;
+        }
+
+        public int getRequestClass() {
+            return theclass;
+        }
+
+        public void setRequestClass(int theclass) {
+            this.theclass = theclass;
+        }
+
+        public long getLatencyBudget() {
+            return budget;
+        }
+
+        public void setLatencyBudget(long budget) {
+            this.budget = budget;
+        }
+    }
+}
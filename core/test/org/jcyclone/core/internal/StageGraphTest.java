@@ -0,0 +1,101 @@
+package org.jcyclone.core.internal;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the thread to stage cache and the edge statistics of
+ * {@link StageGraph}.
+ */
+public class StageGraphTest extends TestCase {
+    private static final ISink SINK = new LinkedBlockingQueue();
+
+    public StageGraphTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StageGraphTest.class);
+    }
+
+    public void testCurrentStage() throws Exception {
+        StageGraph graph = new StageGraph(new JCycloneConfig());
+        IStageWrapper a = StubInvocationHandler.stage("A", null);
+        assertNull(graph.getCurrentStage());
+        graph.addThread(Thread.currentThread(), a);
+        assertSame(a, graph.getCurrentStage());
+        assertSame(a, graph.getCurrentStage());
+    }
+
+    public void testEdgeCounters() throws Exception {
+        StageGraph graph = new StageGraph(new JCycloneConfig());
+        IStageWrapper a = StubInvocationHandler.stage("A", null);
+        IStageWrapper b = StubInvocationHandler.stage("B", null);
+
+        StageGraphEdge edge = newEdge(a, b);
+        assertSame(edge, graph.addEdge(edge));
+        assertSame(edge, graph.addEdge(newEdge(a, b)));
+        assertNull(graph.addEdge(newEdge(null, b)));
+        assertEquals(1, graph.getEdges().length);
+
+        edge.recordEnqueue(new BufferElement(100));
+        List list = new ArrayList();
+        list.add(new BufferElement(10));
+        list.add(new BufferElement(20));
+        edge.recordEnqueue(list);
+        edge.recordReject(2);
+        assertEquals(3, edge.events.get());
+        assertEquals(130, edge.bytes.get());
+        assertEquals(2, edge.rejects.get());
+
+        Thread.sleep(10);
+        graph.sample();
+        assertTrue(edge.eventRate > 0);
+        assertTrue(edge.byteRate > 0);
+
+        StringWriter sw = new StringWriter();
+        graph.writeJSON(new PrintWriter(sw, true));
+        String json = sw.toString();
+        assertTrue(json, json.indexOf("\"from\":\"A\",\"to\":\"B\",\"events\":3,\"bytes\":130,\"rejects\":2") != -1);
+
+        sw = new StringWriter();
+        graph.writeDOT(new PrintWriter(sw, true));
+        String dot = sw.toString();
+        assertTrue(dot, dot.indexOf("\"A\" -> \"B\"") != -1);
+        assertTrue(dot, dot.indexOf("color=red") != -1);
+    }
+
+    public void testPeriodicDump() throws Exception {
+        File f = File.createTempFile("stagegraph", ".json");
+        f.deleteOnExit();
+        JCycloneConfig config = new JCycloneConfig();
+        config.putBoolean("global.profile.graph", true);
+        config.putString("global.profile.graphfilename", f.getPath());
+        config.putString("global.profile.graphformat", "json");
+        config.putInt("global.profile.graphinterval", 10);
+        StageGraph graph = new StageGraph(config);
+        graph.addEdge(newEdge(StubInvocationHandler.stage("A", null), StubInvocationHandler.stage("B", null)));
+        Thread.sleep(100);
+        graph.stop();
+        assertTrue(f.length() > 0);
+    }
+
+    private static StageGraphEdge newEdge(IStageWrapper from, IStageWrapper to) {
+        StageGraphEdge edge = new StageGraphEdge();
+        edge.fromStage = from;
+        edge.toStage = to;
+        edge.sink = SINK;
+        return edge;
+    }
+}
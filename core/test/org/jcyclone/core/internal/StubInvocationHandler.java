@@ -0,0 +1,77 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.stage.IStage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stubs an interface for tests: each method returns the value put for
+ * its name, or null. toString() returns the name of the stub, and
+ * equals() and hashCode() are those of the proxy's identity, so that
+ * stubs may be used as map keys.
+ */
+public class StubInvocationHandler implements InvocationHandler {
+    private Map values = new HashMap();
+    private String name;
+
+    public StubInvocationHandler(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Make the given method return the given value.
+     */
+    public StubInvocationHandler put(String method, Object value) {
+        values.put(method, value);
+        return this;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String m = method.getName();
+        if (values.containsKey(m)) return values.get(m);
+        if (m.equals("toString")) return name;
+        if (m.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+        if (m.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+        return null;
+    }
+
+    /**
+     * Return a proxy implementing the given interface with this handler.
+     */
+    public Object proxy(Class iface) {
+        return newProxy(iface, this);
+    }
+
+    public static Object newProxy(Class iface, InvocationHandler h) {
+        return Proxy.newProxyInstance(iface.getClassLoader(), new Class[]{iface}, h);
+    }
+
+    /**
+     * Return the handler of a stage wrapper with the given name, whose
+     * events are held in the given source, and whose getStage() returns
+     * a stage of the same name. Tests put what else they need.
+     */
+    public static StubInvocationHandler stageHandler(String name, ISource source) {
+        IStage stage = (IStage) new StubInvocationHandler(name).put("getName", name).proxy(IStage.class);
+        return new StubInvocationHandler(name)
+                .put("getName", name)
+                .put("getStage", stage)
+                .put("getSource", source);
+    }
+
+    /**
+     * Return a stage wrapper as {@link #stageHandler}, with StageStats of
+     * its own.
+     */
+    public static IStageWrapper stage(String name, ISource source) {
+        StubInvocationHandler h = stageHandler(name, source);
+        IStageWrapper wrapper = (IStageWrapper) h.proxy(IStageWrapper.class);
+        h.put("getStats", new StageStats(wrapper));
+        return wrapper;
+    }
+}
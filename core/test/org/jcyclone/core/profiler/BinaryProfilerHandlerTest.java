@@ -0,0 +1,117 @@
+package org.jcyclone.core.profiler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests that the log written by {@link BinaryProfilerHandler} reads back
+ * correctly, across segment rotation, and that {@link ProfileTool} exports it.
+ */
+public class BinaryProfilerHandlerTest extends TestCase {
+    private File dir;
+    private String base;
+
+    public BinaryProfilerHandlerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BinaryProfilerHandlerTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("jcyp", "");
+        dir.delete();
+        dir.mkdir();
+        base = new File(dir, "profile.bin").getPath();
+    }
+
+    protected void tearDown() {
+        File files[] = dir.listFiles();
+        for (int i = 0; i < files.length; i++) files[i].delete();
+        dir.delete();
+    }
+
+    public void testReadBack() throws Exception {
+        BinaryProfilerHandler h = new BinaryProfilerHandler(base, 4096, 100);
+        h.profilableAdded("a");
+        h.profilableAdded("b");
+        for (int i = 0; i < 1000; i++) {
+            if (i == 500) h.profilableRemoved("a");
+            if (i < 500) {
+                h.profilablesSnapshot(new int[]{i, -i * 1000});
+            } else {
+                h.profilablesSnapshot(new int[]{i * 7});
+            }
+        }
+        h.destroy();
+
+        BinaryProfileReader r = new BinaryProfileReader(new String[]{base});
+        assertTrue("expected rotation", r.getNumSegments() > 1);
+        long lastTime = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(r.next());
+            assertTrue(r.getTime() >= lastTime);
+            lastTime = r.getTime();
+            long v[] = r.getValues();
+            if (i < 500) {
+                assertEquals(2, r.getColumns().size());
+                assertEquals("a", r.getColumns().get(0));
+                assertEquals(i, v[0]);
+                assertEquals(-i * 1000, v[1]);
+            } else {
+                assertEquals(1, r.getColumns().size());
+                assertEquals("b", r.getColumns().get(0));
+                assertEquals(i * 7, v[0]);
+            }
+        }
+        assertFalse(r.next());
+    }
+
+    public void testWrapAround() throws Exception {
+        BinaryProfilerHandler h = new BinaryProfilerHandler(base, 1024, 3);
+        h.profilableAdded("x");
+        for (int i = 0; i < 10000; i++) h.profilablesSnapshot(new int[]{i});
+        h.destroy();
+
+        // Only the most recent segments remain, but they read in order
+        BinaryProfileReader r = new BinaryProfileReader(new String[]{base});
+        assertEquals(3, r.getNumSegments());
+        assertTrue(r.next());
+        long prev = r.getValues()[0];
+        assertTrue(prev > 0);
+        while (r.next()) {
+            assertEquals(prev + 1, r.getValues()[0]);
+            prev = r.getValues()[0];
+        }
+        assertEquals(9999, prev);
+    }
+
+    public void testExport() throws Exception {
+        BinaryProfilerHandler h = new BinaryProfilerHandler(base, 65536, 2);
+        h.profilableAdded("queue");
+        h.profilableAdded("other");
+        for (int i = 0; i < 4; i++) h.profilablesSnapshot(new int[]{i * 10, 1});
+        h.destroy();
+
+        ProfileTool tool = new ProfileTool();
+        StringWriter sw = new StringWriter();
+        tool.summary(new String[]{base}, new PrintWriter(sw));
+        String lines[] = sw.toString().split("\r?\n");
+        assertEquals("column,count,min,avg,max", lines[0]);
+        assertEquals("queue,4,0,15,30", lines[1]);
+        assertEquals("other,4,1,1,1", lines[2]);
+
+        sw = new StringWriter();
+        new ProfileTool().export(new String[]{base}, new PrintWriter(sw));
+        lines = sw.toString().split("\r?\n");
+        assertEquals("time,queue,other", lines[0]);
+        assertEquals(5, lines.length);
+        assertTrue(lines[4].endsWith(",30,1"));
+    }
+}
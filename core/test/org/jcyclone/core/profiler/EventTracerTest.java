@@ -0,0 +1,99 @@
+package org.jcyclone.core.profiler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.event.NullEvent;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests trace id assignment, propagation and the Chrome trace dump
+ * of {@link EventTracer}.
+ */
+public class EventTracerTest extends TestCase {
+    public EventTracerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(EventTracerTest.class);
+    }
+
+    public void testPropagation() throws Exception {
+        EventTracer tracer = new EventTracer(1.0, 64, null, null);
+
+        BufferElement root = new BufferElement(16);
+        tracer.enqueued(root, "A");
+        long id = root.getTraceId();
+        assertTrue(id != 0);
+
+        // Handling the root on stage A; derived events inherit its id
+        List batch = new ArrayList();
+        batch.add(root);
+        tracer.beginBatch(batch, "A");
+        assertEquals(id, tracer.getCurrentTrace());
+        BufferElement derived = new BufferElement(16);
+        tracer.enqueued(derived, "B");
+        tracer.endBatch(batch, "A");
+        assertEquals(id, derived.getTraceId());
+        assertEquals(0, tracer.getCurrentTrace());
+
+        // Non-traceable events are ignored
+        tracer.enqueued(new NullEvent(), "B");
+    }
+
+    public void testSampling() throws Exception {
+        EventTracer never = new EventTracer(0.0, 64, null, null);
+        BufferElement el = new BufferElement(16);
+        never.enqueued(el, "A");
+        assertEquals(0, el.getTraceId());
+
+        EventTracer byClass = new EventTracer(1.0, 64, new String[]{"no.such.Event"}, null);
+        byClass.enqueued(el, "A");
+        assertEquals(0, el.getTraceId());
+
+        // Events derived from an untraced event are not new roots
+        EventTracer always = new EventTracer(1.0, 64, null, null);
+        List batch = new ArrayList();
+        batch.add(el);
+        always.beginBatch(batch, "A");
+        BufferElement derived = new BufferElement(16);
+        always.enqueued(derived, "B");
+        always.endBatch(batch, "A");
+        assertEquals(0, derived.getTraceId());
+    }
+
+    public void testDump() throws Exception {
+        EventTracer tracer = new EventTracer(1.0, 8, null, null);
+        BufferElement root = new BufferElement(16);
+        tracer.enqueued(root, "Stage\"A");
+        List batch = new ArrayList();
+        batch.add(root);
+        tracer.beginBatch(batch, "Stage\"A");
+        tracer.endBatch(batch, "Stage\"A");
+
+        StringWriter sw = new StringWriter();
+        tracer.dump(sw);
+        String json = sw.toString();
+        assertTrue(json, json.startsWith("{\"traceEvents\":["));
+        assertTrue(json, json.indexOf("\"name\":\"queue <Stage\\\"A>\"") != -1);
+        assertTrue(json, json.indexOf("\"name\":\"Stage\\\"A\",\"cat\":\"handler\"") != -1);
+    }
+
+    public void testRingBufferWraps() throws Exception {
+        TraceBuffer buf = new TraceBuffer(5);
+        assertEquals(8, buf.capacity());
+        for (int i = 0; i < 20; i++) {
+            buf.record(i, EventTracer.ENQUEUE, "S", i);
+        }
+        long ids[] = new long[8];
+        int n = buf.snapshot(ids, new int[8], new String[8], new long[8]);
+        assertEquals(8, n);
+        assertEquals(12, ids[0]);
+        assertEquals(19, ids[7]);
+    }
+}
@@ -0,0 +1,64 @@
+package org.jcyclone.core.profiler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.internal.IStageStats;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StubInvocationHandler;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests that {@link StageResourceSampler} attributes the CPU time and
+ * allocations of a stage's threads to the stage.
+ */
+public class StageResourceSamplerTest extends TestCase {
+    // Keeps the allocations below from being optimized away
+    static volatile Object retained;
+
+    public StageResourceSamplerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StageResourceSamplerTest.class);
+    }
+
+    public void testSample() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putBoolean("global.profile.cpu.enable", true);
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config).proxy(IStageManager.class);
+        JCycloneProfiler profiler = new JCycloneProfiler(mgr);
+        StageResourceSampler sampler = profiler.getResourceSampler();
+        assertNotNull(sampler);
+
+        IStageWrapper busy = StubInvocationHandler.stage("busy", null);
+        final IStageStats stats = busy.getStats();
+        sampler.addStage(busy);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread t = new Thread() {
+            public void run() {
+                while (!done.get()) {
+                    retained = new byte[1024];
+                    stats.recordServiceRate(1, 0);
+                }
+            }
+        };
+        profiler.getGraphProfiler().addThread(t, busy);
+        t.start();
+        sampler.sample();
+        Thread.sleep(200);
+        sampler.sample();
+        done.set(true);
+        t.join();
+
+        assertTrue("cpu% " + sampler.getCpuPercent(busy), sampler.getCpuPercent(busy) > 10);
+        assertTrue(sampler.getAllocRate(busy) > 0);
+        assertTrue("alloc/event " + sampler.getAllocPerEvent(busy), sampler.getAllocPerEvent(busy) > 512);
+    }
+}
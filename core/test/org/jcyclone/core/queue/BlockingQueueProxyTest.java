@@ -0,0 +1,97 @@
+package org.jcyclone.core.queue;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link BlockingQueueProxy} transfers the pending events of
+ * a replaced queue, collects the events enqueued into it afterwards, and
+ * moves blocked consumers to the new queue.
+ */
+public class BlockingQueueProxyTest extends TestCase {
+
+    public BlockingQueueProxyTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BlockingQueueProxyTest.class);
+    }
+
+    public void testTransfer() throws Exception {
+        DynamicArrayBlockingQueue old = new DynamicArrayBlockingQueue();
+        BlockingQueueProxy proxy = new BlockingQueueProxy(old);
+        proxy.setCapacity(5);
+        for (int i = 0; i < 3; i++) proxy.enqueue(new BufferElement(i + 1));
+
+        LinkedBlockingQueue queue = new LinkedBlockingQueue();
+        proxy.setQueue(queue);
+        assertSame(queue, proxy.getQueue());
+        assertEquals(3, queue.size());
+        assertEquals(0, old.size());
+        assertEquals(5, proxy.capacity());
+
+        // A producer which still holds the old queue
+        old.enqueue(new BufferElement(4));
+        proxy.enqueue(new BufferElement(5));
+        List list = new ArrayList();
+        assertEquals(5, proxy.dequeueAll(list));
+        for (int i = 0; i < 3; i++) assertEquals(i + 1, ((BufferElement) list.get(i)).size);
+        assertEquals(0, proxy.size());
+        assertEquals(0, old.size());
+    }
+
+    public void testFailedTransfer() throws Exception {
+        DynamicArrayBlockingQueue old = new DynamicArrayBlockingQueue();
+        BlockingQueueProxy proxy = new BlockingQueueProxy(old);
+        proxy.setCapacity(3);
+        for (int i = 0; i < 3; i++) proxy.enqueue(new BufferElement(i + 1));
+
+        LinkedBlockingQueue queue = new LinkedBlockingQueue() {
+            public void enqueueMany(List list) throws SinkException {
+                throw new SinkFullException();
+            }
+        };
+        try {
+            proxy.setQueue(queue);
+            fail("expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        assertSame(old, proxy.getQueue());
+        assertEquals(3, proxy.capacity());
+        List list = new ArrayList();
+        assertEquals(3, proxy.dequeueAll(list));
+        for (int i = 0; i < 3; i++) assertEquals(i + 1, ((BufferElement) list.get(i)).size);
+    }
+
+    public void testWakeBlockedConsumer() throws Exception {
+        final BlockingQueueProxy proxy = new BlockingQueueProxy(new DynamicArrayBlockingQueue());
+        final List list = new ArrayList();
+        final long elapsed[] = new long[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    proxy.blockingDequeueAll(list, 5000);
+                } catch (InterruptedException e) {
+                }
+                elapsed[0] = System.currentTimeMillis() - start;
+            }
+        };
+        consumer.start();
+        Thread.sleep(200);
+        proxy.setQueue(new LinkedBlockingQueue());
+        Thread.sleep(200);
+        proxy.enqueue(new BufferElement(1));
+        consumer.join(10000);
+
+        assertEquals(1, list.size());
+        assertTrue("elapsed " + elapsed[0], elapsed[0] < 2000);
+    }
+}
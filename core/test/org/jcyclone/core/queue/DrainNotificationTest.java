@@ -0,0 +1,98 @@
+package org.jcyclone.core.queue;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the queues call their drain listeners once elements are
+ * removed, as many as elements were removed, and all of them once the
+ * queue is empty.
+ */
+public class DrainNotificationTest extends TestCase {
+
+    public DrainNotificationTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DrainNotificationTest.class);
+    }
+
+    private static class Listener implements IDrainListener {
+        int calls;
+
+        public void sinkDrained() {
+            calls++;
+        }
+    }
+
+    private IBlockingQueue[] queues() {
+        return new IBlockingQueue[]{
+            new LinkedBlockingQueue(3),
+            new DynamicArrayBlockingQueue(3, 3),
+            new BlockingQueueProxy(new LinkedBlockingQueue(3))
+        };
+    }
+
+    private void fill(IBlockingQueue q) throws SinkException {
+        for (int i = 0; i < 3; i++) q.enqueue(new BufferElement(1));
+        try {
+            q.enqueue(new BufferElement(1));
+            fail("Expected SinkFullException from " + q);
+        } catch (SinkFullException e) {
+        }
+    }
+
+    public void testNotifyOnDequeue() throws Exception {
+        IBlockingQueue queues[] = queues();
+        for (int i = 0; i < queues.length; i++) {
+            IBlockingQueue q = queues[i];
+            fill(q);
+            Listener l = new Listener();
+            assertTrue(((IDrainNotifyingSink) q).notifyOnDrain(l));
+            assertEquals(0, l.calls);
+
+            assertNotNull(q.dequeue());
+            assertEquals(q.toString(), 1, l.calls);
+            q.enqueue(new BufferElement(1));
+            q.dequeue();
+            assertEquals("Listener called more than once by " + q, 1, l.calls);
+        }
+    }
+
+    public void testNotifyInOrder() throws Exception {
+        IBlockingQueue queues[] = queues();
+        for (int i = 0; i < queues.length; i++) {
+            IBlockingQueue q = queues[i];
+            fill(q);
+            Listener l[] = new Listener[4];
+            for (int j = 0; j < l.length; j++) {
+                l[j] = new Listener();
+                ((IDrainNotifyingSink) q).notifyOnDrain(l[j]);
+            }
+            List list = new ArrayList();
+            assertEquals(1, q.dequeue(list, 1));
+            assertEquals(1, l[0].calls);
+            assertEquals(0, l[1].calls);
+
+            // Emptying the queue calls all the remaining listeners
+            assertEquals(2, q.blockingDequeueAll(list, 0));
+            for (int j = 0; j < l.length; j++) assertEquals(q.toString(), 1, l[j].calls);
+        }
+    }
+
+    public void testNotifyWhenEmpty() throws Exception {
+        IBlockingQueue queues[] = queues();
+        for (int i = 0; i < queues.length; i++) {
+            Listener l = new Listener();
+            ((IDrainNotifyingSink) queues[i]).notifyOnDrain(l);
+            assertEquals(1, l.calls);
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StubInvocationHandler;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.ITransaction;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.core.stage.Stage;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Simulates an overloaded stage with a fixed number of workers, and
+ * tests that {@link AdaptiveConcurrencyLimiter} converges to a limit
+ * near the number of workers, keeping the stage busy without letting a
+ * queue build up.
+ */
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+    private static final int WORKERS = 20;
+    private static final int SERVICE_TIME = 10;
+    private static final int ARRIVALS_PER_MS = 10;
+
+    private AdmissionControlledSink sink;
+
+    public AdaptiveConcurrencyLimiterTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AdaptiveConcurrencyLimiterTest.class);
+    }
+
+    public void testGradientFromBelow() throws Exception {
+        simulate(AdaptiveConcurrencyLimiter.GRADIENT, 1);
+    }
+
+    public void testGradientFromAbove() throws Exception {
+        simulate(AdaptiveConcurrencyLimiter.GRADIENT, 500);
+    }
+
+    public void testVegasFromBelow() throws Exception {
+        simulate(AdaptiveConcurrencyLimiter.VEGAS, 1);
+    }
+
+    public void testVegasFromAbove() throws Exception {
+        simulate(AdaptiveConcurrencyLimiter.VEGAS, 500);
+    }
+
+    public void testReject() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = newLimiter(AdaptiveConcurrencyLimiter.GRADIENT, 2);
+        TimeStampedEvent ev = new Event();
+        assertTrue(sink.enqueueLossy(ev));
+        long stamp = limiter.getStamps().get(ev);
+        assertTrue(stamp != 0);
+        assertTrue(sink.enqueueLossy(new Event()));
+        assertFalse(sink.enqueueLossy(new Event()));
+        assertEquals(2, limiter.getInFlight());
+        List done = new ArrayList();
+        done.add(ev);
+        limiter.complete(done, stamp + 5);
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getStamps().get(ev));
+        assertTrue(sink.enqueueLossy(new Event()));
+
+        limiter.disable();
+        for (int i = 0; i < 10; i++) assertTrue(sink.enqueueLossy(new Event()));
+    }
+
+    public void testQueueRejects() throws Exception {
+        // The limiter accepts, but the queue behind it is full
+        AdaptiveConcurrencyLimiter limiter = newLimiter(AdaptiveConcurrencyLimiter.GRADIENT, 10, new LinkedBlockingQueue(1));
+        assertTrue(sink.enqueueLossy(new Event()));
+        assertFalse(sink.enqueueLossy(new Event()));
+        try {
+            sink.enqueue(new Event());
+            fail("expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        List batch = new ArrayList();
+        batch.add(new Event());
+        batch.add(new Event());
+        try {
+            sink.enqueueMany(batch);
+            fail("expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getStamps().size());
+    }
+
+    public void testChainRejects() throws Exception {
+        // A predicate after the limiter in a chain refuses the events
+        AdaptiveConcurrencyLimiter limiter = newLimiter(AdaptiveConcurrencyLimiter.GRADIENT, 10);
+        sink.setEnqueuePredicate(new PredicateChain(
+            new IEnqueuePredicate[]{limiter.getPredicate(), new RefusePredicate()},
+            new String[]{"limiter", "refuse"}));
+        assertFalse(sink.enqueueLossy(new Event()));
+        List batch = new ArrayList();
+        batch.add(new Event());
+        try {
+            sink.enqueueMany(batch);
+            fail("expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getStamps().size());
+    }
+
+    public void testAbort() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = newLimiter(AdaptiveConcurrencyLimiter.GRADIENT, 10);
+        List batch = new ArrayList();
+        batch.add(new Event());
+        batch.add(new Event());
+        ITransaction txn = sink.enqueuePrepare(batch);
+        assertEquals(2, limiter.getInFlight());
+        txn.abort();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getStamps().size());
+
+        txn = sink.enqueuePrepare(batch);
+        txn.commit();
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(2, limiter.getStamps().size());
+    }
+
+    public void testBatchFailed() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = newLimiter(AdaptiveConcurrencyLimiter.GRADIENT, 2);
+        List batch = new ArrayList();
+        batch.add(new Event());
+        batch.add(new Event());
+        assertTrue(sink.enqueueLossy((IElement) batch.get(0)));
+        assertTrue(sink.enqueueLossy((IElement) batch.get(1)));
+        assertFalse(sink.enqueueLossy(new Event()));
+        limiter.batchFailed(batch);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getStamps().size());
+        assertTrue(sink.enqueueLossy(new Event()));
+    }
+
+    public void testHandlerThrowsTPS() throws Exception {
+        handlerThrows(JCycloneConfig.THREADMGR_TPSTM);
+    }
+
+    public void testHandlerThrowsTPSConcurrent() throws Exception {
+        handlerThrows(JCycloneConfig.THREADMGR_TPSTM_CONCURRENT);
+    }
+
+    // Each event makes the handler throw; the limiter must not run out
+    // of slots
+    private void handlerThrows(String threadManager) throws Exception {
+        JCycloneConfig config = new JCycloneConfig();
+        config.putString("global.defaultThreadManager", threadManager);
+        config.putString("stages.S.class", ThrowingHandler.class.getName());
+        config.putString("stages.S.threadPool.maxThreads", "1");
+        config.putString("stages.S.rtController.enable", "true");
+        config.putString("stages.S.rtController.type", AdaptiveConcurrencyLimiter.GRADIENT);
+        config.putInt("stages.S.rtController.limiter.initialLimit", 4);
+        ThrowingHandler.calls = 0;
+        JCyclone jc = new JCyclone(config);
+        try {
+            IStageWrapper wrapper = ((Stage) jc.getManager().getStage("S")).getWrapper();
+            AdaptiveConcurrencyLimiter limiter = (AdaptiveConcurrencyLimiter) wrapper.getResponseTimeController();
+            ISink stageSink = wrapper.getStage().getSink();
+            for (int i = 1; i <= 20; i++) {
+                assertTrue("Event " + i + " refused", stageSink.enqueueLossy(new Event()));
+                synchronized (ThrowingHandler.class) {
+                    long end = System.currentTimeMillis() + 5000;
+                    while (ThrowingHandler.calls < i && System.currentTimeMillis() < end) {
+                        ThrowingHandler.class.wait(100);
+                    }
+                }
+                assertEquals(i, ThrowingHandler.calls);
+            }
+            // The slot of the last event is released once its handler returns
+            long end = System.currentTimeMillis() + 5000;
+            while (limiter.getInFlight() > 0 && System.currentTimeMillis() < end) Thread.sleep(10);
+            assertEquals(0, limiter.getInFlight());
+            assertEquals(0, limiter.getStamps().size());
+        } finally {
+            jc.stop();
+            jc.dispose();
+        }
+    }
+
+    private void simulate(String algorithm, int initialLimit) throws Exception {
+        AdaptiveConcurrencyLimiter limiter = newLimiter(algorithm, initialLimit);
+        IEnqueuePredicate pred = limiter.getPredicate();
+        LinkedList queue = new LinkedList();
+        long finish[] = new long[WORKERS];
+        Event running[] = new Event[WORKERS];
+
+        long end = 60000;
+        long completed = 0, totalRTT = 0, totalLimit = 0;
+        for (long now = 1; now <= end; now++) {
+            boolean measure = now > end - 10000;
+            for (int i = 0; i < ARRIVALS_PER_MS; i++) {
+                Event ev = new Event();
+                ev.timestamp = now;
+                if (pred.accept(ev)) {
+                    limiter.getStamps().stamp(ev, now);
+                    queue.add(ev);
+                }
+            }
+            List done = new ArrayList();
+            for (int w = 0; w < WORKERS; w++) {
+                if (running[w] != null && finish[w] <= now) {
+                    done.add(running[w]);
+                    if (measure) totalRTT += now - running[w].timestamp;
+                    running[w] = null;
+                }
+                if (running[w] == null && !queue.isEmpty()) {
+                    running[w] = (Event) queue.removeFirst();
+                    finish[w] = now + SERVICE_TIME;
+                }
+            }
+            if (!done.isEmpty()) limiter.complete(done, now);
+            if (measure) {
+                completed += done.size();
+                totalLimit += limiter.getLimit();
+            }
+        }
+
+        double throughput = completed / 10000.0;
+        double rtt = (double) totalRTT / completed;
+        double avgLimit = totalLimit / 10000.0;
+        String msg = algorithm + " from " + initialLimit + ": limit " + avgLimit + " throughput " + throughput + " rtt " + rtt;
+        // The stage is kept busy...
+        assertTrue(msg, throughput >= 0.95 * WORKERS / SERVICE_TIME);
+        // ...without a standing queue
+        assertTrue(msg, rtt < 2 * SERVICE_TIME);
+        assertTrue(msg, avgLimit >= WORKERS && avgLimit < 2 * WORKERS);
+    }
+
+    private AdaptiveConcurrencyLimiter newLimiter(String algorithm, int initialLimit) {
+        return newLimiter(algorithm, initialLimit, new LinkedBlockingQueue());
+    }
+
+    private AdaptiveConcurrencyLimiter newLimiter(String algorithm, int initialLimit, IBlockingSink queue) {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putInt("stages.S.rtController.limiter.initialLimit", initialLimit);
+        config.putInt("stages.S.rtController.limiter.probeInterval", 150);
+        sink = new AdmissionControlledSink("S", queue);
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config)
+                .put("getProfiler", new StubInvocationHandler("profiler").proxy(IProfiler.class))
+                .proxy(IStageManager.class);
+        IStageWrapper wrapper = (IStageWrapper) StubInvocationHandler.stageHandler("S", null)
+                .put("getSink", sink).proxy(IStageWrapper.class);
+        return new AdaptiveConcurrencyLimiter(mgr, wrapper, algorithm);
+    }
+
+    private static class Event extends TimeStampedEvent {
+    }
+
+    private static class RefusePredicate implements IEnqueuePredicate {
+        public boolean accept(IElement element) {
+            return false;
+        }
+
+        public void blockingAccept(IElement element) {
+        }
+
+        public boolean acceptMany(List elements) {
+            return false;
+        }
+    }
+
+    public static class ThrowingHandler implements IEventHandler {
+        static int calls;
+
+        public void init(IConfigData config) {
+        }
+
+        public void destroy() {
+        }
+
+        public void handleEvent(IElement element) {
+            synchronized (ThrowingHandler.class) {
+                calls++;
+                ThrowingHandler.class.notifyAll();
+            }
+            throw new IllegalStateException("Handler failure for testing");
+        }
+
+        public void handleEvents(List events) {
+            for (int i = 0; i < events.size(); i++) handleEvent((IElement) events.get(i));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.jcyclone.core.rtc;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Tests that {@link AdmissionControlledSink} reports rejected enqueues
+ * as JFR events.
+ */
+public class AdmissionControlledSinkTest extends TestCase {
+    public AdmissionControlledSinkTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AdmissionControlledSinkTest.class);
+    }
+
+    public void testRejectEvents() throws Exception {
+        LinkedBlockingQueue q = new LinkedBlockingQueue(1);
+        AdmissionControlledSink sink = new AdmissionControlledSink("S", q);
+
+        Recording rec = new Recording();
+        rec.enable("org.jcyclone.QueueReject");
+        rec.start();
+        sink.enqueue(new BufferElement(1));
+        try {
+            sink.enqueue(new BufferElement(1));
+            fail("expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        sink.setEnqueuePredicate(new IEnqueuePredicate() {
+            public boolean accept(IElement element) {
+                return false;
+            }
+
+            public void blockingAccept(IElement element) {
+            }
+
+            public boolean acceptMany(List elements) {
+                return false;
+            }
+        });
+        assertFalse(sink.enqueueLossy(new BufferElement(1)));
+        rec.stop();
+
+        File f = File.createTempFile("reject", ".jfr");
+        f.deleteOnExit();
+        rec.dump(f.toPath());
+        rec.close();
+
+        List events = RecordingFile.readAllEvents(f.toPath());
+        assertEquals(2, events.size());
+        RecordedEvent full = (RecordedEvent) events.get(0);
+        assertEquals("S", full.getString("stage"));
+        assertEquals("full", full.getString("reason"));
+        assertEquals(1, full.getInt("queueSize"));
+        assertEquals("predicate", ((RecordedEvent) events.get(1)).getString("reason"));
+    }
+}
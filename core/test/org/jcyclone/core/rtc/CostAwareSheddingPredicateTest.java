@@ -0,0 +1,157 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.internal.IStageStats;
+import org.jcyclone.core.internal.StageStats;
+import org.jcyclone.core.internal.StubInvocationHandler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the per-type event costs recorded by {@link StageStats}, and
+ * that {@link CostAwareSheddingPredicate} sheds the most expensive work
+ * per unit of value first, and only while the stage is overloaded.
+ */
+public class CostAwareSheddingPredicateTest extends TestCase {
+    // Expensive class 0 and cheap class 1 events, in msec
+    private static final double COSTS[] = {10.0, 0.1};
+
+    private double utilization;
+
+    public CostAwareSheddingPredicateTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CostAwareSheddingPredicateTest.class);
+    }
+
+    public void testEventCosts() {
+        StageStats stats = (StageStats) StubInvocationHandler.stage("S", null).getStats();
+        assertEquals(-1.0, stats.getEventCost(new Event(0)), 0);
+        assertEquals(-1.0, stats.getMeanEventCost(), 0);
+
+        List batch = new ArrayList();
+        batch.add(new Event(0));
+        batch.add(new Event(0));
+        stats.recordEventCosts(batch, 20000000L);
+        batch.clear();
+        batch.add(new Event(1));
+        batch.add(new BufferElement(1));
+        stats.recordEventCosts(batch, 400000L);
+
+        assertEquals(10.0, stats.getEventCost(new Event(0)), 1e-9);
+        assertEquals(0.2, stats.getEventCost(new Event(1)), 1e-9);
+        // Events without a class are typed by their Java class
+        assertEquals(0.2, stats.getEventCost(new BufferElement(2)), 1e-9);
+        assertEquals(-1.0, stats.getEventCost(new Event(2)), 0);
+        assertTrue(stats.getMeanEventCost() > 0.2 && stats.getMeanEventCost() < 10.0);
+
+        // Utilization of a thread busy all the time
+        for (int i = 0; i < 200; i++) stats.recordServiceRate(1, 1000);
+        assertTrue("util " + stats.getUtilization(), stats.getUtilization() > 0.9);
+
+        // ...also when its batches take well under a msec
+        stats.reset();
+        for (int i = 0; i < 200; i++) {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < 50000) ;
+            stats.recordServiceRate(1, 0, System.nanoTime() - start);
+        }
+        assertTrue("util " + stats.getUtilization(), stats.getUtilization() > 0.5);
+    }
+
+    public void testShedExpensiveFirst() {
+        CostAwareSheddingPredicate pred = newPredicate();
+        utilization = 1.0;
+        for (int i = 0; i < 10; i++) offer(pred, 1000);
+        assertEquals(0.5, pred.getShedFraction(), 1e-9);
+
+        long rejected = pred.getRejected();
+        int accepted[] = offer(pred, 1000);
+        // Class 0 is 99% of the work, so it takes all the shedding
+        assertEquals(1000, accepted[1]);
+        double shed = 1.0 - accepted[0] / 1000.0;
+        assertTrue("shed " + shed, shed > 0.45 && shed < 0.55);
+        assertEquals(1000 - accepted[0], pred.getRejected() - rejected);
+
+        // Once the stage is no longer overloaded, shedding stops
+        utilization = 0.5;
+        for (int i = 0; i < 20; i++) offer(pred, 1000);
+        assertEquals(0.0, pred.getShedFraction(), 0);
+        accepted = offer(pred, 1000);
+        assertEquals(1000, accepted[0]);
+        assertEquals(1000, accepted[1]);
+    }
+
+    public void testValue() {
+        CostAwareSheddingPredicate pred = newPredicate();
+        // Class 0 is now cheaper per unit of value than class 1
+        pred.setValue(0, 1000.0);
+        utilization = 1.0;
+        offer(pred, 1000);
+        int accepted[] = offer(pred, 1000);
+        // Class 1 is shed entirely, and class 0 makes up the rest
+        assertEquals(0, accepted[1]);
+        assertTrue("accepted " + accepted[0], accepted[0] > 900 && accepted[0] < 1000);
+    }
+
+    public void testUnknownCost() {
+        CostAwareSheddingPredicate pred = newPredicate();
+        utilization = 1.0;
+        for (int i = 0; i < 20; i++) offer(pred, 100);
+        assertTrue(pred.accept(new Event(5)));
+        assertTrue(pred.accept(new BufferElement(1)));
+    }
+
+    private CostAwareSheddingPredicate newPredicate() {
+        IStageStats stats = (IStageStats) StubInvocationHandler.newProxy(IStageStats.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getUtilization")) return Double.valueOf(utilization);
+                if (method.getName().equals("getEventCost")) {
+                    Object ev = args[0];
+                    if (ev instanceof Event && ((Event) ev).theclass < COSTS.length) {
+                        return Double.valueOf(COSTS[((Event) ev).theclass]);
+                    }
+                    return Double.valueOf(-1);
+                }
+                return null;
+            }
+        });
+        return new CostAwareSheddingPredicate(stats, "S", 0.9, 1000000, 0.95);
+    }
+
+    // Offer n events of each class, then update; returns the accepted counts
+    private static int[] offer(CostAwareSheddingPredicate pred, int n) {
+        int accepted[] = new int[COSTS.length];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < COSTS.length; c++) {
+                if (pred.accept(new Event(c))) accepted[c]++;
+            }
+        }
+        pred.update();
+        return accepted;
+    }
+
+    private static class Event implements IClassEvent {
+        private int theclass;
+
+        Event(int theclass) {
+            this.theclass = theclass;
+        }
+
+        public int getRequestClass() {
+            return theclass;
+        }
+
+        public void setRequestClass(int theclass) {
+            this.theclass = theclass;
+        }
+    }
+}
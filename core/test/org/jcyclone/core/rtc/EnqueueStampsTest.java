@@ -0,0 +1,96 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class EnqueueStampsTest extends TestCase {
+
+    public void testStampAndRemove() {
+        EnqueueStamps stamps = new EnqueueStamps();
+        Object a = new Object();
+        Object b = new Object();
+        stamps.stamp(a, 10);
+        stamps.stamp(b, 20);
+        stamps.stamp(a, 30);
+        assertEquals(2, stamps.size());
+        assertEquals(30, stamps.get(a));
+        assertEquals(30, stamps.remove(a));
+        assertEquals(0, stamps.remove(a));
+        assertEquals(0, stamps.get(a));
+        assertEquals(20, stamps.get(b));
+        assertEquals(1, stamps.size());
+    }
+
+    public void testStampAll() {
+        EnqueueStamps stamps = new EnqueueStamps();
+        List elements = new ArrayList();
+        for (int i = 0; i < 1000; i++) elements.add(new Object());
+        stamps.stampAll(elements, 5);
+        assertEquals(1000, stamps.size());
+        for (int i = 0; i < elements.size(); i++) assertEquals(5, stamps.get(elements.get(i)));
+        stamps.removeAll(elements.subList(0, 500));
+        assertEquals(500, stamps.size());
+        for (int i = 0; i < 500; i++) assertEquals(0, stamps.get(elements.get(i)));
+        for (int i = 500; i < 1000; i++) assertEquals(5, stamps.get(elements.get(i)));
+    }
+
+    /**
+     * Removes elements in random order, so that entries are shifted
+     * back over the gaps, and checks that none of the rest is lost.
+     */
+    public void testRandomRemoval() {
+        EnqueueStamps stamps = new EnqueueStamps();
+        Random random = new Random(42);
+        List live = new ArrayList();
+        for (int round = 0; round < 20000; round++) {
+            if (live.isEmpty() || random.nextInt(3) > 0) {
+                Object o = new Object();
+                stamps.stamp(o, round + 1);
+                live.add(new Object[]{o, new Long(round + 1)});
+            } else {
+                Object entry[] = (Object[]) live.remove(random.nextInt(live.size()));
+                assertEquals(((Long) entry[1]).longValue(), stamps.remove(entry[0]));
+            }
+        }
+        assertEquals(live.size(), stamps.size());
+        for (int i = 0; i < live.size(); i++) {
+            Object entry[] = (Object[]) live.get(i);
+            assertEquals(((Long) entry[1]).longValue(), stamps.get(entry[0]));
+        }
+    }
+
+    public void testConcurrent() throws Exception {
+        final EnqueueStamps stamps = new EnqueueStamps();
+        final Throwable failure[] = new Throwable[1];
+        Thread threads[] = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Object batch[] = new Object[64];
+                        for (int round = 0; round < 2000; round++) {
+                            for (int i = 0; i < batch.length; i++) {
+                                batch[i] = new Object();
+                                stamps.stamp(batch[i], id * 100000L + i + 1);
+                            }
+                            for (int i = 0; i < batch.length; i++) {
+                                assertEquals(id * 100000L + i + 1, stamps.remove(batch[i]));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) threads[t].join();
+        if (failure[0] != null) throw new RuntimeException(failure[0].toString());
+        assertEquals(0, stamps.size());
+    }
+
+}
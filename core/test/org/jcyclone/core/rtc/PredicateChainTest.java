@@ -0,0 +1,161 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StubInvocationHandler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link PredicateChain} evaluates its predicates in order,
+ * flattens nested chains, and reports which predicate rejected an
+ * element through {@link AdmissionControlledSink}.
+ */
+public class PredicateChainTest extends TestCase {
+
+    public PredicateChainTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PredicateChainTest.class);
+    }
+
+    public void testChain() throws Exception {
+        LinkedBlockingQueue queue = new LinkedBlockingQueue();
+        PredicateChain inner = new PredicateChain(
+            new IEnqueuePredicate[]{new ClassFilterPredicate(new int[]{0, 2})},
+            new String[]{"classfilter"});
+        PredicateChain chain = new PredicateChain(
+            new IEnqueuePredicate[]{inner, new RateLimitingPredicate(queue, 0.001, 2)},
+            new String[]{"inner", "rate"});
+        assertEquals(2, chain.size());
+        assertEquals("inner.classfilter", chain.getName(0));
+        assertEquals("rate", chain.getName(1));
+
+        AdmissionControlledSink sink = new AdmissionControlledSink("S", queue);
+        sink.setEnqueuePredicate(chain);
+        // The class filter rejects first, without taking a token
+        assertFalse(sink.enqueueLossy(new Event(1)));
+        assertTrue(sink.enqueueLossy(new Event(0)));
+        assertTrue(sink.enqueueLossy(new Event(2)));
+        try {
+            sink.enqueue(new Event(0));
+            fail();
+        } catch (SinkFullException e) {
+            assertEquals("predicate rate", e.getMessage());
+        }
+        try {
+            sink.enqueue(new Event(3));
+            fail();
+        } catch (SinkFullException e) {
+            assertEquals("predicate inner.classfilter", e.getMessage());
+        }
+        List batch = new ArrayList();
+        batch.add(new Event(0));
+        batch.add(new Event(5));
+        try {
+            sink.enqueueMany(batch);
+            fail();
+        } catch (SinkFullException e) {
+            assertEquals("predicate inner.classfilter", e.getMessage());
+        }
+        assertEquals(4, chain.getRejected(0));
+        assertEquals(1, chain.getRejected(1));
+        assertEquals(2, queue.size());
+
+        // A plain predicate is reported as such
+        sink.setEnqueuePredicate(new ClassFilterPredicate(new int[]{0}));
+        try {
+            sink.enqueue(new Event(1));
+            fail();
+        } catch (SinkFullException e) {
+            assertEquals("predicate", e.getMessage());
+        }
+    }
+
+    public void testConfigure() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putString("stages.S.admission.predicates", "classfilter rate custom");
+        config.putString("stages.S.admission.classfilter.classes", "1");
+        config.putString("stages.S.admission.rate.rate", "0.001");
+        config.putString("stages.S.admission.rate.depth", "1");
+        config.putString("global.admission.custom.class", RejectAll.class.getName());
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config).proxy(IStageManager.class);
+        IStageWrapper stage = StubInvocationHandler.stage("S", null);
+        PredicateChain chain = PredicateChain.configure(mgr, stage, new LinkedBlockingQueue());
+        assertEquals(3, chain.size());
+        assertTrue(chain.getPredicate(0) instanceof ClassFilterPredicate);
+        assertTrue(chain.getPredicate(1) instanceof RateLimitingPredicate);
+        assertTrue(chain.getPredicate(2) instanceof RejectAll);
+        assertEquals(0, chain.test(new Event(0)));
+        assertEquals(2, chain.test(new Event(1)));
+        assertEquals(1, chain.test(new Event(1)));
+
+        config.putString("stages.S.admission.predicates", "");
+        assertNull(PredicateChain.configure(mgr, stage, new LinkedBlockingQueue()));
+    }
+
+    public void testConfigureShedding() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putString("stages.S.admission.predicates", "rate");
+        config.putString("stages.S.admission.rate.rate", "1000");
+        config.putString("stages.S.admission.rate.depth", "10");
+        config.putString("stages.S.admission.shedding.enable", "true");
+        config.putString("global.admission.shedding.threshold", "0.9");
+        config.putString("global.admission.shedding.interval", "100");
+        config.putString("global.admission.shedding.maxShed", "0.5");
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config).proxy(IStageManager.class);
+        IStageWrapper stage = StubInvocationHandler.stage("S", null);
+        PredicateChain chain = PredicateChain.configure(mgr, stage, new LinkedBlockingQueue());
+        assertEquals(2, chain.size());
+        assertTrue(chain.getPredicate(0) instanceof RateLimitingPredicate);
+        assertTrue(chain.getPredicate(1) instanceof CostAwareSheddingPredicate);
+        assertEquals("shedding", chain.getName(1));
+
+        // Not added twice when the list names it
+        config.putString("stages.S.admission.predicates", "shedding rate");
+        chain = PredicateChain.configure(mgr, stage, new LinkedBlockingQueue());
+        assertEquals(2, chain.size());
+        assertTrue(chain.getPredicate(0) instanceof CostAwareSheddingPredicate);
+    }
+
+    public static class RejectAll implements IEnqueuePredicate {
+        public boolean accept(IElement element) {
+            return false;
+        }
+
+        public void blockingAccept(IElement element) {
+        }
+
+        public boolean acceptMany(List elements) {
+            return false;
+        }
+    }
+
+    private static class Event implements IClassEvent {
+        private int theclass;
+
+        Event(int theclass) {
+            this.theclass = theclass;
+        }
+
+        public int getRequestClass() {
+            return theclass;
+        }
+
+        public void setRequestClass(int theclass) {
+            this.theclass = theclass;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the accuracy of {@link QuantileSketch} against sorted samples,
+ * and that it loses no samples when updated concurrently.
+ */
+public class QuantileSketchTest extends TestCase {
+
+    public QuantileSketchTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(QuantileSketchTest.class);
+    }
+
+    public void testAccuracy() {
+        QuantileSketch sketch = new QuantileSketch(0.01, 0);
+        Random rand = new Random(42);
+        long samples[] = new long[10000];
+        for (int i = 0; i < samples.length; i++) {
+            // Exponentially distributed response times, mean 50ms
+            samples[i] = 1 + (long) (-50 * Math.log(1 - rand.nextDouble()));
+            sketch.add(samples[i]);
+        }
+        Arrays.sort(samples);
+        double qs[] = {0.1, 0.5, 0.9, 0.99};
+        for (int i = 0; i < qs.length; i++) {
+            double expected = samples[(int) (qs[i] * samples.length)];
+            double actual = sketch.quantile(qs[i]);
+            assertEquals("q=" + qs[i], expected, actual, expected * 0.011);
+        }
+        assertEquals(10000.0, sketch.count(), 0);
+    }
+
+    public void testEmptyAndZero() {
+        QuantileSketch sketch = new QuantileSketch(0.01, 0);
+        assertEquals(0.0, sketch.quantile(0.9), 0);
+        for (int i = 0; i < 10; i++) sketch.add(0);
+        assertEquals(0.0, sketch.quantile(0.9), 0);
+        sketch.add(1000);
+        assertEquals(1000.0, sketch.quantile(1.0), 10);
+    }
+
+    public void testAge() throws Exception {
+        QuantileSketch sketch = new QuantileSketch(0.01, 0);
+        for (int i = 0; i < 100; i++) sketch.add(1000);
+        sketch.age();
+        assertEquals(0.0, sketch.count(), 0);
+        sketch.add(10);
+        assertEquals(10.0, sketch.quantile(0.9), 0.1);
+
+        // With a half-life, old samples lose weight but still count
+        sketch = new QuantileSketch(0.01, 100);
+        for (int i = 0; i < 100; i++) sketch.add(1000);
+        Thread.sleep(300);
+        sketch.age();
+        double count = sketch.count();
+        assertTrue("count " + count, count > 1 && count < 25);
+        for (int i = 0; i < 100; i++) sketch.add(10);
+        assertEquals(10.0, sketch.quantile(0.5), 0.1);
+        assertEquals(1000.0, sketch.quantile(0.99), 10);
+    }
+
+    public void testConcurrentAdd() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch(0.01, 1000);
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = (t + 1) * 100;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) sketch.add(base);
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) threads[t].join();
+        assertEquals(400000.0, sketch.count(), 0);
+        assertEquals(200.0, sketch.quantile(0.3), 2);
+        assertEquals(400.0, sketch.quantile(0.9), 4);
+    }
+}
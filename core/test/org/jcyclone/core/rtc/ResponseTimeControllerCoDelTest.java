@@ -0,0 +1,158 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StubInvocationHandler;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link ResponseTimeControllerCoDel} sheds events only once
+ * the sojourn time has stayed above the target for an interval, speeds
+ * up while the queue stands, and stops once it drains.
+ */
+public class ResponseTimeControllerCoDelTest extends TestCase {
+    // The simulated clock runs behind the real one, which the predicate uses
+    private static final long T0 = System.currentTimeMillis() - 2000;
+
+    private ResponseTimeControllerCoDel codel;
+    private AdmissionControlledSink sink;
+    private LinkedBlockingQueue queue;
+
+    public ResponseTimeControllerCoDelTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ResponseTimeControllerCoDelTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        final JCycloneConfig config = new JCycloneConfig();
+        config.putString("global.rtController.codel.target", "5");
+        config.putString("global.rtController.codel.interval", "100");
+        queue = new LinkedBlockingQueue();
+        queue.enqueue(new BufferElement(1));
+        sink = new AdmissionControlledSink("S", queue);
+        IStageManager mgr = (IStageManager) new StubInvocationHandler("mgr")
+                .put("getConfig", config)
+                .put("getProfiler", new StubInvocationHandler("profiler").proxy(IProfiler.class))
+                .proxy(IStageManager.class);
+        IStageWrapper wrapper = (IStageWrapper) StubInvocationHandler.stageHandler("S", queue)
+                .put("getSink", sink).proxy(IStageWrapper.class);
+        codel = new ResponseTimeControllerCoDel(mgr, wrapper);
+    }
+
+    public void testBelowTarget() {
+        for (long t = T0; t < T0 + 1000; t += 10) {
+            List batch = batch(t, 3, 4);
+            assertEquals(0, codel.filter(batch, queue, t));
+            assertEquals(4, batch.size());
+        }
+        assertFalse(codel.isDropping());
+    }
+
+    public void testStandingQueue() throws Exception {
+        // Sojourn above target, but not yet for an interval
+        assertEquals(0, codel.filter(batch(T0, 50, 4), queue, T0));
+        assertEquals(0, codel.filter(batch(T0 + 50, 50, 4), queue, T0 + 50));
+        assertFalse(codel.isDropping());
+
+        // After an interval the first event is shed
+        List batch = batch(T0 + 100, 50, 4);
+        assertEquals(1, codel.filter(batch, queue, T0 + 100));
+        assertEquals(3, batch.size());
+        assertTrue(codel.isDropping());
+
+        // Drops come faster while the queue stands
+        long lastDrop = T0 + 100, lastGap = Long.MAX_VALUE;
+        int drops = 1;
+        for (long t = T0 + 101; t < T0 + 1000; t++) {
+            if (codel.filter(batch(t, 50, 1), queue, t) > 0) {
+                long gap = t - lastDrop;
+                assertTrue("gap " + gap + " after " + lastGap, gap <= lastGap);
+                lastGap = gap;
+                lastDrop = t;
+                drops++;
+            }
+        }
+        assertTrue("drops " + drops, drops > 10);
+        assertTrue(lastGap < 100);
+        assertEquals(drops, codel.getDropped());
+
+        // While dropping, enqueues take the drops which are due, until
+        // the drop schedule catches up with the clock
+        TimeStampedEvent ev = new TimeStampedEvent() {
+        };
+        int rejected = 0;
+        while (true) {
+            try {
+                sink.enqueue(ev);
+                break;
+            } catch (SinkFullException e) {
+                rejected++;
+                assertTrue(rejected < 10000);
+            }
+        }
+        assertTrue(rejected > 0);
+        assertEquals(rejected, codel.getRejected());
+        assertTrue(codel.getStamps().remove(ev) != 0);
+
+        // Once the sojourn time falls below target, shedding stops
+        long t = T0 + 1000;
+        assertEquals(0, codel.filter(batch(t, 1, 4), queue, t));
+        assertFalse(codel.isDropping());
+        assertEquals(0, codel.filter(batch(t + 200, 50, 4), queue, t + 200));
+        assertTrue(codel.getMinSojourn() > 0);
+    }
+
+    public void testUpstreamTimestamp() throws Exception {
+        // Events stamped long ago upstream are timed from their enqueue here
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 3 * codel.getInterval()) {
+            TimeStampedEvent ev = new TimeStampedEvent() {
+            };
+            ev.timestamp = T0 - 60000;
+            sink.enqueue(ev);
+            assertEquals(T0 - 60000, ev.timestamp);
+            List batch = new ArrayList();
+            batch.add(ev);
+            assertEquals(0, codel.filter(batch, queue, System.currentTimeMillis()));
+            Thread.sleep(2);
+        }
+        assertFalse(codel.isDropping());
+        assertTrue(codel.getMinSojourn() < codel.getTarget());
+        assertEquals(0, codel.getStamps().size());
+    }
+
+    public void testDisable() {
+        codel.disable();
+        assertNull(sink.getEnqueuePredicate());
+        for (long t = T0; t < T0 + 1000; t += 10) {
+            assertEquals(0, codel.filter(batch(t, 50, 4), queue, t));
+        }
+        codel.enable();
+        assertNotNull(sink.getEnqueuePredicate());
+    }
+
+    private List batch(long now, long sojourn, int size) {
+        List batch = new ArrayList();
+        for (int i = 0; i < size; i++) {
+            TimeStampedEvent ev = new TimeStampedEvent() {
+            };
+            codel.getStamps().stamp(ev, now - sojourn);
+            batch.add(ev);
+        }
+        return batch;
+    }
+}
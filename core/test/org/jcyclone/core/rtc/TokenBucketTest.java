@@ -0,0 +1,157 @@
+package org.jcyclone.core.rtc;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests {@link TokenBucket} and the rate limiting predicates built on it,
+ * including hierarchical borrowing and accuracy under concurrent use.
+ */
+public class TokenBucketTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    public TokenBucketTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TokenBucketTest.class);
+    }
+
+    public void testBurstAndRefill() {
+        TokenBucket bucket = new TokenBucket(100, 10);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10; i++) assertTrue(bucket.tryAcquire(1, t0));
+        assertFalse(bucket.tryAcquire(1, t0));
+        // One token every 10ms
+        assertFalse(bucket.tryAcquire(1, t0 + 9 * MS));
+        assertTrue(bucket.tryAcquire(1, t0 + 10 * MS));
+        assertFalse(bucket.tryAcquire(1, t0 + 10 * MS));
+        assertFalse(bucket.tryAcquire(5, t0 + 50 * MS));
+        assertTrue(bucket.tryAcquire(4, t0 + 50 * MS));
+        // Never more than the depth
+        assertFalse(bucket.tryAcquire(11, t0 + 10000 * MS));
+        assertTrue(bucket.tryAcquire(10, t0 + 10000 * MS));
+
+        bucket.setRate(-1.0);
+        for (int i = 0; i < 1000; i++) assertTrue(bucket.tryAcquire());
+    }
+
+    public void testAcquireAndRelease() {
+        TokenBucket bucket = new TokenBucket(100, 10);
+        long t0 = System.nanoTime();
+        // Forced acquisition empties the bucket but does not go into debt
+        bucket.acquire(50, t0);
+        assertFalse(bucket.tryAcquire(1, t0));
+        assertTrue(bucket.tryAcquire(1, t0 + 10 * MS));
+        bucket.release(1);
+        assertTrue(bucket.tryAcquire(1, t0 + 10 * MS));
+
+        bucket.setRate(0.001);
+        bucket.drain();
+        assertEquals(0, bucket.getTokens());
+    }
+
+    public void testPredicate() {
+        RateLimitingPredicate pred = new RateLimitingPredicate(new LinkedBlockingQueue(), 0.001, 3);
+        assertEquals(3, pred.getBucketSize());
+        List two = new ArrayList();
+        two.add(new Event(0));
+        two.add(new Event(0));
+        assertTrue(pred.acceptMany(two));
+        assertTrue(pred.accept(new Event(0)));
+        assertFalse(pred.accept(new Event(0)));
+        assertFalse(pred.acceptMany(two));
+        pred.setTargetRate(-1.0);
+        assertTrue(pred.accept(new Event(0)));
+    }
+
+    public void testHierarchical() {
+        MulticlassRateLimitingPredicate pred =
+            new MulticlassRateLimitingPredicate(new LinkedBlockingQueue(), 2, 0.001, 2);
+        // Without a global bucket, each class has its own tokens
+        assertTrue(pred.accept(new Event(0)));
+        assertTrue(pred.accept(new Event(0)));
+        assertFalse(pred.accept(new Event(0)));
+        assertTrue(pred.accept(new Event(1)));
+
+        pred = new MulticlassRateLimitingPredicate(new LinkedBlockingQueue(), 2, 0.001, 2);
+        pred.setGlobalRate(0.001, 5);
+        // Class 0 uses its own two tokens, which are charged to the global
+        // bucket, then borrows the remaining three
+        for (int i = 0; i < 5; i++) assertTrue(pred.accept(new Event(0)));
+        assertFalse(pred.accept(new Event(0)));
+        assertEquals(3, pred.getBorrowed(0));
+        // Class 1 still has its assured tokens
+        assertTrue(pred.accept(new Event(1)));
+        assertTrue(pred.accept(new Event(1)));
+        assertFalse(pred.accept(new Event(1)));
+        assertEquals(0, pred.getBorrowed(1));
+
+        // A rejected batch returns its tokens
+        pred = new MulticlassRateLimitingPredicate(new LinkedBlockingQueue(), 2, 0.001, 1);
+        pred.setGlobalRate(0.001, 2);
+        List batch = new ArrayList();
+        batch.add(new Event(0));
+        batch.add(new Event(0));
+        batch.add(new Event(0));
+        assertFalse(pred.acceptMany(batch));
+        assertEquals(0, pred.getBorrowed(0));
+        assertEquals(1, pred.getBucketSize(0));
+        // The global token charged for the assured element is kept
+        batch.remove(0);
+        batch.remove(0);
+        assertTrue(pred.acceptMany(batch));
+        assertEquals(0, pred.getBorrowed(0));
+        assertFalse(pred.accept(new Event(0)));
+    }
+
+    public void testConcurrent() throws Exception {
+        final double rate = 100000;
+        final int depth = 1000;
+        final TokenBucket bucket = new TokenBucket(rate, depth);
+        final AtomicLong accepted = new AtomicLong();
+        final long duration = 500 * MS;
+        final long start = System.nanoTime();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    while (System.nanoTime() - start < duration) {
+                        if (bucket.tryAcquire()) n++;
+                    }
+                    accepted.addAndGet(n);
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) threads[t].join();
+        double elapsed = (System.nanoTime() - start) / 1.0e9;
+        long max = (long) (rate * elapsed) + depth;
+        assertTrue("accepted " + accepted + " max " + max, accepted.get() <= max);
+        assertTrue("accepted " + accepted + " max " + max, accepted.get() >= 0.8 * rate * 0.5);
+    }
+
+    private static class Event implements IClassEvent {
+        private int theclass;
+
+        Event(int theclass) {
+            this.theclass = theclass;
+        }
+
+        public int getRequestClass() {
+            return theclass;
+        }
+
+        public void setRequestClass(int theclass) {
+            this.theclass = theclass;
+        }
+    }
+}
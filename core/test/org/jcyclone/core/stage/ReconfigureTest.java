@@ -0,0 +1,137 @@
+package org.jcyclone.core.stage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.MapConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.queue.BlockingQueueProxy;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.rtc.CoDelPredicate;
+import org.jcyclone.core.rtc.IEnqueuePredicate;
+
+import java.util.List;
+
+/**
+ * Tests that {@link IStageManager#reconfigure} replaces the queue of a
+ * running stage without losing its pending events, and applies a new
+ * queue threshold.
+ */
+public class ReconfigureTest extends TestCase {
+
+    private static final Object lock = new Object();
+    private static boolean open;
+    private static int handled;
+
+    public ReconfigureTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReconfigureTest.class);
+    }
+
+    public void testReconfigure() throws Exception {
+        open = false;
+        handled = 0;
+        JCyclone jc = new JCyclone(config(null));
+        try {
+            IStageManager mgr = jc.getManager();
+            IStage stage = mgr.getStage("S");
+            ISink sink = stage.getSink();
+            IStageWrapper wrapper = ((Stage) stage).getWrapper();
+            assertEquals(Integer.MAX_VALUE, sink.capacity());
+
+            // The handler holds the first event; the others stay in the queue
+            sink.enqueue(new BufferElement(1));
+            Thread.sleep(200);
+            for (int i = 0; i < 3; i++) sink.enqueue(new BufferElement(1));
+            assertEquals(3, sink.size());
+
+            MapConfig config = config("4");
+            config.putString("stages.S.queue.type", "linked");
+            mgr.reconfigure(config);
+            assertEquals("4", mgr.getConfig().getString("stages.S.queueThreshold"));
+            assertTrue(((BlockingQueueProxy) wrapper.getSource()).getQueue() instanceof LinkedBlockingQueue);
+            assertEquals(4, sink.capacity());
+
+            synchronized (lock) {
+                open = true;
+                lock.notifyAll();
+                long end = System.currentTimeMillis() + 5000;
+                while (handled < 4 && System.currentTimeMillis() < end) lock.wait(100);
+            }
+            assertEquals(4, handled);
+        } finally {
+            synchronized (lock) {
+                open = true;
+                lock.notifyAll();
+            }
+            jc.stop();
+            jc.dispose();
+        }
+    }
+
+    public void testKeepControllerPredicate() throws Exception {
+        open = true;
+        MapConfig config = config(null);
+        config.putString("stages.S.rtController.enable", "true");
+        config.putString("stages.S.rtController.type", "codel");
+        JCyclone jc = new JCyclone(config);
+        try {
+            IStageManager mgr = jc.getManager();
+            IStageWrapper wrapper = ((Stage) mgr.getStage("S")).getWrapper();
+            IEnqueuePredicate pred = wrapper.getSink().getEnqueuePredicate();
+            assertTrue(pred instanceof CoDelPredicate);
+
+            config = config("4");
+            config.putString("stages.S.rtController.enable", "true");
+            config.putString("stages.S.rtController.type", "codel");
+            mgr.reconfigure(config);
+            assertSame(pred, wrapper.getSink().getEnqueuePredicate());
+        } finally {
+            jc.stop();
+            jc.dispose();
+        }
+    }
+
+    private static MapConfig config(String threshold) {
+        MapConfig config = new MapConfig();
+        config.putString("stages.S.class", GateHandler.class.getName());
+        config.putString("stages.S.threadPool.maxThreads", "1");
+        if (threshold != null) config.putString("stages.S.queueThreshold", threshold);
+        return config;
+    }
+
+    public static class GateHandler implements IEventHandler {
+        public void init(IConfigData config) {
+        }
+
+        public void destroy() {
+        }
+
+        public void handleEvent(IElement element) {
+            synchronized (lock) {
+                while (!open) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                handled++;
+                lock.notifyAll();
+            }
+        }
+
+        public void handleEvents(List events) {
+            for (int i = 0; i < events.size(); i++) handleEvent((IElement) events.get(i));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jcyclone.core.stage;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.StubInvocationHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that {@link StageDependencyRunner} runs a stage only after the
+ * stages it depends on, runs independent stages concurrently, and
+ * completes in spite of cyclic dependencies.
+ */
+public class StageDependencyRunnerTest extends TestCase {
+
+    public StageDependencyRunnerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StageDependencyRunnerTest.class);
+    }
+
+    public void testDependencyOrder() throws Exception {
+        JCycloneConfig config = new JCycloneConfig();
+        config.putString("stages.C.dependsOn", "A B");
+        config.putString("stages.B.dependsOn", "A unknown");
+        config.putString("stages.D.dependsOn", "D");
+        final List order = Collections.synchronizedList(new ArrayList());
+        List stages = stages(new String[]{"C", "B", "A", "D"});
+
+        for (int threads = 1; threads <= 4; threads += 3) {
+            order.clear();
+            new StageDependencyRunner(config, threads).run(stages, new StageDependencyRunner.Task() {
+                public void run(IStageWrapper stage) {
+                    order.add(stage.getName());
+                }
+            });
+            assertEquals(4, order.size());
+            assertTrue(order.indexOf("A") < order.indexOf("B"));
+            assertTrue(order.indexOf("B") < order.indexOf("C"));
+            assertTrue(order.contains("D"));
+        }
+    }
+
+    public void testConcurrent() throws Exception {
+        final Object lock = new Object();
+        final int running[] = new int[2];
+        List stages = stages(new String[]{"A", "B", "C", "D"});
+        new StageDependencyRunner(new JCycloneConfig(), 4).run(stages, new StageDependencyRunner.Task() {
+            public void run(IStageWrapper stage) {
+                synchronized (lock) {
+                    running[0]++;
+                    running[1] = Math.max(running[1], running[0]);
+                }
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                synchronized (lock) {
+                    running[0]--;
+                }
+            }
+        });
+        assertEquals(0, running[0]);
+        assertTrue("max running " + running[1], running[1] > 1);
+    }
+
+    public void testCycle() throws Exception {
+        JCycloneConfig config = new JCycloneConfig();
+        config.putString("stages.A.dependsOn", "C");
+        config.putString("stages.B.dependsOn", "A");
+        config.putString("stages.C.dependsOn", "B");
+        config.putString("stages.D.dependsOn", "C");
+        final List order = Collections.synchronizedList(new ArrayList());
+        new StageDependencyRunner(config, 2).run(stages(new String[]{"A", "B", "C", "D"}),
+            new StageDependencyRunner.Task() {
+                public void run(IStageWrapper stage) {
+                    order.add(stage.getName());
+                }
+            });
+        // The cycle is broken at A
+        assertEquals("[A, B, C, D]", order.toString());
+    }
+
+    private static List stages(String names[]) {
+        List l = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            l.add(StubInvocationHandler.stage(names[i], null));
+        }
+        return l;
+    }
+}
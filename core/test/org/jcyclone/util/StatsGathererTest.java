@@ -0,0 +1,78 @@
+package org.jcyclone.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the statistics and percentiles computed by {@link StatsGatherer},
+ * including samples added concurrently by several threads.
+ */
+public class StatsGathererTest extends TestCase {
+
+    public StatsGathererTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StatsGathererTest.class);
+    }
+
+    public void testBuckets() {
+        for (int k = 0; k < 1 << 20; k++) {
+            int idx = StatsGatherer.bucketIndex(k);
+            int start = StatsGatherer.bucketStart(idx);
+            assertTrue(start <= k);
+            assertTrue("bucket of " + k + " starts at " + start, k - start <= k / 100);
+            if (k < 256) assertEquals(k, start);
+        }
+        assertEquals(0, StatsGatherer.bucketIndex(-5));
+        int last = StatsGatherer.bucketIndex(Integer.MAX_VALUE);
+        assertTrue(StatsGatherer.bucketStart(last) > 0);
+    }
+
+    public void testSingleThread() {
+        StatsGatherer sg = new StatsGatherer("single", "S", 1, 10);
+        for (int i = 0; i < 10; i++) sg.add(1000000);
+        for (int i = 1; i <= 100; i++) sg.add(i);
+        assertEquals(100, sg.num());
+        assertEquals(1.0, sg.min(), 0);
+        assertEquals(100.0, sg.max(), 0);
+        assertEquals(50.5, sg.mean(), 1e-9);
+        assertEquals(91.0, sg.percentile(0.9), 0);
+        assertEquals(100, sg.num);
+
+        sg.reset();
+        assertEquals(0, sg.num());
+        sg.add(7);
+        assertEquals(1, sg.num());
+        assertEquals(7.0, sg.percentile(0.5), 0);
+    }
+
+    public void testLargeValues() {
+        StatsGatherer sg = new StatsGatherer("large", "L", 10);
+        for (int i = 1; i <= 1000; i++) sg.add(i * 100);
+        double p = sg.percentile(0.9);
+        assertEquals(90000.0, p, 90000 * 0.01);
+    }
+
+    public void testThreads() throws Exception {
+        final StatsGatherer sg = new StatsGatherer("threads", "T", 1);
+        Thread t[] = new Thread[4];
+        for (int i = 0; i < t.length; i++) {
+            final int base = i * 1000;
+            t[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) sg.add(base + j);
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < t.length; i++) t[i].join();
+        assertEquals(4000, sg.num());
+        assertEquals(0.0, sg.min(), 0);
+        assertEquals(3999.0, sg.max(), 0);
+        assertEquals(1999.5, sg.mean(), 1e-9);
+        assertEquals(2000.0, sg.percentile(0.5), 2000 * 0.01);
+    }
+}
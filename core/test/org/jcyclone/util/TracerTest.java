@@ -0,0 +1,79 @@
+package org.jcyclone.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests that {@link Tracer} reports the time between each event and the
+ * preceeding event, and merges the counts of all threads.
+ */
+public class TracerTest extends TestCase {
+
+    public TracerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TracerTest.class);
+    }
+
+    private static String dump(Tracer tr) {
+        PrintStream err = System.err;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out));
+        try {
+            tr.dump();
+        } finally {
+            System.setErr(err);
+        }
+        return out.toString();
+    }
+
+    public void testDump() throws Exception {
+        Tracer tr = new Tracer("test");
+        for (int j = 0; j < 100; j++) {
+            tr.trace("start", j * 10);
+            tr.trace("end", j * 10 + 4);
+        }
+
+        String lines[] = dump(tr).split("\r?\n");
+        assertEquals("--- Dump of Tracer [test] ---", lines[0]);
+        assertTrue(lines[1], lines[1].startsWith("    init"));
+        assertTrue(lines[2], lines[2].startsWith("    start"));
+        assertTrue(lines[2], lines[2].indexOf("count 100 ") != -1);
+        assertTrue(lines[3], lines[3].endsWith("count 100  usec_per 4"));
+        assertEquals("--- End dump of Tracer [test] ---", lines[4]);
+        assertSame(tr, Tracer.getTracer("test"));
+
+        tr.reset();
+        tr.trace("end");
+        lines = dump(tr).split("\r?\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[2], lines[2].indexOf("count 1 ") != -1);
+    }
+
+    public void testThreads() throws Exception {
+        final Tracer tr = new Tracer("threads");
+        Thread t[] = new Thread[3];
+        for (int i = 0; i < t.length; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        tr.trace("start", j * 10);
+                        tr.trace("end", j * 10 + 4);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < t.length; i++) t[i].join();
+
+        String lines[] = dump(tr).split("\r?\n");
+        assertTrue(lines[2], lines[2].indexOf("count 300 ") != -1);
+        assertTrue(lines[3], lines[3].indexOf("count 300 ") != -1);
+    }
+}
@@ -265,11 +265,11 @@ public class HttpLoad {
 		double max_conn = 0, max_resp = 0, max_cresp = 0;
 		double total_conn = 0, total_resp = 0, total_cresp = 0;
 
-		num_conns = connStats.num;
-		num_comps = respStats.num;
-		max_conn = connStats.maxVal;
-		max_resp = respStats.maxVal;
-		max_cresp = combinedRespStats.maxVal;
+		num_conns = connStats.num();
+		num_comps = respStats.num();
+		max_conn = connStats.max();
+		max_resp = respStats.max();
+		max_cresp = combinedRespStats.max();
 
 		double avg_conn_time = connStats.mean();
 		double avg_resp_time = respStats.mean();
@@ -873,6 +873,7 @@ public class HttpLoad {
 			clientState cs = (clientState) connTbl.get(pkt.getConnection());
 			if (cs == null) {
 				System.err.println("handleEvent: WARNING: No clientState found for " + pkt.getConnection());
+				pkt.release();
 				return;
 			}
 
@@ -881,6 +882,9 @@ public class HttpLoad {
 			} catch (IOException ioe) {
 				System.err.println("WARNING: Got IOException from handlePacket: " + ioe);
 				ioe.printStackTrace();
+			} finally {
+				// The data has been copied by handlePacket
+				pkt.release();
 			}
 
 		} else if (qel instanceof SinkClosedEvent) {
@@ -127,6 +127,8 @@ public class HttpLoadThreaded extends Thread {
 	private boolean firstConnection;
 
 	private static StatsGatherer connStats, respStats, combinedRespStats;
+	private static StatsGatherer statSets[][];
+	private static int curStats;
 	private long last_bench_time;
 
 	// Used to format numbers for URL generation
@@ -247,12 +249,25 @@ public class HttpLoadThreaded extends Thread {
 	 */
 
 	private static void resetStats() {
-		connStats = new StatsGatherer("Connect time", "CT", CONN_HIST_BUCKETSIZE);
-		respStats = new StatsGatherer("Response time", "RT", RESP_HIST_BUCKETSIZE);
-		combinedRespStats = new StatsGatherer("Total response time", "CRT", RESP_HIST_BUCKETSIZE);
-//    connStats.reset();
-//    respStats.reset();
-//    combinedRespStats.reset();
+		// Two sets of gatherers take turns, so that the reporter reads one
+		// set while the other fills; each holds per-thread histograms, so
+		// they are created once and reset rather than replaced
+		if (statSets == null) {
+			statSets = new StatsGatherer[2][];
+			for (int i = 0; i < 2; i++) {
+				statSets[i] = new StatsGatherer[]{
+					new StatsGatherer("Connect time", "CT", CONN_HIST_BUCKETSIZE),
+					new StatsGatherer("Response time", "RT", RESP_HIST_BUCKETSIZE),
+					new StatsGatherer("Total response time", "CRT", RESP_HIST_BUCKETSIZE)
+				};
+			}
+		}
+		curStats ^= 1;
+		StatsGatherer set[] = statSets[curStats];
+		for (int i = 0; i < set.length; i++) set[i].reset();
+		connStats = set[0];
+		respStats = set[1];
+		combinedRespStats = set[2];
 	}
 
 	private void doReport() {
@@ -277,11 +292,11 @@ public class HttpLoadThreaded extends Thread {
 			// At this point, we have taken a "snapshot" of the statistics
 		}
 
-		long num_conns = myConnStats.num;
-		long num_comps = myRespStats.num;
-		long max_conn = (long) myConnStats.maxVal;
-		long max_resp = (long) myRespStats.maxVal;
-		long max_cresp = (long) myCombinedRespStats.maxVal;
+		long num_conns = myConnStats.num();
+		long num_comps = myRespStats.num();
+		long max_conn = (long) myConnStats.max();
+		long max_resp = (long) myRespStats.max();
+		long max_cresp = (long) myCombinedRespStats.max();
 		double avg_conn_time = myConnStats.mean();
 		double avg_resp_time = myRespStats.mean();
 		double avg_cresp_time = myCombinedRespStats.mean();
@@ -149,6 +149,8 @@ public class HttpLoadTLS {
 	private static Hashtable connTbl = new Hashtable();
 
 	private static StatsGatherer connStats, respStats, combinedRespStats;
+	private static StatsGatherer statSets[][];
+	private static int curStats;
 	private static int numBenchRuns = 0;
 	private static long bench_t0 = -1, bench_t1 = -1, bench_t2 = -1;
 
@@ -264,9 +266,25 @@ public class HttpLoadTLS {
 	 */
 
 	private static void resetStats() {
-		connStats = new StatsGatherer("Connect time", "CT", CONN_HIST_BUCKETSIZE);
-		respStats = new StatsGatherer("Response time", "RT", RESP_HIST_BUCKETSIZE);
-		combinedRespStats = new StatsGatherer("Total response time", "CRT", RESP_HIST_BUCKETSIZE);
+		// Two sets of gatherers take turns, so that the reporter reads one
+		// set while the other fills; each holds per-thread histograms, so
+		// they are created once and reset rather than replaced
+		if (statSets == null) {
+			statSets = new StatsGatherer[2][];
+			for (int i = 0; i < 2; i++) {
+				statSets[i] = new StatsGatherer[]{
+					new StatsGatherer("Connect time", "CT", CONN_HIST_BUCKETSIZE),
+					new StatsGatherer("Response time", "RT", RESP_HIST_BUCKETSIZE),
+					new StatsGatherer("Total response time", "CRT", RESP_HIST_BUCKETSIZE)
+				};
+			}
+		}
+		curStats ^= 1;
+		StatsGatherer set[] = statSets[curStats];
+		for (int i = 0; i < set.length; i++) set[i].reset();
+		connStats = set[0];
+		respStats = set[1];
+		combinedRespStats = set[2];
 	}
 
 	private void doReport(double secondsPassed) {
@@ -281,13 +299,13 @@ public class HttpLoadTLS {
 
 		resetStats();
 
-		long num_conns = myConnStats.num;
-		long num_comps = myRespStats.num;
+		long num_conns = myConnStats.num();
+		long num_comps = myRespStats.num();
 
 		// XXX: is this cast safe?
-		long max_conn = (long) myConnStats.maxVal;
-		long max_resp = (long) myRespStats.maxVal;
-		long max_cresp = (long) myCombinedRespStats.maxVal;
+		long max_conn = (long) myConnStats.max();
+		long max_resp = (long) myRespStats.max();
+		long max_cresp = (long) myCombinedRespStats.max();
 
 		double avg_conn_time = myConnStats.mean();
 		double avg_resp_time = myRespStats.mean();
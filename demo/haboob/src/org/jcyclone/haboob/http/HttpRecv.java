@@ -27,6 +27,7 @@ package org.jcyclone.haboob.http;
 import org.jcyclone.core.cfg.IConfigData;
 import org.jcyclone.core.event.BufferElement;
 import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.internal.LatencyBudgetController;
 import org.jcyclone.core.profiler.JCycloneProfiler;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
@@ -67,6 +68,7 @@ public class HttpRecv implements IEventHandler, HaboobConst {
 	private String SPECIAL_URL;
 	private String BOTTLENECK_URL;
 	private ITimer timer;
+	private LatencyBudgetController budgetController;
 
 	// Empty class representing timer event
 	class timerEvent implements IElement {
@@ -101,6 +103,11 @@ public class HttpRecv implements IEventHandler, HaboobConst {
 		timer = new JCycloneTimer();
 		timer.registerEvent(TIMER_DELAY, new timerEvent(), mysink);
 
+		// Optional end-to-end admission control
+		if (mgr.getProfiler() instanceof JCycloneProfiler) {
+			budgetController = ((JCycloneProfiler) mgr.getProfiler()).getLatencyBudgetController();
+		}
+
 		SPECIAL_URL = config.getString("specialURL");
 		if (SPECIAL_URL == null) throw new IllegalArgumentException("Must specify specialURL");
 		BOTTLENECK_URL = config.getString("bottleneckURL");
@@ -192,6 +199,12 @@ public class HttpRecv implements IEventHandler, HaboobConst {
 				}
 			}
 
+			// Reject early if the request would miss its latency budget
+			if ((budgetController != null) && !budgetController.admit(req, CACHE_STAGE)) {
+				HttpSend.sendResponse(new HttpResponder(new HttpServiceUnavailableResponse(req, "Request would exceed its latency budget"), req, true));
+				return;
+			}
+
 			// Threshold maximum number of in-flight requests
 			if (maxSimReqs != -1) {
 				synchronized (this) {
@@ -0,0 +1,37 @@
+package org.jcyclone.ext.adisk;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event emitted by the aDisk thread pool for each
+ * file request it processes. As these events are frequent, they are
+ * disabled by default and must be enabled in the JFR settings in use.
+ *
+ * @see AFileTPScheduler
+ */
+@Name("org.jcyclone.aDisk.IO")
+@Label("aDisk I/O")
+@Category({"JCyclone", "aDisk"})
+@Description("Processing of an aDisk file request (read, write, seek, close or flush)")
+@Enabled(false)
+@StackTrace(false)
+public class AFileIOEvent extends jdk.jfr.Event {
+
+	@Label("File")
+	public String file;
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("Bytes")
+	@Description("Number of bytes read or written")
+	@DataAmount
+	public int bytes;
+
+}
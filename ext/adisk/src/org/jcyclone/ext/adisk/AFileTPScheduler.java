@@ -199,14 +199,21 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 		private void processRequest(AFileRequest req) {
 			if (DEBUG) System.err.println(name + " processing request: " + req);
 
+			AFileIOEvent jfrEvent = new AFileIOEvent();
+			jfrEvent.begin();
+			String op;
+			int bytes = 0;
+
 			// Read request
 			if (req instanceof AFileReadRequest) {
+				op = "read";
 				AFileReadRequest rreq = (AFileReadRequest) req;
 				AFileTPImpl impl = (AFileTPImpl) rreq.getImpl();
 				RandomAccessFile raf = impl.raf;
 				BufferElement buf = rreq.buf;
 				try {
 					int c = raf.read(buf.data, buf.offset, buf.size);
+					if (c > 0) bytes = c;
 					if (c == -1) {
 						req.complete(new AFileEOFReached(req));
 					} else if (c < buf.size) {
@@ -222,12 +229,14 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 
 				// Write request
 			} else if (req instanceof AFileWriteRequest) {
+				op = "write";
 				AFileWriteRequest wreq = (AFileWriteRequest) req;
 				AFileTPImpl impl = (AFileTPImpl) wreq.getImpl();
 				RandomAccessFile raf = impl.raf;
 				BufferElement buf = wreq.buf;
 				try {
 					raf.write(buf.data, buf.offset, buf.size);
+					bytes = buf.size;
 					req.complete(new AFileIOCompleted(req, buf.size));
 				} catch (IOException ioe) {
 					req.complete(new AFileIOExceptionOccurred(req, ioe));
@@ -235,6 +244,7 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 
 				// Seek request
 			} else if (req instanceof AFileSeekRequest) {
+				op = "seek";
 				AFileSeekRequest sreq = (AFileSeekRequest) req;
 				AFileTPImpl impl = (AFileTPImpl) sreq.getImpl();
 				RandomAccessFile raf = impl.raf;
@@ -246,6 +256,7 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 
 				// Close request
 			} else if (req instanceof AFileCloseRequest) {
+				op = "close";
 				AFileCloseRequest creq = (AFileCloseRequest) req;
 				AFileTPImpl impl = (AFileTPImpl) creq.getImpl();
 				RandomAccessFile raf = impl.raf;
@@ -258,6 +269,7 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 
 				// Flush request
 			} else if (req instanceof AFileFlushRequest) {
+				op = "flush";
 				// Don't know how to flush an RAF
 				req.complete(new SinkFlushedEvent(req.afile));
 
@@ -265,6 +277,12 @@ class AFileTPScheduler extends TPSScheduler implements IScheduler, IProfilable {
 				throw new Error("AFileTPTM.AFileTPThread.processRequest got bad request: " + req);
 			}
 
+			if (jfrEvent.shouldCommit()) {
+				jfrEvent.file = req.afile.getFilename();
+				jfrEvent.operation = op;
+				jfrEvent.bytes = bytes;
+				jfrEvent.commit();
+			}
 		}
 	}
 
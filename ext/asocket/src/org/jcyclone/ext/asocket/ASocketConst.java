@@ -33,6 +33,11 @@ public interface ASocketConst {
 	 * The size of the internal read buffer in bytes
 	 */
 	public static final int READ_BUFFER_SIZE = 16384;
+	/**
+	 * Number of consecutive small reads after which the read buffer of a
+	 * socket shrinks
+	 */
+	public static final int READ_SHRINK_AFTER = 4;
 	/**
 	 * Indicates whether the reader should copy data into a new buffer
 	 */
@@ -45,6 +50,29 @@ public interface ASocketConst {
 	 * Maximum number of bytes to try writing at once; -1 if no limit
 	 */
 	public static final int MAX_WRITE_LEN = -1;
+	/**
+	 * Maximum number of write reqs on a socket to write in one gathering
+	 * write
+	 */
+	public static final int MAX_GATHER_WRITES = 32;
+	/**
+	 * Number of bytes after which no more write reqs are added to a
+	 * gathering write
+	 */
+	public static final int MAX_GATHER_BYTES = 65536;
+	/**
+	 * Maximum number of bytes of a file to send with one transferTo()
+	 */
+	public static final int MAX_SENDFILE_LEN = 1 << 20;
+	/**
+	 * Maximum delay in milliseconds before retrying to deliver a packet
+	 * refused by a predicate of an empty read sink
+	 */
+	public static final int MAX_READ_RETRY_DELAY = 100;
+	/**
+	 * Number of slots in the wheel of connection timeouts
+	 */
+	public static final int TIMEOUT_WHEEL_SLOTS = 512;
 	/**
 	 * Maximum number of write reqs on a socket to process at once
 	 */
@@ -25,6 +25,7 @@
 package org.jcyclone.ext.asocket;
 
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
 
@@ -86,7 +87,9 @@ public class ASocketInputStream extends MultiByteArrayInputStream {
 	/**
 	 * Add a packet to this ASocketInputStream. Reorders packets internally
 	 * so that bytes will be read from this InputStream according to the
-	 * sequence number order of the packets.
+	 * sequence number order of the packets. The data of the packet is
+	 * copied, so the caller may release a pooled packet once this
+	 * returns; packets held for reordering are retained until copied.
 	 */
 	public synchronized void addPacket(ATcpInPacket pkt) {
 		long sn = pkt.getSequenceNumber();
@@ -104,7 +107,7 @@ public class ASocketInputStream extends MultiByteArrayInputStream {
 			// Assume out of order. Don't treat (sn < nextSeqNum)
 			// differently than (sn > nextSeqNum), since we have
 			// wraparound.
-			outoforder.add(pkt);
+			outoforder.add(pkt.retain());
 		}
 
 		// Push any 'ready' outoforder elements
@@ -113,6 +116,7 @@ public class ASocketInputStream extends MultiByteArrayInputStream {
 			while (first != null && first.seqNum == nextSeqNum) {
 				outoforder.remove(first);
 				addArray(first.getBytes());
+				first.release();
 				nextSeqNum++;
 				// seqNum of 0 is special
 				if (nextSeqNum == 0) nextSeqNum = 1;
@@ -130,6 +134,9 @@ public class ASocketInputStream extends MultiByteArrayInputStream {
 	 */
 	public synchronized void clear() {
 		super.clear();
+		for (Iterator it = outoforder.iterator(); it.hasNext();) {
+			((ATcpInPacket) it.next()).release();
+		}
 		outoforder = new TreeSet(new seqNumComparator());
 	}
 
@@ -30,17 +30,31 @@ import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.cfg.JCycloneConfig;
 import org.jcyclone.core.internal.IScheduler;
 import org.jcyclone.core.internal.ISystemManager;
+import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.SimpleSink;
 import org.jcyclone.core.queue.SinkException;
 import org.jcyclone.core.stage.IStage;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.core.plugin.IPlugin;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.timer.ITimer;
 import org.jcyclone.util.Tracer;
 
+import java.net.InetAddress;
+
 /**
  * The aSocketMgr is an internal class used to provide an interface between
  * the JCyclone runtime and the aSocket library. Applications should not
  * make use of this class.
+ * <p/>
+ * Sockets are served by <tt>global.aSocket.selectors</tt> shards, each
+ * with its own read and write stage, and so its own selectors and
+ * threads. A socket is assigned to a shard when it is accepted or
+ * connected, by hashing the peer address, or, if
+ * <tt>global.aSocket.shardAssignment</tt> is <tt>leastloaded</tt>, to the
+ * shard reading from the fewest sockets.
  *
  * @author Matt Welsh
  */
@@ -50,16 +64,36 @@ public class ASocketMgr implements IPlugin {
 	private static final boolean PROFILE = false;
 
 	private static IScheduler aSocketTM, aSocketRCTM;
-	private static ISink read_sink;
+	private static ISink read_sinks[];
 	private static ISink listen_sink;
-	private static ISink write_sink;
+	private static ISink write_sinks[];
+
+	private static ReadEventHandler read_handlers[];
+	private static WriteEventHandler write_handlers[];
 
-	private static ReadEventHandler read_handler;
+	private static Object shard_lock = new Object();
+	private static boolean leastLoaded;
+	private static int nextShard;
 
 	private static Object init_lock = new Object();
 	private static boolean initialized = false;
 
 	private static ASocketImplFactory factory;
+	private static ReadBufferPool readBufferPool;
+	private static int readBufferMin = ASocketConst.READ_BUFFER_SIZE;
+	private static int readBufferInitial = ASocketConst.READ_BUFFER_SIZE;
+	private static int readBufferMax = ASocketConst.READ_BUFFER_SIZE;
+	private static boolean writeFastPath;
+	private static int writeLowWatermark = -1, writeHighWatermark = -1;
+	private static int timeouts[] = {-1, -1, -1};
+	private static TimeoutWheel timeoutWheel;
+	private static ITimer timer;
+	// Passes the requests posted by the timer to enqueueRequest()
+	private static final ISink delayedRequestSink = new SimpleSink() {
+		public void enqueue(IElement element) {
+			enqueueRequest((ASocketRequest) element);
+		}
+	};
 
 	public static Tracer tracer;
 
@@ -87,36 +121,130 @@ public class ASocketMgr implements IPlugin {
 
 			factory = ASocketImplFactory.getFactory();
 
+			readBufferMin = cfg.getInt("global.aSocket.readBuffer.minSize");
+			readBufferInitial = cfg.getInt("global.aSocket.readBuffer.initialSize");
+			readBufferMax = cfg.getInt("global.aSocket.readBuffer.maxSize");
+
+			writeFastPath = cfg.getBoolean("global.aSocket.writeFastPath");
+			writeHighWatermark = cfg.getInt("global.aSocket.writeBuffer.highWatermark");
+			writeLowWatermark = cfg.getInt("global.aSocket.writeBuffer.lowWatermark");
+			if (writeHighWatermark < 0) {
+				writeHighWatermark = writeLowWatermark = -1;
+			} else if ((writeLowWatermark < 0) || (writeLowWatermark > writeHighWatermark)) {
+				writeLowWatermark = writeHighWatermark / 2;
+			}
+
+			if (cfg.getBoolean("global.aSocket.readBufferPool.enable")) {
+				readBufferPool = new ReadBufferPool(readBufferMin, readBufferMax,
+				    cfg.getInt("global.aSocket.readBufferPool.slabSize"),
+				    cfg.getInt("global.aSocket.readBufferPool.maxSlabs"),
+				    cfg.getBoolean("global.aSocket.readBufferPool.leakDetection"));
+				IProfiler profiler = mgr.getProfiler();
+				if (profiler != null) {
+					profiler.add("aSocket read buffers in use", new IProfilable() {
+						public int profileSize() {
+							return readBufferPool.numInUse();
+						}
+					});
+				}
+			}
+
 			aSocketTM = new ASocketScheduler(mgr);
 			sysmgr.addScheduler("aSocket", aSocketTM);
 
-			ReadEventHandler revh = new ReadEventHandler();
-			read_handler = revh;	// save this for calls to interruptSelect.
-			ASocketStageWrapper rsw;
+			// Connections are spread over a number of shards, each with its
+			// own read and write stages and selectors
+			int nshards = cfg.getInt("global.aSocket.selectors");
+			if (nshards < 1) nshards = 1;
+			String assign = cfg.getString("global.aSocket.shardAssignment");
+			leastLoaded = "leastloaded".equals(assign);
+			if (!leastLoaded && assign != null && !assign.equals("hash")) {
+				System.err.println("aSocketMgr: Warning: Unknown shard assignment " + assign + ", using hash");
+			}
+
+			IScheduler readTM = aSocketTM;
 			if (cfg.getBoolean("global.aSocket.governor.enable")) {
 				aSocketRCTM = new ASocketRCScheduler(mgr);
 				sysmgr.addScheduler("aSocketRCTM", aSocketRCTM);
-				rsw = new ASocketStageWrapper(mgr, "aSocket ReadStage",
-				    revh, new ConfigData(mgr), aSocketRCTM);
-			} else {
-				rsw = new ASocketStageWrapper(mgr, "aSocket ReadStage",
-				    revh, new ConfigData(mgr), aSocketTM);
+				readTM = aSocketRCTM;
 			}
 
-			IStage readStage = sysmgr.createStage(rsw, true);
-			read_sink = readStage.getSink();
+			read_sinks = new ISink[nshards];
+			read_handlers = new ReadEventHandler[nshards];
+			for (int i = 0; i < nshards; i++) {
+				ReadEventHandler revh = new ReadEventHandler();
+				read_handlers[i] = revh;	// save this for calls to interruptSelect.
+				ASocketStageWrapper rsw = new ASocketStageWrapper(mgr, "aSocket ReadStage" + shardSuffix(i),
+				    revh, new ConfigData(mgr), readTM);
+				IStage readStage = sysmgr.createStage(rsw, true);
+				read_sinks[i] = readStage.getSink();
+			}
 
-			ListenEventHandler levh = new ListenEventHandler();
+			final ListenEventHandler levh = new ListenEventHandler();
 			ASocketStageWrapper lsw = new ASocketStageWrapper(mgr, "aSocket ListenStage",
 			    levh, new ConfigData(mgr), aSocketTM);
 			IStage listenStage = sysmgr.createStage(lsw, true);
 			listen_sink = listenStage.getSink();
 
-			WriteEventHandler wevh = new WriteEventHandler();
-			ASocketStageWrapper wsw = new ASocketStageWrapper(mgr, "aSocket WriteStage",
-			    wevh, new ConfigData(mgr), aSocketTM);
-			IStage writeStage = sysmgr.createStage(wsw, true);
-			write_sink = writeStage.getSink();
+			// Connection timeouts are tracked by a wheel which the listen
+			// stage advances
+			timeouts = new int[]{
+				timeout(cfg, "idleRead"), timeout(cfg, "idleWrite"), timeout(cfg, "lifetime")
+			};
+			timer = mgr.getTimer();
+			if (timer != null) {
+				// Wake up the listen stage for each tick
+				ISink tickSink = new SimpleSink() {
+					public void enqueue(IElement element) throws SinkException {
+						listen_sink.enqueue(element);
+						levh.interruptSelect();
+					}
+				};
+				timeoutWheel = new TimeoutWheel(timer, tickSink, cfg.getInt("global.aSocket.timeout.tick"),
+				    ASocketConst.TIMEOUT_WHEEL_SLOTS);
+				IProfiler profiler = mgr.getProfiler();
+				if (profiler != null) {
+					addTimeoutProfile(profiler, "aSocket idle read timeouts", ATcpTimeoutEvent.IDLE_READ);
+					addTimeoutProfile(profiler, "aSocket idle write timeouts", ATcpTimeoutEvent.IDLE_WRITE);
+					addTimeoutProfile(profiler, "aSocket lifetime timeouts", ATcpTimeoutEvent.LIFETIME);
+				}
+			} else {
+				System.err.println("aSocketMgr: Warning: No timer, connection timeouts disabled");
+			}
+
+			write_sinks = new ISink[nshards];
+			write_handlers = new WriteEventHandler[nshards];
+			for (int i = 0; i < nshards; i++) {
+				WriteEventHandler wevh = new WriteEventHandler();
+				write_handlers[i] = wevh;
+				ASocketStageWrapper wsw = new ASocketStageWrapper(mgr, "aSocket WriteStage" + shardSuffix(i),
+				    wevh, new ConfigData(mgr), aSocketTM);
+				IStage writeStage = sysmgr.createStage(wsw, true);
+				write_sinks[i] = writeStage.getSink();
+			}
+
+			IProfiler profiler = mgr.getProfiler();
+			if (profiler != null && nshards > 1) {
+				for (int i = 0; i < nshards; i++) {
+					final SelectSourceIF rss = read_handlers[i].getSelectSource();
+					final SelectSourceIF wss = write_handlers[i].getSelectSource();
+					profiler.add("aSocket shard " + i + " read sockets", new IProfilable() {
+						public int profileSize() {
+							return rss.numRegistered();
+						}
+					});
+					profiler.add("aSocket shard " + i + " write sockets", new IProfilable() {
+						public int profileSize() {
+							return wss.numRegistered();
+						}
+					});
+					profiler.add("aSocket shard " + i + " ready", new IProfilable() {
+						public int profileSize() {
+							return rss.numActive() + wss.numActive();
+						}
+					});
+				}
+			}
 
 			initialized = true;
 		}
@@ -147,15 +275,192 @@ public class ASocketMgr implements IPlugin {
 		}
 	}
 
+	// Return the given default timeout, -1 if none
+	private static int timeout(ISystemConfig cfg, String name) {
+		int t = cfg.getInt("global.aSocket.timeout." + name);
+		return (t <= 0) ? -1 : t;
+	}
+
+	private static void addTimeoutProfile(IProfiler profiler, String name, final int reason) {
+		profiler.add(name, new IProfilable() {
+			public int profileSize() {
+				return timeoutWheel.numTimedOut(reason);
+			}
+		});
+	}
+
+	private static String shardSuffix(int shard) {
+		return (read_sinks.length == 1) ? "" : "-" + shard;
+	}
+
+	/**
+	 * Return the shard serving the given connection, assigning one on
+	 * first use.
+	 */
+	static int shardOf(ATcpConnection conn) {
+		int s = conn.shard;
+		if (s < 0) {
+			synchronized (shard_lock) {
+				if ((s = conn.shard) < 0) {
+					s = pickShard(hash(conn.getAddress(), conn.getPort(), conn));
+					conn.shard = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	private static int shardOf(ATcpConnectRequest req) {
+		ATcpClientSocket clisock = req.clisock;
+		int s = clisock.shard;
+		if (s < 0) {
+			synchronized (shard_lock) {
+				if ((s = clisock.shard) < 0) {
+					s = pickShard(hash(req.addr, req.port, clisock));
+					clisock.shard = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	private static int shardOf(AUdpSocket sock) {
+		int s = sock.shard;
+		if (s < 0) {
+			synchronized (shard_lock) {
+				if ((s = sock.shard) < 0) {
+					s = pickShard(System.identityHashCode(sock));
+					sock.shard = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	private static int hash(InetAddress addr, int port, Object obj) {
+		if (addr == null) return System.identityHashCode(obj);
+		return addr.hashCode() * 31 + port;
+	}
+
+	// Called with shard_lock held
+	private static int pickShard(int hash) {
+		int n = read_sinks.length;
+		if (n == 1) return 0;
+		if (!leastLoaded) return (hash & 0x7fffffff) % n;
+
+		// Pick the shard reading from the fewest sockets. Ties go to the
+		// next shard in turn, so that a burst of connections, assigned
+		// before any of them registers, is spread out.
+		int start = nextShard;
+		nextShard = (nextShard + 1) % n;
+		int best = start;
+		int min = read_handlers[start].getSelectSource().numRegistered();
+		for (int i = 1; i < n; i++) {
+			int s = (start + i) % n;
+			int load = read_handlers[s].getSelectSource().numRegistered();
+			if (load < min) {
+				min = load;
+				best = s;
+			}
+		}
+		if (DEBUG) System.err.println("aSocketMgr: Assigned shard " + best + ", load " + min);
+		return best;
+	}
+
+	// Return the shard serving the socket of the given request
+	private static int shardOf(ASocketRequest req) {
+		if (read_sinks.length == 1) return 0;
+		if (req instanceof ATcpWriteRequest) return shardOf(((ATcpWriteRequest) req).conn);
+		if (req instanceof ATcpSendFileRequest) return shardOf(((ATcpSendFileRequest) req).conn);
+		if (req instanceof ATcpFlushRequest) return shardOf(((ATcpFlushRequest) req).conn);
+		if (req instanceof ATcpCloseRequest) return shardOf(((ATcpCloseRequest) req).conn);
+		if (req instanceof ATcpStartReadRequest) return shardOf(((ATcpStartReadRequest) req).conn);
+		if (req instanceof ATcpResumeReadRequest) return shardOf(((ATcpResumeReadRequest) req).conn);
+		if (req instanceof ATcpConnectRequest) return shardOf((ATcpConnectRequest) req);
+		if (req instanceof AUdpWriteRequest) return shardOf(((AUdpWriteRequest) req).sock);
+		if (req instanceof AUdpCloseRequest) return shardOf(((AUdpCloseRequest) req).sock);
+		if (req instanceof AUdpFlushRequest) return shardOf(((AUdpFlushRequest) req).sock);
+		if (req instanceof AUdpConnectRequest) return shardOf(((AUdpConnectRequest) req).sock);
+		if (req instanceof AUdpDisconnectRequest) return shardOf(((AUdpDisconnectRequest) req).sock);
+		if (req instanceof AUdpStartReadRequest) return shardOf(((AUdpStartReadRequest) req).sock);
+		throw new IllegalArgumentException("Bad request type " + req);
+	}
+
 	static ASocketImplFactory getFactory() {
 		return factory;
 	}
 
+	/**
+	 * Return a new sizer for the read buffer of a socket, within the
+	 * configured bounds.
+	 */
+	public static ReadBufferSizer newReadBufferSizer() {
+		return new ReadBufferSizer(readBufferMin, readBufferInitial, readBufferMax);
+	}
+
+	/**
+	 * Return true if a write onto a connection with no pending writes is
+	 * done directly by the calling thread, rather than by the write stage.
+	 */
+	static boolean writeFastPath() {
+		return writeFastPath;
+	}
+
+	/**
+	 * Return the default number of queued bytes at which a connection
+	 * becomes writable again, or -1 if there is no watermark.
+	 */
+	static int writeLowWatermark() {
+		return writeLowWatermark;
+	}
+
+	/**
+	 * Return the default number of queued bytes above which a connection
+	 * is no longer writable, or -1 if there is no watermark.
+	 */
+	static int writeHighWatermark() {
+		return writeHighWatermark;
+	}
+
+	/**
+	 * Return the default idle read, idle write and lifetime timeouts of
+	 * connections, -1 for none.
+	 */
+	static int[] timeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Return the wheel tracking connection timeouts, or null if there is
+	 * no timer to drive it.
+	 */
+	static TimeoutWheel getTimeoutWheel() {
+		return timeoutWheel;
+	}
+
+	/**
+	 * Return the pool of read buffers, or null if reads are not pooled.
+	 */
+	public static ReadBufferPool getReadBufferPool() {
+		return readBufferPool;
+	}
+
+	/**
+	 * Enqueue the given request after the given number of milliseconds.
+	 * Return false if there is no timer to delay it. Internal use only.
+	 */
+	static boolean enqueueRequestLater(ASocketRequest req, long millis) {
+		if (timer == null) return false;
+		timer.registerEvent(millis, req, delayedRequestSink);
+		return true;
+	}
+
 	static public void enqueueRequest(ASocketRequest req) {
 		if (PROFILE) tracer.trace("enqueueRequest called");
 		init();
 
 		if ((req instanceof ATcpWriteRequest) ||
+		    (req instanceof ATcpSendFileRequest) ||
 		    (req instanceof ATcpConnectRequest) ||
 		    (req instanceof ATcpFlushRequest) ||
 		    (req instanceof ATcpCloseRequest) ||
@@ -167,7 +472,7 @@ public class ASocketMgr implements IPlugin {
 
 			try {
 				if (PROFILE) WriteEventHandler.tracer.trace("write_sink enqueue");
-				write_sink.enqueue(req);
+				write_sinks[shardOf(req)].enqueue(req);
 				//Thread.currentThread().yield(); // XXX MDW TESTING
 				if (PROFILE) WriteEventHandler.tracer.trace("write_sink enqueue done");
 			} catch (SinkException se) {
@@ -176,22 +481,17 @@ public class ASocketMgr implements IPlugin {
 			}
 
 		} else if ((req instanceof ATcpStartReadRequest) ||
+		    (req instanceof ATcpResumeReadRequest) ||
 		    (req instanceof AUdpStartReadRequest)) {
 
+			int shard = shardOf(req);
 			try {
-				read_sink.enqueue(req);
+				read_sinks[shard].enqueue(req);
 			} catch (SinkException se) {
 				System.err.println("aSocketMgr.enqueueRequest: Warning: Got SinkException " + se);
 				System.err.println("aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
 			}
-			if (req instanceof ATcpStartReadRequest) {
-				ATcpStartReadRequest srreq = (ATcpStartReadRequest) req;
-				SockState ss = srreq.conn.sockState;
-			} else if (req instanceof AUdpStartReadRequest) {
-				AUdpStartReadRequest srreq = (AUdpStartReadRequest) req;
-				DatagramSockState ss = srreq.sock.sockState;
-			}
-			read_handler.interruptSelect();
+			read_handlers[shard].interruptSelect();
 
 		} else if ((req instanceof ATcpListenRequest) ||
 		    (req instanceof ATcpSuspendAcceptRequest) ||
@@ -0,0 +1,35 @@
+package org.jcyclone.ext.asocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event emitted for each read from a TCP
+ * connection or UDP socket by the aSocket layer. As these events are
+ * frequent, they are disabled by default and must be enabled in the JFR
+ * settings in use.
+ */
+@Name("org.jcyclone.aSocket.Read")
+@Label("aSocket Read")
+@Category({"JCyclone", "aSocket"})
+@Description("A read from a socket by the aSocket layer")
+@Enabled(false)
+@StackTrace(false)
+public class ASocketReadEvent extends jdk.jfr.Event {
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Peer")
+	public String peer;
+
+	@Label("Bytes Read")
+	@DataAmount
+	public int bytes;
+
+}
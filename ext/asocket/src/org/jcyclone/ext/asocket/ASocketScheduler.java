@@ -158,17 +158,31 @@ class ASocketScheduler implements IScheduler, ASocketConst {
 						if (DEBUG) System.err.println(name + ": doing select, numActive " + selsource.numActive());
 						int num;
 						if (PROFILE) tracer.trace("selsource.blocking_dequeue_all");
+						ASocketSelectEvent jfrEvent = new ASocketSelectEvent();
+						long tselect = jfrEvent.isEnabled() ? System.nanoTime() : 0;
+						jfrEvent.begin();
 						num = selsource.blockingDequeueAll(buffer, SELECT_TIMEOUT);
 						if (num > 0) {
 							if (DEBUG) System.err.println(name + ": select got " + num + " elements");
 							if (PROFILE) tracer.trace("selsource return non-null");
+							if (tselect != 0) jfrEvent.selectTime = System.nanoTime() - tselect;
 
 							long tstart = System.currentTimeMillis();
+							long nstart = System.nanoTime();
 							handler.handleEvents(buffer);
+							long nanos = System.nanoTime() - nstart;
 							long tend = System.currentTimeMillis();
-							wrapper.getStats().recordServiceRate(num, tend - tstart);
+							wrapper.getStats().recordServiceRate(num, tend - tstart, nanos);
 							buffer.clear();
 
+							jfrEvent.end();
+							if (jfrEvent.shouldCommit()) {
+								jfrEvent.stage = wrapper.getStage().getName();
+								jfrEvent.ready = num;
+								jfrEvent.active = selsource.numActive();
+								jfrEvent.commit();
+							}
+
 						} else {
 							if (DEBUG) System.err.println(name + ": select got null");
 							if (PROFILE) tracer.trace("selsource return null");
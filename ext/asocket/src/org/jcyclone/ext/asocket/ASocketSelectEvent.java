@@ -0,0 +1,46 @@
+package org.jcyclone.ext.asocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event emitted by the aSocket threads for each
+ * select() cycle: the wait for ready sockets, followed by the handling of
+ * the ready sockets by the stage's event handler (the actual reads, writes
+ * or accepts). Select cycles which time out with no ready socket are not
+ * recorded. As these events are
+ * frequent, they are disabled by default and must be enabled in the JFR
+ * settings in use.
+ *
+ * @see ASocketScheduler
+ */
+@Name("org.jcyclone.aSocket.Select")
+@Label("aSocket Select")
+@Category({"JCyclone", "aSocket"})
+@Description("A select() cycle of an aSocket thread and the handling of the ready sockets")
+@Enabled(false)
+@StackTrace(false)
+public class ASocketSelectEvent extends jdk.jfr.Event {
+
+	@Label("Stage")
+	public String stage;
+
+	@Label("Ready")
+	@Description("Number of sockets returned by select()")
+	public int ready;
+
+	@Label("Active")
+	@Description("Number of sockets registered with the selector")
+	public int active;
+
+	@Label("Select Time")
+	@Description("Time spent waiting in select(), in nanoseconds")
+	@Timespan(Timespan.NANOSECONDS)
+	public long selectTime;
+
+}
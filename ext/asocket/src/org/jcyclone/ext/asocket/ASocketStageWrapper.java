@@ -71,7 +71,7 @@ class ASocketStageWrapper implements IStageWrapper {
 		}
 
 		QueueThresholdPredicate pred = new QueueThresholdPredicate(eventQ, queuelen);
-		admConSink = new AdmissionControlledSink(eventQ);
+		admConSink = new AdmissionControlledSink(name, eventQ);
 		admConSink.setEnqueuePredicate(pred);
 
 		if (mgr.getConfig().getBoolean("global.batchController.enable")) {
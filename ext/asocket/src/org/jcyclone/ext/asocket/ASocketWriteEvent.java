@@ -0,0 +1,40 @@
+package org.jcyclone.ext.asocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event emitted for each write to a TCP
+ * connection or UDP socket by the aSocket layer. A write may be partial,
+ * in which case the remainder is written once the socket becomes
+ * writable again. As these events are frequent, they are disabled by
+ * default and must be enabled in the JFR settings in use.
+ */
+@Name("org.jcyclone.aSocket.Write")
+@Label("aSocket Write")
+@Category({"JCyclone", "aSocket"})
+@Description("A write to a socket by the aSocket layer")
+@Enabled(false)
+@StackTrace(false)
+public class ASocketWriteEvent extends jdk.jfr.Event {
+
+	@Label("Protocol")
+	public String protocol;
+
+	@Label("Peer")
+	public String peer;
+
+	@Label("Bytes Requested")
+	@DataAmount
+	public int requested;
+
+	@Label("Bytes Written")
+	@DataAmount
+	public int bytes;
+
+}
@@ -50,6 +50,11 @@ public class ATcpClientSocket {
 	private InetAddress address;
 	private int port;
 
+	// Index of the aSocket shard making the connection, -1 until assigned
+	volatile int shard = -1;
+	// Timeouts of the connection, null for the defaults
+	volatile int timeouts[];
+
 	/**
 	 * Create a socket connecting to the given address and port.
 	 * An ATcpConnection will be posted to the given ISink when the
@@ -122,6 +127,23 @@ public class ATcpClientSocket {
 	protected ATcpClientSocket() {
 	}
 
+	/**
+	 * Set the timeouts of the connection made by this socket,
+	 * in milliseconds, overriding <tt>global.aSocket.timeout</tt>. A
+	 * connection is closed if nothing is read from it for
+	 * <tt>idleRead</tt>, if data queued on it cannot be written for
+	 * <tt>idleWrite</tt>, or once it has been open for
+	 * <tt>lifetime</tt>; an ATcpTimeoutEvent is then posted. A timeout of
+	 * -1 disables it. This applies if the connection is not yet
+	 * established.
+	 *
+	 * @see ATcpConnection#setTimeouts
+	 */
+	public void setTimeouts(int idleRead, int idleWrite, int lifetime) {
+		SockState.checkTimeouts(idleRead, idleWrite, lifetime);
+		timeouts = new int[]{idleRead, idleWrite, lifetime};
+	}
+
 	/**
 	 * Return the InetAddress which this socket is connected to.
 	 */
@@ -56,6 +56,9 @@ public class ATcpConnection extends SimpleSink implements IElement {
 	// Internal SockState associated with this connection
 	public SockState sockState;
 
+	// Index of the aSocket shard serving this connection, -1 until assigned
+	volatile int shard = -1;
+
 	/**
 	 * The application may use this field to associate some
 	 * application-specific state with this connection. The aSocket
@@ -72,6 +75,8 @@ public class ATcpConnection extends SimpleSink implements IElement {
 	public ATcpConnection(ATcpClientSocket cliSock, InetAddress address, int port) {
 		this(address, port);
 		this.clientSocket = cliSock;
+		// Served by the shard which made the connection
+		this.shard = cliSock.shard;
 	}
 
 	public ATcpConnection(ATcpServerSocket servSock, InetAddress address, int port) {
@@ -152,6 +157,11 @@ public class ATcpConnection extends SimpleSink implements IElement {
 	 *                      ISink is full. The queue entry will be dropped after this many
 	 *                      tries. The default value is -1, which indicates that the aSocket
 	 *                      layer will attempt to push the queue entry indefinitely.
+	 *                      This only applies to sinks which cannot notify when
+	 *                      they drain: if the ISink is an IDrainNotifyingSink, as
+	 *                      stage sinks and the core queues are, the aSocket layer
+	 *                      stops reading from the socket until the ISink drains,
+	 *                      and never drops data.
 	 */
 	public void startReader(ISink receiveQ, int readClogTries) {
 		if (readerstarted) throw new IllegalArgumentException("startReader already called on this connection");
@@ -159,13 +169,35 @@ public class ATcpConnection extends SimpleSink implements IElement {
 		readerstarted = true;
 	}
 
+	// Return the request writing the given BufferElement or FileRegion
+	private ASocketRequest writeRequest(IElement buf) {
+		if (buf instanceof FileRegion) return new ATcpSendFileRequest(this, (FileRegion) buf);
+		return new ATcpWriteRequest(this, (BufferElement) buf);
+	}
+
+	// Write the given element directly if possible, else pass it to the
+	// write stage
+	private void write(IElement buf) {
+		ASocketRequest req = writeRequest(buf);
+		if (!ASocketMgr.writeFastPath()) {
+			sockState.writeQueued(req);
+		} else if (sockState.fastWrite(req)) {
+			ISink cq = ((ATcpWriteRequest) req).buf.getCompletionQueue();
+			if (cq != null) cq.enqueueLossy(new SinkDrainedEvent(this, buf));
+			return;
+		}
+		ASocketMgr.enqueueRequest(req);
+	}
+
 	/**
-	 * Enqueue an outgoing packet to be written to this socket.
+	 * Enqueue an outgoing packet to be written to this socket. The
+	 * packet is either a BufferElement or a FileRegion, whose bytes are
+	 * sent from the file without being copied into the Java heap.
 	 */
 	public void enqueue(IElement buf) throws SinkException {
 		if (isClosed()) throw new SinkClosedException("ATcpConnection closed");
 		if (buf == null) throw new BadElementException("ATcpConnection.enqueue got null element", buf);
-		ASocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement) buf));
+		write(buf);
 	}
 
 	/**
@@ -175,7 +207,7 @@ public class ATcpConnection extends SimpleSink implements IElement {
 	public boolean enqueueLossy(IElement buf) {
 		if (isClosed()) return false;
 		if (buf == null) return false;
-		ASocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement) buf));
+		write(buf);
 		return true;
 	}
 
@@ -186,7 +218,7 @@ public class ATcpConnection extends SimpleSink implements IElement {
 		if (isClosed()) throw new SinkClosedException("ATcpConnection closed");
 		for (int i = 0; i < bufarr.length; i++) {
 			if (bufarr[i] == null) throw new BadElementException("ATcpConnection.enqueue_many got null element", bufarr[i]);
-			ASocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement) bufarr[i]));
+			write(bufarr[i]);
 		}
 	}
 
@@ -199,7 +231,7 @@ public class ATcpConnection extends SimpleSink implements IElement {
 			IElement qe = (IElement) list.get(i);
 			if (list.get(i) == null)
 				throw new BadElementException("ATcpConnection.enqueueMany got null element", qe);
-			ASocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement) qe));
+			write(qe);
 		}
 	}
 
@@ -222,6 +254,54 @@ public class ATcpConnection extends SimpleSink implements IElement {
 		ASocketMgr.enqueueRequest(new ATcpFlushRequest(this, compQ));
 	}
 
+	/**
+	 * Return the number of bytes enqueued onto this connection which have
+	 * not yet been written to the socket.
+	 */
+	public long getQueuedBytes() {
+		if (sockState == null) return 0;
+		return sockState.queuedBytes();
+	}
+
+	/**
+	 * Return false if the number of bytes queued on this connection has
+	 * risen above its high watermark, and not yet fallen back to its low
+	 * watermark.
+	 */
+	public boolean isWritable() {
+		if (sockState == null) return true;
+		return sockState.isWritable();
+	}
+
+	/**
+	 * Set the watermarks of this connection, which default to
+	 * <tt>global.aSocket.writeBuffer.lowWatermark</tt> and
+	 * <tt>highWatermark</tt>. When more than <tt>high</tt> bytes are
+	 * queued, the connection is no longer writable; it becomes writable
+	 * again when no more than <tt>low</tt> bytes are queued. The
+	 * completion queue of each write made while the connection is not
+	 * writable gets an ATcpWritabilityEvent saying so, and another once
+	 * it is writable again. A high watermark of -1 disables this.
+	 */
+	public void setWriteWatermarks(int low, int high) {
+		sockState.setWriteWatermarks(low, high);
+	}
+
+	/**
+	 * Set the timeouts of this connection, in milliseconds, which default
+	 * to those of the server or client socket it came from. The
+	 * connection is closed if nothing is read from it for
+	 * <tt>idleRead</tt>, if data queued on it cannot be written for
+	 * <tt>idleWrite</tt>, or once it has been open for
+	 * <tt>lifetime</tt>; an ATcpTimeoutEvent is then posted to the sink
+	 * given to startReader(), or, before that, to the sink which received
+	 * the connection. A timeout of -1 disables it. The idle times of
+	 * timeouts not set before count from this call.
+	 */
+	public void setTimeouts(int idleRead, int idleWrite, int lifetime) {
+		sockState.setTimeouts(idleRead, idleWrite, lifetime);
+	}
+
 	/**
 	 * Returns the number of elements currently waiting in the sink.
 	 */
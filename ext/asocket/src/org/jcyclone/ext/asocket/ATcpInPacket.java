@@ -25,23 +25,42 @@
 package org.jcyclone.ext.asocket;
 
 import org.jcyclone.core.event.BufferElement;
-import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.profiler.ITraceable;
+import org.jcyclone.core.queue.ISizedElement;
+
+import java.nio.ByteBuffer;
 
 /**
  * An ATcpInPacket represents a packet which was received from an
  * asynchronous socket. When a packet is received on a connection,
  * an ATcpInPacket is pushed to the ISink associated with an
  * ATcpConnection.
+ * <p/>
+ * When <tt>global.aSocket.readBufferPool.enable</tt> is set, the data of
+ * packets read from sockets is held in a direct buffer of a
+ * ReadBufferPool, which the application returns to the pool by calling
+ * release() once it has processed the packet. The HTTP, aTLS and
+ * Gnutella servers and the Haboob load generator release the packets
+ * they receive; ASocketInputStream copies the data of the packets added
+ * to it.
  *
  * @author Matt Welsh
  * @see ATcpConnection
  */
-public class ATcpInPacket implements IElement {
+public class ATcpInPacket implements ITraceable, ISizedElement {
 
 	private ATcpConnection conn;
 	private BufferElement buf;
 	// package access
 	long seqNum;
+	private long traceId;
+
+	// Set if the data is held in a buffer of a ReadBufferPool
+	private ReadBufferPool pool;
+	ByteBuffer data;
+	private int size;
+	private int refCnt;
+	ReadBufferPool.Leak leak;
 
 	public ATcpInPacket(ATcpConnection conn, BufferElement buf) {
 		this.conn = conn;
@@ -95,6 +114,28 @@ public class ATcpInPacket implements IElement {
 		this.seqNum = seqNum;
 	}
 
+	// A packet of the given pool, holding the given buffer
+	ATcpInPacket(ReadBufferPool pool, ByteBuffer data) {
+		this.pool = pool;
+		this.data = data;
+	}
+
+	// Called by the pool when data has been read into the buffer
+	void init(ATcpConnection conn, int size, long seqNum) {
+		this.conn = conn;
+		this.size = size;
+		this.seqNum = seqNum;
+		this.traceId = 0;
+		this.refCnt = 1;
+	}
+
+	// Called by the pool when the packet is recycled
+	void reset() {
+		this.conn = null;
+		this.buf = null;
+		this.size = 0;
+	}
+
 	/**
 	 * Return the connection from which this packet was received.
 	 */
@@ -106,23 +147,87 @@ public class ATcpInPacket implements IElement {
 	 * Return the data from an incoming TCP packet.
 	 */
 	public byte[] getBytes() {
-		return buf.data;
+		return getBufferElement().data;
 	}
 
 	/**
 	 * Return the size of the packet data.
 	 */
 	public int size() {
-		return buf.size;
+		return (pool == null) ? buf.size : size;
+	}
+
+	public int getSize() {
+		return size();
 	}
 
 	/**
-	 * Return the BufferElement associated with the packet data.
+	 * Return the BufferElement associated with the packet data. If the
+	 * packet is held in a pooled buffer, its data is copied into a new
+	 * array on the first call; use getByteBuffer() to avoid the copy.
 	 */
-	public BufferElement getBufferElement() {
+	public synchronized BufferElement getBufferElement() {
+		if (buf == null && pool != null) {
+			byte copy[] = new byte[size];
+			data.duplicate().get(copy);
+			buf = new BufferElement(copy);
+		}
 		return buf;
 	}
 
+	/**
+	 * Return the packet data as a ByteBuffer, positioned at the start of
+	 * the data. If the packet is held in a pooled buffer, the ByteBuffer
+	 * is only valid until the packet is released.
+	 */
+	public ByteBuffer getByteBuffer() {
+		if (pool != null) return data.duplicate();
+		return ByteBuffer.wrap(buf.data, buf.offset, buf.size);
+	}
+
+	/**
+	 * Return true if the packet data is held in a pooled buffer, which
+	 * should be released once the packet has been processed.
+	 */
+	public boolean isPooled() {
+		return pool != null;
+	}
+
+	/**
+	 * Add a reference to this packet, which must be matched by a call
+	 * to release(). Has no effect if the packet is not pooled.
+	 */
+	public synchronized ATcpInPacket retain() {
+		if (pool == null) return this;
+		if (refCnt <= 0) throw new IllegalStateException("ATcpInPacket: retain() of released packet");
+		refCnt++;
+		return this;
+	}
+
+	/**
+	 * Release a reference to this packet. When the last reference is
+	 * released the buffer of a pooled packet returns to its pool, and the
+	 * packet may no longer be used. Returns true if the packet was
+	 * returned to its pool. Has no effect if the packet is not pooled.
+	 */
+	public boolean release() {
+		if (pool == null) return false;
+		synchronized (this) {
+			if (refCnt <= 0) throw new IllegalStateException("ATcpInPacket: release() of released packet");
+			if (--refCnt > 0) return false;
+		}
+		pool.recycle(this);
+		return true;
+	}
+
+	/**
+	 * Return the number of references to this packet; 0 if it has been
+	 * released, and 1 if it is not pooled.
+	 */
+	public synchronized int refCnt() {
+		return (pool == null) ? 1 : refCnt;
+	}
+
 	/**
 	 * Return the sequence number associated with this packet.
 	 * Sequence numbers range from 1 to Long.MAX_VALUE, then wrap
@@ -134,8 +239,16 @@ public class ATcpInPacket implements IElement {
 		return seqNum;
 	}
 
+	public long getTraceId() {
+		return traceId;
+	}
+
+	public void setTraceId(long traceId) {
+		this.traceId = traceId;
+	}
+
 	public String toString() {
-		return "ATcpInPacket [conn=" + conn + ", size=" + buf.size + "]";
+		return "ATcpInPacket [conn=" + conn + ", size=" + size() + "]";
 	}
 
 
@@ -0,0 +1,16 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * Request to resume reading from a connection whose read sink was
+ * clogged, once the sink has drained.
+ */
+class ATcpResumeReadRequest extends ASocketRequest implements IElement {
+	ATcpConnection conn;
+
+	ATcpResumeReadRequest(ATcpConnection conn) {
+		this.conn = conn;
+	}
+
+}
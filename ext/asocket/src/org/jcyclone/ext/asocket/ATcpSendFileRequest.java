@@ -0,0 +1,22 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * Request to send a region of a file over a connection. The request
+ * keeps track of the part of the region which remains to be sent.
+ */
+public class ATcpSendFileRequest extends ASocketRequest implements IElement {
+
+	public ATcpConnection conn;
+	public FileRegion region;
+	public long position, remaining;
+
+	public ATcpSendFileRequest(ATcpConnection conn, FileRegion region) {
+		this.conn = conn;
+		this.region = region;
+		this.position = region.position;
+		this.remaining = region.count;
+	}
+
+}
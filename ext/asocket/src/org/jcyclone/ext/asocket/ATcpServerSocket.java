@@ -45,6 +45,8 @@ public class ATcpServerSocket {
 	 */
 	public ListenSockState lss;
 	int serverPort;
+	// Timeouts of the connections accepted, null for the defaults
+	volatile int timeouts[];
 
 	/**
 	 * Open a server socket listening on the given port. When a connection
@@ -94,6 +96,23 @@ public class ATcpServerSocket {
 		ASocketMgr.enqueueRequest(new ATcpResumeAcceptRequest(this));
 	}
 
+	/**
+	 * Set the timeouts of the connections accepted by this socket,
+	 * in milliseconds, overriding <tt>global.aSocket.timeout</tt>. A
+	 * connection is closed if nothing is read from it for
+	 * <tt>idleRead</tt>, if data queued on it cannot be written for
+	 * <tt>idleWrite</tt>, or once it has been open for
+	 * <tt>lifetime</tt>; an ATcpTimeoutEvent is then posted. A timeout of
+	 * -1 disables it. This applies to connections accepted after
+	 * the call.
+	 *
+	 * @see ATcpConnection#setTimeouts
+	 */
+	public void setTimeouts(int idleRead, int idleWrite, int lifetime) {
+		SockState.checkTimeouts(idleRead, idleWrite, lifetime);
+		timeouts = new int[]{idleRead, idleWrite, lifetime};
+	}
+
 	/**
 	 * Return the port that this socket is listening on.
 	 */
@@ -0,0 +1,68 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.SinkClosedEvent;
+
+/**
+ * An ATcpTimeoutEvent is posted when the aSocket layer closes a
+ * connection which exceeded one of its timeouts. It is posted to the
+ * sink given to startReader(), or, if no reader was started, to the sink
+ * which received the connection. Being a SinkClosedEvent, it is handled
+ * as any other close by applications which do not look for timeouts.
+ *
+ * @see ATcpConnection#setTimeouts
+ */
+public class ATcpTimeoutEvent extends SinkClosedEvent {
+
+	/**
+	 * Nothing was read from the connection for its idle read timeout.
+	 */
+	public static final int IDLE_READ = 1;
+	/**
+	 * Data was queued on the connection, but none could be written for
+	 * its idle write timeout.
+	 */
+	public static final int IDLE_WRITE = 2;
+	/**
+	 * The connection was open for longer than its lifetime.
+	 */
+	public static final int LIFETIME = 3;
+
+	public int reason;
+
+	public ATcpTimeoutEvent(ATcpConnection conn, int reason) {
+		super(conn);
+		this.reason = reason;
+	}
+
+	/**
+	 * Return the connection which timed out.
+	 */
+	public ATcpConnection getConnection() {
+		return (ATcpConnection) sink;
+	}
+
+	/**
+	 * Return the timeout which expired: IDLE_READ, IDLE_WRITE or
+	 * LIFETIME.
+	 */
+	public int getReason() {
+		return reason;
+	}
+
+	static String reasonName(int reason) {
+		switch (reason) {
+			case IDLE_READ:
+				return "idle read";
+			case IDLE_WRITE:
+				return "idle write";
+			case LIFETIME:
+				return "lifetime";
+			default:
+				return "unknown";
+		}
+	}
+
+	public String toString() {
+		return "ATcpTimeoutEvent [" + sink + ", " + reasonName(reason) + "]";
+	}
+}
@@ -0,0 +1,48 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * ATcpWritabilityEvent objects are posted when the number of bytes
+ * queued for writing on a connection rises above its high watermark,
+ * upon which the connection is no longer writable, and when it falls
+ * back to its low watermark, upon which the connection is writable
+ * again. The first event is posted to the completion queue of each
+ * write made while the connection is not writable, and the second to
+ * each completion queue which got the first, so that producers can
+ * pause writing instead of having their writes dropped when the
+ * connection is clogged.
+ *
+ * @see ATcpConnection#setWriteWatermarks
+ */
+public class ATcpWritabilityEvent implements IElement {
+
+	public ATcpConnection conn;
+	public boolean writable;
+	public long queuedBytes;
+
+	public ATcpWritabilityEvent(ATcpConnection conn, boolean writable, long queuedBytes) {
+		this.conn = conn;
+		this.writable = writable;
+		this.queuedBytes = queuedBytes;
+	}
+
+	/**
+	 * Return the connection whose writability changed.
+	 */
+	public ATcpConnection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Return true if the connection became writable, false if it no
+	 * longer is.
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	public String toString() {
+		return "ATcpWritabilityEvent [" + conn + ", writable=" + writable + ", queuedBytes=" + queuedBytes + "]";
+	}
+}
@@ -34,6 +34,8 @@ public class ATcpWriteRequest extends ASocketRequest implements IElement {
 
 	public ATcpConnection conn;
 	public BufferElement buf;
+	// Number of bytes of buf already written
+	public int sent;
 
 	public ATcpWriteRequest(ATcpConnection conn, BufferElement buf) {
 		this.conn = conn;
@@ -24,7 +24,7 @@
 
 package org.jcyclone.ext.asocket;
 
-import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISizedElement;
 
 import java.net.DatagramPacket;
 
@@ -34,7 +34,7 @@ import java.net.DatagramPacket;
  *
  * @author Matt Welsh
  */
-public class AUdpInPacket implements IElement {
+public class AUdpInPacket implements ISizedElement {
 
 	private AUdpSocket sock;
 	private DatagramPacket packet;
@@ -81,6 +81,10 @@ public class AUdpInPacket implements IElement {
 		return packet.getLength();
 	}
 
+	public int getSize() {
+		return packet.getLength();
+	}
+
 	/**
 	 * Return the sequence number associated with this packet.
 	 * Sequence numbers range from 1 to Long.MAX_VALUE, then wrap
@@ -60,6 +60,9 @@ public class AUdpSocket extends SimpleSink {
 	// Internal DatagramSockState associated with this connection
 	DatagramSockState sockState;
 
+	// Index of the aSocket shard serving this socket, -1 until assigned
+	volatile int shard = -1;
+
 	/**
 	 * Create a socket bound to any available local port. This is mainly
 	 * used to create outgoing-only sockets.
@@ -0,0 +1,78 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A region of a file to be sent over an ATcpConnection. When a
+ * FileRegion is enqueued onto a connection, aSocket transfers the bytes
+ * from the file to the socket with FileChannel.transferTo(), without
+ * copying them through the Java heap; on most platforms this uses
+ * sendfile(). A SinkDrainedEvent carrying the region is posted on the
+ * completion queue, if any, once the whole region has been sent.
+ * <p/>
+ * The file channel is not closed by aSocket, and must stay open until
+ * the region has been sent. If the file is shorter than the region, the
+ * transfer stops at the end of the file.
+ */
+public class FileRegion implements IElement {
+
+	/**
+	 * The file to send from.
+	 */
+	public FileChannel channel;
+
+	/**
+	 * The position in the file of the first byte to send.
+	 */
+	public long position;
+
+	/**
+	 * The number of bytes to send.
+	 */
+	public long count;
+
+	/**
+	 * The completion queue for this region, may be null.
+	 */
+	public ISink compQ;
+
+	/**
+	 * Associates an arbitrary object with this region.
+	 */
+	public Object userTag;
+
+	/**
+	 * Create a region of the given file, with no completion queue.
+	 */
+	public FileRegion(FileChannel channel, long position, long count) {
+		this(channel, position, count, null);
+	}
+
+	/**
+	 * Create a region of the given file, with the given completion queue.
+	 */
+	public FileRegion(FileChannel channel, long position, long count, ISink compQ) {
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("FileRegion: Bad position " + position + " or count " + count);
+		}
+		this.channel = channel;
+		this.position = position;
+		this.count = count;
+		this.compQ = compQ;
+	}
+
+	/**
+	 * Return the completion queue for this region.
+	 */
+	public ISink getCompletionQueue() {
+		return compQ;
+	}
+
+	public String toString() {
+		return "FileRegion [" + channel + ", position=" + position + ", count=" + count + "]";
+	}
+
+}
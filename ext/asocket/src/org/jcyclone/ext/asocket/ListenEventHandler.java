@@ -67,6 +67,8 @@ class ListenEventHandler extends ASocketEventHandler implements IEventHandler {
 			SockState ss = ASocketMgr.getFactory().newSockState(conn, sock, lss.writeClogThreshold);
 			if (DEBUG) System.err.println("ListenThread: Created new sockstate " + ss);
 			conn.sockState = ss;
+			ss.startTimeouts(lss.compQ);
+			ASocketMgr.shardOf(conn);
 			if (DEBUG) System.err.println("ListenThread: Calling lss complete");
 			lss.complete(conn);
 		}
@@ -126,6 +128,9 @@ class ListenEventHandler extends ASocketEventHandler implements IEventHandler {
 			} else if (qel instanceof ASocketRequest) {
 				processListenRequest((ASocketRequest) qel);
 
+			} else if (qel instanceof TimeoutWheel) {
+				((TimeoutWheel) qel).advance();
+
 			} else {
 				throw new IllegalArgumentException("ReadEventHandler: Got unknown event type " + qel);
 			}
@@ -0,0 +1,217 @@
+package org.jcyclone.ext.asocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A pool of direct buffers into which aSocket reads TCP data. Buffers are
+ * carved out of slabs of direct memory, each held by an ATcpInPacket
+ * which is recycled with its buffer once the application has released
+ * it, so that a read allocates nothing once the pool is warm.
+ * <p/>
+ * Buffers come in size classes, the powers of two from the minimum to
+ * the maximum size, as chosen by ReadBufferSizer. The pool grows by one
+ * slab of a class at a time, up to <tt>maxSlabs</tt> slabs in all; when
+ * all buffers of a class are in use, reads fall back to heap arrays.
+ * With leak detection, the pool tracks the packets it hands out, and
+ * reports those which were garbage collected without being released,
+ * reclaiming their buffer.
+ *
+ * @see ATcpInPacket#release
+ */
+public class ReadBufferPool {
+
+	private static final boolean DEBUG = false;
+
+	private final int minSize;
+	private final int slabSize;
+	private final int maxSlabs;
+	private int numSlabs;
+
+	// Per size class: stack of free packets, and number of buffers
+	private ATcpInPacket free[][];
+	private int numFree[];
+	private int numBuffers[];
+
+	// Leak detection
+	private final boolean detectLeaks;
+	private ReferenceQueue leakQueue;
+	private Set leaks;
+	private int numLeaked;
+
+	/**
+	 * Create a pool of buffers of the given range of sizes, each rounded
+	 * up to a power of two, allocated in slabs of the given size.
+	 */
+	public ReadBufferPool(int minSize, int maxSize, int slabSize, int maxSlabs, boolean detectLeaks) {
+		this.minSize = ReadBufferSizer.roundUp(minSize);
+		maxSize = Math.max(ReadBufferSizer.roundUp(maxSize), this.minSize);
+		this.slabSize = slabSize;
+		this.maxSlabs = maxSlabs;
+		this.detectLeaks = detectLeaks;
+		int numClasses = sizeClass(maxSize) + 1;
+		this.free = new ATcpInPacket[numClasses][0];
+		this.numFree = new int[numClasses];
+		this.numBuffers = new int[numClasses];
+		if (detectLeaks) {
+			leakQueue = new ReferenceQueue();
+			leaks = new HashSet();
+		}
+	}
+
+	// Return the index of the smallest size class holding the given size
+	private int sizeClass(int size) {
+		int c = 0;
+		for (int s = minSize; s < size; s <<= 1) c++;
+		return c;
+	}
+
+	/**
+	 * Read from the given channel into a pooled packet of the given size.
+	 * Return null if no data was available.
+	 *
+	 * @throws EOFException If the channel reached end of stream.
+	 */
+	public ATcpInPacket read(ATcpConnection conn, ReadableByteChannel ch, long seqNum, int size) throws IOException {
+		int c = Math.min(sizeClass(size), free.length - 1);
+		ATcpInPacket pkt = allocate(c);
+		ByteBuffer data;
+		if (pkt == null) {
+			// Exhausted: read into the heap
+			data = ByteBuffer.allocate(minSize << c);
+		} else {
+			data = pkt.data;
+			data.clear();
+		}
+
+		int len;
+		try {
+			len = ch.read(data);
+		} catch (IOException e) {
+			if (pkt != null) recycle(pkt);
+			throw e;
+		}
+		if (len <= 0) {
+			if (pkt != null) recycle(pkt);
+			if (len < 0) throw new EOFException();
+			return null;
+		}
+
+		if (pkt == null) {
+			return new ATcpInPacket(conn, data.array(), len, false, seqNum);
+		}
+		data.flip();
+		pkt.init(conn, len, seqNum);
+		if (detectLeaks) track(pkt);
+		return pkt;
+	}
+
+	private synchronized ATcpInPacket allocate(int c) {
+		if (detectLeaks) reclaimLeaks();
+		if (numFree[c] == 0) {
+			if (numSlabs == maxSlabs) return null;
+			addSlab(c);
+		}
+		ATcpInPacket pkt = free[c][--numFree[c]];
+		free[c][numFree[c]] = null;
+		return pkt;
+	}
+
+	private void addSlab(int c) {
+		int bufferSize = minSize << c;
+		int slabBuffers = Math.max(slabSize / bufferSize, 1);
+		if (DEBUG) System.err.println("ReadBufferPool: Allocating slab " + numSlabs + " of " + slabBuffers + " buffers of " + bufferSize + " bytes");
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * slabBuffers);
+		ATcpInPacket newfree[] = new ATcpInPacket[numBuffers[c] + slabBuffers];
+		System.arraycopy(free[c], 0, newfree, 0, numFree[c]);
+		free[c] = newfree;
+		for (int i = 0; i < slabBuffers; i++) {
+			slab.limit((i + 1) * bufferSize);
+			slab.position(i * bufferSize);
+			push(new ATcpInPacket(this, slab.slice()));
+		}
+		numBuffers[c] += slabBuffers;
+		numSlabs++;
+	}
+
+	private void push(ATcpInPacket pkt) {
+		int c = sizeClass(pkt.data.capacity());
+		free[c][numFree[c]++] = pkt;
+	}
+
+	// Called by ATcpInPacket.release() when the last reference is dropped
+	synchronized void recycle(ATcpInPacket pkt) {
+		if (detectLeaks && pkt.leak != null) {
+			leaks.remove(pkt.leak);
+			pkt.leak.clear();
+			pkt.leak = null;
+		}
+		pkt.reset();
+		push(pkt);
+	}
+
+	private synchronized void track(ATcpInPacket pkt) {
+		Leak leak = new Leak(pkt, leakQueue);
+		pkt.leak = leak;
+		leaks.add(leak);
+	}
+
+	private void reclaimLeaks() {
+		Leak leak;
+		while ((leak = (Leak) leakQueue.poll()) != null) {
+			if (!leaks.remove(leak)) continue;
+			numLeaked++;
+			System.err.println("ReadBufferPool: Warning: " + leak.what + " garbage collected without being released");
+			push(new ATcpInPacket(this, leak.data));
+		}
+	}
+
+	/**
+	 * Return the number of buffers in use.
+	 */
+	public synchronized int numInUse() {
+		int n = 0;
+		for (int c = 0; c < free.length; c++) n += numBuffers[c] - numFree[c];
+		return n;
+	}
+
+	/**
+	 * Return the number of buffers in the pool.
+	 */
+	public synchronized int capacity() {
+		int n = 0;
+		for (int c = 0; c < free.length; c++) n += numBuffers[c];
+		return n;
+	}
+
+	/**
+	 * Return the number of leaked packets detected.
+	 */
+	public synchronized int numLeaked() {
+		return numLeaked;
+	}
+
+	public String toString() {
+		return "ReadBufferPool [" + numInUse() + "/" + capacity() + " buffers of " + minSize + " to " +
+		    (minSize << (free.length - 1)) + " bytes]";
+	}
+
+	// Keeps the buffer of a packet until it is released
+	static class Leak extends WeakReference {
+		ByteBuffer data;
+		String what;
+
+		Leak(ATcpInPacket pkt, ReferenceQueue q) {
+			super(pkt, q);
+			this.data = pkt.data;
+			this.what = pkt.toString() + " seqNum " + pkt.seqNum;
+		}
+	}
+
+}
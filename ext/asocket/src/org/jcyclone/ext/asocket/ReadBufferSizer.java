@@ -0,0 +1,63 @@
+package org.jcyclone.ext.asocket;
+
+/**
+ * Chooses the size of the buffer for the next read on a socket from the
+ * sizes of the previous reads. The size doubles when a read fills the
+ * buffer, and halves after READ_SHRINK_AFTER consecutive reads which
+ * would have fit in half of it, staying within the given bounds. Sizes
+ * are powers of two, the size classes of ReadBufferPool.
+ */
+public class ReadBufferSizer implements ASocketConst {
+
+	private final int minSize, maxSize;
+	private int size;
+	private int numSmall;
+
+	/**
+	 * Create a sizer starting at the given size, each size being rounded
+	 * up to a power of two.
+	 */
+	public ReadBufferSizer(int minSize, int initialSize, int maxSize) {
+		this.minSize = roundUp(minSize);
+		this.maxSize = Math.max(roundUp(maxSize), this.minSize);
+		this.size = Math.min(Math.max(roundUp(initialSize), this.minSize), this.maxSize);
+	}
+
+	/**
+	 * Return the size of the buffer for the next read.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Record that the last read returned the given number of bytes.
+	 */
+	public void record(int len) {
+		if (len >= size) {
+			numSmall = 0;
+			if (size < maxSize) size <<= 1;
+		} else if (len <= (size >> 1) && size > minSize) {
+			if (++numSmall >= READ_SHRINK_AFTER) {
+				numSmall = 0;
+				size >>= 1;
+			}
+		} else {
+			numSmall = 0;
+		}
+	}
+
+	/**
+	 * Return the smallest power of two not less than the given size.
+	 */
+	public static int roundUp(int n) {
+		int s = 1;
+		while (s < n && s < (1 << 30)) s <<= 1;
+		return s;
+	}
+
+	public String toString() {
+		return "ReadBufferSizer [size=" + size + ", min=" + minSize + ", max=" + maxSize + "]";
+	}
+
+}
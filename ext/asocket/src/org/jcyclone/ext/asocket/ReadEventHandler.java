@@ -58,6 +58,10 @@ class ReadEventHandler extends ASocketEventHandler implements IEventHandler {
 			SockState ss = srreq.conn.sockState;
 			ss.readInit(selsource, srreq.compQ, srreq.readClogTries);
 
+		} else if (req instanceof ATcpResumeReadRequest) {
+			SockState ss = ((ATcpResumeReadRequest) req).conn.sockState;
+			ss.resumeRead();
+
 		} else if (req instanceof AUdpStartReadRequest) {
 			AUdpStartReadRequest srreq = (AUdpStartReadRequest) req;
 			DatagramSockState ss = srreq.sock.sockState;
@@ -24,12 +24,15 @@
 
 package org.jcyclone.ext.asocket;
 
+import org.jcyclone.core.queue.IDrainListener;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
 import org.jcyclone.core.queue.SinkClosedException;
 import org.jcyclone.util.FastLinkedList;
 
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Internal class used to represent state of an active socket connection.
@@ -44,17 +47,42 @@ public abstract class SockState implements ASocketConst {
 	protected IElement clogged_qel;
 	protected int clogged_numtries;
 	protected int readClogTries, writeClogThreshold;
+	// Whether reading is suspended until readCompQ drains
+	protected boolean readSuspended;
 	protected byte readBuf[];
 	protected boolean closed = false;
 	protected long seqNum = 1;
 
 	protected int outstanding_writes, numEmptyWrites;
+	// Write requests passed on to the write stage by the fast path, in
+	// the order in which they were issued
+	protected final FastLinkedList handoffList = new FastLinkedList();
+	// Bytes queued for writing, and the watermarks at which the
+	// connection stops and starts being writable
+	protected long queued_bytes;
+	protected int writeLowWatermark = ASocketMgr.writeLowWatermark();
+	protected int writeHighWatermark = ASocketMgr.writeHighWatermark();
+	protected boolean writable = true;
+	// The sinks told that the connection is no longer writable, to be
+	// told when it is writable again
+	private final List unwritableSinks = new ArrayList();
 	protected FastLinkedList writeReqList;
 	protected ATcpWriteRequest cur_write_req;
 	protected int cur_offset, cur_length_target;
 	protected byte writeBuf[];
 	protected ATcpInPacket pkt;
 
+	// Timeouts in milliseconds, -1 if none, and the times at which the
+	// socket was created and last read from and written to
+	protected volatile int idleReadTimeout = -1, idleWriteTimeout = -1, lifetime = -1;
+	protected final long created = System.currentTimeMillis();
+	protected volatile long lastRead = created, lastWrite = created;
+	// Where timeout events go until a reader is started
+	private ISink timeoutQ;
+	// Position in the TimeoutWheel, guarded by the wheel
+	SockState wheelPrev, wheelNext;
+	int wheelSlot = -1;
+
 	protected static int numActiveWriteSockets = 0;
 
 	// This is synchronized with close()
@@ -62,6 +90,25 @@ public abstract class SockState implements ASocketConst {
 
 	protected abstract void doRead();
 
+	/**
+	 * Deliver the packet which clogged readCompQ, and resume reading if
+	 * it was accepted. Called by the read stage once readCompQ drained.
+	 */
+	protected abstract void resumeRead();
+
+	// Asks the read stage to resume reading once readCompQ drains
+	protected final IDrainListener readResumer = new IDrainListener() {
+		public void sinkDrained() {
+			ASocketMgr.enqueueRequest(new ATcpResumeReadRequest(conn));
+		}
+	};
+
+	// Asks the read stage to resume reading after the given number of
+	// milliseconds. Return false if there is no timer to do so.
+	protected final boolean resumeReadLater(long millis) {
+		return ASocketMgr.enqueueRequestLater(new ATcpResumeReadRequest(conn), millis);
+	}
+
 	// XXX This is synchronized with close() to avoid a race with close()
 	// removing the writeReqList while this method is being called.
 	// Probably a better way to do this...
@@ -71,11 +118,267 @@ public abstract class SockState implements ASocketConst {
 
 	protected abstract boolean tryWrite() throws SinkClosedException;
 
-	void writeReset() {
+	/**
+	 * Write as much of the given request as possible on the calling
+	 * thread, adding the number of bytes written to req.sent. Called
+	 * with the lock held, and only when no other write is pending.
+	 * Return true if the request was written completely.
+	 */
+	protected abstract boolean tryWriteNow(ATcpWriteRequest req);
+
+	/**
+	 * Try to write the ATcpWriteRequests at the head of writeReqList,
+	 * starting with cur_write_req, in one operation. Return the number of
+	 * requests completely written, which the caller removes from the head
+	 * of the list, calling writeDone() for each. A request partially
+	 * written becomes cur_write_req.
+	 */
+	protected abstract int tryWriteMany() throws SinkClosedException;
+
+	/**
+	 * Try to send the remainder of the given file region, which is at the
+	 * head of writeReqList, advancing its position. Return true if the
+	 * whole region has been sent.
+	 */
+	protected abstract boolean trySendFile(ATcpSendFileRequest req) throws SinkClosedException;
+
+	synchronized void writeReset() {
 		this.cur_write_req = null;
 		this.outstanding_writes--;
 	}
 
+	/**
+	 * Called when a request holding the given number of bytes has been
+	 * written.
+	 */
+	synchronized void writeDone(long bytes) {
+		this.outstanding_writes--;
+		writeDropped(bytes);
+	}
+
+	/**
+	 * Record that the given number of bytes has been queued for writing,
+	 * by a request with the given completion queue. While the connection
+	 * is not writable, the completion queue of each write is told so,
+	 * once, and remembered to be told when it is writable again.
+	 */
+	synchronized void writeQueued(long bytes, ISink compQ) {
+		if (closed) return;
+		// The write idle time counts from when data is first queued
+		if (queued_bytes == 0) writeProgress();
+		queued_bytes += bytes;
+		if (writable && (writeHighWatermark != -1) && (queued_bytes > writeHighWatermark)) {
+			if (DEBUG) System.err.println("SockState: " + queued_bytes + " bytes queued, no longer writable");
+			writable = false;
+		}
+		if (!writable && (compQ != null) && !unwritableSinks.contains(compQ)) {
+			unwritableSinks.add(compQ);
+			compQ.enqueueLossy(new ATcpWritabilityEvent(conn, false, queued_bytes));
+		}
+	}
+
+	/**
+	 * Record that the bytes of the given write or send file request have
+	 * been queued for writing.
+	 */
+	synchronized void writeQueued(ASocketRequest req) {
+		if (req instanceof ATcpWriteRequest) {
+			ATcpWriteRequest wreq = (ATcpWriteRequest) req;
+			writeQueued(wreq.buf.size - wreq.sent, wreq.buf.getCompletionQueue());
+		} else {
+			FileRegion region = ((ATcpSendFileRequest) req).region;
+			writeQueued(region.count, region.getCompletionQueue());
+		}
+	}
+
+	/**
+	 * Record that the given number of queued bytes has been written or
+	 * dropped.
+	 */
+	synchronized void writeDropped(long bytes) {
+		queued_bytes -= bytes;
+		if (!writable && (queued_bytes <= writeLowWatermark)) {
+			if (DEBUG) System.err.println("SockState: " + queued_bytes + " bytes queued, writable");
+			setWritable();
+		}
+	}
+
+	// Tell the sinks which were told that the connection is no longer
+	// writable that it is writable again
+	private void setWritable() {
+		writable = true;
+		for (int i = 0; i < unwritableSinks.size(); i++) {
+			ISink q = (ISink) unwritableSinks.get(i);
+			q.enqueueLossy(new ATcpWritabilityEvent(conn, true, queued_bytes));
+		}
+		unwritableSinks.clear();
+	}
+
+	synchronized long queuedBytes() {
+		return queued_bytes;
+	}
+
+	synchronized boolean isWritable() {
+		return writable;
+	}
+
+	synchronized void setWriteWatermarks(int low, int high) {
+		if ((high != -1) && ((low < 0) || (low > high))) {
+			throw new IllegalArgumentException("Bad write watermarks: low " + low + ", high " + high);
+		}
+		writeLowWatermark = low;
+		writeHighWatermark = high;
+		if ((high == -1) && !writable) setWritable();
+	}
+
+	/**
+	 * Write the given request directly if the socket has no write
+	 * pending, either handed off to the write stage or outstanding.
+	 * Return true if the request was written completely; otherwise the
+	 * request, with the remainder of its data, is added to handoffList
+	 * and the caller must post a request to the write stage, which takes
+	 * the requests from handoffList in order. Synchronized with close()
+	 * and addWriteRequest().
+	 */
+	synchronized boolean fastWrite(ASocketRequest req) {
+		if (!closed && handoffList.size() == 0 && outstanding_writes == 0 &&
+		    (req instanceof ATcpWriteRequest)) {
+			if (tryWriteNow((ATcpWriteRequest) req)) return true;
+		}
+		handoffList.add_to_tail(req);
+		writeQueued(req);
+		return false;
+	}
+
+	/**
+	 * Return the oldest request handed off by fastWrite(), removing it.
+	 */
+	synchronized ASocketRequest writeDequeued() {
+		return (ASocketRequest) handoffList.remove_head();
+	}
+
+	/**
+	 * Called by the write stage when it receives a request posted after
+	 * fastWrite(). Take the oldest request handed off, which is not
+	 * necessarily the one received, as writers race to post theirs, and
+	 * add it to writeReqList in the same critical section, so that no
+	 * write of the fast path can slip in before the remainder of a
+	 * partial write. Return the request if the connection was too
+	 * clogged to take it, null otherwise; a request for a closed
+	 * connection is dropped.
+	 */
+	synchronized ASocketRequest queueHandedOff(SelectSourceIF write_selsource) {
+		ASocketRequest req = writeDequeued();
+		if (closed || addWriteRequest(req, write_selsource)) return null;
+		return req;
+	}
+
+	/**
+	 * Start the timeouts of this socket, as set on the server or client
+	 * socket it came from, or by default by
+	 * <tt>global.aSocket.timeout</tt>. Until a reader is started, timeout
+	 * events are posted to the given sink. Internal use only.
+	 */
+	public void startTimeouts(ISink compQ) {
+		int t[] = null;
+		if (conn.getServerSocket() != null) {
+			t = conn.getServerSocket().timeouts;
+		} else if (conn.getClientSocket() != null) {
+			t = conn.getClientSocket().timeouts;
+		}
+		if (t == null) t = ASocketMgr.timeouts();
+		timeoutQ = compQ;
+		setTimeouts(t[0], t[1], t[2]);
+	}
+
+	void setTimeouts(int idleRead, int idleWrite, int lifetime) {
+		checkTimeouts(idleRead, idleWrite, lifetime);
+		long now = System.currentTimeMillis();
+		// Idle times count from now for timeouts which were not tracked
+		if (this.idleReadTimeout == -1) lastRead = now;
+		if (this.idleWriteTimeout == -1) lastWrite = now;
+		this.idleReadTimeout = idleRead;
+		this.idleWriteTimeout = idleWrite;
+		this.lifetime = lifetime;
+		TimeoutWheel wheel = ASocketMgr.getTimeoutWheel();
+		if (wheel != null) wheel.add(this);
+	}
+
+	static void checkTimeouts(int idleRead, int idleWrite, int lifetime) {
+		if ((idleRead < -1) || (idleRead == 0) || (idleWrite < -1) || (idleWrite == 0) ||
+		    (lifetime < -1) || (lifetime == 0)) {
+			throw new IllegalArgumentException("Bad timeouts: idle read " + idleRead + ", idle write " +
+			    idleWrite + ", lifetime " + lifetime);
+		}
+	}
+
+	// Record that data was read or written, for the idle timeouts
+	protected final void readProgress() {
+		if (idleReadTimeout != -1) lastRead = System.currentTimeMillis();
+	}
+
+	protected final void writeProgress() {
+		if (idleWriteTimeout != -1) lastWrite = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return the timeout this socket has exceeded at the given time, as
+	 * an ATcpTimeoutEvent reason, or 0 if none. Reads suspended because
+	 * the read sink is clogged do not count as idle, nor does a socket
+	 * with nothing to write.
+	 */
+	int timedOut(long now) {
+		if (closed) return 0;
+		if ((lifetime != -1) && (now - created >= lifetime)) return ATcpTimeoutEvent.LIFETIME;
+		if ((idleReadTimeout != -1) && !readSuspended && (now - lastRead >= idleReadTimeout)) {
+			return ATcpTimeoutEvent.IDLE_READ;
+		}
+		if ((idleWriteTimeout != -1) && (queued_bytes > 0) && (now - lastWrite >= idleWriteTimeout)) {
+			return ATcpTimeoutEvent.IDLE_WRITE;
+		}
+		return 0;
+	}
+
+	/**
+	 * Return the time at which this socket may next time out, or
+	 * Long.MAX_VALUE if it has no timeout. While reads are suspended or
+	 * nothing is queued, the idle timeouts are checked again after
+	 * their period.
+	 */
+	long deadline(long now) {
+		if (closed) return Long.MAX_VALUE;
+		long d = Long.MAX_VALUE;
+		if (lifetime != -1) d = created + lifetime;
+		if (idleReadTimeout != -1) {
+			d = Math.min(d, (readSuspended ? now : lastRead) + idleReadTimeout);
+		}
+		if (idleWriteTimeout != -1) {
+			d = Math.min(d, ((queued_bytes > 0) ? lastWrite : now) + idleWriteTimeout);
+		}
+		return d;
+	}
+
+	/**
+	 * Close this socket because it exceeded the given timeout, posting
+	 * an ATcpTimeoutEvent. Return false if it was already closed.
+	 */
+	boolean expire(int reason) {
+		ISink q;
+		synchronized (this) {
+			if (closed) return false;
+			q = (readCompQ != null) ? readCompQ : timeoutQ;
+			close(null);
+		}
+		if (q != null) q.enqueueLossy(new ATcpTimeoutEvent(conn, reason));
+		return true;
+	}
+
+	// Called by close()
+	protected void stopTimeouts() {
+		TimeoutWheel wheel = ASocketMgr.getTimeoutWheel();
+		if (wheel != null) wheel.remove(this);
+	}
+
 	protected abstract void writeMaskEnable();
 
 	protected abstract void writeMaskDisable();
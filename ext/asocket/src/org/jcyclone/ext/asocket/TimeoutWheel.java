@@ -0,0 +1,170 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.timer.ITimer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timing wheel tracking the timeouts of TCP connections. A socket
+ * with a timeout sits in the slot of the tick at which its earliest
+ * deadline falls. Reads and writes only record their time in the
+ * SockState, and leave the wheel alone; when the slot of a socket comes
+ * up, its deadline is computed again from these times, and the socket
+ * is either closed or moved to the slot of its new deadline. Deadlines
+ * beyond the span of the wheel are checked again once per turn.
+ * <p/>
+ * The wheel is advanced by the aSocket listen stage, to which it posts
+ * itself with the timer once per tick, while it holds any socket.
+ */
+class TimeoutWheel implements IElement {
+
+	private static final boolean DEBUG = false;
+
+	private final ITimer timer;
+	private final ISink sink;
+	private final int tickMillis;
+	private final long start;
+
+	// Doubly linked lists of sockets, linked through SockState.wheelNext
+	// and wheelPrev
+	private final SockState slots[];
+	private int numSockets;
+	// The last tick processed
+	private long tick;
+	private boolean scheduled;
+
+	// Number of sockets closed for each reason
+	private final int numTimedOut[] = new int[ATcpTimeoutEvent.LIFETIME + 1];
+
+	TimeoutWheel(ITimer timer, ISink sink, int tickMillis, int numSlots) {
+		this.timer = timer;
+		this.sink = sink;
+		this.tickMillis = Math.max(tickMillis, 1);
+		this.slots = new SockState[numSlots];
+		this.start = System.currentTimeMillis();
+	}
+
+	/**
+	 * Place the given socket in the slot of its earliest deadline, or
+	 * remove it if it has no timeout.
+	 */
+	synchronized void add(SockState ss) {
+		if (ss.wheelSlot >= 0) unlink(ss);
+		long now = System.currentTimeMillis();
+		// The wheel stands still while empty; catch up
+		if (!scheduled) tick = (now - start) / tickMillis;
+		long deadline = ss.deadline(now);
+		if (deadline != Long.MAX_VALUE) link(ss, deadline);
+	}
+
+	synchronized void remove(SockState ss) {
+		if (ss.wheelSlot >= 0) unlink(ss);
+	}
+
+	private void link(SockState ss, long deadline) {
+		// Round up, so that the deadline has passed when the slot comes up
+		long ticks = (deadline - start + tickMillis - 1) / tickMillis - tick;
+		if (ticks < 1) ticks = 1;
+		if (ticks > slots.length) ticks = slots.length;
+		int s = (int) ((tick + ticks) % slots.length);
+		ss.wheelSlot = s;
+		ss.wheelPrev = null;
+		ss.wheelNext = slots[s];
+		if (slots[s] != null) slots[s].wheelPrev = ss;
+		slots[s] = ss;
+		numSockets++;
+		if (!scheduled) {
+			scheduled = true;
+			timer.registerEvent(tickMillis, this, sink);
+		}
+	}
+
+	private void unlink(SockState ss) {
+		if (ss.wheelPrev != null) {
+			ss.wheelPrev.wheelNext = ss.wheelNext;
+		} else {
+			slots[ss.wheelSlot] = ss.wheelNext;
+		}
+		if (ss.wheelNext != null) ss.wheelNext.wheelPrev = ss.wheelPrev;
+		ss.wheelNext = ss.wheelPrev = null;
+		ss.wheelSlot = -1;
+		numSockets--;
+	}
+
+	/**
+	 * Process the slots of the ticks which have passed, closing the
+	 * sockets which timed out. Called by the listen stage.
+	 */
+	void advance() {
+		List expired = new ArrayList();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			long target = (now - start) / tickMillis;
+			// Visit each slot at most once, however late we are
+			if (target - tick > slots.length) tick = target - slots.length;
+			while (tick < target) {
+				tick++;
+				int s = (int) (tick % slots.length);
+				SockState ss = slots[s];
+				while (ss != null) {
+					SockState next = ss.wheelNext;
+					unlink(ss);
+					int reason = ss.timedOut(now);
+					if (reason != 0) {
+						expired.add(new Expired(ss, reason));
+					} else {
+						long deadline = ss.deadline(now);
+						if (deadline != Long.MAX_VALUE) link(ss, deadline);
+					}
+					ss = next;
+				}
+			}
+			scheduled = false;
+			if (numSockets > 0) {
+				scheduled = true;
+				timer.registerEvent(tickMillis, this, sink);
+			}
+		}
+
+		// Close outside the lock, as close() removes the socket
+		for (int i = 0; i < expired.size(); i++) {
+			Expired e = (Expired) expired.get(i);
+			if (e.ss.expire(e.reason)) {
+				if (DEBUG) System.err.println("TimeoutWheel: Closed " + e.ss + ", " + ATcpTimeoutEvent.reasonName(e.reason) + " timeout");
+				synchronized (this) {
+					numTimedOut[e.reason]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of sockets closed for the given reason.
+	 */
+	synchronized int numTimedOut(int reason) {
+		return numTimedOut[reason];
+	}
+
+	synchronized int size() {
+		return numSockets;
+	}
+
+	public String toString() {
+		return "TimeoutWheel [" + size() + " sockets, tick " + tickMillis + " ms]";
+	}
+
+	// A socket found timed out, and the timeout it exceeded
+	private static class Expired {
+		final SockState ss;
+		final int reason;
+
+		Expired(SockState ss, int reason) {
+			this.ss = ss;
+			this.reason = reason;
+		}
+	}
+
+}
@@ -27,6 +27,7 @@ package org.jcyclone.ext.asocket;
 import org.jcyclone.core.cfg.IConfigData;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.queue.*;
+import org.jcyclone.util.FastLinkedList;
 import org.jcyclone.util.Tracer;
 
 import java.io.IOException;
@@ -93,18 +94,13 @@ class WriteEventHandler extends ASocketEventHandler implements IEventHandler, AS
 				// Skip if locked
 				if ((ss.cur_write_req != null) && (ss.cur_write_req != req)) break;
 
-				if (ss.cur_write_req == null) {
-					if (DEBUG) System.err.println("WriteEventHandler: Doing initWrite");
-					if (PROFILE) tracer.trace("initWrite called");
-					ss.initWrite((ATcpWriteRequest) req);
-				}
-
-				boolean done = false;
+				int done = 0;
 				int c = 0;
 
-				// Try hard to finish this packet
+				// Try hard to finish these packets, writing as many of the
+				// pending requests as we can at once
 				try {
-					while ((!(done = ss.tryWrite())) && (c++ < TRYWRITE_SPIN)) ;
+					while (((done = ss.tryWriteMany()) == 0) && (c++ < TRYWRITE_SPIN)) ;
 				} catch (SinkClosedException sde) {
 					// OK, the socket closed underneath us
 					// XXX MDW: Taking this out for now - expect the SinkClosedEvent
@@ -117,32 +113,66 @@ class WriteEventHandler extends ASocketEventHandler implements IEventHandler, AS
 					//}
 				}
 
-				if (done) {
-					if (DEBUG) System.err.println("WriteEventHandler: Finished write");
-					// Finished this write
-					if (PROFILE) tracer.trace("writeReset");
-					ss.writeReset();
-					if (PROFILE) tracer.trace("writeReset return");
+				if (done == 0) {
+					if (DEBUG) System.err.println("WriteEventHandler: Write not completed");
+					break; // Don't want to process anything else here
+				}
 
-					// Send completion upcall
+				if (DEBUG) System.err.println("WriteEventHandler: Finished " + done + " writes");
+				for (int i = 0; i < done; i++) {
+					// Finished this write; clear the request
+					FastLinkedList list = ss.writeReqList;
+					if (list == null) return; // Closed, nothing more to do
+					wreq = (ATcpWriteRequest) list.remove_head();
+					if (PROFILE) tracer.trace("writeDone");
 					ISink cq = wreq.buf.getCompletionQueue();
+					ss.writeDone(wreq.buf.size - wreq.sent);
+
+					// Send completion upcall
 					if (cq != null) {
 						SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, wreq.buf);
 						cq.enqueueLossy(sde);
 					}
+				}
+				num_reqs_processed += done - 1;
 
-					// Clear the request
-					if (!ss.isClosed()) {
-						ss.writeReqList.remove_head();
-					} else {
-						return; // Nothing more to do
-					}
+			} else if (req instanceof ATcpSendFileRequest) {
+				// Handle file region
+				if (DEBUG) System.err.println("WriteEventHandler: Processing ATcpSendFileRequest");
+				ATcpSendFileRequest sreq = (ATcpSendFileRequest) req;
 
-				} else {
-					if (DEBUG) System.err.println("WriteEventHandler: Write not completed");
+				// Skip if locked
+				if (ss.cur_write_req != null) break;
+
+				boolean done = false;
+				int c = 0;
+
+				// Try hard to finish this region
+				try {
+					while ((!(done = ss.trySendFile(sreq))) && (c++ < TRYWRITE_SPIN)) ;
+				} catch (SinkClosedException sde) {
+					// Ignore - expect the SinkClosedEvent to be pushed up when
+					// read() fails
+				}
+
+				if (!done) {
+					if (DEBUG) System.err.println("WriteEventHandler: Send file not completed");
 					break; // Don't want to process anything else here
 				}
 
+				// Clear the request
+				FastLinkedList list = ss.writeReqList;
+				if (list == null) return; // Closed, nothing more to do
+				list.remove_head();
+				ISink cq = sreq.region.getCompletionQueue();
+				ss.writeDone(sreq.region.count);
+
+				// Send completion upcall
+				if (cq != null) {
+					SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, sreq.region);
+					cq.enqueueLossy(sde);
+				}
+
 			} else if (req instanceof ATcpFlushRequest) {
 
 				ATcpFlushRequest freq = (ATcpFlushRequest) req;
@@ -300,6 +330,25 @@ class WriteEventHandler extends ASocketEventHandler implements IEventHandler, AS
 		if (DEBUG) System.err.println("WriteEventHandler: Processed " + num_reqs_processed + " writes in one go");
 	}
 
+	// Drop the given write or send file request, which the clogged
+	// connection could not take
+	private void writeClogged(SockState ss, ASocketRequest req) {
+		ISink cq;
+		SinkCloggedEvent sce;
+		if (req instanceof ATcpWriteRequest) {
+			ATcpWriteRequest wreq = (ATcpWriteRequest) req;
+			cq = wreq.buf.getCompletionQueue();
+			ss.writeDropped(wreq.buf.size - wreq.sent);
+			sce = new SinkCloggedEvent(wreq.conn, wreq.buf);
+		} else {
+			ATcpSendFileRequest sreq = (ATcpSendFileRequest) req;
+			cq = sreq.region.getCompletionQueue();
+			ss.writeDropped(sreq.region.count);
+			sce = new SinkCloggedEvent(sreq.conn, sreq.region);
+		}
+		if (cq != null) cq.enqueueLossy(sce);
+	}
+
 	private void processWriteRequest(ASocketRequest req) throws IOException {
 
 		if (req instanceof ATcpConnectRequest) {
@@ -327,30 +376,23 @@ class WriteEventHandler extends ASocketEventHandler implements IEventHandler, AS
 			AUdpDisconnectEvent ev = new AUdpDisconnectEvent(udpsock);
 			udpsock.compQ.enqueueLossy(ev);
 
-		} else if (req instanceof ATcpWriteRequest) {
+		} else if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpSendFileRequest)) {
 
 			if (DEBUG) System.err.println("WriteEventHandler: got write request: " + req);
 			if (PROFILE) tracer.trace("processWriteRequest (TCP)");
 
-			SockState ss = ((ATcpWriteRequest) req).conn.sockState;
-
-			// If already closed, just drop it
-			if (!ss.closed) {
-				if (DEBUG) System.err.println("WriteEventHandler: Adding write req to " + ss);
-
-				if (!ss.addWriteRequest(req, selsource)) {
-					// Couldn't enqueue: this connection is clogged
-					ATcpWriteRequest wreq = (ATcpWriteRequest) req;
-					ISink cq = wreq.buf.getCompletionQueue();
-					if (cq != null) {
-						SinkCloggedEvent sce = new SinkCloggedEvent(wreq.conn, wreq.buf);
-						cq.enqueueLossy(sce);
-					}
-				} else {
-					if (DEBUG) System.err.println("WriteEventHandler: " + ss.outstanding_writes + " outstanding writes");
-					if (PROFILE) tracer.trace("done enqueue writereq");
-				}
+			SockState ss = (req instanceof ATcpWriteRequest) ?
+			    ((ATcpWriteRequest) req).conn.sockState : ((ATcpSendFileRequest) req).conn.sockState;
+			if (ASocketMgr.writeFastPath()) {
+				// Take the oldest write handed off on this connection
+				ASocketRequest clogged = ss.queueHandedOff(selsource);
+				if (clogged != null) writeClogged(ss, clogged);
+			} else if (!ss.closed && !ss.addWriteRequest(req, selsource)) {
+				// Couldn't enqueue: this connection is clogged. If already
+				// closed, just drop it
+				writeClogged(ss, req);
 			}
+			if (DEBUG) System.err.println("WriteEventHandler: " + ss.outstanding_writes + " outstanding writes");
 
 		} else if (req instanceof AUdpWriteRequest) {
 
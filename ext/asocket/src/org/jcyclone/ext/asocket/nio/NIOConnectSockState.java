@@ -130,6 +130,7 @@ public class NIOConnectSockState extends ConnectSockState {
 			if (DEBUG) System.err.println("ConnectSockState: connect finished on " + sock.getInetAddress().getHostAddress() + ":" + sock.getPort());
 			NIOSockState ss = new NIOSockState(conn, sock, writeClogThreshold);
 			conn.sockState = ss;
+			ss.startTimeouts(compQ);
 
 			// Finally enqueue
 			txn.commit();
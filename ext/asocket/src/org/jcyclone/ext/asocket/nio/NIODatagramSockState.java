@@ -74,11 +74,9 @@ public class NIODatagramSockState extends DatagramSockState {
 		this.maxPacketSize = sock.maxPacketSize;
 		this.connected = false;
 
-		readBuf = new byte[maxPacketSize];
+		// The receive buffer is allocated on the first read
 		this.nio_write_selsource = null;
 
-		nio_readbuf = ByteBuffer.wrap(readBuf);
-
 		if (DEBUG) System.err.println("DatagramSockState : setting up socket");
 		this.nio_dgsock = DatagramChannel.open();
 		this.nio_dgsock.configureBlocking(false);
@@ -138,14 +136,26 @@ public class NIODatagramSockState extends DatagramSockState {
 
 		int len;
 		DatagramPacket p;
+		ASocketReadEvent jfrEvent = new ASocketReadEvent();
 
 		try {
 			if (DEBUG) System.err.println("DatagramSockState: doRead trying receive");
+			jfrEvent.begin();
+			// Receive into a buffer large enough for any packet, and copy
+			// out the payload, so that packets only take the space they need
+			if (nio_readbuf == null) nio_readbuf = ByteBuffer.allocateDirect(maxPacketSize);
+			nio_readbuf.clear();
 			SocketAddress peersa = nio_dgsock.receive(nio_readbuf);
+			if (peersa == null) {
+				// No packet available
+				return;
+			}
 			len = nio_readbuf.position();
-			p = new DatagramPacket(readBuf, 0, len);
+			byte data[] = new byte[len];
+			nio_readbuf.flip();
+			nio_readbuf.get(data);
+			p = new DatagramPacket(data, 0, len);
 			p.setSocketAddress(peersa);
-			p.setLength(len);
 
 			if (DEBUG) System.err.println("DatagramSockState: receive returned " + len);
 
@@ -165,16 +175,19 @@ public class NIODatagramSockState extends DatagramSockState {
 			return;
 		}
 
+		if (jfrEvent.shouldCommit()) {
+			jfrEvent.protocol = "udp";
+			jfrEvent.peer = String.valueOf(p.getSocketAddress());
+			jfrEvent.bytes = len;
+			jfrEvent.commit();
+		}
+
 		if (DEBUG) System.err.println("dgss.doRead: Pushing up new AUdpInPacket, len=" + len);
 
 		pkt = new AUdpInPacket(udpsock, p, seqNum);
-		System.err.println("pkt.size()=" + pkt.size());
 		// 0 is special (indicates no sequence number)
 		seqNum++;
 		if (seqNum == 0) seqNum = 1;
-		// XXX Should really test for READ_BUFFER_COPY here as in SockState.java
-		readBuf = new byte[maxPacketSize];
-		nio_readbuf = ByteBuffer.wrap(readBuf);
 
 		try {
 			readCompQ.enqueue(pkt);
@@ -233,17 +246,22 @@ public class NIODatagramSockState extends DatagramSockState {
 		DatagramPacket outgoing;
 		InetAddress send_addr;
 		int send_port;
+		SocketAddress peer;
+		ASocketWriteEvent jfrEvent = new ASocketWriteEvent();
 
 		try {
+			jfrEvent.begin();
 			if (cur_write_buf instanceof AUdpPacket) {
 				AUdpPacket udpp = (AUdpPacket) cur_write_buf;
 				bb = ByteBuffer.wrap(udpp.data, udpp.offset, udpp.size);
 				InetSocketAddress isa = new InetSocketAddress(udpp.address, udpp.port);
+				peer = isa;
 				ret = nio_dgsock.send(bb, isa);
 			} else {
 				// XXX Should check if !connected and throw IOException
 				// (not just SinkClosedException)
 				bb = ByteBuffer.wrap(cur_write_buf.data, cur_write_buf.offset, cur_write_buf.size);
+				peer = null;
 				ret = nio_dgsock.write(bb);
 			}
 
@@ -253,6 +271,13 @@ public class NIODatagramSockState extends DatagramSockState {
 			this.close(null);
 			throw new SinkClosedException("DatagramSockState: tryWrite got exception doing write: " + ioe.getMessage());
 		}
+		if (jfrEvent.shouldCommit()) {
+			jfrEvent.protocol = "udp";
+			jfrEvent.peer = (peer != null) ? peer.toString() : String.valueOf(nio_dgsock.socket().getRemoteSocketAddress());
+			jfrEvent.requested = cur_write_buf.size;
+			jfrEvent.bytes = ret;
+			jfrEvent.commit();
+		}
 		if (ret == cur_write_buf.size)
 			return true;
 		else
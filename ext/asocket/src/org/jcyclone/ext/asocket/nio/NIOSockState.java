@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.util.Enumeration;
 
 /**
  * Internal class used to represent state of an active socket connection.
@@ -43,8 +44,19 @@ public class NIOSockState extends SockState {
 	private SelectionKey rselkey, wselkey;
 	private ByteBuffer byte_buffer, read_byte_buffer;
 
+	// The buffers and requests of a gathering write
+	private ByteBuffer gather_bufs[];
+	private ATcpWriteRequest gather_reqs[];
+
 	private NIOSelectSource read_selsource, write_selsource;
 
+	// Pool of direct read buffers, or null to read into readBuf
+	private ReadBufferPool pool;
+	private ReadBufferSizer sizer;
+	// Delay in milliseconds before retrying a packet refused by a
+	// predicate of the empty readCompQ
+	private int retryDelay;
+
 	NIOSockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
 		if (DEBUG) System.err.println("SockState: Constructor called with " + conn + ", " + nbsock + ", " + writeClogThreshold);
 		this.conn = conn;
@@ -52,9 +64,9 @@ public class NIOSockState extends SockState {
 		this.writeClogThreshold = writeClogThreshold;
 		this.write_selsource = null;
 
-		if (DEBUG) System.err.println("SockState " + nbsock + ": Const creating readBuf of size " + ASocketConst.READ_BUFFER_SIZE);
-		readBuf = new byte[ASocketConst.READ_BUFFER_SIZE];
-		read_byte_buffer = ByteBuffer.wrap(readBuf);
+		// The read buffer is allocated on the first read
+		pool = ASocketMgr.getReadBufferPool();
+		sizer = ASocketMgr.newReadBufferSizer();
 
 		if (DEBUG) System.err.println("SockState " + nbsock + ": Setting flags");
 		outstanding_writes = 0;
@@ -94,6 +106,9 @@ public class NIOSockState extends SockState {
 		// a socket we may have outstanding read events still in the queue
 		if (closed) return;
 
+		// Likewise after suspending reads
+		if (readSuspended) return;
+
 		if (clogged_qel != null) {
 			// Try to drain the clogged element first
 			if (DEBUG) System.err.println("SockState: doRead draining clogged element " + clogged_qel);
@@ -103,9 +118,11 @@ public class NIOSockState extends SockState {
 				clogged_numtries = 0;
 			} catch (SinkFullException qfe) {
 				// Nope, still clogged
+				if (suspendRead()) return;
 				if ((readClogTries != -1) &&
 				    (++clogged_numtries >= readClogTries)) {
 					if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping " + clogged_qel);
+					((ATcpInPacket) clogged_qel).release();
 					clogged_qel = null;
 					clogged_numtries = 0;
 				} else {
@@ -119,10 +136,24 @@ public class NIOSockState extends SockState {
 		}
 
 		int len;
+		ASocketReadEvent jfrEvent = new ASocketReadEvent();
 
 		try {
 			if (DEBUG) System.err.println("SockState: doRead trying read");
-			len = nbsock.getChannel().read(read_byte_buffer);
+			jfrEvent.begin();
+			int size = sizer.size();
+			if (pool != null) {
+				pkt = pool.read(conn, nbsock.getChannel(), seqNum, size);
+				len = (pkt == null) ? 0 : pkt.size();
+			} else {
+				if (readBuf == null || readBuf.length != size) {
+					if (DEBUG) System.err.println("SockState " + nbsock + ": Creating readBuf of size " + size);
+					readBuf = new byte[size];
+					read_byte_buffer = ByteBuffer.wrap(readBuf);
+				}
+				read_byte_buffer.clear();
+				len = nbsock.getChannel().read(read_byte_buffer);
+			}
 			if (DEBUG) System.err.println("SockState: read returned " + len);
 
 			if (len == 0) {
@@ -146,29 +177,100 @@ public class NIOSockState extends SockState {
 			return;
 		}
 
+		if (jfrEvent.shouldCommit()) {
+			jfrEvent.protocol = "tcp";
+			jfrEvent.peer = conn.getAddress().getHostAddress() + ":" + conn.getPort();
+			jfrEvent.bytes = len;
+			jfrEvent.commit();
+		}
+
+		sizer.record(len);
+		readProgress();
+
 		if (DEBUG) System.err.println("ss.doRead: Pushing up new ATcpInPacket, len=" + len);
 
-		pkt = new ATcpInPacket(conn, readBuf, len, ASocketConst.READ_BUFFER_COPY, seqNum);
+		if (pool == null) {
+			pkt = new ATcpInPacket(conn, readBuf, len, ASocketConst.READ_BUFFER_COPY, seqNum);
+		}
 		// 0 is special (indicates no sequence number)
 		seqNum++;
 		if (seqNum == 0) seqNum = 1;
-		if (ASocketConst.READ_BUFFER_COPY == false) {
-			readBuf = new byte[ASocketConst.READ_BUFFER_SIZE];
-			read_byte_buffer = ByteBuffer.wrap(readBuf);
+		if (pool == null && ASocketConst.READ_BUFFER_COPY == false) {
+			// The packet holds on to readBuf
+			readBuf = null;
+			read_byte_buffer = null;
 		}
 
+		ATcpInPacket p = pkt;
+		// Don't hold on to a pooled packet
+		if (pool != null) pkt = null;
 		try {
-			readCompQ.enqueue(pkt);
+			readCompQ.enqueue(p);
 		} catch (SinkFullException qfe) {
-			clogged_qel = pkt;
+			clogged_qel = p;
 			clogged_numtries = 0;
+			suspendRead();
 			return;
 		} catch (SinkException sce) {
 			// User has gone away
+			p.release();
 			this.close(null);
 			return;
 		}
-		read_byte_buffer.rewind();
+	}
+
+	// Stop reading from the socket until readCompQ drains, leaving the
+	// peer to be pushed back by TCP flow control. Return false if the sink
+	// cannot tell when it drains, in which case doRead() retries the
+	// clogged packet on each select, up to readClogTries times.
+	// Synchronized with close(), which cancels rselkey.
+	private synchronized boolean suspendRead() {
+		if (closed || !(readCompQ instanceof IDrainNotifyingSink)) return false;
+		if (DEBUG) System.err.println("SockState: suspending reads on " + this);
+		readSuspended = true;
+		rselkey.interestOps(rselkey.interestOps() & ~SelectionKey.OP_READ);
+		if (!waitForDrain()) {
+			readSuspended = false;
+			rselkey.interestOps(rselkey.interestOps() | SelectionKey.OP_READ);
+			return false;
+		}
+		return true;
+	}
+
+	// Have resumeRead() called once readCompQ drains. If readCompQ is
+	// empty, the packet was refused by one of its predicates rather than
+	// for want of room, and no dequeue may come to call readResumer: retry
+	// after a delay instead, doubled on each refusal, rather than have
+	// notifyOnDrain() call back at once and spin.
+	private boolean waitForDrain() {
+		if (readCompQ.size() == 0) {
+			retryDelay = (retryDelay == 0) ? 1 : Math.min(retryDelay * 2, MAX_READ_RETRY_DELAY);
+			if (resumeReadLater(retryDelay)) return true;
+		}
+		return ((IDrainNotifyingSink) readCompQ).notifyOnDrain(readResumer);
+	}
+
+	protected synchronized void resumeRead() {
+		if (closed || !readSuspended) return;
+		if (clogged_qel != null) {
+			try {
+				readCompQ.enqueue(clogged_qel);
+				clogged_qel = null;
+				clogged_numtries = 0;
+				retryDelay = 0;
+			} catch (SinkFullException qfe) {
+				// Clogged again; wait for the next drain
+				waitForDrain();
+				return;
+			} catch (SinkException sce) {
+				// User has gone away
+				this.close(null);
+				return;
+			}
+		}
+		if (DEBUG) System.err.println("SockState: resuming reads on " + this);
+		readSuspended = false;
+		rselkey.interestOps(rselkey.interestOps() | SelectionKey.OP_READ);
 	}
 
 	// XXX This is synchronized with close() to avoid a race with close()
@@ -207,7 +309,7 @@ public class NIOSockState extends SockState {
 		if ((writeClogThreshold != -1) &&
 		    (this.outstanding_writes > writeClogThreshold)) {
 			if (DEBUG) System.err.println("SockState: warning: writeClogThreshold exceeded, dropping " + req);
-			if (req instanceof ATcpWriteRequest) return false;
+			if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpSendFileRequest)) return false;
 			if (req instanceof ATcpCloseRequest) {
 				// Do immediate close: Assume socket is clogged
 				ATcpCloseRequest creq = (ATcpCloseRequest) req;
@@ -226,9 +328,9 @@ public class NIOSockState extends SockState {
 	protected void initWrite(ATcpWriteRequest req) {
 		this.cur_write_req = req;
 		this.writeBuf = req.buf.data;
-		this.cur_offset = req.buf.offset;
-		this.cur_length_target = req.buf.size + cur_offset;
-		this.byte_buffer = ByteBuffer.wrap(writeBuf, cur_offset, req.buf.size);
+		this.cur_offset = req.buf.offset + req.sent;
+		this.cur_length_target = req.buf.offset + req.buf.size;
+		this.byte_buffer = ByteBuffer.wrap(writeBuf, cur_offset, cur_length_target - cur_offset);
 	}
 
 	protected boolean tryWrite() throws SinkClosedException {
@@ -242,7 +344,18 @@ public class NIOSockState extends SockState {
 			}
 			if (DEBUG) System.err.println("writing " + tryLen + " bytes");
 			byte_buffer.limit(byte_buffer.position() + tryLen);
-			cur_offset += nbsock.getChannel().write(byte_buffer);
+			ASocketWriteEvent jfrEvent = new ASocketWriteEvent();
+			jfrEvent.begin();
+			int len = nbsock.getChannel().write(byte_buffer);
+			cur_offset += len;
+			if (len > 0) writeProgress();
+			if (jfrEvent.shouldCommit()) {
+				jfrEvent.protocol = "tcp";
+				jfrEvent.peer = conn.getAddress().getHostAddress() + ":" + conn.getPort();
+				jfrEvent.requested = tryLen;
+				jfrEvent.bytes = len;
+				jfrEvent.commit();
+			}
 			if (DEBUG) System.err.println("SockState: tryWrite() of " + tryLen + " bytes (len=" + cur_length_target + ", off=" + cur_offset);
 
 		} catch (IOException ioe) {
@@ -257,6 +370,139 @@ public class NIOSockState extends SockState {
 			return false;
 	}
 
+	protected boolean tryWriteNow(ATcpWriteRequest req) {
+		int tryLen = req.buf.size - req.sent;
+		try {
+			ASocketWriteEvent jfrEvent = new ASocketWriteEvent();
+			jfrEvent.begin();
+			int len = nbsock.getChannel().write(ByteBuffer.wrap(req.buf.data, req.buf.offset + req.sent, tryLen));
+			if (jfrEvent.shouldCommit()) {
+				jfrEvent.protocol = "tcp";
+				jfrEvent.peer = conn.getAddress().getHostAddress() + ":" + conn.getPort();
+				jfrEvent.requested = tryLen;
+				jfrEvent.bytes = len;
+				jfrEvent.commit();
+			}
+			req.sent += len;
+			if (len > 0) writeProgress();
+			if (DEBUG) System.err.println("SockState: tryWriteNow() wrote " + len + " of " + tryLen + " bytes");
+		} catch (IOException ioe) {
+			// Leave the request to the write stage, which drops it
+			this.close(null);
+			return false;
+		}
+		return (req.sent == req.buf.size);
+	}
+
+	protected int tryWriteMany() throws SinkClosedException {
+		FastLinkedList list = writeReqList;
+		if (list == null) throw new SinkClosedException("tryWriteMany: socket closed");
+		if (cur_write_req == null) initWrite((ATcpWriteRequest) list.get_head());
+		if (MAX_WRITE_LEN != -1) {
+			if (!tryWrite()) return 0;
+			cur_write_req = null;
+			return 1;
+		}
+
+		if (gather_bufs == null) {
+			gather_bufs = new ByteBuffer[MAX_GATHER_WRITES];
+			gather_reqs = new ATcpWriteRequest[MAX_GATHER_WRITES];
+		}
+
+		// Gather the write requests which follow the current one
+		gather_bufs[0] = byte_buffer;
+		gather_reqs[0] = cur_write_req;
+		int num = 1;
+		int tryLen = byte_buffer.remaining();
+		Enumeration e = list.elements();
+		e.nextElement(); // cur_write_req
+		while (num < MAX_GATHER_WRITES && tryLen < MAX_GATHER_BYTES && e.hasMoreElements()) {
+			Object o = e.nextElement();
+			if (!(o instanceof ATcpWriteRequest)) break;
+			ATcpWriteRequest req = (ATcpWriteRequest) o;
+			gather_bufs[num] = ByteBuffer.wrap(req.buf.data, req.buf.offset + req.sent, req.buf.size - req.sent);
+			gather_reqs[num] = req;
+			tryLen += req.buf.size - req.sent;
+			num++;
+		}
+
+		try {
+			if (DEBUG) System.err.println("SockState: tryWriteMany() of " + num + " requests, " + tryLen + " bytes");
+			ASocketWriteEvent jfrEvent = new ASocketWriteEvent();
+			jfrEvent.begin();
+			long len = nbsock.getChannel().write(gather_bufs, 0, num);
+			if (len > 0) writeProgress();
+			if (jfrEvent.shouldCommit()) {
+				jfrEvent.protocol = "tcp";
+				jfrEvent.peer = conn.getAddress().getHostAddress() + ":" + conn.getPort();
+				jfrEvent.requested = tryLen;
+				jfrEvent.bytes = (int) len;
+				jfrEvent.commit();
+			}
+		} catch (IOException ioe) {
+			for (int i = 0; i < num; i++) {
+				gather_bufs[i] = null;
+				gather_reqs[i] = null;
+			}
+			// Assume this is because socket was already closed
+			this.close(null);
+			throw new SinkClosedException("tryWriteMany got exception doing write: " + ioe.getMessage());
+		}
+
+		int done = 0;
+		while (done < num && !gather_bufs[done].hasRemaining()) done++;
+		if (done == num) {
+			cur_write_req = null;
+		} else {
+			// Continue with the partially written request
+			cur_write_req = gather_reqs[done];
+			byte_buffer = gather_bufs[done];
+			writeBuf = cur_write_req.buf.data;
+			cur_offset = byte_buffer.position();
+			cur_length_target = byte_buffer.limit();
+		}
+		for (int i = 0; i < num; i++) {
+			gather_bufs[i] = null;
+			gather_reqs[i] = null;
+		}
+		if (DEBUG) System.err.println("SockState: tryWriteMany() completed " + done + " requests");
+		return done;
+	}
+
+	protected boolean trySendFile(ATcpSendFileRequest req) throws SinkClosedException {
+		if (req.remaining == 0) return true;
+		long len;
+		try {
+			long tryLen = Math.min(req.remaining, MAX_SENDFILE_LEN);
+			ASocketWriteEvent jfrEvent = new ASocketWriteEvent();
+			jfrEvent.begin();
+			len = req.region.channel.transferTo(req.position, tryLen, nbsock.getChannel());
+			if (len > 0) writeProgress();
+			if (jfrEvent.shouldCommit()) {
+				jfrEvent.protocol = "tcp";
+				jfrEvent.peer = conn.getAddress().getHostAddress() + ":" + conn.getPort();
+				jfrEvent.requested = (int) tryLen;
+				jfrEvent.bytes = (int) len;
+				jfrEvent.commit();
+			}
+			if (DEBUG) System.err.println("SockState: trySendFile() sent " + len + " of " + req.remaining + " bytes");
+			// Nothing sent either because the socket buffer is full, or
+			// because the file ends before the region
+			if (len == 0 && req.position >= req.region.channel.size()) {
+				if (DEBUG) System.err.println("SockState: trySendFile() reached end of file at " + req.position);
+				req.remaining = 0;
+				return true;
+			}
+		} catch (IOException ioe) {
+			// Assume this is because socket was already closed
+			this.close(null);
+			throw new SinkClosedException("trySendFile got exception doing transferTo: " + ioe.getMessage());
+		}
+		req.position += len;
+		req.remaining -= len;
+		return (req.remaining == 0);
+	}
+
 	protected void writeMaskEnable() {
 		numActiveWriteSockets++;
 		wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
@@ -273,6 +519,7 @@ public class NIOSockState extends SockState {
 		if (closed) return;
 
 		closed = true;
+		stopTimeouts();
 
 		if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
 		if (read_selsource != null) read_selsource.deregister(rselkey);
@@ -281,6 +528,13 @@ public class NIOSockState extends SockState {
 
 		// Eliminate write queue
 		writeReqList = null;
+		queued_bytes = 0;
+
+		// Drop the packet we could not deliver
+		if (clogged_qel != null) {
+			((ATcpInPacket) clogged_qel).release();
+			clogged_qel = null;
+		}
 
 		try {
 			if (DEBUG) System.err.println("SockState.close(): doing close [" + nbsock + "]");
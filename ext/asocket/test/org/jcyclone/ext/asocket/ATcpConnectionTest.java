@@ -0,0 +1,186 @@
+package org.jcyclone.ext.asocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the bytes written to a connection by concurrent threads
+ * arrive in the order of the writes, whole, with the write fast path,
+ * whose partial writes are finished by the write stage.
+ */
+public class ATcpConnectionTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int MESSAGES = 2000;
+    // Length of the header of a message: thread, sequence number, length
+    private static final int HEADER = 12;
+
+    public ATcpConnectionTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ATcpConnectionTest.class);
+    }
+
+    public void testConcurrentWritesInOrder() throws Exception {
+        JCycloneConfig cfg = new JCycloneConfig();
+        cfg.putBoolean("global.aSocket.writeFastPath", true);
+        JCyclone jc = new JCyclone(cfg);
+        try {
+            LinkedBlockingQueue serverQ = new LinkedBlockingQueue();
+            LinkedBlockingQueue clientQ = new LinkedBlockingQueue();
+            ATcpServerSocket server = new ATcpServerSocket(0, serverQ);
+            List l = new ArrayList();
+            while (server.getLocalPort() == -1) {
+                l.clear();
+                serverQ.blockingDequeueAll(l, 100);
+            }
+            new ATcpClientSocket("localhost", server.getLocalPort(), clientQ);
+
+            ATcpConnection tx = null, rx = null;
+            long end = System.currentTimeMillis() + 10000;
+            while ((tx == null || rx == null) && System.currentTimeMillis() < end) {
+                l.clear();
+                clientQ.blockingDequeueAll(l, 50);
+                for (int i = 0; i < l.size(); i++) {
+                    if (l.get(i) instanceof ATcpConnection) tx = (ATcpConnection) l.get(i);
+                }
+                l.clear();
+                serverQ.blockingDequeueAll(l, 50);
+                for (int i = 0; i < l.size(); i++) {
+                    if (l.get(i) instanceof ATcpConnection) rx = (ATcpConnection) l.get(i);
+                }
+            }
+            assertNotNull(tx);
+            assertNotNull(rx);
+
+            Writer writers[] = new Writer[THREADS];
+            long total = 0;
+            for (int t = 0; t < THREADS; t++) {
+                writers[t] = new Writer(tx, t);
+                total += writers[t].total;
+            }
+            for (int t = 0; t < THREADS; t++) writers[t].start();
+            // Start reading only once writes have backed up, so that the
+            // fast path writes partially
+            Thread.sleep(50);
+            LinkedBlockingQueue readQ = new LinkedBlockingQueue();
+            rx.startReader(readQ);
+
+            Checker checker = new Checker();
+            end = System.currentTimeMillis() + 60000;
+            while (checker.received < total && System.currentTimeMillis() < end) {
+                l.clear();
+                readQ.blockingDequeueAll(l, 50);
+                for (int i = 0; i < l.size(); i++) {
+                    if (l.get(i) instanceof ATcpInPacket) {
+                        ATcpInPacket pkt = (ATcpInPacket) l.get(i);
+                        checker.check(pkt.getBytes());
+                        pkt.release();
+                    }
+                }
+            }
+            for (int t = 0; t < THREADS; t++) {
+                writers[t].join();
+                assertNull(writers[t].error);
+            }
+            assertEquals(total, checker.received);
+            for (int t = 0; t < THREADS; t++) assertEquals(MESSAGES, checker.next[t]);
+        } finally {
+            jc.stop();
+            jc.dispose();
+        }
+    }
+
+    private static int getInt(byte b[], int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte b[], int off, int v) {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static byte fill(int id, int seq, int k) {
+        return (byte) (id * 31 + seq * 7 + k);
+    }
+
+    // Checks the stream of messages as it arrives
+    static class Checker {
+        long received;
+        final int next[] = new int[THREADS];
+        private final byte header[] = new byte[HEADER];
+        // Position in the current message, and its header
+        private int pos, id, seq, len;
+
+        void check(byte data[]) {
+            for (int i = 0; i < data.length; i++, pos++, received++) {
+                if (pos < HEADER) {
+                    header[pos] = data[i];
+                    if (pos < HEADER - 1) continue;
+                    id = getInt(header, 0);
+                    seq = getInt(header, 4);
+                    len = getInt(header, 8);
+                    assertTrue("Bad thread " + id + " at " + received, id >= 0 && id < THREADS);
+                    assertEquals("Message of thread " + id + " out of order at " + received, next[id], seq);
+                    assertTrue("Bad length " + len + " at " + received, len >= HEADER);
+                } else if (data[i] != fill(id, seq, pos)) {
+                    fail("Message " + seq + " of thread " + id + " corrupted at " + pos);
+                }
+                if (pos == len - 1) {
+                    next[id]++;
+                    pos = -1;
+                }
+            }
+        }
+    }
+
+    // Writes MESSAGES messages of random lengths, some larger than the
+    // socket buffers
+    static class Writer extends Thread {
+        private final ATcpConnection conn;
+        private final int id;
+        private final int lengths[] = new int[MESSAGES];
+        long total;
+        Exception error;
+
+        Writer(ATcpConnection conn, int id) {
+            this.conn = conn;
+            this.id = id;
+            Random r = new Random(id);
+            for (int i = 0; i < MESSAGES; i++) {
+                lengths[i] = HEADER + r.nextInt((r.nextInt(4) == 0) ? 200000 : 300);
+                total += lengths[i];
+            }
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    byte b[] = new byte[lengths[i]];
+                    putInt(b, 0, id);
+                    putInt(b, 4, i);
+                    putInt(b, 8, b.length);
+                    for (int k = HEADER; k < b.length; k++) b[k] = fill(id, i, k);
+                    conn.enqueue(new BufferElement(b));
+                    // Let the write stage catch up now and then, so that
+                    // writes often find a single partial write pending
+                    if (i % 8 == 0) Thread.yield();
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.jcyclone.ext.asocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Tests the allocation, recycling and leak detection of
+ * {@link ReadBufferPool}.
+ */
+public class ReadBufferPoolTest extends TestCase {
+
+    public ReadBufferPoolTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReadBufferPoolTest.class);
+    }
+
+    private static ReadableByteChannel channel(int len) {
+        byte data[] = new byte[len];
+        for (int i = 0; i < len; i++) data[i] = (byte) i;
+        return Channels.newChannel(new ByteArrayInputStream(data));
+    }
+
+    public void testAllocateAndRecycle() throws Exception {
+        ReadBufferPool pool = new ReadBufferPool(1024, 8192, 16384, 4, false);
+        assertEquals(0, pool.capacity());
+
+        ATcpInPacket pkt = pool.read(null, channel(100), 1, 1000);
+        assertTrue(pkt.isPooled());
+        assertEquals(100, pkt.size());
+        assertEquals(1, pkt.getSequenceNumber());
+        byte data[] = pkt.getBytes();
+        for (int i = 0; i < 100; i++) assertEquals((byte) i, data[i]);
+        // One slab of 1024-byte buffers
+        assertEquals(16, pool.capacity());
+        assertEquals(1, pool.numInUse());
+
+        pkt.retain();
+        assertFalse(pkt.release());
+        assertEquals(1, pool.numInUse());
+        assertTrue(pkt.release());
+        assertEquals(0, pool.numInUse());
+        assertEquals(0, pkt.refCnt());
+
+        // The buffer released last is used next
+        ATcpInPacket pkt2 = pool.read(null, channel(10), 2, 1000);
+        assertSame(pkt, pkt2);
+        assertEquals(10, pkt2.size());
+        assertEquals(1, pkt2.refCnt());
+        pkt2.release();
+
+        // Larger sizes take a slab of their own size class
+        pkt = pool.read(null, channel(3000), 3, 3000);
+        assertEquals(4096, pkt.getByteBuffer().capacity());
+        assertEquals(3000, pkt.size());
+        assertEquals(20, pool.capacity());
+        // Sizes beyond the maximum are read into the largest buffers
+        pkt2 = pool.read(null, channel(20000), 4, 20000);
+        assertEquals(8192, pkt2.size());
+        assertEquals(22, pool.capacity());
+        assertEquals(2, pool.numInUse());
+        pkt.release();
+        pkt2.release();
+        assertEquals(0, pool.numInUse());
+    }
+
+    public void testExhausted() throws Exception {
+        ReadBufferPool pool = new ReadBufferPool(1024, 1024, 1024, 1, false);
+        ATcpInPacket pkt = pool.read(null, channel(100), 1, 1024);
+        assertTrue(pkt.isPooled());
+        // Beyond the last slab, packets are read into the heap
+        ATcpInPacket pkt2 = pool.read(null, channel(100), 2, 1024);
+        assertFalse(pkt2.isPooled());
+        assertEquals(100, pkt2.size());
+        assertFalse(pkt2.release());
+        assertEquals(1, pool.capacity());
+        assertEquals(1, pool.numInUse());
+        pkt.release();
+        assertTrue(pool.read(null, channel(100), 3, 1024).isPooled());
+    }
+
+    public void testNoData() throws Exception {
+        ReadBufferPool pool = new ReadBufferPool(1024, 1024, 1024, 1, false);
+        ReadableByteChannel empty = new ReadableByteChannel() {
+            public int read(ByteBuffer dst) {
+                return 0;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        assertNull(pool.read(null, empty, 1, 1024));
+        assertEquals(0, pool.numInUse());
+
+        try {
+            pool.read(null, channel(0), 1, 1024);
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertEquals(0, pool.numInUse());
+    }
+
+    public void testLeakReclaim() throws Exception {
+        ReadBufferPool pool = new ReadBufferPool(1024, 1024, 1024, 1, true);
+        ATcpInPacket pkt = pool.read(null, channel(100), 1, 1024);
+        assertTrue(pkt.isPooled());
+        pkt = null;
+
+        // The buffer of the dropped packet is reclaimed once the packet
+        // has been collected
+        for (int i = 0; i < 100 && pool.numLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pkt = pool.read(null, channel(100), 2, 1024);
+            if (pkt.isPooled()) break;
+        }
+        assertEquals(1, pool.numLeaked());
+        assertTrue(pkt.isPooled());
+        assertEquals(1, pool.capacity());
+
+        // A released packet is not reported
+        pkt.release();
+        pkt = null;
+        System.gc();
+        Thread.sleep(10);
+        assertTrue(pool.read(null, channel(100), 3, 1024).isPooled());
+        assertEquals(1, pool.numLeaked());
+    }
+}
@@ -0,0 +1,85 @@
+package org.jcyclone.ext.asocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests how {@link ReadBufferSizer} grows and shrinks the read buffer.
+ */
+public class ReadBufferSizerTest extends TestCase {
+
+    public ReadBufferSizerTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReadBufferSizerTest.class);
+    }
+
+    public void testRoundUp() {
+        assertEquals(1, ReadBufferSizer.roundUp(0));
+        assertEquals(1, ReadBufferSizer.roundUp(1));
+        assertEquals(1024, ReadBufferSizer.roundUp(1000));
+        assertEquals(1024, ReadBufferSizer.roundUp(1024));
+        assertEquals(2048, ReadBufferSizer.roundUp(1025));
+        assertEquals(1 << 30, ReadBufferSizer.roundUp(Integer.MAX_VALUE));
+    }
+
+    public void testBounds() {
+        ReadBufferSizer sizer = new ReadBufferSizer(1000, 100, 5000);
+        assertEquals(1024, sizer.size());
+        sizer = new ReadBufferSizer(1000, 100000, 5000);
+        assertEquals(8192, sizer.size());
+        // The maximum is never below the minimum
+        sizer = new ReadBufferSizer(4096, 1024, 1024);
+        assertEquals(4096, sizer.size());
+        sizer.record(4096);
+        assertEquals(4096, sizer.size());
+    }
+
+    public void testGrow() {
+        ReadBufferSizer sizer = new ReadBufferSizer(1024, 1024, 8192);
+        sizer.record(1000);
+        assertEquals(1024, sizer.size());
+        sizer.record(1024);
+        assertEquals(2048, sizer.size());
+        sizer.record(2048);
+        assertEquals(4096, sizer.size());
+        sizer.record(4096);
+        assertEquals(8192, sizer.size());
+        sizer.record(8192);
+        assertEquals(8192, sizer.size());
+    }
+
+    public void testShrink() {
+        ReadBufferSizer sizer = new ReadBufferSizer(1024, 8192, 8192);
+        for (int i = 1; i < ASocketConst.READ_SHRINK_AFTER; i++) {
+            sizer.record(100);
+            assertEquals(8192, sizer.size());
+        }
+        sizer.record(4096);
+        assertEquals(4096, sizer.size());
+
+        // A read of more than half the buffer starts the count again
+        for (int i = 1; i < ASocketConst.READ_SHRINK_AFTER; i++) sizer.record(100);
+        sizer.record(3000);
+        for (int i = 1; i < ASocketConst.READ_SHRINK_AFTER; i++) sizer.record(100);
+        assertEquals(4096, sizer.size());
+        sizer.record(100);
+        assertEquals(2048, sizer.size());
+
+        // A full read grows the buffer and starts the count again
+        for (int i = 1; i < ASocketConst.READ_SHRINK_AFTER; i++) sizer.record(100);
+        sizer.record(2048);
+        assertEquals(4096, sizer.size());
+        for (int i = 1; i < ASocketConst.READ_SHRINK_AFTER; i++) sizer.record(100);
+        assertEquals(4096, sizer.size());
+    }
+
+    public void testShrinkToMinimum() {
+        ReadBufferSizer sizer = new ReadBufferSizer(1024, 4096, 8192);
+        for (int i = 0; i < 10 * ASocketConst.READ_SHRINK_AFTER; i++) sizer.record(1);
+        assertEquals(1024, sizer.size());
+    }
+}
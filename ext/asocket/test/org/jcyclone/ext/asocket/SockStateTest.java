@@ -0,0 +1,114 @@
+package org.jcyclone.ext.asocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.event.BufferElement;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the writes handed off by the fast path reach the write
+ * queue of a socket in order, and that no write of the fast path
+ * overtakes them.
+ */
+public class SockStateTest extends TestCase {
+
+    public SockStateTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SockStateTest.class);
+    }
+
+    private static ATcpWriteRequest request() {
+        return new ATcpWriteRequest(null, new BufferElement(100));
+    }
+
+    public void testHandoffOrder() {
+        StubSockState ss = new StubSockState();
+        ss.writeCompletely = false;
+        ATcpWriteRequest req1 = request(), req2 = request();
+        assertFalse(ss.fastWrite(req1));
+        // A partial write is pending; the next write is handed off too
+        assertFalse(ss.fastWrite(req2));
+        assertEquals(1, ss.directWrites.size());
+        assertEquals(200, ss.queuedBytes());
+
+        assertNull(ss.queueHandedOff(null));
+        assertNull(ss.queueHandedOff(null));
+        assertSame(req1, ss.writeReqList.remove_head());
+        assertSame(req2, ss.writeReqList.remove_head());
+        assertEquals(2, ss.outstanding_writes);
+    }
+
+    public void testCompleteWrite() {
+        StubSockState ss = new StubSockState();
+        assertTrue(ss.fastWrite(request()));
+        assertTrue(ss.fastWrite(request()));
+        assertEquals(2, ss.directWrites.size());
+        assertEquals(0, ss.queuedBytes());
+    }
+
+    public void testClosed() {
+        StubSockState ss = new StubSockState();
+        ss.writeCompletely = false;
+        assertFalse(ss.fastWrite(request()));
+        ss.close(null);
+        // Dropped, rather than returned as clogged
+        assertNull(ss.queueHandedOff(null));
+        assertEquals(0, ss.outstanding_writes);
+    }
+
+    public void testNoWriteSlipsIn() throws Exception {
+        final CountDownLatch dequeued = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        // Pauses the write stage between taking a request from the
+        // handoff list and queueing it
+        final StubSockState ss = new StubSockState() {
+            ASocketRequest writeDequeued() {
+                ASocketRequest req = super.writeDequeued();
+                dequeued.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return req;
+            }
+        };
+        ss.writeCompletely = false;
+        ATcpWriteRequest req1 = request();
+        final ATcpWriteRequest req2 = request();
+        assertFalse(ss.fastWrite(req1));
+        ss.writeCompletely = true;
+
+        Thread stage = new Thread() {
+            public void run() {
+                ss.queueHandedOff(null);
+            }
+        };
+        stage.start();
+        assertTrue(dequeued.await(10, TimeUnit.SECONDS));
+        final boolean written[] = new boolean[1];
+        Thread writer = new Thread() {
+            public void run() {
+                written[0] = ss.fastWrite(req2);
+            }
+        };
+        writer.start();
+        writer.join(200);
+        resume.countDown();
+        stage.join();
+        writer.join();
+
+        // req2 waited for the remainder of req1, rather than being written
+        assertFalse(written[0]);
+        assertEquals(1, ss.directWrites.size());
+        assertNull(ss.queueHandedOff(null));
+        assertSame(req1, ss.writeReqList.remove_head());
+        assertSame(req2, ss.writeReqList.remove_head());
+    }
+}
@@ -0,0 +1,68 @@
+package org.jcyclone.ext.asocket;
+
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.util.FastLinkedList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A socket without a channel, for tests of the timeouts and of the
+ * bookkeeping of writes. Requests added are kept in writeReqList, and
+ * those the fast path writes directly are recorded in directWrites.
+ */
+class StubSockState extends SockState {
+    // Whether the fast path writes requests completely
+    boolean writeCompletely = true;
+    final List directWrites = new ArrayList();
+
+    StubSockState() {
+        writeReqList = new FastLinkedList();
+    }
+
+    protected void readInit(SelectSourceIF read_selsource, ISink compQ, int readClogTries) {
+    }
+
+    protected void doRead() {
+    }
+
+    protected void resumeRead() {
+    }
+
+    protected synchronized boolean addWriteRequest(ASocketRequest req, SelectSourceIF write_selsource) {
+        if (closed) return false;
+        writeReqList.add_to_tail(req);
+        outstanding_writes++;
+        return true;
+    }
+
+    protected void initWrite(ATcpWriteRequest req) {
+    }
+
+    protected boolean tryWrite() {
+        return false;
+    }
+
+    protected synchronized boolean tryWriteNow(ATcpWriteRequest req) {
+        directWrites.add(req);
+        return writeCompletely;
+    }
+
+    protected int tryWriteMany() {
+        return 0;
+    }
+
+    protected boolean trySendFile(ATcpSendFileRequest req) {
+        return false;
+    }
+
+    protected void writeMaskEnable() {
+    }
+
+    protected void writeMaskDisable() {
+    }
+
+    protected void close(ISink closeEventQueue) {
+        closed = true;
+    }
+}
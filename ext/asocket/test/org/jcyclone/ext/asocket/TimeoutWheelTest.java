@@ -0,0 +1,164 @@
+package org.jcyclone.ext.asocket;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.timer.ITimer;
+import org.jcyclone.core.timer.ITimerEvent;
+
+import java.util.Date;
+
+/**
+ * Tests how {@link TimeoutWheel} places sockets in its slots, moves them
+ * as their deadlines change, and closes those which time out.
+ */
+public class TimeoutWheelTest extends TestCase {
+    private static final int TICK = 10;
+    private static final int SLOTS = 8;
+
+    private CountingTimer timer;
+    private TimeoutWheel wheel;
+
+    public TimeoutWheelTest(String inName) {
+        super(inName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TimeoutWheelTest.class);
+    }
+
+    protected void setUp() {
+        timer = new CountingTimer();
+        wheel = new TimeoutWheel(timer, null, TICK, SLOTS);
+    }
+
+    public void testLinkAndUnlink() {
+        StubSockState a = new StubSockState();
+        a.lifetime = 1000;
+        StubSockState b = new StubSockState();
+        b.lifetime = 1000;
+        StubSockState c = new StubSockState();
+        c.lifetime = 1000;
+        wheel.add(a);
+        wheel.add(b);
+        wheel.add(c);
+        assertEquals(3, wheel.size());
+        assertTrue(a.wheelSlot >= 0 && a.wheelSlot < SLOTS);
+        // The wheel posts itself once, however many sockets it holds
+        assertEquals(1, timer.count);
+
+        // Adding again moves rather than duplicates
+        wheel.add(b);
+        assertEquals(3, wheel.size());
+
+        // Unlink from the middle, the head and the tail of a slot
+        wheel.remove(a);
+        assertEquals(-1, a.wheelSlot);
+        assertNull(a.wheelNext);
+        assertNull(a.wheelPrev);
+        assertEquals(2, wheel.size());
+        wheel.remove(b);
+        wheel.remove(c);
+        assertEquals(0, wheel.size());
+        wheel.remove(c);
+        assertEquals(0, wheel.size());
+
+        // A socket without timeouts is not held
+        StubSockState d = new StubSockState();
+        wheel.add(d);
+        assertEquals(-1, d.wheelSlot);
+        assertEquals(0, wheel.size());
+        d.lifetime = 1000;
+        wheel.add(d);
+        assertEquals(1, wheel.size());
+        d.lifetime = -1;
+        wheel.add(d);
+        assertEquals(0, wheel.size());
+    }
+
+    public void testExpire() throws Exception {
+        StubSockState a = new StubSockState();
+        a.lifetime = 3 * TICK;
+        StubSockState b = new StubSockState();
+        b.lifetime = 1000;
+        wheel.add(a);
+        wheel.add(b);
+        Thread.sleep(6 * TICK);
+        wheel.advance();
+        assertTrue(a.closed);
+        assertEquals(-1, a.wheelSlot);
+        assertFalse(b.closed);
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.numTimedOut(ATcpTimeoutEvent.LIFETIME));
+        assertEquals(0, wheel.numTimedOut(ATcpTimeoutEvent.IDLE_READ));
+        // Still holding b, the wheel posts itself again
+        assertEquals(2, timer.count);
+
+        wheel.remove(b);
+        Thread.sleep(2 * TICK);
+        wheel.advance();
+        assertEquals(0, wheel.size());
+        assertEquals(2, timer.count);
+    }
+
+    public void testIdleDeadlineMoves() throws Exception {
+        // Longer than the span of the wheel
+        int idle = 20 * TICK;
+        StubSockState a = new StubSockState();
+        a.idleReadTimeout = idle;
+        wheel.add(a);
+
+        Thread.sleep(idle / 2);
+        wheel.advance();
+        a.lastRead = System.currentTimeMillis();
+        Thread.sleep(idle / 2 + 3 * TICK);
+        wheel.advance();
+        // Read from in the meantime, the socket moved on
+        assertFalse(a.closed);
+        assertEquals(1, wheel.size());
+
+        Thread.sleep(idle);
+        wheel.advance();
+        assertTrue(a.closed);
+        assertEquals(0, wheel.size());
+        assertEquals(1, wheel.numTimedOut(ATcpTimeoutEvent.IDLE_READ));
+    }
+
+    public void testSuspendedReadIsNotIdle() throws Exception {
+        StubSockState a = new StubSockState();
+        a.idleReadTimeout = 3 * TICK;
+        a.readSuspended = true;
+        wheel.add(a);
+        Thread.sleep(6 * TICK);
+        wheel.advance();
+        assertFalse(a.closed);
+        assertEquals(1, wheel.size());
+        wheel.remove(a);
+    }
+
+    // Counts the times the wheel posts itself
+    static class CountingTimer implements ITimer {
+        int count;
+
+        public synchronized ITimerEvent registerEvent(long millis, IElement evt, ISink queue) {
+            count++;
+            return null;
+        }
+
+        public ITimerEvent registerEvent(Date the_date, IElement evt, ISink queue) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int size() {
+            return 0;
+        }
+
+        public void cancelAll() {
+        }
+
+        public void cancelEvent(ITimerEvent timerEvt) {
+        }
+    }
+}
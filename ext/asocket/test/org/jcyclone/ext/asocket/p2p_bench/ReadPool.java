@@ -0,0 +1,146 @@
+/* This is a simple benchmark of the aSocket read path, with and
+ * without the pool of direct read buffers. It streams data over a
+ * loopback connection within one JVM, and reports the receive bandwidth
+ * along with the garbage collections incurred.
+ */
+
+package org.jcyclone.ext.asocket.p2p_bench;
+
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.*;
+import org.jcyclone.ext.asocket.*;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class ReadPool {
+
+	private static final boolean DEBUG = false;
+
+	private static final int PORTNUM = 5722;
+	private static final int WINDOW_SIZE = 64;
+	private static int MSG_SIZE;
+	private static long TOTAL_BYTES;
+
+	private static void usage() {
+		System.err.println("usage: ReadPool [pooled|heap] <msgsize> <megabytes>");
+		System.exit(1);
+	}
+
+	public static void main(String args[]) {
+		if (args.length != 3) usage();
+		boolean pooled = args[0].equals("pooled");
+		MSG_SIZE = Integer.decode(args[1]).intValue();
+		TOTAL_BYTES = Long.parseLong(args[2]) * 1024 * 1024;
+
+		try {
+			JCycloneConfig cfg = new JCycloneConfig();
+			cfg.putBoolean("global.aSocket.readBufferPool.enable", pooled);
+			new JCyclone(cfg);
+			System.err.println("ReadPool: " + (pooled ? "pooled" : "heap") + " reads, message size=" + MSG_SIZE);
+			run();
+			System.exit(0);
+		} catch (Exception e) {
+			System.err.println("ReadPool.main() got exception: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void run() throws Exception {
+		IQueue rx_q = new LinkedBlockingQueue();
+		IQueue tx_q = new LinkedBlockingQueue();
+		new ATcpServerSocket(PORTNUM, rx_q);
+		waitFor(rx_q, ATcpListenSuccessEvent.class);
+		new ATcpClientSocket("localhost", PORTNUM, tx_q);
+
+		ATcpConnection rx = (ATcpConnection) waitFor(rx_q, ATcpConnection.class);
+		ATcpConnection tx = (ATcpConnection) waitFor(tx_q, ATcpConnection.class);
+		rx.startReader(rx_q);
+
+		byte barr[] = new byte[MSG_SIZE];
+		for (int i = 0; i < MSG_SIZE; i++) barr[i] = (byte) (i & 0xff);
+
+		long gcs = gcCount(), gcTime = gcTime();
+		long before = System.currentTimeMillis();
+		long sent = 0, received = 0;
+		int inflight = 0, packets = 0;
+		List fetched = new ArrayList();
+
+		while (received < TOTAL_BYTES) {
+			// Keep a window of messages in flight
+			while (inflight < WINDOW_SIZE && sent < TOTAL_BYTES) {
+				BufferElement buf = new BufferElement(barr, 0, MSG_SIZE);
+				buf.compQ = tx_q;
+				tx.enqueue(buf);
+				sent += MSG_SIZE;
+				inflight++;
+			}
+			fetched.clear();
+			tx_q.dequeueAll(fetched);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				if (it.next() instanceof SinkDrainedEvent) inflight--;
+			}
+
+			fetched.clear();
+			rx_q.blockingDequeueAll(fetched, 10);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				Object el = it.next();
+				if (!(el instanceof ATcpInPacket)) {
+					if (DEBUG) System.err.println("ReadPool: Got " + el);
+					continue;
+				}
+				ATcpInPacket pkt = (ATcpInPacket) el;
+				received += pkt.size();
+				packets++;
+				pkt.release();
+			}
+		}
+
+		long after = System.currentTimeMillis();
+		long diff = Math.max(after - before, 1);
+		double mbps = (received * 8.0) / ((double) diff * 1.0e3);
+		System.err.println(received + " bytes in " + packets + " packets, " + diff + " milliseconds");
+		System.err.println("\t" + mbps + " mbps bandwidth, " + (gcCount() - gcs) + " collections taking " +
+		    (gcTime() - gcTime) + " milliseconds");
+		if (ASocketMgr.getReadBufferPool() != null) {
+			System.err.println("\t" + ASocketMgr.getReadBufferPool());
+		}
+	}
+
+	private static Object waitFor(IQueue q, Class type) throws IOException, InterruptedException {
+		List fetched = new ArrayList();
+		while (true) {
+			fetched.clear();
+			q.blockingDequeueAll(fetched, -1);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				Object el = it.next();
+				if (type.isInstance(el)) return el;
+				if (el instanceof ASocketErrorEvent) throw new IOException(el.toString());
+			}
+		}
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for (Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator(); it.hasNext();) {
+			n += ((GarbageCollectorMXBean) it.next()).getCollectionCount();
+		}
+		return n;
+	}
+
+	private static long gcTime() {
+		long t = 0;
+		for (Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator(); it.hasNext();) {
+			t += ((GarbageCollectorMXBean) it.next()).getCollectionTime();
+		}
+		return t;
+	}
+
+}
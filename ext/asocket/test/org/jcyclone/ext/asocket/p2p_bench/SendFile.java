@@ -0,0 +1,178 @@
+/* This is a simple benchmark of serving a large static file over
+ * aSocket, either with FileRegions, which are sent with transferTo(),
+ * or by reading the file into BufferElements. It sends the file
+ * repeatedly over a loopback connection within one JVM, and reports the
+ * receive bandwidth along with the garbage collections incurred.
+ */
+
+package org.jcyclone.ext.asocket.p2p_bench;
+
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.queue.*;
+import org.jcyclone.ext.asocket.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class SendFile {
+
+	private static final boolean DEBUG = false;
+
+	private static final int PORTNUM = 5723;
+	private static final int CHUNK_SIZE = 65536;
+	private static final int WINDOW_SIZE = 16;
+	private static long FILE_SIZE;
+	private static int NUM_SENDS;
+
+	private static void usage() {
+		System.err.println("usage: SendFile [sendfile|copy] <megabytes> <numsends>");
+		System.exit(1);
+	}
+
+	public static void main(String args[]) {
+		if (args.length != 3) usage();
+		boolean sendfile = args[0].equals("sendfile");
+		FILE_SIZE = Long.parseLong(args[1]) * 1024 * 1024;
+		NUM_SENDS = Integer.parseInt(args[2]);
+
+		try {
+			new JCyclone(new JCycloneConfig());
+			File file = makeFile();
+			System.err.println("SendFile: " + (sendfile ? "sendfile" : "copy") + ", file size=" + FILE_SIZE);
+			run(file, sendfile);
+			file.delete();
+			System.exit(0);
+		} catch (Exception e) {
+			System.err.println("SendFile.main() got exception: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static File makeFile() throws IOException {
+		File file = File.createTempFile("SendFile", ".dat");
+		file.deleteOnExit();
+		byte barr[] = new byte[CHUNK_SIZE];
+		for (int i = 0; i < CHUNK_SIZE; i++) barr[i] = (byte) (i & 0xff);
+		FileOutputStream out = new FileOutputStream(file);
+		for (long n = 0; n < FILE_SIZE; n += CHUNK_SIZE) {
+			out.write(barr, 0, (int) Math.min(CHUNK_SIZE, FILE_SIZE - n));
+		}
+		out.close();
+		return file;
+	}
+
+	private static void run(File file, boolean sendfile) throws Exception {
+		IQueue rx_q = new LinkedBlockingQueue();
+		IQueue tx_q = new LinkedBlockingQueue();
+		new ATcpServerSocket(PORTNUM, rx_q);
+		waitFor(rx_q, ATcpListenSuccessEvent.class);
+		new ATcpClientSocket("localhost", PORTNUM, tx_q);
+
+		ATcpConnection rx = (ATcpConnection) waitFor(rx_q, ATcpConnection.class);
+		ATcpConnection tx = (ATcpConnection) waitFor(tx_q, ATcpConnection.class);
+		rx.startReader(rx_q);
+
+		FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+		long total = FILE_SIZE * NUM_SENDS;
+
+		long gcs = gcCount(), gcTime = gcTime();
+		long before = System.currentTimeMillis();
+		long received = 0, pos = 0;
+		int sends = 0, inflight = 0;
+		List fetched = new ArrayList();
+
+		while (received < total) {
+			if (sendfile) {
+				// One region in flight per send of the file
+				while (inflight < 2 && sends < NUM_SENDS) {
+					tx.enqueue(new FileRegion(fc, 0, FILE_SIZE, tx_q));
+					sends++;
+					inflight++;
+				}
+			} else {
+				// Keep a window of chunks read from the file in flight
+				while (inflight < WINDOW_SIZE && sends < NUM_SENDS) {
+					int len = (int) Math.min(CHUNK_SIZE, FILE_SIZE - pos);
+					BufferElement buf = new BufferElement(len);
+					fc.read(ByteBuffer.wrap(buf.data, 0, len), pos);
+					buf.compQ = tx_q;
+					tx.enqueue(buf);
+					inflight++;
+					pos += len;
+					if (pos == FILE_SIZE) {
+						pos = 0;
+						sends++;
+					}
+				}
+			}
+			fetched.clear();
+			tx_q.dequeueAll(fetched);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				if (it.next() instanceof SinkDrainedEvent) inflight--;
+			}
+
+			fetched.clear();
+			rx_q.blockingDequeueAll(fetched, 10);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				Object el = it.next();
+				if (!(el instanceof ATcpInPacket)) {
+					if (DEBUG) System.err.println("SendFile: Got " + el);
+					continue;
+				}
+				ATcpInPacket pkt = (ATcpInPacket) el;
+				received += pkt.size();
+				pkt.release();
+			}
+		}
+
+		long after = System.currentTimeMillis();
+		long diff = Math.max(after - before, 1);
+		double mbps = (received * 8.0) / ((double) diff * 1.0e3);
+		System.err.println(received + " bytes in " + NUM_SENDS + " sends, " + diff + " milliseconds");
+		System.err.println("\t" + mbps + " mbps bandwidth, " + (gcCount() - gcs) + " collections taking " +
+		    (gcTime() - gcTime) + " milliseconds");
+		fc.close();
+	}
+
+	private static Object waitFor(IQueue q, Class type) throws IOException, InterruptedException {
+		List fetched = new ArrayList();
+		while (true) {
+			fetched.clear();
+			q.blockingDequeueAll(fetched, -1);
+			for (Iterator it = fetched.iterator(); it.hasNext();) {
+				Object el = it.next();
+				if (type.isInstance(el)) return el;
+				if (el instanceof ASocketErrorEvent) throw new IOException(el.toString());
+			}
+		}
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for (Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator(); it.hasNext();) {
+			n += ((GarbageCollectorMXBean) it.next()).getCollectionCount();
+		}
+		return n;
+	}
+
+	private static long gcTime() {
+		long t = 0;
+		for (Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator(); it.hasNext();) {
+			t += ((GarbageCollectorMXBean) it.next()).getCollectionTime();
+		}
+		return t;
+	}
+
+}
@@ -240,6 +240,8 @@ class ATLSRecordStage implements IEventHandler, ATLSConst {
 				reader = atlsconn.getReader();
 
 				(reader.asis).addPacket(pkt);
+				// The data has been copied by the input stream
+				pkt.release();
 
 				if (DEBUG) System.err.println("aTLSRecordStage: Calling recordReader()");
 
@@ -177,11 +177,16 @@ public class GnutellaServer implements IEventHandler, GnutellaConst {
 
 		if (qel instanceof ATcpInPacket) {
 			ATcpInPacket pkt = (ATcpInPacket) qel;
-			if (newConnTable.get(pkt.getConnection()) != null) {
-				// New connection - handle handshake
-				handleHandshake(pkt);
-			} else {
-				continuePacket((ATcpInPacket) qel);
+			try {
+				if (newConnTable.get(pkt.getConnection()) != null) {
+					// New connection - handle handshake
+					handleHandshake(pkt);
+				} else {
+					continuePacket(pkt);
+				}
+			} finally {
+				// The data has been copied by the packet reader
+				pkt.release();
 			}
 
 		} else if (qel instanceof ATcpConnection) {
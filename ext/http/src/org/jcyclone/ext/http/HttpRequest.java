@@ -76,6 +76,7 @@ public class HttpRequest extends TimeStampedEvent
 	private String url;
 	private int httpver;
 	private int user_class = -2;
+	private long budget = -1;
 
 	private Vector rawHeader;
 	private Hashtable header;
@@ -343,5 +344,13 @@ public class HttpRequest extends TimeStampedEvent
 		this.user_class = theclass;
 	}
 
+	public long getLatencyBudget() {
+		return budget;
+	}
+
+	public void setLatencyBudget(long budget) {
+		this.budget = budget;
+	}
+
 
 }
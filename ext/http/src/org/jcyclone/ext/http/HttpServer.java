@@ -123,14 +123,15 @@ public class HttpServer implements IEventHandler, HttpConst {
 			}
 
 			HttpConnection hc = (HttpConnection) connTable.get(pkt.getConnection());
-			if (hc == null) return; // Connection may have been closed
-
 			try {
-				hc.parsePacket(pkt);
+				if (hc != null) hc.parsePacket(pkt); // Connection may have been closed
 			} catch (IOException ioe) {
 				System.err.println("httpServer: Got IOException during packet processing for connection " + hc + ": " + ioe);
 				ioe.printStackTrace();
 				// XXX Should close connection
+			} finally {
+				// The data has been copied by the packet reader
+				pkt.release();
 			}
 
 		} else if (qel instanceof ATcpConnection) {